@@ -0,0 +1,180 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the operations of {@link BlockChain} on chains of different
+ * lengths, held on the heap or in an {@link ArenaBlockStore}. The chain is
+ * built at difficulty 0, so every block is valid without mining and a
+ * fixture of a million blocks is quick to build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChainBenchmark {
+    /** The number of blocks in the chain. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int length;
+
+    /** Where the chain keeps its blocks: on the heap, or off it in an arena. */
+    @Param({"array", "arena"})
+    public String store;
+
+    /** The chain under test. */
+    private BlockChain chain;
+    /** A block that can be appended to the chain. */
+    private Block next;
+    /** The hash of a block in the middle of the chain. */
+    private Hash middle;
+    /** The height of the next block fetched by height. */
+    private int cursor;
+
+    /**
+     * Builds the chain.
+     */
+    @Setup
+    public void setUp() {
+        BlockStore blocks = store.equals("arena") ? new ArenaBlockStore() : new ArrayBlockStore();
+        chain = new BlockChain(blocks, 1000, new ParallelMiner(), Block.HEADER_V2, 0);
+        for (int height = 1; height < length; height++) {
+            chain.append(new Block(height, height % 2 == 0 ? 1 : -1, chain.getHash(), 0,
+                Block.HEADER_V2, 0));
+        }
+        next = new Block(length, 0, chain.getHash(), 0, Block.HEADER_V2, 0);
+        middle = chain.getBlock(length / 2).getHash();
+    }
+
+    /**
+     * Appends a block and removes it again, leaving the chain unchanged.
+     *
+     * @return the size of the chain with the block appended
+     */
+    @Benchmark
+    public int appendAndRemoveLast() {
+        chain.append(next);
+        int size = chain.getSize();
+        chain.removeLast();
+        return size;
+    }
+
+    /**
+     * Fetches a block by height.
+     *
+     * @return the block
+     */
+    @Benchmark
+    public Block getBlock() {
+        cursor = cursor + 7919 < length ? cursor + 7919 : (cursor + 7919) % length;
+        return chain.getBlock(cursor);
+    }
+
+    /**
+     * Looks up a block by hash.
+     *
+     * @return the height of the block
+     */
+    @Benchmark
+    public int indexOf() {
+        return chain.indexOf(middle);
+    }
+
+    /**
+     * Queries the current balances.
+     *
+     * @return Anna's balance
+     */
+    @Benchmark
+    public int balance() {
+        return chain.getAnnaBalance();
+    }
+
+    /**
+     * Re-checks every block of the chain on one thread, replaying the
+     * balances from the genesis block: the serial path behind
+     * {@link BlockChain#isValidBlockChain()} with nothing trusted from
+     * earlier checks.
+     *
+     * @return whether the chain is valid, which should be true
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public boolean verifyFull() {
+        return chain.verifyFull();
+    }
+
+    /**
+     * Re-checks every block of the chain on all cores.
+     *
+     * @return the first invalid height, which should be -1
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public int verifyParallel() {
+        return chain.verifyParallel();
+    }
+
+    /**
+     * Formats the whole chain at once.
+     *
+     * @return the formatted chain
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public String toStringChain() {
+        return chain.toString();
+    }
+
+    /**
+     * Streams the whole chain as text without building it in memory.
+     *
+     * @param blackhole consumes the output
+     * @throws IOException never
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void writeTo(Blackhole blackhole) throws IOException {
+        chain.writeTo(new Appendable() {
+            @Override
+            public Appendable append(CharSequence csq) {
+                blackhole.consume(csq);
+                return this;
+            }
+
+            @Override
+            public Appendable append(CharSequence csq, int start, int end) {
+                blackhole.consume(csq);
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) {
+                blackhole.consume(c);
+                return this;
+            }
+        }, 0, chain.getSize());
+    }
+}
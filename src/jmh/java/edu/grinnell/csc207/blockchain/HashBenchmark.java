@@ -0,0 +1,68 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the basic operations of {@link Hash}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HashBenchmark {
+    /** A hash. */
+    private Hash hash;
+    /** A different hash object with the same value. */
+    private Hash same;
+
+    /**
+     * Creates the hashes compared.
+     */
+    @Setup
+    public void setUp() {
+        hash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 0, null, 0);
+        same = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 0, null, 0);
+    }
+
+    /**
+     * Compares two equal hashes.
+     *
+     * @return whether they are equal
+     */
+    @Benchmark
+    public boolean equalsHash() {
+        return hash.equals(same);
+    }
+
+    /**
+     * Computes a hash code.
+     *
+     * @return the hash code
+     */
+    @Benchmark
+    public int hashCodeHash() {
+        return hash.hashCode();
+    }
+
+    /**
+     * Formats a hash as hexadecimal.
+     *
+     * @return the formatted hash
+     */
+    @Benchmark
+    public String toStringHash() {
+        return hash.toString();
+    }
+}
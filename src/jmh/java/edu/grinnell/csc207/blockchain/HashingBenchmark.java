@@ -0,0 +1,71 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of hashing a block header, both through
+ * {@link Block#computeHash} and through the reusable {@link NonceHasher}
+ * the miners use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HashingBenchmark {
+    /** The header layout to hash. */
+    @Param({"1", "2", "3"})
+    public int version;
+
+    /** Whether the nonce hasher uses the midstate hasher. */
+    @Param({"false", "true"})
+    public boolean midstate;
+
+    /** The previous hash included in the header. */
+    private Hash prevHash;
+    /** The hasher under test. */
+    private NonceHasher hasher;
+    /** The next nonce to try. */
+    private long nonce;
+
+    /**
+     * Builds the header being hashed.
+     */
+    @Setup
+    public void setUp() {
+        prevHash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 0, null, 0);
+        hasher = new NonceHasher(version, Hash.DEFAULT_DIFFICULTY, 1, -100, prevHash, midstate);
+    }
+
+    /**
+     * Hashes a header from scratch, as validation does.
+     *
+     * @return the hash
+     */
+    @Benchmark
+    public Hash computeHash() {
+        return Block.computeHash(version, 1, Hash.DEFAULT_DIFFICULTY, -100, nonce++, prevHash, 0);
+    }
+
+    /**
+     * Tries one nonce, as the miners do.
+     *
+     * @return whether the nonce was valid
+     */
+    @Benchmark
+    public boolean tryNonce() {
+        return hasher.tryNonce(nonce++);
+    }
+}
@@ -0,0 +1,65 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to mine one block with each miner. Every invocation
+ * mines a different block, since the time to mine varies a lot from block
+ * to block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+public class MiningBenchmark {
+    /** The miner to use. */
+    @Param({"sequential", "parallel"})
+    public String miner;
+
+    /** The header layout to mine. */
+    @Param({"1", "2", "3"})
+    public int version;
+
+    /** The number of leading zero bits to mine for. */
+    @Param({"16", "20", "24"})
+    public int difficulty;
+
+    /** The miner under test. */
+    private Miner impl;
+    /** The previous hash of the mined blocks. */
+    private Hash prevHash;
+    /** The amount of the next block, so each invocation mines a new block. */
+    private int amount;
+
+    /**
+     * Creates the miner under test.
+     */
+    @Setup
+    public void setUp() {
+        impl = "parallel".equals(miner) ? new ParallelMiner() : new SequentialMiner();
+        prevHash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 0, null, 0);
+    }
+
+    /**
+     * Mines one block.
+     *
+     * @return the mined block
+     */
+    @Benchmark
+    public Block mine() {
+        return impl.mine(version, difficulty, 1, amount++, prevHash);
+    }
+}
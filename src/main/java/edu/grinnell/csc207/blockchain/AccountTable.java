@@ -0,0 +1,179 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The balance of every account, keyed by account id. Ids and balances sit
+ * in two parallel primitive arrays, an open-addressed hash table with linear
+ * probing, so a lookup or update costs O(1) expected time and no boxing
+ * however many accounts there are. An account that was never paid has
+ * balance 0.
+ *
+ * <p>Accounts are never removed: one whose transfers are all reverted keeps
+ * its slot with a balance of 0.
+ */
+final class AccountTable {
+    /** The id marking an empty slot; account ids are never negative. */
+    private static final int EMPTY = -1;
+    /** The number of slots a new table starts with. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The account id in each slot, or {@link #EMPTY}. */
+    private int[] ids;
+    /** The balance of the account in each slot. */
+    private long[] balances;
+    /** The number of accounts in the table. */
+    private int size;
+
+    /**
+     * Constructs an empty table.
+     */
+    AccountTable() {
+        ids = new int[INITIAL_CAPACITY];
+        Arrays.fill(ids, EMPTY);
+        balances = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the balance of an account.
+     *
+     * @param id the account id
+     * @return the balance, or 0 if the account was never paid
+     */
+    long get(int id) {
+        int slot = slotOf(id, ids);
+        return ids[slot] == EMPTY ? 0 : balances[slot];
+    }
+
+    /**
+     * Adds to the balance of an account, adding the account if it is new.
+     *
+     * @param id    the account id
+     * @param delta the amount to add, negative to take away
+     * @return the new balance
+     */
+    long add(int id, long delta) {
+        int slot = slotOf(id, ids);
+        if (ids[slot] == EMPTY) {
+            // Keep the table at most half full so probes stay short
+            if (2 * (size + 1) > ids.length) {
+                grow();
+                slot = slotOf(id, ids);
+            }
+            ids[slot] = id;
+            size++;
+        }
+        balances[slot] += delta;
+        return balances[slot];
+    }
+
+    /**
+     * Moves an amount from one account to another.
+     *
+     * @param from   the account paying
+     * @param to     the account paid
+     * @param amount the amount
+     * @return true unless the payer is left with a negative balance and is
+     *         not {@link Transfer#BOB}
+     */
+    boolean transfer(int from, int to, long amount) {
+        add(to, amount);
+        return add(from, -amount) >= 0 || from == Transfer.BOB;
+    }
+
+    /**
+     * Returns a copy of the table, which changes independently of it.
+     *
+     * @return the copy
+     */
+    AccountTable copy() {
+        AccountTable copy = new AccountTable();
+        copy.ids = ids.clone();
+        copy.balances = balances.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Computes a digest of the balances: the SHA-256 of each account's id
+     * (4 bytes) and balance (8), big-endian, in order of id. Accounts at 0
+     * are left out, so the digest depends only on the balances and not on
+     * which accounts were ever touched.
+     *
+     * @return the digest
+     */
+    Hash digest() {
+        int[] held = new int[size];
+        int count = 0;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (ids[slot] != EMPTY && balances[slot] != 0) {
+                held[count++] = ids[slot];
+            }
+        }
+        Arrays.sort(held, 0, count);
+        MessageDigest md = NonceHasher.sha256();
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        for (int i = 0; i < count; i++) {
+            entry.clear();
+            entry.putInt(held[i]).putLong(get(held[i]));
+            md.update(entry.array());
+        }
+        return new Hash(md.digest());
+    }
+
+    /**
+     * Returns the number of accounts that were ever paid or paid out.
+     *
+     * @return the number of accounts
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the memory the table's arrays take up.
+     *
+     * @return the size of the arrays in bytes
+     */
+    long bytes() {
+        return (long) ids.length * (Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Finds the slot holding an account, or the empty slot it would go in.
+     *
+     * @param id    the account id
+     * @param slots the ids of a table whose length is a power of two
+     * @return the slot
+     */
+    private static int slotOf(int id, int[] slots) {
+        int mask = slots.length - 1;
+        // Fibonacci hashing spreads runs of consecutive ids across the table
+        int h = id * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (slots[slot] != EMPTY && slots[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the number of slots and puts every account back in.
+     */
+    private void grow() {
+        int[] oldIds = ids;
+        long[] oldBalances = balances;
+        ids = new int[2 * oldIds.length];
+        Arrays.fill(ids, EMPTY);
+        balances = new long[ids.length];
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != EMPTY) {
+                int slot = slotOf(oldIds[i], ids);
+                ids[slot] = oldIds[i];
+                balances[slot] = oldBalances[i];
+            }
+        }
+    }
+}
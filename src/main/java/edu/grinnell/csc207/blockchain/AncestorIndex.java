@@ -0,0 +1,340 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A Merkle mountain range over the hashes of a chain's blocks, answering
+ * whether a block is an ancestor of the tip and proving it to clients that
+ * hold only the range's root (see {@link AncestorProof}).
+ *
+ * <p>The leaves are the block hashes, in height order. They are grouped
+ * into perfect binary trees, one for each set bit of the number of blocks,
+ * largest first; each inner node is the SHA-256 of a 1 byte followed by its
+ * two children. The root is the SHA-256 of a 2 byte, the number of blocks
+ * (4 bytes, big-endian) and the peaks of the trees folded together from the
+ * right as inner nodes are.
+ *
+ * <p>Nodes are stored back to back in post-order, so the nodes of the first
+ * m blocks are exactly the first 2m - bitCount(m) nodes. Appending a block
+ * hashes one node per tree it completes, O(1) amortized, and removing
+ * blocks only moves the end. Node positions are longs, since a chain of
+ * more than 2^30 blocks has more nodes than an int can count, and the nodes
+ * live off the heap in chunks of {@link #CHUNK_NODES}, so no buffer has to
+ * be addressed past 2 GiB or copied as the chain grows. The first chunk
+ * starts small and doubles until it is full size.
+ *
+ * <p>Once the blocks below some height are pruned, {@link #pruneTo(int)}
+ * keeps only what the blocks from there on need: the nodes after the
+ * pruned blocks' own, and the peaks of the pruned blocks' trees, which are
+ * the only older nodes any later proof, peak or append reads. The chunks
+ * holding nothing else are released.
+ */
+final class AncestorIndex {
+    /** The prefix hashed before a pair of children. */
+    static final byte NODE = 1;
+    /** The prefix hashed before the number of blocks and the bagged peaks. */
+    static final byte ROOT = 2;
+    /** The number of nodes a new index has room for. */
+    private static final int INITIAL_NODES = 64;
+    /** The base-2 logarithm of the number of nodes in a chunk. */
+    private static final int CHUNK_SHIFT = 15;
+    /** The number of nodes in a full chunk. */
+    static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+    /** The initial length of the chunk array. */
+    private static final int INITIAL_CHUNKS = 4;
+
+    /** The nodes, {@link Hash#LENGTH} bytes each, in post-order, by position / CHUNK_NODES. */
+    private ByteBuffer[] chunks = new ByteBuffer[INITIAL_CHUNKS];
+    /** The number of blocks indexed. */
+    private int size;
+    /** The height of the first block whose leaf is held; every lower block was pruned. */
+    private int first;
+    /** The peaks of the trees over the pruned blocks, largest first. */
+    private Hash[] prunedPeaks = new Hash[0];
+
+    /**
+     * Constructs an empty index.
+     */
+    AncestorIndex() {
+        chunks[0] = ByteBuffer.allocateDirect(INITIAL_NODES * Hash.LENGTH);
+    }
+
+    /**
+     * Returns the number of nodes in a range over the given number of blocks.
+     *
+     * @param size the number of blocks
+     * @return the number of nodes
+     */
+    static long nodeCount(int size) {
+        return 2L * size - Integer.bitCount(size);
+    }
+
+    /**
+     * Returns where a block's leaf sits among the nodes.
+     *
+     * @param height the height of the block
+     * @return the position of its leaf
+     */
+    static long leafPosition(int height) {
+        return nodeCount(height);
+    }
+
+    /**
+     * Hashes two sibling nodes into their parent.
+     *
+     * @param left  the left child
+     * @param right the right child
+     * @return the parent node
+     */
+    static Hash parent(Hash left, Hash right) {
+        MessageDigest md = NonceHasher.sha256();
+        ByteBuffer pair = ByteBuffer.allocate(1 + 2 * Hash.LENGTH).put(NODE);
+        left.writeTo(pair);
+        right.writeTo(pair);
+        return new Hash(md.digest(pair.array()));
+    }
+
+    /**
+     * Folds the peaks of a range together into its root.
+     *
+     * @param peaks the peaks, largest tree first
+     * @param size  the number of blocks
+     * @return the root
+     */
+    static Hash root(Hash[] peaks, int size) {
+        Hash bagged = peaks[peaks.length - 1];
+        for (int i = peaks.length - 2; i >= 0; i--) {
+            bagged = parent(peaks[i], bagged);
+        }
+        ByteBuffer fields = ByteBuffer.allocate(1 + Integer.BYTES + Hash.LENGTH).put(ROOT);
+        fields.putInt(size);
+        bagged.writeTo(fields);
+        return new Hash(NonceHasher.sha256().digest(fields.array()));
+    }
+
+    /**
+     * Adds the next block's hash.
+     *
+     * @param blockHash the hash of the block
+     */
+    void append(Hash blockHash) {
+        // The new leaf completes one tree for each trailing one bit of size
+        int merges = Integer.numberOfTrailingZeros(~size);
+        long end = nodeCount(size);
+        put(end++, blockHash);
+        for (int level = 0; level < merges; level++) {
+            Hash right = node(end - 1);
+            Hash left = node(end - 1 - ((2L << level) - 1));
+            put(end++, parent(left, right));
+        }
+        size++;
+    }
+
+    /**
+     * Drops the hashes of every block from the given height on. The chunks
+     * they were in are kept for the blocks appended next.
+     *
+     * @param height the new number of blocks
+     * @throws IllegalArgumentException if height is below the first block
+     *         held or above the number of blocks
+     */
+    void truncate(int height) {
+        if (height < first || height > size) {
+            throw new IllegalArgumentException("Cannot truncate the index to " + height);
+        }
+        size = height;
+    }
+
+    /**
+     * Drops the nodes the blocks from the given height on no longer need,
+     * keeping the peaks over the blocks below it, and releases the chunks
+     * left holding nothing needed. Those blocks can no longer be checked or
+     * proved, nor the index truncated below the height.
+     *
+     * @param height the height of the oldest block to keep
+     * @throws IllegalArgumentException if height is below the first block
+     *         held or above the number of blocks
+     */
+    void pruneTo(int height) {
+        if (height < first || height > size) {
+            throw new IllegalArgumentException("Cannot prune the index to " + height);
+        }
+        prunedPeaks = peaks(height, -1);
+        first = height;
+        Arrays.fill(chunks, 0, (int) Math.min(nodeCount(height) >>> CHUNK_SHIFT, chunks.length),
+            null);
+    }
+
+    /**
+     * Returns the number of blocks indexed.
+     *
+     * @return the number of blocks
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the memory the nodes take up.
+     *
+     * @return the size of every chunk held, in bytes
+     */
+    long bytes() {
+        long bytes = (long) prunedPeaks.length * Hash.LENGTH;
+        for (ByteBuffer c : chunks) {
+            if (c != null) {
+                bytes += c.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks whether the block at a height has the given hash, in constant time.
+     *
+     * @param height    the height
+     * @param blockHash the hash
+     * @return true if a block with that hash is at that height
+     */
+    boolean contains(int height, Hash blockHash) {
+        return height >= first && height < size && node(leafPosition(height)).equals(blockHash);
+    }
+
+    /**
+     * Returns the root over every block indexed.
+     *
+     * @return the root
+     * @throws IllegalStateException if no block is indexed
+     */
+    Hash root() {
+        if (size == 0) {
+            throw new IllegalStateException("An empty index has no root.");
+        }
+        return root(peaks(size, -1), size);
+    }
+
+    /**
+     * Proves that the block at a height is part of the range.
+     *
+     * @param height the height of the block
+     * @return the proof, checkable against {@link #root()}
+     * @throws IndexOutOfBoundsException if no block is indexed at that height,
+     *         or it was pruned
+     */
+    AncestorProof prove(int height) {
+        if (height < first || height >= size) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+        // Find the tree holding the block
+        long start = 0;
+        long position = 0;
+        int bit = Integer.highestOneBit(size);
+        while (height >= start + bit || (size & bit) == 0) {
+            if ((size & bit) != 0) {
+                start += bit;
+                position += 2L * bit - 1;
+            }
+            bit >>>= 1;
+        }
+        int depth = Integer.numberOfTrailingZeros(bit);
+        // Walk down to the leaf, collecting the sibling at each level
+        Hash[] siblings = new Hash[depth];
+        long local = height - start;
+        for (int level = depth; level > 0; level--) {
+            long half = 1L << (level - 1);
+            long subtree = 2 * half - 1;
+            if (local < half) {
+                siblings[level - 1] = node(position + 2 * subtree - 1);
+            } else {
+                siblings[level - 1] = node(position + subtree - 1);
+                position += subtree;
+                local -= half;
+            }
+        }
+        return new AncestorProof(height, size, node(leafPosition(height)), siblings,
+            peaks(size, Integer.bitCount(size & -(bit << 1))));
+    }
+
+    /**
+     * Returns the peaks of the trees over the first blocks, largest first,
+     * leaving one out.
+     *
+     * @param blocks the number of blocks, at least the first block held
+     * @param skip   the index of the peak to leave out, or -1 to keep all
+     * @return the peaks
+     */
+    private Hash[] peaks(int blocks, int skip) {
+        Hash[] peaks = new Hash[Integer.bitCount(blocks) - (skip < 0 ? 0 : 1)];
+        long position = 0;
+        int index = 0;
+        int count = 0;
+        for (int bit = Integer.highestOneBit(blocks); bit != 0; bit >>>= 1) {
+            if ((blocks & bit) != 0) {
+                position += 2L * bit - 1;
+                if (index++ != skip) {
+                    peaks[count++] = node(position - 1);
+                }
+            }
+        }
+        return peaks;
+    }
+
+    /**
+     * Returns the offset of a node within its chunk.
+     *
+     * @param position the node's position
+     * @return the offset of the node
+     */
+    private static int offset(long position) {
+        return (int) (position & (CHUNK_NODES - 1)) * Hash.LENGTH;
+    }
+
+    /**
+     * Reads a node, which must be held or be a peak over the pruned blocks.
+     *
+     * @param position the node's position
+     * @return the node
+     * @throws IllegalStateException if the node was pruned
+     */
+    private Hash node(long position) {
+        if (position >= nodeCount(first)) {
+            return Hash.read(chunks[(int) (position >>> CHUNK_SHIFT)], offset(position));
+        }
+        long end = 0;
+        int index = 0;
+        for (int bit = Integer.highestOneBit(first); bit != 0; bit >>>= 1) {
+            if ((first & bit) != 0) {
+                end += 2L * bit - 1;
+                if (end - 1 == position) {
+                    return prunedPeaks[index];
+                }
+                index++;
+            }
+        }
+        throw new IllegalStateException("Node " + position + " was pruned.");
+    }
+
+    /**
+     * Writes a node, allocating or growing its chunk as needed.
+     *
+     * @param position the node's position
+     * @param node     the node
+     */
+    private void put(long position, Hash node) {
+        int c = (int) (position >>> CHUNK_SHIFT);
+        if (c >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(2 * chunks.length, c + 1));
+        }
+        int offset = offset(position);
+        if (chunks[c] == null) {
+            chunks[c] = ByteBuffer.allocateDirect(CHUNK_NODES * Hash.LENGTH);
+        } else if (offset == chunks[c].capacity()) {
+            // Only the first chunk starts small
+            ByteBuffer grown = ByteBuffer.allocateDirect(2 * chunks[c].capacity());
+            chunks[c] = grown.put(0, chunks[c], 0, chunks[c].capacity());
+        }
+        node.writeTo(chunks[c].position(offset));
+    }
+}
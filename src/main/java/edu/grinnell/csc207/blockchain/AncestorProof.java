@@ -0,0 +1,185 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A proof that a block is at some height of a chain, checkable by a light
+ * client that holds only the root of the chain's ancestor index (see
+ * {@link BlockChain#getAncestorRoot()}) rather than the chain itself.
+ *
+ * <p>The proof holds the block's hash, the sibling of each node on the path
+ * from it up to the peak of its tree, and the peaks of the other trees: a
+ * few dozen hashes for a chain of millions of blocks. {@link #toBytes()}
+ * lays these out as the height (4 bytes), the number of blocks (4) and the
+ * hashes back to back, leaf first; how many there are follows from the
+ * height and the number of blocks.
+ */
+public final class AncestorProof {
+    /** The height of the block. */
+    private final int height;
+    /** The number of blocks in the chain proved against. */
+    private final int size;
+    /** The hash of the block. */
+    private final Hash blockHash;
+    /** The siblings on the path up to the peak, from the leaf's up. */
+    private final Hash[] siblings;
+    /** The peaks of the other trees, largest first. */
+    private final Hash[] peaks;
+
+    /**
+     * Constructs a proof from its parts.
+     *
+     * @param height    the height of the block
+     * @param size      the number of blocks in the chain
+     * @param blockHash the hash of the block
+     * @param siblings  the siblings on the path up to the peak, from the leaf's up
+     * @param peaks     the peaks of the other trees, largest first
+     */
+    AncestorProof(int height, int size, Hash blockHash, Hash[] siblings, Hash[] peaks) {
+        this.height = height;
+        this.size = size;
+        this.blockHash = blockHash;
+        this.siblings = siblings;
+        this.peaks = peaks;
+    }
+
+    /**
+     * Reads a proof written by {@link #toBytes()}.
+     *
+     * @param bytes the proof's bytes
+     * @return the proof
+     * @throws IllegalArgumentException if the bytes are not a proof
+     */
+    public static AncestorProof fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 2 * Integer.BYTES) {
+            throw new IllegalArgumentException("Not an ancestor proof.");
+        }
+        int height = buffer.getInt();
+        int size = buffer.getInt();
+        if (height < 0 || height >= size) {
+            throw new IllegalArgumentException("Not an ancestor proof.");
+        }
+        int depth = Integer.numberOfTrailingZeros(treeOf(height, size));
+        int others = Integer.bitCount(size) - 1;
+        if (buffer.remaining() != (1 + depth + others) * Hash.LENGTH) {
+            throw new IllegalArgumentException("Not an ancestor proof.");
+        }
+        Hash blockHash = next(buffer);
+        Hash[] siblings = new Hash[depth];
+        for (int i = 0; i < depth; i++) {
+            siblings[i] = next(buffer);
+        }
+        Hash[] peaks = new Hash[others];
+        for (int i = 0; i < others; i++) {
+            peaks[i] = next(buffer);
+        }
+        return new AncestorProof(height, size, blockHash, siblings, peaks);
+    }
+
+    /**
+     * Reads the hash at the buffer's position, advancing it.
+     *
+     * @param buffer the buffer
+     * @return the hash
+     */
+    private static Hash next(ByteBuffer buffer) {
+        Hash hash = Hash.read(buffer, buffer.position());
+        buffer.position(buffer.position() + Hash.LENGTH);
+        return hash;
+    }
+
+    /**
+     * Finds the tree of the ancestor index that holds a block.
+     *
+     * @param height the height of the block
+     * @param size   the number of blocks
+     * @return the number of blocks in that tree, a power of two
+     */
+    private static int treeOf(int height, int size) {
+        int start = 0;
+        for (int bit = Integer.highestOneBit(size); ; bit >>>= 1) {
+            if ((size & bit) != 0) {
+                if (height < start + bit) {
+                    return bit;
+                }
+                start += bit;
+            }
+        }
+    }
+
+    /**
+     * Checks the proof against the root of a chain's ancestor index.
+     *
+     * @param root the root the client trusts
+     * @return true if the block is at the proof's height of that chain
+     */
+    public boolean verify(Hash root) {
+        int tree = treeOf(height, size);
+        if (siblings.length != Integer.numberOfTrailingZeros(tree)
+                || peaks.length != Integer.bitCount(size) - 1) {
+            return false;
+        }
+        // Hash up from the leaf; the bits of its index in the tree say which side it is on
+        int local = height & (tree - 1);
+        Hash node = blockHash;
+        for (int level = 0; level < siblings.length; level++) {
+            node = (local >>> level & 1) == 0
+                ? AncestorIndex.parent(node, siblings[level])
+                : AncestorIndex.parent(siblings[level], node);
+        }
+        // Put the peak back among the others
+        int index = Integer.bitCount(size & -(tree << 1));
+        Hash[] all = new Hash[peaks.length + 1];
+        System.arraycopy(peaks, 0, all, 0, index);
+        all[index] = node;
+        System.arraycopy(peaks, index, all, index + 1, peaks.length - index);
+        return AncestorIndex.root(all, size).equals(root);
+    }
+
+    /**
+     * Lays out the proof as bytes, as described above.
+     *
+     * @return the proof's bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES
+            + (1 + siblings.length + peaks.length) * Hash.LENGTH);
+        buffer.putInt(height).putInt(size);
+        blockHash.writeTo(buffer);
+        for (Hash sibling : siblings) {
+            sibling.writeTo(buffer);
+        }
+        for (Hash peak : peaks) {
+            peak.writeTo(buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the height of the block.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of blocks in the chain proved against.
+     *
+     * @return the chain's size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the hash of the block.
+     *
+     * @return the block's hash
+     */
+    public Hash getBlockHash() {
+        return blockHash;
+    }
+}
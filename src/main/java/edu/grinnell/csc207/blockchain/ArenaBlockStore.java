@@ -0,0 +1,296 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An in-memory block store that keeps its blocks off the Java heap, as
+ * fixed-width records (see {@link BlockRecords}) packed into direct byte
+ * buffers.
+ *
+ * <p>A block held as objects costs a {@link Block}, its hashes and their
+ * byte arrays on the heap, several times the size of the block's fields,
+ * and the garbage collector has to trace every one of them. Here a block
+ * costs {@link BlockRecords#SIZE} bytes of native memory and nothing the
+ * collector looks at, so tens of millions of blocks fit beside a small
+ * heap and collections take no longer as the chain grows. Like
+ * {@link MappedBlockStore}, each {@link #get(int)} builds a short-lived
+ * block from its record, and only the last block is kept as an object.
+ *
+ * <p>Records are grouped into chunks of {@link #CHUNK_RECORDS}, allocated
+ * as the store grows and never copied, so appending never stalls to move
+ * the chain. {@link #pruneTo(int)} releases whole chunks once every block
+ * in them is dropped. The hash index behind {@link #indexOf(Hash)}, which
+ * takes a few ints of heap per block, is only built on the first lookup.
+ *
+ * <p>The bodies of blocks that have them, such as batches of several
+ * transactions or blocks of transfers, are packed one after another into
+ * direct chunks of their own, of {@link #BODY_CHUNK_BYTES} each; a body
+ * may span two chunks.
+ */
+public class ArenaBlockStore implements BlockStore {
+    /** The base-2 logarithm of the number of records in a chunk. */
+    private static final int CHUNK_SHIFT = 16;
+    /** The number of records in a chunk. */
+    static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    /** The initial length of the chunk array. */
+    private static final int INITIAL_CHUNKS = 4;
+    /** The base-2 logarithm of the number of bytes in a body chunk. */
+    private static final int BODY_CHUNK_SHIFT = 20;
+    /** The number of bytes in a body chunk. */
+    static final int BODY_CHUNK_BYTES = 1 << BODY_CHUNK_SHIFT;
+
+    /** The chunks, by height / CHUNK_RECORDS; null before the first or once released. */
+    private ByteBuffer[] chunks = new ByteBuffer[INITIAL_CHUNKS];
+    /** The body chunks, by offset / BODY_CHUNK_BYTES; null before the first or once released. */
+    private ByteBuffer[] bodyChunks = new ByteBuffer[INITIAL_CHUNKS];
+    /** The length of the bodies of every block up to the end of the store. */
+    private long bodyEnd;
+    /** The height of the oldest block held; every lower block was pruned. */
+    private int first;
+    /** The height of the next block appended. */
+    private int size;
+    /** The last block, if it is known without reading it back; otherwise null. */
+    private Block tip;
+    /** The index from block hash to height, or null until the first lookup. */
+    private HashIndex index;
+
+    /**
+     * Returns the chunk holding the record at the given height.
+     *
+     * @param height the height of the record
+     * @return the chunk
+     */
+    private ByteBuffer chunk(int height) {
+        return chunks[height >>> CHUNK_SHIFT];
+    }
+
+    /**
+     * Returns the offset of the record at the given height within its chunk.
+     *
+     * @param height the height of the record
+     * @return the offset of the record
+     */
+    private static int offset(int height) {
+        return (height & (CHUNK_RECORDS - 1)) * BlockRecords.SIZE;
+    }
+
+    /**
+     * Reads the hash of the block at the given height, which must be held
+     * or be the one just below the first block held.
+     *
+     * @param height the height of the block
+     * @return its hash
+     */
+    private Hash hashAt(int height) {
+        return BlockRecords.hashAt(chunk(height), offset(height));
+    }
+
+    /**
+     * Reads where the body of the block at the given height ends, which
+     * must be held or be the one just below the first block held.
+     *
+     * @param height the height of the block
+     * @return the end of its body in the body area
+     */
+    private long bodyEndAt(int height) {
+        return height < 0 ? 0 : BlockRecords.bodyEndAt(chunk(height), offset(height));
+    }
+
+    /**
+     * Copies bytes between the body area and a buffer, across body chunks.
+     *
+     * @param position where in the body area to start
+     * @param buffer   the bytes to store, or the buffer to read into
+     * @param store    true to copy the buffer into the area; false to copy out of it
+     */
+    private void copyBody(long position, ByteBuffer buffer, boolean store) {
+        while (buffer.hasRemaining()) {
+            int c = (int) (position >>> BODY_CHUNK_SHIFT);
+            if (store && c >= bodyChunks.length) {
+                bodyChunks = Arrays.copyOf(bodyChunks, Math.max(2 * bodyChunks.length, c + 1));
+            }
+            if (store && bodyChunks[c] == null) {
+                bodyChunks[c] = ByteBuffer.allocateDirect(BODY_CHUNK_BYTES);
+            }
+            int within = (int) (position & (BODY_CHUNK_BYTES - 1));
+            int length = Math.min(buffer.remaining(), BODY_CHUNK_BYTES - within);
+            ByteBuffer area = bodyChunks[c].slice(within, length);
+            if (store) {
+                area.put(buffer.slice(buffer.position(), length));
+            } else {
+                buffer.put(buffer.position(), area, 0, length);
+            }
+            buffer.position(buffer.position() + length);
+            position += length;
+        }
+    }
+
+    /**
+     * Checks that the store holds a block at the given height.
+     *
+     * @param height the height
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    private void checkHeight(int height) {
+        if (height < first || height >= size) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Block get(int height) {
+        if (height == size - 1 && tip != null) {
+            return tip;
+        }
+        checkHeight(height);
+        Hash prevHash = height == 0 ? null : hashAt(height - 1);
+        long start = bodyEndAt(height - 1);
+        long end = bodyEndAt(height);
+        ByteBuffer body = null;
+        if (end > start) {
+            body = ByteBuffer.allocate(Math.toIntExact(end - start));
+            copyBody(start, body, false);
+            body.flip();
+        }
+        return BlockRecords.read(chunk(height), offset(height), prevHash, body);
+    }
+
+    @Override
+    public int amountAt(int height) {
+        checkHeight(height);
+        return chunk(height).getInt(offset(height) + BlockRecords.AMOUNT);
+    }
+
+    @Override
+    public int indexOf(Hash hash) {
+        if (index == null) {
+            HashIndex built = new HashIndex();
+            for (int height = first; height < size; height++) {
+                built.add(height, BlockRecords.hashCodeAt(chunk(height), offset(height)));
+            }
+            index = built;
+        }
+        return index.find(hash.hashCode(), height -> hashAt(height).equals(hash));
+    }
+
+    @Override
+    public void append(Block block) {
+        int c = size >>> CHUNK_SHIFT;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+        }
+        if (chunks[c] == null) {
+            chunks[c] = ByteBuffer.allocateDirect(CHUNK_RECORDS * BlockRecords.SIZE);
+        }
+        int bodySize = BlockRecords.bodySize(block);
+        BlockRecords.write(chunks[c].position(offset(size)), block, bodyEnd + bodySize);
+        if (bodySize > 0) {
+            ByteBuffer body = ByteBuffer.allocate(bodySize);
+            BlockRecords.writeBody(body, block);
+            copyBody(bodyEnd, body.flip(), true);
+            bodyEnd += bodySize;
+        }
+        if (index != null) {
+            index.add(size, block.getHash().hashCode());
+        }
+        size++;
+        tip = block;
+    }
+
+    @Override
+    public void removeLast() {
+        if (size == first) {
+            throw new NoSuchElementException("The store is empty.");
+        }
+        truncate(size - 1);
+    }
+
+    /**
+     * Removes blocks from the end of the store by moving its end back. The
+     * chunks they and their bodies were in are kept for the blocks appended
+     * next.
+     *
+     * @param newSize the number of blocks to keep
+     * @throws IllegalArgumentException if newSize is below the first height
+     *         or more than the store holds
+     */
+    @Override
+    public void truncate(int newSize) {
+        if (newSize < first || newSize > size) {
+            throw new IllegalArgumentException(
+                "Cannot truncate the store to " + newSize + " blocks.");
+        }
+        if (index != null) {
+            for (int height = newSize; height < size; height++) {
+                index.remove(height, BlockRecords.hashCodeAt(chunk(height), offset(height)));
+            }
+        }
+        size = newSize;
+        bodyEnd = bodyEndAt(newSize - 1);
+        tip = null;
+    }
+
+    @Override
+    public int firstHeight() {
+        return first;
+    }
+
+    /**
+     * Drops every block below the given height. The chunks holding only
+     * dropped blocks are released, except the one holding the block just
+     * below the new first block, whose hash the first block still links to,
+     * and so are the body chunks holding only their bodies.
+     *
+     * @param height the height of the oldest block to keep
+     * @throws IllegalArgumentException if height is below the first height or
+     *         past the last block
+     */
+    @Override
+    public void pruneTo(int height) {
+        if (height < first || height > size) {
+            throw new IllegalArgumentException("Cannot prune the store to height " + height);
+        }
+        if (index != null) {
+            for (int h = first; h < height; h++) {
+                index.remove(h, BlockRecords.hashCodeAt(chunk(h), offset(h)));
+            }
+        }
+        long bodyStart = bodyEndAt(height - 1);
+        Arrays.fill(bodyChunks, 0,
+            (int) Math.min(bodyStart >>> BODY_CHUNK_SHIFT, bodyChunks.length), null);
+        Arrays.fill(chunks, Math.max(first - 1, 0) >>> CHUNK_SHIFT,
+            Math.max(height - 1, 0) >>> CHUNK_SHIFT, null);
+        first = height;
+        if (first == size) {
+            tip = null;
+        }
+    }
+
+    /**
+     * Returns the native memory the store has allocated for its records
+     * and bodies.
+     *
+     * @return the size of every chunk held, in bytes
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (ByteBuffer c : chunks) {
+            if (c != null) {
+                bytes += c.capacity();
+            }
+        }
+        for (ByteBuffer c : bodyChunks) {
+            if (c != null) {
+                bytes += c.capacity();
+            }
+        }
+        return bytes;
+    }
+}
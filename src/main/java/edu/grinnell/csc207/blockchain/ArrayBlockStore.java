@@ -0,0 +1,89 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An in-memory block store backed by a growable array, with a
+ * {@link HashIndex} from block hash to height.
+ *
+ * <p>Appending, removing the last block, fetching by height and looking up
+ * by hash are all O(1) (amortized for appends). The hash index holds plain
+ * ints rather than boxed map entries, so each block costs one array slot
+ * plus a few table slots on top of the block itself.
+ *
+ * <p>Old blocks can be dropped with {@link #pruneTo(int)}, which moves the
+ * remaining blocks to the front of the array, so a store that is pruned
+ * regularly holds a bounded number of blocks however high the chain grows.
+ */
+public class ArrayBlockStore implements BlockStore {
+    /** The initial capacity of the block array. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The blocks, in height order, starting from the first height. */
+    private Block[] blocks = new Block[INITIAL_CAPACITY];
+    /** The height of blocks[0]; every lower block was pruned. */
+    private int first;
+    /** The height of the next block appended. */
+    private int size;
+    /** The index from block hash to height. */
+    private final HashIndex index = new HashIndex();
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Block get(int height) {
+        if (height < first || height >= size) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+        return blocks[height - first];
+    }
+
+    @Override
+    public int indexOf(Hash hash) {
+        return index.find(hash.hashCode(),
+            height -> blocks[height - first].getHash().equals(hash));
+    }
+
+    @Override
+    public void append(Block block) {
+        if (size - first == blocks.length) {
+            blocks = Arrays.copyOf(blocks, 2 * blocks.length);
+        }
+        blocks[size - first] = block;
+        index.add(size, block.getHash().hashCode());
+        size++;
+    }
+
+    @Override
+    public void removeLast() {
+        if (size == first) {
+            throw new NoSuchElementException("The store is empty.");
+        }
+        size--;
+        index.remove(size, blocks[size - first].getHash().hashCode());
+        blocks[size - first] = null;
+    }
+
+    @Override
+    public int firstHeight() {
+        return first;
+    }
+
+    @Override
+    public void pruneTo(int height) {
+        if (height < first || height > size) {
+            throw new IllegalArgumentException("Cannot prune the store to height " + height);
+        }
+        int dropped = height - first;
+        for (int i = 0; i < dropped; i++) {
+            index.remove(first + i, blocks[i].getHash().hashCode());
+        }
+        System.arraycopy(blocks, dropped, blocks, 0, size - height);
+        Arrays.fill(blocks, size - height, size - first, null);
+        first = height;
+    }
+}
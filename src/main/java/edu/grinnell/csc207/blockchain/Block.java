@@ -1,99 +1,699 @@
 package edu.grinnell.csc207.blockchain;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 /**
  * A single block of a blockchain.
  */
 public class Block {
+    /**
+     * The original header layout: num, amount, nonce, prevHash. The nonce
+     * sits in the first compression block, ahead of the previous hash. Its
+     * bytes are exactly those the first chains were mined over, so those
+     * chains still verify; the difficulty and retarget interval are not
+     * among them.
+     */
+    public static final int HEADER_V1 = 1;
+    /**
+     * The mining-friendly header layout: num, amount, prevHash, nonce. With
+     * the nonce last, everything before it can be cached between attempts.
+     * Like {@link #HEADER_V1}, it does not hash the difficulty or retarget
+     * interval, so chains mined with it before those existed still verify.
+     */
+    public static final int HEADER_V2 = 2;
+    /**
+     * The batch header layout: num, difficulty, Merkle root of the
+     * transactions, prevHash, nonce. The block carries a batch of
+     * transactions and its amount is their total. The header's first
+     * compression block lies wholly before the nonce, so mining hashes it
+     * only once.
+     */
+    public static final int HEADER_V3 = 3;
+    /**
+     * The transfer header layout: num, difficulty, Merkle root of the
+     * transfers, prevHash, nonce. The block carries {@link Transfer}s between any
+     * accounts, and its amount is the net change to Anna's balance. A block
+     * of this layout holding just an amount carries the transfer between
+     * Bob and Anna that the amount stands for.
+     */
+    public static final int HEADER_V4 = 4;
+
+    /** The header layout used to hash this block. */
+    private final int version;
+    /** The number of leading zero bits this block's hash must have. */
+    private final int difficulty;
     /** The block number in the chain. */
     private final int num;
-    /** The transaction amount (positive for Bob->Anna, negative for Anna->Bob). */
+    /**
+     * The transaction amount (positive for Bob->Anna, negative for Anna->Bob),
+     * or the total of the block's transactions.
+     */
     private final int amount;
+    /** The amounts of the block's transactions, or null if it holds just amount. */
+    private final int[] transactions;
+    /** The block's transfers, or null unless it uses {@link #HEADER_V4}. */
+    private final Transfer[] transfers;
+    /** The lowest running total of the transactions, from the first one on. */
+    private final int lowestRunningTotal;
     /** The nonce used to produce a valid hash. */
     private final long nonce;
     /** The hash of the previous block. */
     private final Hash prevHash;
+    /**
+     * The number of blocks between difficulty changes on the chain this
+     * genesis block starts, or 0 if its difficulty is fixed; always 0 for
+     * later blocks.
+     */
+    private final int retargetInterval;
     /** The computed hash of this block. */
     private final Hash hash;
 
     /**
-     * Constructs a new block by searching for a nonce that yields a valid hash.
-     * This is effectively the "mining" operation.
+     * Constructs a new block by searching for a nonce that yields a valid hash
+     * at {@link Hash#DEFAULT_DIFFICULTY}.
+     * This is effectively the "mining" operation, run on the calling thread;
+     * use a {@link Miner} to search on several cores.
      *
      * @param num      the block number
      * @param amount   the transaction amount
-     * @param prevHash the hash of the previous block for the genesis block)
+     * @param prevHash the hash of the previous block (may be null for the genesis block)
      */
     public Block(int num, int amount, Hash prevHash) {
+        this(num, amount, prevHash,
+            new SequentialMiner().findNonce(HEADER_V1, Hash.DEFAULT_DIFFICULTY, num, amount,
+                prevHash));
+    }
+
+    /**
+     * Constructs a new block using a provided nonce (no repeated searching),
+     * hashed with the original {@link #HEADER_V1} layout.
+     *
+     * @param num      the block number
+     * @param amount   the transaction amount
+     * @param prevHash the hash of the previous block (may be null for the genesis block)
+     * @param nonce    the nonce used to compute this block's hash
+     */
+    public Block(int num, int amount, Hash prevHash, long nonce) {
+        this(num, amount, prevHash, nonce, HEADER_V1);
+    }
+
+    /**
+     * Constructs a new block using a provided nonce (no repeated searching),
+     * hashed with the given header layout, at {@link Hash#DEFAULT_DIFFICULTY}.
+     *
+     * @param num      the block number
+     * @param amount   the transaction amount
+     * @param prevHash the hash of the previous block (may be null for the genesis block)
+     * @param nonce    the nonce used to compute this block's hash
+     * @param version  the header layout, {@link #HEADER_V1} or {@link #HEADER_V2}
+     * @throws IllegalArgumentException if the version is unknown
+     */
+    public Block(int num, int amount, Hash prevHash, long nonce, int version) {
+        this(num, amount, prevHash, nonce, version, Hash.DEFAULT_DIFFICULTY);
+    }
+
+    /**
+     * Constructs a new block using a provided nonce (no repeated searching),
+     * hashed with the given header layout and claiming the given difficulty.
+     *
+     * @param num        the block number
+     * @param amount     the transaction amount
+     * @param prevHash   the hash of the previous block (may be null for the genesis block)
+     * @param nonce      the nonce used to compute this block's hash
+     * @param version    the header layout, {@link #HEADER_V1} or {@link #HEADER_V2}
+     * @param difficulty the number of leading zero bits the hash must have
+     * @throws IllegalArgumentException if the version or difficulty is out of range
+     */
+    public Block(int num, int amount, Hash prevHash, long nonce, int version,
+            int difficulty) {
+        this(num, amount, prevHash, nonce, version, difficulty, 0);
+    }
+
+    /**
+     * Constructs a block using a provided nonce (no repeated searching),
+     * hashed with the given header layout and claiming the given difficulty.
+     * A genesis block also carries how often the chain it starts may change
+     * its difficulty, which the {@link #HEADER_V3} and {@link #HEADER_V4}
+     * layouts hash.
+     *
+     * @param num              the block number
+     * @param amount           the transaction amount
+     * @param prevHash         the hash of the previous block (may be null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param version          the header layout
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, or 0 to keep it fixed; must be 0
+     *                         unless this is the genesis block
+     * @throws IllegalArgumentException if the version, difficulty or retarget
+     *         interval is out of range
+     */
+    public Block(int num, int amount, Hash prevHash, long nonce, int version,
+            int difficulty, int retargetInterval) {
+        checkVersion(version);
+        checkDifficulty(difficulty);
+        checkRetargetInterval(prevHash, retargetInterval);
+        this.version = version;
+        this.difficulty = difficulty;
         this.num = num;
         this.amount = amount;
+        this.transactions = null;
+        this.transfers = version == HEADER_V4 ? new Transfer[] {Transfer.ofAmount(amount)} : null;
+        this.lowestRunningTotal = amount;
         this.prevHash = prevHash;
+        this.retargetInterval = retargetInterval;
+        this.nonce = nonce;
+        this.hash = computeHash(version, num, difficulty, amount, nonce, prevHash,
+            retargetInterval);
+    }
+
+    /**
+     * Constructs a block carrying a batch of transactions, hashed with the
+     * {@link #HEADER_V3} layout, using a provided nonce.
+     *
+     * @param num          the block number
+     * @param transactions the transaction amounts, in the order they apply
+     * @param prevHash     the hash of the previous block (may be null for the genesis block)
+     * @param nonce        the nonce used to compute this block's hash
+     * @param difficulty   the number of leading zero bits the hash must have
+     * @throws IllegalArgumentException if there are no transactions, their
+     *         total overflows an int, or the difficulty is out of range
+     */
+    public Block(int num, int[] transactions, Hash prevHash, long nonce, int difficulty) {
+        this(num, transactions, prevHash, nonce, difficulty, 0);
+    }
+
+    /**
+     * Constructs a block carrying a batch of transactions, hashed with the
+     * {@link #HEADER_V3} layout, using a provided nonce. A genesis block
+     * also commits to how often the chain it starts may change its difficulty.
+     *
+     * @param num              the block number
+     * @param transactions     the transaction amounts, in the order they apply
+     * @param prevHash         the hash of the previous block (may be null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, or 0 to keep it fixed; must be 0
+     *                         unless this is the genesis block
+     * @throws IllegalArgumentException if there are no transactions, their
+     *         total overflows an int, or the difficulty or retarget interval
+     *         is out of range
+     */
+    public Block(int num, int[] transactions, Hash prevHash, long nonce, int difficulty,
+            int retargetInterval) {
+        this(num, transactions.clone(), prevHash, nonce, difficulty, retargetInterval, null);
+    }
 
-        long tentativeNonce = 0;
-        Hash tentativeHash;
-        do {
-            tentativeHash = computeHash(num, amount, tentativeNonce, prevHash);
-            if (!tentativeHash.isValid()) {
-                tentativeNonce++;
+    /**
+     * Constructs a block carrying a batch of transactions whose hash may
+     * already be known, such as one read back from disk. A given hash is
+     * trusted; {@link #hasConsistentHash()} checks it against the block's
+     * contents.
+     *
+     * @param num              the block number
+     * @param transactions     the transaction amounts, which the block keeps without copying
+     * @param prevHash         the hash of the previous block (null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, for a genesis block; otherwise 0
+     * @param hash             the hash of this block, or null to compute it
+     * @throws IllegalArgumentException if there are no transactions, their
+     *         total overflows an int, or the difficulty or retarget interval
+     *         is out of range
+     */
+    Block(int num, int[] transactions, Hash prevHash, long nonce, int difficulty,
+            int retargetInterval, Hash hash) {
+        checkDifficulty(difficulty);
+        checkRetargetInterval(prevHash, retargetInterval);
+        if (transactions.length == 0) {
+            throw new IllegalArgumentException("A batch needs at least one transaction.");
+        }
+        this.version = HEADER_V3;
+        this.difficulty = difficulty;
+        this.num = num;
+        this.transactions = transactions;
+        this.transfers = null;
+        int total = 0;
+        int lowest = Integer.MAX_VALUE;
+        try {
+            for (int t : this.transactions) {
+                total = Math.addExact(total, t);
+                lowest = Math.min(lowest, total);
             }
-        } while (!tentativeHash.isValid());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The batch total overflows an int.", e);
+        }
+        this.amount = total;
+        this.lowestRunningTotal = lowest;
+        this.prevHash = prevHash;
+        this.retargetInterval = retargetInterval;
+        this.nonce = nonce;
+        this.hash = hash != null ? hash : computeBatchHash(num, difficulty,
+            MerkleTree.root(this.transactions), nonce, prevHash, retargetInterval);
+    }
 
-        this.nonce = tentativeNonce;
-        this.hash = tentativeHash;
+    /**
+     * Constructs a block carrying transfers between accounts, hashed with
+     * the {@link #HEADER_V4} layout, using a provided nonce.
+     *
+     * @param num        the block number
+     * @param transfers  the transfers, in the order they apply
+     * @param prevHash   the hash of the previous block (may be null for the genesis block)
+     * @param nonce      the nonce used to compute this block's hash
+     * @param difficulty the number of leading zero bits the hash must have
+     * @throws IllegalArgumentException if there are no transfers, their net
+     *         change to Anna's balance overflows an int, or the difficulty is
+     *         out of range
+     */
+    public Block(int num, Transfer[] transfers, Hash prevHash, long nonce, int difficulty) {
+        this(num, transfers, prevHash, nonce, difficulty, 0);
     }
 
     /**
-     * Constructs a new block using a provided nonce (no repeated searching).
+     * Constructs a block carrying transfers between accounts, hashed with
+     * the {@link #HEADER_V4} layout, using a provided nonce. A genesis block
+     * also commits to how often the chain it starts may change its difficulty.
      *
-     * @param num      the block number
-     * @param amount   the transaction amount
-     * @param prevHash the hash of the previous block (may be null for the genesis block)
-     * @param nonce    the nonce used to compute this block's hash
+     * @param num              the block number
+     * @param transfers        the transfers, in the order they apply
+     * @param prevHash         the hash of the previous block (may be null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, or 0 to keep it fixed; must be 0
+     *                         unless this is the genesis block
+     * @throws IllegalArgumentException if there are no transfers, their net
+     *         change to Anna's balance overflows an int, or the difficulty or
+     *         retarget interval is out of range
      */
-    public Block(int num, int amount, Hash prevHash, long nonce) {
+    public Block(int num, Transfer[] transfers, Hash prevHash, long nonce, int difficulty,
+            int retargetInterval) {
+        this(num, transfers.clone(), prevHash, nonce, difficulty, retargetInterval, null);
+    }
+
+    /**
+     * Constructs a block carrying transfers between accounts whose hash may
+     * already be known, such as one read back from disk. A given hash is
+     * trusted; {@link #hasConsistentHash()} checks it against the block's
+     * contents.
+     *
+     * @param num              the block number
+     * @param transfers        the transfers, which the block keeps without copying
+     * @param prevHash         the hash of the previous block (null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, for a genesis block; otherwise 0
+     * @param hash             the hash of this block, or null to compute it
+     * @throws IllegalArgumentException if there are no transfers, their net
+     *         change to Anna's balance overflows an int, or the difficulty or
+     *         retarget interval is out of range
+     */
+    Block(int num, Transfer[] transfers, Hash prevHash, long nonce, int difficulty,
+            int retargetInterval, Hash hash) {
+        checkDifficulty(difficulty);
+        checkRetargetInterval(prevHash, retargetInterval);
+        if (transfers.length == 0) {
+            throw new IllegalArgumentException("A block needs at least one transfer.");
+        }
+        this.version = HEADER_V4;
+        this.difficulty = difficulty;
+        this.num = num;
+        this.transactions = null;
+        this.transfers = transfers;
+        long total = 0;
+        long lowest = Long.MAX_VALUE;
+        for (Transfer t : this.transfers) {
+            total += t.annaDelta();
+            lowest = Math.min(lowest, total);
+            if (total != (int) total || lowest != (int) lowest) {
+                throw new IllegalArgumentException("Anna's net change overflows an int.");
+            }
+        }
+        this.amount = (int) total;
+        this.lowestRunningTotal = (int) Math.min(lowest, Integer.MAX_VALUE);
+        this.prevHash = prevHash;
+        this.retargetInterval = retargetInterval;
+        this.nonce = nonce;
+        this.hash = hash != null ? hash : computeBatchHash(num, difficulty,
+            MerkleTree.root(this.transfers), nonce, prevHash, retargetInterval);
+    }
+
+    /**
+     * Constructs a block whose hash is already known, such as one read back
+     * from disk. The hash is trusted as given; {@link #hasConsistentHash()}
+     * checks it against the block's contents.
+     *
+     * @param num              the block number
+     * @param amount           the transaction amount
+     * @param prevHash         the hash of the previous block (null for the genesis block)
+     * @param nonce            the nonce used to compute this block's hash
+     * @param version          the header layout
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, for a genesis block; otherwise 0
+     * @param hash             the hash of this block
+     */
+    Block(int num, int amount, Hash prevHash, long nonce, int version, int difficulty,
+            int retargetInterval, Hash hash) {
+        this.version = version;
+        this.difficulty = difficulty;
         this.num = num;
         this.amount = amount;
+        this.transactions = null;
+        this.transfers = null;
+        this.lowestRunningTotal = amount;
         this.prevHash = prevHash;
+        this.retargetInterval = retargetInterval;
         this.nonce = nonce;
-        this.hash = computeHash(num, amount, nonce, prevHash);
+        this.hash = hash;
     }
 
     /**
-     * Computes the SHA-256 hash over the concatenation of:
-     * num, amount, nonce, prevHash.getData() (if prevHash is not null).
+     * Checks that a header version is one this class knows how to hash.
      *
-     * @param num      the block number
-     * @param amount   the transaction amount
-     * @param nonce    the nonce used to attempt to produce a valid hash
-     * @param prevHash the previous block's hash
+     * @param version the header version
+     * @throws IllegalArgumentException if the version is unknown
+     */
+    static void checkVersion(int version) {
+        if (version < HEADER_V1 || version > HEADER_V4) {
+            throw new IllegalArgumentException("Unknown block header version: " + version);
+        }
+    }
+
+    /**
+     * Checks that a difficulty fits within a 256-bit hash.
+     *
+     * @param difficulty the number of leading zero bits
+     * @throws IllegalArgumentException if the difficulty is out of range
+     */
+    static void checkDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > Hash.MAX_DIFFICULTY) {
+            throw new IllegalArgumentException("Difficulty out of range: " + difficulty);
+        }
+    }
+
+    /**
+     * Checks that only a genesis block sets a retarget interval, and that
+     * the interval is not negative.
+     *
+     * @param prevHash         the hash of the previous block, or null for the genesis block
+     * @param retargetInterval the number of blocks between difficulty changes
+     * @throws IllegalArgumentException if the interval is out of range
+     */
+    private static void checkRetargetInterval(Hash prevHash, int retargetInterval) {
+        if (retargetInterval < 0 || (prevHash != null && retargetInterval != 0)) {
+            throw new IllegalArgumentException(
+                "Only a genesis block sets a retarget interval: " + retargetInterval);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 hash over the header bytes of a block, laid out
+     * as the given version specifies (see {@link #header}).
+     *
+     * @param version          the header layout
+     * @param num              the block number
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param amount           the transaction amount
+     * @param nonce            the nonce used to attempt to produce a valid hash
+     * @param prevHash         the previous block's hash
+     * @param retargetInterval the retarget interval of a genesis block; otherwise 0
      * @return a new hash object containing the SHA-256 digest
      * @throws RuntimeException if the SHA-256 algorithm is not available
      */
-    private static Hash computeHash(int num, int amount, long nonce, Hash prevHash) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+    static Hash computeHash(int version, int num, int difficulty, int amount, long nonce,
+            Hash prevHash, int retargetInterval) {
+        MessageDigest md = NonceHasher.sha256();
+        return new Hash(md.digest(
+            header(version, num, difficulty, amount, nonce, prevHash, retargetInterval)));
+    }
 
-            int capacity = Integer.BYTES + Integer.BYTES + Long.BYTES;
-            if (prevHash != null) {
-                capacity += prevHash.getData().length;
-            }
-            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+    /**
+     * Computes the SHA-256 hash over the {@link #HEADER_V3} header bytes of
+     * a block of transactions.
+     *
+     * @param num              the block number
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param merkleRoot       the Merkle root of the block's transactions
+     * @param nonce            the nonce used to attempt to produce a valid hash
+     * @param prevHash         the previous block's hash
+     * @param retargetInterval the retarget interval of a genesis block; otherwise 0
+     * @return a new hash object containing the SHA-256 digest
+     */
+    static Hash computeBatchHash(int num, int difficulty, Hash merkleRoot, long nonce,
+            Hash prevHash, int retargetInterval) {
+        MessageDigest md = NonceHasher.sha256();
+        return new Hash(md.digest(
+            batchHeader(num, difficulty, merkleRoot, nonce, prevHash, retargetInterval)));
+    }
+
+    /**
+     * Lays out the bytes that are hashed for a block. Version 1 hashes
+     * num, amount, nonce, prevHash and version 2 num, amount, prevHash,
+     * nonce, as the first chains did, with no previous hash in a genesis
+     * block; the difficulty and retarget interval go unhashed. Version 3
+     * hashes a batch holding just the amount, and version 4 the transfer
+     * the amount stands for (see {@link #batchHeader}); both commit to the
+     * difficulty and, in a genesis block, the retarget interval, so neither
+     * can be altered without mining the block again.
+     *
+     * @param version          the header layout
+     * @param num              the block number
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param amount           the transaction amount
+     * @param nonce            the nonce
+     * @param prevHash         the previous block's hash
+     * @param retargetInterval the retarget interval of a genesis block; otherwise 0
+     * @return the header bytes
+     */
+    static byte[] header(int version, int num, int difficulty, int amount, long nonce,
+            Hash prevHash, int retargetInterval) {
+        if (version == HEADER_V3) {
+            return batchHeader(num, difficulty, MerkleTree.root(new int[] {amount}), nonce,
+                prevHash, retargetInterval);
+        } else if (version == HEADER_V4) {
+            return batchHeader(num, difficulty,
+                MerkleTree.root(new Transfer[] {Transfer.ofAmount(amount)}), nonce, prevHash,
+                retargetInterval);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES
+            + (prevHash == null ? 0 : Hash.LENGTH));
 
-            buffer.putInt(num);
-            buffer.putInt(amount);
+        buffer.putInt(num);
+        buffer.putInt(amount);
+        if (version == HEADER_V1) {
             buffer.putLong(nonce);
-            if (prevHash != null) {
-                buffer.put(prevHash.getData());
+        }
+        if (prevHash != null) {
+            prevHash.writeTo(buffer);
+        }
+        if (version != HEADER_V1) {
+            buffer.putLong(nonce);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Lays out the {@link #HEADER_V3} or {@link #HEADER_V4} bytes that are
+     * hashed for a block of transactions or transfers: num, difficulty,
+     * merkleRoot, prevHash, nonce. A genesis block hashes its retarget
+     * interval in place of the previous hash.
+     *
+     * @param num              the block number
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param merkleRoot       the Merkle root of the block's transactions or transfers
+     * @param nonce            the nonce
+     * @param prevHash         the previous block's hash
+     * @param retargetInterval the retarget interval of a genesis block; otherwise 0
+     * @return the header bytes
+     */
+    static byte[] batchHeader(int num, int difficulty, Hash merkleRoot, long nonce,
+            Hash prevHash, int retargetInterval) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + Hash.LENGTH
+            + linkLength(prevHash) + Long.BYTES);
+        buffer.putInt(num);
+        buffer.putInt(difficulty);
+        merkleRoot.writeTo(buffer);
+        writeLink(buffer, prevHash, retargetInterval);
+        buffer.putLong(nonce);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the number of header bytes that link a block to the chain:
+     * the previous hash, or a genesis block's retarget interval.
+     *
+     * @param prevHash the previous block's hash, or null for the genesis block
+     * @return the length of the link in bytes
+     */
+    private static int linkLength(Hash prevHash) {
+        return prevHash == null ? Integer.BYTES : Hash.LENGTH;
+    }
+
+    /**
+     * Writes the previous hash, or for a genesis block its retarget interval.
+     *
+     * @param buffer           the buffer to write to
+     * @param prevHash         the previous block's hash, or null for the genesis block
+     * @param retargetInterval the retarget interval of a genesis block
+     */
+    private static void writeLink(ByteBuffer buffer, Hash prevHash, int retargetInterval) {
+        if (prevHash == null) {
+            buffer.putInt(retargetInterval);
+        } else {
+            prevHash.writeTo(buffer);
+        }
+    }
+
+    /**
+     * Returns where the nonce sits within the header bytes of a block.
+     *
+     * @param version  the header layout
+     * @param prevHash the previous block's hash
+     * @return the byte offset of the nonce
+     */
+    static int nonceOffset(int version, Hash prevHash) {
+        if (version == HEADER_V3 || version == HEADER_V4) {
+            return 2 * Integer.BYTES + Hash.LENGTH + linkLength(prevHash);
+        }
+        int offset = 2 * Integer.BYTES;
+        if (version == HEADER_V2 && prevHash != null) {
+            offset += Hash.LENGTH;
+        }
+        return offset;
+    }
+
+    /**
+     * Recomputes this block's hash from its contents and nonce and checks
+     * it against the stored hash.
+     *
+     * @return true if the stored hash is the hash of this block's header
+     */
+    boolean hasConsistentHash() {
+        if (transfers != null) {
+            return hash.equals(computeBatchHash(num, difficulty, MerkleTree.root(transfers),
+                nonce, prevHash, retargetInterval));
+        } else if (transactions != null) {
+            return hash.equals(computeBatchHash(num, difficulty, MerkleTree.root(transactions),
+                nonce, prevHash, retargetInterval));
+        }
+        return hash.equals(
+            computeHash(version, num, difficulty, amount, nonce, prevHash, retargetInterval));
+    }
+
+    /**
+     * Returns the lowest running total of this block's transactions, from
+     * the first one on. Anna's balance before the block plus this is the
+     * lowest her balance gets while the block is applied.
+     *
+     * @return the lowest running total; the amount itself for a single transaction
+     */
+    int lowestRunningTotal() {
+        return lowestRunningTotal;
+    }
+
+    /**
+     * Applies this block's transfers to the account balances. A block that
+     * holds amounts rather than transfers moves each amount between Bob and
+     * Anna.
+     *
+     * @param accounts the balances before the block
+     * @return true unless a transfer left its payer overdrawn
+     */
+    boolean applyTo(AccountTable accounts) {
+        boolean funded = true;
+        if (transfers != null) {
+            for (Transfer t : transfers) {
+                funded &= accounts.transfer(t.getFrom(), t.getTo(), t.getAmount());
+            }
+        } else if (transactions != null) {
+            for (int t : transactions) {
+                funded &= applyAmount(accounts, t);
             }
+        } else {
+            funded = applyAmount(accounts, amount);
+        }
+        return funded;
+    }
 
-            byte[] digest = md.digest(buffer.array());
-            return new Hash(digest);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
+    /**
+     * Takes this block's transfers back out of the account balances, undoing
+     * {@link #applyTo}.
+     *
+     * @param accounts the balances after the block
+     */
+    void revertFrom(AccountTable accounts) {
+        if (transfers != null) {
+            for (Transfer t : transfers) {
+                accounts.transfer(t.getTo(), t.getFrom(), t.getAmount());
+            }
+        } else if (transactions != null) {
+            for (int t : transactions) {
+                applyAmount(accounts, -(long) t);
+            }
+        } else {
+            applyAmount(accounts, -(long) amount);
         }
     }
 
+    /**
+     * Moves an amount between Bob and Anna.
+     *
+     * @param accounts the balances
+     * @param amount   the amount, positive for Bob->Anna and negative for Anna->Bob
+     * @return true unless Anna is left overdrawn
+     */
+    private static boolean applyAmount(AccountTable accounts, long amount) {
+        return amount >= 0
+            ? accounts.transfer(Transfer.BOB, Transfer.ANNA, amount)
+            : accounts.transfer(Transfer.ANNA, Transfer.BOB, -amount);
+    }
+
+    /**
+     * Gets the header layout used to hash this block.
+     *
+     * @return {@link #HEADER_V1}, {@link #HEADER_V2}, {@link #HEADER_V3} or
+     *         {@link #HEADER_V4}
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of leading zero bits this block's hash must have. The
+     * {@link #HEADER_V3} and {@link #HEADER_V4} layouts hash the difficulty,
+     * so it cannot be relabeled; the original layouts leave it out.
+     *
+     * @return the difficulty in bits
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Gets the work this block's difficulty stands for: the number of
+     * hashes it takes on average to find a valid nonce, 2^difficulty.
+     *
+     * @return the block's work
+     */
+    public BigInteger getWork() {
+        return BigInteger.ONE.shiftLeft(difficulty);
+    }
+
+    /**
+     * Gets the number of blocks between difficulty changes on the chain
+     * this genesis block starts. Like the difficulty, it is hashed.
+     *
+     * @return the retarget interval, or 0 if the difficulty is fixed or
+     *         this is not a genesis block
+     */
+    public int getRetargetInterval() {
+        return retargetInterval;
+    }
+
     /**
      * Gets the block number.
      *
@@ -104,7 +704,8 @@ public class Block {
     }
 
     /**
-     * Gets the transaction amount.
+     * Gets the transaction amount; for a batch, the total of its
+     * transactions; for a block of transfers, the net change to Anna's balance.
      *
      * @return the transaction amount
      */
@@ -112,6 +713,46 @@ public class Block {
         return amount;
     }
 
+    /**
+     * Gets the amounts of this block's transactions, in the order they apply.
+     *
+     * @return a new array of the transaction amounts
+     */
+    public int[] getTransactions() {
+        return transactions == null ? new int[] {amount} : transactions.clone();
+    }
+
+    /**
+     * Gets the number of transactions in this block.
+     *
+     * @return the number of transactions
+     */
+    public int getTransactionCount() {
+        if (transfers != null) {
+            return transfers.length;
+        }
+        return transactions == null ? 1 : transactions.length;
+    }
+
+    /**
+     * Gets this block's transfers, in the order they apply. A block that
+     * holds amounts rather than transfers has one transfer between Bob and
+     * Anna for each amount.
+     *
+     * @return a new array of the transfers
+     */
+    public Transfer[] getTransfers() {
+        if (transfers != null) {
+            return transfers.clone();
+        }
+        int[] amounts = getTransactions();
+        Transfer[] result = new Transfer[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            result[i] = Transfer.ofAmount(amounts[i]);
+        }
+        return result;
+    }
+
     /**
      * Gets the nonce used for this block.
      *
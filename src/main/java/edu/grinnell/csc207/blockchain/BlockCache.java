@@ -0,0 +1,158 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of recently looked-up blocks, found by height or by hash.
+ * Once full, the least recently used block is evicted.
+ *
+ * <p>The cache is safe to use from several threads. Lookups hold its lock
+ * only to update the recency order, and blocks are loaded from the store
+ * outside it. It pays off over stores that build a new block on every read,
+ * such as {@link MappedBlockStore}; see {@link BlockChain#setBlockCache}.
+ */
+public final class BlockCache {
+    /** The most blocks the cache holds. */
+    private final int capacity;
+    /** The cached blocks by height, least recently used first. */
+    private final LinkedHashMap<Integer, Block> byHeight;
+    /** The height of every cached block, by its hash. */
+    private final Map<Hash, Integer> byHash = new HashMap<>();
+    /** The number of lookups answered from the cache. */
+    private final LongAdder hits = new LongAdder();
+    /** The number of lookups that had to go to the store. */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity the most blocks to hold
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public BlockCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.byHeight = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+                if (size() <= BlockCache.this.capacity) {
+                    return false;
+                }
+                byHash.remove(eldest.getValue().getHash());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Looks up the block at the given height.
+     *
+     * @param height the height of the block
+     * @return the cached block, or null if it is not cached
+     */
+    synchronized Block get(int height) {
+        Block block = byHeight.get(height);
+        (block == null ? misses : hits).increment();
+        return block;
+    }
+
+    /**
+     * Looks up the block with the given hash.
+     *
+     * @param hash the hash of the block
+     * @return the cached block, or null if it is not cached
+     */
+    synchronized Block get(Hash hash) {
+        Integer height = byHash.get(hash);
+        Block block = height == null ? null : byHeight.get(height);
+        (block == null ? misses : hits).increment();
+        return block;
+    }
+
+    /**
+     * Looks up the height of the block with the given hash.
+     *
+     * @param hash the hash of the block
+     * @return the height of the cached block, or -1 if it is not cached
+     */
+    synchronized int heightOf(Hash hash) {
+        Integer height = byHash.get(hash);
+        if (height == null) {
+            misses.increment();
+            return -1;
+        }
+        // Refresh the block's place in the recency order
+        byHeight.get(height);
+        hits.increment();
+        return height;
+    }
+
+    /**
+     * Adds a block loaded from the store, evicting the least recently used
+     * block if the cache is full.
+     *
+     * @param height the height of the block
+     * @param block  the block
+     */
+    synchronized void put(int height, Block block) {
+        Block old = byHeight.put(height, block);
+        if (old != null) {
+            byHash.remove(old.getHash());
+        }
+        byHash.put(block.getHash(), height);
+    }
+
+    /**
+     * Drops the block at the given height, if it is cached, once it has
+     * been removed from the chain.
+     *
+     * @param height the height of the removed block
+     */
+    synchronized void remove(int height) {
+        Block old = byHeight.remove(height);
+        if (old != null) {
+            byHash.remove(old.getHash());
+        }
+    }
+
+    /**
+     * Returns the most blocks the cache holds.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of blocks in the cache.
+     *
+     * @return the number of cached blocks
+     */
+    public synchronized int size() {
+        return byHeight.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that had to go to the store.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
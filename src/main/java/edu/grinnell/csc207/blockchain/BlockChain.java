@@ -1,39 +1,106 @@
 package edu.grinnell.csc207.blockchain;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * A linked list of hash-consistent blocks representing a ledger of
+ * A list of hash-consistent blocks representing a ledger of
  * monetary transactions.
+ *
+ * <p>Every block carries the difficulty it was mined at, in leading zero
+ * bits. The genesis block sets the chain's starting difficulty and its
+ * retarget interval: the difficulty may only change on blocks whose
+ * height is a multiple of the interval, and then by at most
+ * {@link #MAX_RETARGET_STEP} bits, and never if the interval is 0. A chain
+ * thus carries its own target and validators need no extra configuration.
+ * Blocks of the {@link Block#HEADER_V3} and {@link Block#HEADER_V4} layouts
+ * also hash both, so nobody can relabel their difficulty without mining
+ * them again; the original layouts hash exactly the bytes they always did,
+ * so chains mined before difficulties existed still verify.
+ *
+ * <p>The ledger tracks any number of accounts (see {@link Transfer}). Each
+ * block's transfers are applied to a table of account balances as it is
+ * appended and taken back out as it is removed, at O(1) per transfer, so
+ * the balance of any account is always at hand.
+ *
+ * <p>The hash of every block is also kept in a Merkle mountain range, so
+ * whether a block is an ancestor of the tip is answered in constant time,
+ * and a light client holding only {@link #getAncestorRoot()} can check an
+ * {@link AncestorProof} that a block is on the chain in O(log n) hashes.
+ * Like the balances, the range grows and shrinks with the chain, and
+ * pruning drops the nodes only the pruned blocks need.
+ *
+ * <p>A chain can be pruned to bound its memory (see {@link #setPruning}):
+ * it then holds only its most recent blocks, and a signed
+ * {@link Checkpoint} stands in for the rest when the chain is verified.
  */
 public class BlockChain {
+    /** The most a block's difficulty may differ from the previous block's. */
+    public static final int MAX_RETARGET_STEP = 1;
+    /** The most pending transactions {@link #mine()} puts in one block. */
+    public static final int MAX_BATCH = 1024;
 
+    /** The blocks of the chain, from the genesis block to the last block. */
+    private final BlockStore blocks;
+    /** The strategy used to mine new blocks. */
+    private final Miner miner;
+    /** The header layout used for newly mined blocks. */
+    private final int headerVersion;
+    /** Anna's balance after each block held, indexed by height - base. */
+    private int[] balances = new int[16];
+    /** The balance of every account after the last block. */
+    private final AccountTable accounts = new AccountTable();
     /**
-     * A singly linked node that holds a block and a reference
-     * to the next node in the chain.
+     * The height of the first block whose transfers overdrew an account
+     * other than Bob's, or -1 if none did.
      */
-    private static class Node {
-        /** The block stored in this node. */
-        Block block;
-        /** The next node in the chain. */
-        Node next;
-
-        /**
-         * Constructs a node with the specified block.
-         *
-         * @param b the block to store in this node
-         */
-        Node(Block b) {
-            this.block = b;
-            this.next = null;
-        }
-    }
-
-    /** The first node (genesis block) in the chain. */
-    private Node first;
-    /** The last node (most recently added block) in the chain. */
-    private Node last;
-    /** The number of blocks in the chain. */
-    private int size;
+    private int firstOverdraft = -1;
+    /** The hash of every block, pruned or not, for ancestor lookups and proofs. */
+    private final AncestorIndex ancestors = new AncestorIndex();
+    /** The total work of every block, pruned or not. */
+    private BigInteger work = BigInteger.ZERO;
+    /** The height of the oldest block held; every lower block was pruned. */
+    private int base;
+    /**
+     * The number of blocks, from the genesis block on, that have already
+     * been checked by {@link #isValidBlockChain()}.
+     */
+    private int validatedHeight;
+    /** The log every append and removal is recorded in, or null if there is none. */
+    private WriteAheadLog log;
+    /** The transactions waiting to be mined by {@link #mine()}. */
+    private final TransactionPool pool = new TransactionPool();
+    /** The cache lookups by height and hash go through, or null if there is none. */
+    private BlockCache cache;
+    /** The difficulty the next mined block will have. */
+    private int nextDifficulty;
+    /** The number of blocks between retargets, from the genesis block; 0 if fixed. */
+    private final int retargetInterval;
+    /** The time each block should take to mine, when retargeting. */
+    private Duration targetBlockTime;
+    /** The {@link System#nanoTime()} at which the current retarget period began. */
+    private long periodStart;
+    /** The counters and latencies of this chain's operations. */
+    private final ChainMetrics metrics = new ChainMetrics();
+    /** Called after every append and removal; see {@link #addTipListener}. */
+    private final List<Runnable> tipListeners = new CopyOnWriteArrayList<>();
+    /** The number of recent blocks pruning keeps, or 0 if the chain is not pruned. */
+    private int pruneKeep;
+    /** The key checkpoints are signed with, or null if the chain was never pruned. */
+    private byte[] pruneKey;
+    /** The store pruned blocks are moved to, or null if they are discarded. */
+    private BlockStore spill;
+    /** The summary of the pruned blocks, or null if none were pruned. */
+    private Checkpoint checkpoint;
 
     /**
      * Constructs a new blockchain with a genesis block.
@@ -43,12 +110,153 @@ public class BlockChain {
      * @param initial the initial amount to set Anna's balance
      */
     public BlockChain(int initial) {
+        this(initial, new ParallelMiner());
+    }
+
+    /**
+     * Constructs a new blockchain with a genesis block, mining it and every
+     * later block with the given miner.
+     *
+     * @param initial the initial amount to set Anna's balance
+     * @param miner   the strategy used to mine blocks
+     */
+    public BlockChain(int initial, Miner miner) {
+        this(initial, miner, Block.HEADER_V2);
+    }
+
+    /**
+     * Constructs a new blockchain with a genesis block, mining it and every
+     * later block with the given miner and header layout.
+     *
+     * @param initial       the initial amount to set Anna's balance
+     * @param miner         the strategy used to mine blocks
+     * @param headerVersion the header layout for mined blocks
+     * @throws IllegalArgumentException if the header version is unknown
+     */
+    public BlockChain(int initial, Miner miner, int headerVersion) {
+        this(initial, miner, headerVersion, Hash.DEFAULT_DIFFICULTY);
+    }
+
+    /**
+     * Constructs a new blockchain with a genesis block mined at the given
+     * difficulty, mining it and every later block with the given miner and
+     * header layout.
+     *
+     * @param initial       the initial amount to set Anna's balance
+     * @param miner         the strategy used to mine blocks
+     * @param headerVersion the header layout for mined blocks
+     * @param difficulty    the number of leading zero bits block hashes must have
+     * @throws IllegalArgumentException if the header version or difficulty is out of range
+     */
+    public BlockChain(int initial, Miner miner, int headerVersion, int difficulty) {
+        this(new ArrayBlockStore(), initial, miner, headerVersion, difficulty);
+    }
+
+    /**
+     * Constructs a new blockchain in the given empty store, mining its
+     * genesis block and every later block with the given miner and header
+     * layout.
+     *
+     * @param store         the empty store to keep the blocks in
+     * @param initial       the initial amount to set Anna's balance
+     * @param miner         the strategy used to mine blocks
+     * @param headerVersion the header layout for mined blocks
+     * @throws IllegalArgumentException if the store is not empty or the
+     *         header version is unknown
+     */
+    public BlockChain(BlockStore store, int initial, Miner miner, int headerVersion) {
+        this(store, initial, miner, headerVersion, Hash.DEFAULT_DIFFICULTY);
+    }
+
+    /**
+     * Constructs a new blockchain in the given empty store, mining its
+     * genesis block at the given difficulty and every later block with the
+     * given miner and header layout.
+     *
+     * @param store         the empty store to keep the blocks in
+     * @param initial       the initial amount to set Anna's balance
+     * @param miner         the strategy used to mine blocks
+     * @param headerVersion the header layout for mined blocks
+     * @param difficulty    the number of leading zero bits block hashes must have
+     * @throws IllegalArgumentException if the store is not empty or the
+     *         header version or difficulty is out of range
+     */
+    public BlockChain(BlockStore store, int initial, Miner miner, int headerVersion,
+            int difficulty) {
+        this(store, initial, miner, headerVersion, difficulty, 0);
+    }
+
+    /**
+     * Constructs a new blockchain in the given empty store, mining its
+     * genesis block at the given difficulty and every later block with the
+     * given miner and header layout. The genesis block records the retarget
+     * interval; {@link #setRetarget} sets how the difficulty moves.
+     *
+     * @param store            the empty store to keep the blocks in
+     * @param initial          the initial amount to set Anna's balance
+     * @param miner            the strategy used to mine blocks
+     * @param headerVersion    the header layout for mined blocks
+     * @param difficulty       the number of leading zero bits block hashes must have
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, or 0 to keep the difficulty fixed
+     * @throws IllegalArgumentException if the store is not empty or the
+     *         header version, difficulty or retarget interval is out of range
+     */
+    public BlockChain(BlockStore store, int initial, Miner miner, int headerVersion,
+            int difficulty, int retargetInterval) {
+        Block.checkVersion(headerVersion);
+        Block.checkDifficulty(difficulty);
+        if (retargetInterval < 0) {
+            throw new IllegalArgumentException("Retarget interval must not be negative.");
+        }
+        if (store.size() != 0) {
+            throw new IllegalArgumentException("The store already holds a chain.");
+        }
+        this.blocks = store;
+        this.miner = miner;
+        this.headerVersion = headerVersion;
+        this.nextDifficulty = difficulty;
+        this.retargetInterval = retargetInterval;
         // Create the genesis block
-        Block genesis = new Block(0, initial, null);
-        Node genesisNode = new Node(genesis);
-        this.first = genesisNode;
-        this.last = genesisNode;
-        this.size = 1;
+        Block genesis = miner.mineGenesis(headerVersion, difficulty, initial, retargetInterval);
+        blocks.append(genesis);
+        balances[0] = initial;
+        applyTransfers(0, genesis);
+        ancestors.append(genesis.getHash());
+        work = genesis.getWork();
+    }
+
+    /**
+     * Constructs a blockchain over the blocks already in the given store,
+     * such as a chain file opened with {@link MappedBlockStore}. The blocks
+     * are not checked until {@link #isValidBlockChain()} is called.
+     *
+     * @param store         the store holding the chain, starting from its genesis block
+     * @param miner         the strategy used to mine new blocks
+     * @param headerVersion the header layout for newly mined blocks
+     * @throws IllegalArgumentException if the store is empty or the header
+     *         version is unknown
+     */
+    public BlockChain(BlockStore store, Miner miner, int headerVersion) {
+        Block.checkVersion(headerVersion);
+        if (store.size() == 0) {
+            throw new IllegalArgumentException("The store holds no genesis block.");
+        }
+        this.blocks = store;
+        this.miner = miner;
+        this.headerVersion = headerVersion;
+        this.nextDifficulty = store.get(store.size() - 1).getDifficulty();
+        this.retargetInterval = store.get(0).getRetargetInterval();
+        balances = new int[Math.max(balances.length, Integer.highestOneBit(store.size()) * 2)];
+        int annaBalance = 0;
+        for (int height = 0; height < store.size(); height++) {
+            Block b = store.get(height);
+            annaBalance += b.getAmount();
+            balances[height] = annaBalance;
+            applyTransfers(height, b);
+            ancestors.append(b.getHash());
+            work = work.add(b.getWork());
+        }
     }
 
     /**
@@ -60,28 +268,197 @@ public class BlockChain {
      * @return the newly mined Block
      */
     public Block mine(int amount) {
-        Hash prevHash = last.block.getHash();
-        Block newBlock = new Block(size, amount, prevHash);
+        Hash prevHash = getHash();
+        long start = System.nanoTime();
+        Block newBlock = miner.mine(headerVersion, nextDifficulty, getSize(), amount, prevHash);
+        recordMining(start, newBlock);
+        append(newBlock);
+        return newBlock;
+    }
+
+    /**
+     * Adds a transaction to the pool of pending transactions that
+     * {@link #mine()} mines in batches. Pending transactions count against
+     * Anna's balance straight away, so one that would overdraw her is
+     * rejected here rather than making a block invalid. Transactions may be
+     * submitted from other threads while a block is mined.
+     *
+     * @param amount the transaction amount
+     * @throws IllegalArgumentException if the transaction would overdraw Anna
+     */
+    public void submit(int amount) {
+        synchronized (pool) {
+            pool.submit(amount, getAnnaBalance());
+        }
+    }
+
+    /**
+     * Returns the number of transactions waiting to be mined.
+     *
+     * @return the number of pending transactions
+     */
+    public int getPendingCount() {
+        return pool.size();
+    }
+
+    /**
+     * Mines up to {@link #MAX_BATCH} pending transactions, in the order they
+     * were submitted, into one {@link Block#HEADER_V3} block and appends it.
+     * Transactions were checked against Anna's balance when submitted, but
+     * the chain may since have lost blocks that paid her, so any that would
+     * now overdraw her are dropped from the pool first.
+     *
+     * @return the newly mined Block
+     * @throws IllegalStateException if no transactions are pending
+     */
+    public Block mine() {
+        int[] batch;
+        Hash prevHash;
+        synchronized (pool) {
+            prevHash = getHash();
+            pool.dropOverdrafts(getAnnaBalance());
+            batch = pool.peek(MAX_BATCH);
+        }
+        if (batch.length == 0) {
+            throw new IllegalStateException("No pending transactions to mine.");
+        }
+        long start = System.nanoTime();
+        Block newBlock = miner.mine(nextDifficulty, getSize(), batch, prevHash);
+        recordMining(start, newBlock);
+        synchronized (pool) {
+            append(newBlock);
+            pool.remove(batch.length);
+        }
+        return newBlock;
+    }
+
+    /**
+     * Mines the given transfers into one {@link Block#HEADER_V4} block and
+     * appends it. The transfers are checked against the current balances
+     * first, so a block that would overdraw an account is never mined.
+     *
+     * @param transfers the transfers, in the order they apply
+     * @return the newly mined Block
+     * @throws IllegalArgumentException if there are no transfers, or one
+     *         would leave an account other than Bob's overdrawn
+     */
+    public Block mine(List<Transfer> transfers) {
+        Transfer[] batch = transfers.toArray(new Transfer[0]);
+        if (batch.length == 0) {
+            throw new IllegalArgumentException("No transfers to mine.");
+        }
+        // Try the transfers on the balances, then take them back out
+        boolean funded = true;
+        for (Transfer t : batch) {
+            funded &= accounts.transfer(t.getFrom(), t.getTo(), t.getAmount());
+        }
+        for (Transfer t : batch) {
+            accounts.transfer(t.getTo(), t.getFrom(), t.getAmount());
+        }
+        if (!funded) {
+            throw new IllegalArgumentException("A transfer would overdraw its sender.");
+        }
+        long start = System.nanoTime();
+        Block newBlock = miner.mine(nextDifficulty, getSize(), batch, getHash());
+        recordMining(start, newBlock);
         append(newBlock);
         return newBlock;
     }
 
+    /**
+     * Applies a block's transfers to the account balances, noting the block
+     * if it is the first to overdraw an account.
+     *
+     * @param height the height of the block
+     * @param b      the block
+     */
+    private void applyTransfers(int height, Block b) {
+        if (!b.applyTo(accounts) && firstOverdraft < 0) {
+            firstOverdraft = height;
+        }
+    }
+
+    /**
+     * Takes the transfers of the blocks from the given height on back out
+     * of the account balances, last block first.
+     *
+     * @param height the height of the first block to take back out
+     */
+    private void revertTransfers(int height) {
+        for (int h = getSize() - 1; h >= height; h--) {
+            blocks.get(h).revertFrom(accounts);
+        }
+        if (firstOverdraft >= height) {
+            firstOverdraft = -1;
+        }
+    }
+
+    /**
+     * Records a block mined by this chain's miner in the metrics.
+     *
+     * @param start    the {@link System#nanoTime()} at which mining started
+     * @param newBlock the mined block
+     */
+    private void recordMining(long start, Block newBlock) {
+        metrics.recordMining(System.nanoTime() - start, newBlock.getNonce() + 1,
+            miner.getWorkers());
+    }
+
     /**
      * Appends an already-mined block (or a block with a chosen nonce) to the end of the chain.
      * @param newBlock the Block to append
      * @throws IllegalArgumentException if newBlock's prevHash does not match
-     *         the current last block's hash
+     *         the current last block's hash, or its difficulty breaks the
+     *         chain's retarget rule
      */
     public void append(Block newBlock) {
-        Hash expectedPrevHash = last.block.getHash();
-        if (!expectedPrevHash.equals(newBlock.getPrevHash())) {
-            throw new IllegalArgumentException("Block's prevHash does
-            not match the last block's hash!");
+        appendDurably(newBlock);
+    }
+
+    /**
+     * Appends a block as {@link #append(Block)} does and reports when the
+     * append is durable in the chain's write-ahead log.
+     *
+     * @param newBlock the Block to append
+     * @return a future that completes once the append is logged, or a
+     *         completed future if the chain has no log
+     * @throws IllegalArgumentException if newBlock's prevHash does not match
+     *         the current last block's hash, or its difficulty breaks the
+     *         chain's retarget rule
+     * @throws IllegalStateException if the chain's log is closed
+     */
+    public CompletableFuture<Void> appendDurably(Block newBlock) {
+        long start = System.nanoTime();
+        Block last = blocks.get(getSize() - 1);
+        if (!last.getHash().equals(newBlock.getPrevHash())) {
+            throw new IllegalArgumentException(
+                "Block's prevHash does not match the last block's hash!");
+        }
+        int height = getSize();
+        if (!isValidRetarget(height, last.getDifficulty(), newBlock.getDifficulty(),
+                retargetInterval) || newBlock.getRetargetInterval() != 0) {
+            throw new IllegalArgumentException(
+                "Block's difficulty breaks the chain's retarget rule!");
         }
-        Node newNode = new Node(newBlock);
-        last.next = newNode;
-        last = newNode;
-        size++;
+        // A block the log cannot take is turned away before anything changes
+        ByteBuffer record = log == null ? null : log.encodeAppend(newBlock);
+        // The store may refuse blocks it cannot hold, so it goes first
+        blocks.append(newBlock);
+        if (height - base == balances.length) {
+            balances = Arrays.copyOf(balances, 2 * balances.length);
+        }
+        balances[height - base] = balances[height - 1 - base] + newBlock.getAmount();
+        applyTransfers(height, newBlock);
+        ancestors.append(newBlock.getHash());
+        work = work.add(newBlock.getWork());
+        nextDifficulty = newBlock.getDifficulty();
+        if (targetBlockTime != null && (height + 1) % retargetInterval == 0) {
+            retarget();
+        }
+        pruneIfDue();
+        metrics.recordAppend(System.nanoTime() - start);
+        tipChanged();
+        return log == null ? CompletableFuture.completedFuture(null) : log.enqueue(record);
     }
 
     /**
@@ -89,21 +466,453 @@ public class BlockChain {
      * If there is only one block in the chain, this method throws a
      * NoSuchElementException.
      *
-     * @throws NoSuchElementException if an attempt is made to remove the genesis block
+     * @throws NoSuchElementException if an attempt is made to remove the genesis
+     *         block, or the last block held by a pruned chain
      */
     public void removeLast() {
-        if (size <= 1) {
+        removeLastDurably();
+    }
+
+    /**
+     * Removes the last block as {@link #removeLast()} does and reports when
+     * the removal is durable in the chain's write-ahead log.
+     *
+     * @return a future that completes once the removal is logged, or a
+     *         completed future if the chain has no log
+     * @throws NoSuchElementException if an attempt is made to remove the genesis
+     *         block, or the last block held by a pruned chain
+     * @throws IllegalStateException if the chain's log is closed
+     */
+    public CompletableFuture<Void> removeLastDurably() {
+        if (getSize() <= 1) {
             throw new NoSuchElementException("Cannot remove the genesis block from the chain.");
         }
-        // Find the second-to-last node
-        Node current = first;
-        while (current.next != last) {
-            current = current.next;
+        if (getSize() <= base + 1) {
+            throw new NoSuchElementException("Cannot remove the last block held after pruning.");
+        }
+        ByteBuffer record = log == null ? null : log.encodeRemove();
+        revertTransfers(getSize() - 1);
+        ancestors.truncate(getSize() - 1);
+        work = work.subtract(blocks.get(getSize() - 1).getWork());
+        blocks.removeLast();
+        if (cache != null) {
+            cache.remove(getSize());
+        }
+        validatedHeight = Math.min(validatedHeight, getSize());
+        nextDifficulty = blocks.get(getSize() - 1).getDifficulty();
+        metrics.recordRemoval();
+        tipChanged();
+        return log == null ? CompletableFuture.completedFuture(null) : log.enqueue(record);
+    }
+
+    /**
+     * Removes every block above the given height in one step, so that the
+     * block at that height becomes the last block. This costs time in the
+     * number of blocks removed, not the length of the chain.
+     *
+     * @param height the height of the new last block
+     * @return a future that completes once the removals are logged, or a
+     *         completed future if the chain has no log
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    public CompletableFuture<Void> rollbackTo(int height) {
+        return replaceSuffix(height + 1, List.of());
+    }
+
+    /**
+     * Replaces every block from the given height on with a competing branch,
+     * as when switching to a fork with more work. The branch is checked in full
+     * against the block it forks from and the balances there before
+     * anything changes, and the old blocks are then swapped out in one step:
+     * either the whole branch is on the chain afterwards, or the chain is as
+     * it was. Tip listeners hear of the change once. This costs time in the
+     * number of blocks removed and added, not the length of the chain.
+     *
+     * @param height the height of the first block to replace, from 1 (or one
+     *               past the first height held, once pruned) to getSize()
+     * @param branch the blocks to put in their place, in order; may be empty
+     * @return a future that completes once the change is logged, or a
+     *         completed future if the chain has no log
+     * @throws IndexOutOfBoundsException if height is out of range
+     * @throws IllegalArgumentException if a block of the branch is invalid
+     * @throws IllegalStateException if the chain's log is closed
+     */
+    public CompletableFuture<Void> replaceSuffix(int height, List<Block> branch) {
+        long start = System.nanoTime();
+        int oldSize = getSize();
+        if (height < base + 1 || height > oldSize) {
+            throw new IndexOutOfBoundsException("Cannot replace the chain from height " + height);
+        }
+        // Check the whole branch from the fork point before changing anything
+        Block prev = blocks.get(height - 1);
+        int annaBalance = balances[height - 1 - base];
+        for (int i = 0; i < branch.size(); i++) {
+            Block b = branch.get(i);
+            if (!isValidSuccessor(height + i, prev.getHash(), prev.getDifficulty(), b,
+                    annaBalance)) {
+                throw new IllegalArgumentException("Branch block " + b.getNum() + " is invalid!");
+            }
+            prev = b;
+            annaBalance += b.getAmount();
         }
-        // Now current is the second-to-last node
-        current.next = null;
-        last = current;
-        size--;
+        // The whole change is one record, so a crash cannot log half of it
+        ByteBuffer record = log == null ? null : log.encodeReorg(oldSize - height, branch);
+        // Move the balances back to the fork point and try the branch's transfers
+        revertTransfers(height);
+        int applied = 0;
+        while (applied < branch.size() && branch.get(applied).applyTo(accounts)) {
+            applied++;
+        }
+        if (applied < branch.size()) {
+            for (int i = applied; i >= 0; i--) {
+                branch.get(i).revertFrom(accounts);
+            }
+            for (int h = height; h < oldSize; h++) {
+                applyTransfers(h, blocks.get(h));
+            }
+            throw new IllegalArgumentException(
+                "Branch block " + branch.get(applied).getNum() + " overdraws an account!");
+        }
+
+        // The store may refuse blocks it cannot hold, so it takes the branch
+        // first, and the old blocks back if it refuses one
+        List<Block> old = new ArrayList<>(oldSize - height);
+        for (int removed = height; removed < oldSize; removed++) {
+            old.add(blocks.get(removed));
+        }
+        blocks.truncate(height);
+        try {
+            for (Block b : branch) {
+                blocks.append(b);
+            }
+        } catch (RuntimeException e) {
+            blocks.truncate(height);
+            for (Block b : old) {
+                blocks.append(b);
+            }
+            for (int i = branch.size() - 1; i >= 0; i--) {
+                branch.get(i).revertFrom(accounts);
+            }
+            for (int h = height; h < oldSize; h++) {
+                applyTransfers(h, old.get(h - height));
+            }
+            throw e;
+        }
+
+        for (Block b : old) {
+            work = work.subtract(b.getWork());
+        }
+        ancestors.truncate(height);
+        if (cache != null) {
+            for (int removed = height; removed < oldSize; removed++) {
+                cache.remove(removed);
+            }
+        }
+        int newSize = height + branch.size();
+        if (newSize - base > balances.length) {
+            balances = Arrays.copyOf(balances, Integer.highestOneBit(newSize - base) * 2);
+        }
+        boolean prefixValidated = validatedHeight >= height;
+        for (int i = 0; i < branch.size(); i++) {
+            Block b = branch.get(i);
+            int at = height + i - base;
+            balances[at] = balances[at - 1] + b.getAmount();
+            ancestors.append(b.getHash());
+            work = work.add(b.getWork());
+        }
+        // The branch was just checked, so it counts as validated if its prefix was
+        validatedHeight = prefixValidated ? newSize : Math.min(validatedHeight, height);
+        nextDifficulty = blocks.get(newSize - 1).getDifficulty();
+        pruneIfDue();
+        metrics.recordReorg(System.nanoTime() - start, oldSize - height, branch.size());
+        tipChanged();
+
+        return log == null ? CompletableFuture.completedFuture(null) : log.enqueue(record);
+    }
+
+    /**
+     * Prunes the chain as it grows, so that it holds at most twice the given
+     * number of recent blocks however long it gets. Once it holds that many,
+     * the oldest are dropped, down to the given number, and replaced by a
+     * {@link Checkpoint} of the chain up to them, signed with the given key.
+     * The pruned blocks are checked first, and pruning stops at the first
+     * invalid block, so a checkpoint only ever vouches for valid blocks.
+     *
+     * <p>A pruned chain verifies and reports balances from its checkpoint.
+     * Pruned blocks are discarded, or moved to the given spill store (such
+     * as a {@link MappedBlockStore}), through which {@link #getBlock(int)},
+     * {@link #indexOf(Hash)} and {@link #isAncestor} still find them; they
+     * can no longer be proved with {@link #proveAncestor}. Exporting the
+     * chain with {@link ChainIO} needs every block, and so needs a spill
+     * store.
+     *
+     * @param keep  the number of recent blocks to keep, or 0 to stop pruning
+     * @param key   the key to sign checkpoints with
+     * @param spill the store to move pruned blocks to, holding every block
+     *              pruned so far; or null to discard them
+     * @throws IllegalArgumentException if keep is negative, the key is empty
+     *         or differs from the key of an earlier checkpoint, or the spill
+     *         store does not hold exactly the blocks pruned so far
+     * @throws UnsupportedOperationException if the chain's store cannot drop blocks
+     */
+    public void setPruning(int keep, byte[] key, BlockStore spill) {
+        if (keep < 0) {
+            throw new IllegalArgumentException("Number of blocks to keep must not be negative.");
+        }
+        if (key.length == 0) {
+            throw new IllegalArgumentException("The checkpoint key must not be empty.");
+        }
+        if (checkpoint != null && !Arrays.equals(key, pruneKey)) {
+            throw new IllegalArgumentException("The chain was pruned under another key.");
+        }
+        if (spill != null && spill.size() != base) {
+            throw new IllegalArgumentException("The spill store must hold the pruned blocks.");
+        }
+        // Pruning to the current first height checks the store can prune at all
+        blocks.pruneTo(base);
+        this.pruneKeep = keep;
+        this.pruneKey = key.clone();
+        this.spill = spill;
+        pruneIfDue();
+    }
+
+    /**
+     * Prunes the chain if it holds twice the number of blocks to keep.
+     */
+    private void pruneIfDue() {
+        if (pruneKeep > 0 && getSize() - base >= 2 * pruneKeep) {
+            prune();
+        }
+    }
+
+    /**
+     * Drops the oldest blocks, down to the number to keep, and signs a
+     * checkpoint for them. Blocks that were never checked are checked first.
+     */
+    private void prune() {
+        int target = getSize() - pruneKeep;
+        // Blocks past the target may already be validated; they are still kept
+        int height = Math.min(validateUpTo(target), target);
+        if (height <= base) {
+            return;
+        }
+        if (spill != null) {
+            for (int h = base; h < height; h++) {
+                spill.append(blocks.get(h));
+            }
+        }
+        checkpoint = Checkpoint.sign(height - 1, blocks.get(height - 1),
+            balances[height - 1 - base], accountsAt(height - 1).digest(), retargetInterval,
+            pruneKey);
+        blocks.pruneTo(height);
+        ancestors.pruneTo(height);
+        if (cache != null) {
+            for (int h = base; h < height; h++) {
+                cache.remove(h);
+            }
+        }
+        System.arraycopy(balances, height - base, balances, 0, getSize() - height);
+        base = height;
+    }
+
+    /**
+     * Rebuilds the account balances as they were after the block at the
+     * given height, by taking the blocks after it back out of a copy of the
+     * current balances. This costs time in the number of blocks taken out.
+     *
+     * @param height the height of a block held, or the one just below the first
+     * @return the balances after that block
+     */
+    private AccountTable accountsAt(int height) {
+        AccountTable past = accounts.copy();
+        for (int h = getSize() - 1; h > height; h--) {
+            blocks.get(h).revertFrom(past);
+        }
+        return past;
+    }
+
+    /**
+     * Returns the signed summary of the blocks pruned from the chain.
+     *
+     * @return the checkpoint, or null if nothing was pruned
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Returns the height of the oldest block the chain holds in its store.
+     *
+     * @return the first height held, or 0 if nothing was pruned
+     */
+    public int getFirstHeight() {
+        return base;
+    }
+
+    /**
+     * Registers a listener to be called, on the thread that made the change,
+     * after every block appended to or removed from the chain. A
+     * {@link MiningService} uses it to restart a search on a stale tip.
+     *
+     * @param listener the listener to call
+     */
+    public void addTipListener(Runnable listener) {
+        tipListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener added with {@link #addTipListener}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeTipListener(Runnable listener) {
+        tipListeners.remove(listener);
+    }
+
+    /**
+     * Tells every tip listener that the last block has changed.
+     */
+    private void tipChanged() {
+        for (Runnable listener : tipListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Starts recording every later append and removal in the given log.
+     * Replay the log into this chain first, so the log and chain agree.
+     *
+     * @param log the log to record changes in, or null to stop logging
+     */
+    public void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Answers later lookups by height and by hash from the given cache,
+     * loading blocks from the store only on a miss. Blocks removed from the
+     * chain are dropped from the cache.
+     *
+     * @param cache the cache to use, or null to read every block from the store
+     */
+    public void setBlockCache(BlockCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the cache lookups go through.
+     *
+     * @return the cache, or null if there is none
+     */
+    public BlockCache getBlockCache() {
+        return cache;
+    }
+
+    /**
+     * Retargets the difficulty of mined blocks at the end of every period
+     * of the genesis block's retarget interval, based on how long the
+     * period's blocks took to arrive. If they came in under half the target
+     * time in total, the next block is one bit harder; if they took more
+     * than twice the target time, it is one bit easier. The first period
+     * starts now.
+     *
+     * @param targetBlockTime the time each block should take
+     * @throws IllegalArgumentException if the target time is not positive
+     * @throws IllegalStateException if the genesis block fixes the difficulty
+     */
+    public void setRetarget(Duration targetBlockTime) {
+        if (targetBlockTime.isNegative() || targetBlockTime.isZero()) {
+            throw new IllegalArgumentException("Target block time must be positive.");
+        }
+        if (retargetInterval == 0) {
+            throw new IllegalStateException("The genesis block fixes the difficulty.");
+        }
+        this.targetBlockTime = targetBlockTime;
+        this.periodStart = System.nanoTime();
+    }
+
+    /**
+     * Adjusts the next difficulty at the end of a retarget period and
+     * starts the next period.
+     */
+    private void retarget() {
+        long now = System.nanoTime();
+        long elapsed = now - periodStart;
+        long target = targetBlockTime.toNanos() * retargetInterval;
+        if (elapsed < target / 2) {
+            nextDifficulty = Math.min(nextDifficulty + MAX_RETARGET_STEP, Hash.MAX_DIFFICULTY);
+        } else if (elapsed / 2 > target) {
+            nextDifficulty = Math.max(nextDifficulty - MAX_RETARGET_STEP, 0);
+        }
+        periodStart = now;
+    }
+
+    /**
+     * Returns the number of blocks between the heights at which the
+     * difficulty may change, as the genesis block records.
+     *
+     * @return the retarget interval, or 0 if the difficulty is fixed
+     */
+    public int getRetargetInterval() {
+        return retargetInterval;
+    }
+
+    /**
+     * Returns the difficulty the next mined block will have: the last
+     * block's difficulty, adjusted at the end of each retarget period.
+     *
+     * @return the number of leading zero bits the next block's hash must have
+     */
+    public int getNextDifficulty() {
+        return nextDifficulty;
+    }
+
+    /**
+     * Returns the counters and latencies of this chain's operations.
+     *
+     * @return the chain's metrics
+     */
+    public ChainMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns every metric of this chain by name, in a stable order, for
+     * scrapers to poll. Besides the {@link ChainMetrics}, it reports the
+     * size of the chain, its number of accounts and the bytes it holds: its
+     * blocks at their {@link MappedBlockStore} record size plus the balance
+     * of each block, the table of account balances and the ancestor index.
+     * Durations are in nanoseconds.
+     *
+     * @return the metrics by name
+     */
+    public Map<String, Number> exportMetrics() {
+        Map<String, Number> values = metrics.export();
+        values.put("chain.size", getSize());
+        values.put("chain.accounts", accounts.size());
+        values.put("chain.bytes", (long) getSize() * BlockRecords.SIZE
+            + (long) balances.length * Integer.BYTES + accounts.bytes() + ancestors.bytes());
+        return values;
+    }
+
+    /**
+     * Returns the miner this chain uses to mine new blocks.
+     *
+     * @return the miner
+     */
+    public Miner getMiner() {
+        return miner;
+    }
+
+    /**
+     * Returns the header layout this chain uses for newly mined blocks.
+     * Blocks appended from elsewhere may use any layout.
+     *
+     * @return {@link Block#HEADER_V1}, {@link Block#HEADER_V2},
+     *         {@link Block#HEADER_V3} or {@link Block#HEADER_V4}
+     */
+    public int getHeaderVersion() {
+        return headerVersion;
     }
 
     /**
@@ -112,7 +921,19 @@ public class BlockChain {
      * @return the size of the chain
      */
     public int getSize() {
-        return size;
+        return blocks.size();
+    }
+
+    /**
+     * Returns the total work of the chain: the sum over every block, pruned
+     * or not, of the work its difficulty stands for (see
+     * {@link Block#getWork()}). Of two chains, the one with more work took
+     * more hashing to build, whichever is longer.
+     *
+     * @return the chain's total work
+     */
+    public BigInteger getWork() {
+        return work;
     }
 
     /**
@@ -121,86 +942,439 @@ public class BlockChain {
      * @return the hash of the last block
      */
     public Hash getHash() {
-        return last.block.getHash();
+        return blocks.get(blocks.size() - 1).getHash();
+    }
+
+    /**
+     * Returns the block at the given height.
+     *
+     * @param height the height of the block, from 0 (genesis) to getSize() - 1
+     * @return the block at that height
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    public Block getBlock(int height) {
+        if (height < base && spill != null) {
+            return spill.get(height);
+        }
+        if (cache == null) {
+            return blocks.get(height);
+        }
+        Block block = cache.get(height);
+        if (block == null) {
+            block = blocks.get(height);
+            cache.put(height, block);
+        }
+        return block;
+    }
+
+    /**
+     * Returns the block with the given hash.
+     *
+     * @param hash the hash to look for
+     * @return the block with that hash, or null if it is not in the chain
+     */
+    public Block getBlock(Hash hash) {
+        if (cache != null) {
+            Block block = cache.get(hash);
+            if (block != null) {
+                return block;
+            }
+        }
+        int height = blocks.indexOf(hash);
+        if (height < 0) {
+            if (spill == null) {
+                return null;
+            }
+            height = spill.indexOf(hash);
+            return height < 0 ? null : spill.get(height);
+        }
+        Block block = blocks.get(height);
+        if (cache != null) {
+            cache.put(height, block);
+        }
+        return block;
+    }
+
+    /**
+     * Returns the height of the block with the given hash.
+     *
+     * @param hash the hash to look for
+     * @return the height of the block with that hash, or -1 if it is not in the chain
+     */
+    public int indexOf(Hash hash) {
+        if (cache != null) {
+            int height = cache.heightOf(hash);
+            if (height >= 0) {
+                return height;
+            }
+        }
+        int height = blocks.indexOf(hash);
+        return height < 0 && spill != null ? spill.indexOf(hash) : height;
+    }
+
+    /**
+     * Checks whether the block with the given hash is at the given height
+     * of this chain, and so is the tip or one of its ancestors. This works
+     * in constant time. A pruned block is looked up in the spill store, if
+     * the chain has one; without one, pruned blocks are not found.
+     *
+     * @param hash   the hash of the block
+     * @param height the height it claims
+     * @return true if that block is at that height
+     */
+    public boolean isAncestor(Hash hash, int height) {
+        if (height >= 0 && height < base) {
+            return spill != null && spill.get(height).getHash().equals(hash);
+        }
+        return ancestors.contains(height, hash);
+    }
+
+    /**
+     * Returns the root of the ancestor index over every block of the chain.
+     * It changes with every block appended or removed; a light client that
+     * trusts it can check {@link #proveAncestor} proofs.
+     *
+     * @return the root over the current chain
+     */
+    public Hash getAncestorRoot() {
+        return ancestors.root();
+    }
+
+    /**
+     * Proves that the block at a height is on this chain, against the
+     * current {@link #getAncestorRoot()}. Pruning drops the nodes that
+     * proofs of pruned blocks need, so only blocks still held can be proved.
+     *
+     * @param height the height of the block
+     * @return the proof
+     * @throws IndexOutOfBoundsException if there is no block at that height,
+     *         or it was pruned
+     */
+    public AncestorProof proveAncestor(int height) {
+        return ancestors.prove(height);
+    }
+
+    /**
+     * Returns the current balance of an account, in constant time.
+     *
+     * @param account the account id
+     * @return the account's balance after the last block, or 0 if it was never paid
+     */
+    public long getBalance(int account) {
+        return accounts.get(account);
+    }
+
+    /**
+     * Returns Anna's balance after the block at the given height.
+     *
+     * @param height the height of the block
+     * @return Anna's balance once that block's transaction is applied
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    public int getAnnaBalance(int height) {
+        if (height < base || height >= getSize()) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+        return balances[height - base];
+    }
+
+    /**
+     * Returns Anna's current balance.
+     *
+     * @return Anna's balance after the last block
+     */
+    public int getAnnaBalance() {
+        return balances[getSize() - 1 - base];
+    }
+
+    /**
+     * Returns Bob's current balance. Until transfers involve other accounts,
+     * it is the negative of Anna's.
+     *
+     * @return Bob's balance after the last block
+     * @throws ArithmeticException if the balance does not fit in an int
+     */
+    public int getBobBalance() {
+        return Math.toIntExact(accounts.get(Transfer.BOB));
     }
 
     /**
      * Checks whether this blockchain is valid by verifying:
      * <ul>
-     *   <li>Each block's hash is valid (its first three bytes are zero).</li>
-     *   <li>Each block's prevHash matches the previous block's hash.</li>
-     *   <li>Anna's balance never goes negative at any point.</li>
+     *   <li>Each block's hash has at least as many leading zero bits as
+     *       the block's difficulty and is the hash of the block's contents. Each block is hashed with
+     *       its own header version, so chains that mix both layouts still
+     *       verify.</li>
+     *   <li>Each block's prevHash matches the previous block's hash, and its
+     *       difficulty equals that block's, or is within
+     *       {@link #MAX_RETARGET_STEP} of it at a retarget height.</li>
+     *   <li>Anna's balance never goes negative at any point, including
+     *       after each transaction within a block of several, and neither
+     *       does any other account's but Bob's.</li>
      * </ul>
+     * Blocks are immutable, so blocks that passed an earlier call are not
+     * checked again: after k new blocks this costs O(k). Use
+     * {@link #verifyFull()} to re-check the whole chain. A pruned chain is
+     * checked from its checkpoint, whose signature must be valid.
      *
      * @return true if the chain is valid; false otherwise
      */
     public boolean isValidBlockChain() {
-        int annaBalance = 0;
-
-        Node current = first;
-        Node prev = null;
+        long start = System.nanoTime();
+        try {
+            return isValidCheckpoint() && validateUpTo(getSize()) == getSize();
+        } finally {
+            metrics.recordValidation(System.nanoTime() - start);
+        }
+    }
 
-        while (current != null) {
-            Block b = current.block;
+    /**
+     * Checks the blocks that have not been checked yet, up to the given height.
+     *
+     * @param end one past the height of the last block to check
+     * @return the number of blocks from the genesis block on that are now
+     *         known to be valid, which is less than end if one was invalid
+     */
+    private int validateUpTo(int end) {
+        // Account balances were checked as blocks were appended
+        int stop = firstOverdraft < 0 ? end : Math.min(end, firstOverdraft);
+        for (int height = validatedHeight; height < stop; height++) {
+            if (!isValidBlock(height, balances[height - base])) {
+                break;
+            }
+            validatedHeight = height + 1;
+        }
+        return validatedHeight;
+    }
 
-            // 1) The block's hash must be valid
-            if (!b.getHash().isValid()) {
+    /**
+     * Checks the whole chain from the genesis block, or from the checkpoint
+     * once pruned, as {@link #isValidBlockChain()} does, but without
+     * trusting earlier results or the cached balances. Meant for audits.
+     * The account balances are replayed from the genesis block. A pruned
+     * chain replays them from the balances at its checkpoint, rebuilt by
+     * taking the blocks it holds back out of the current ones, which must
+     * match the checkpoint's signed account digest.
+     *
+     * @return true if the chain is valid; false otherwise
+     */
+    public boolean verifyFull() {
+        long start = System.nanoTime();
+        try {
+            validatedHeight = base;
+            if (!isValidCheckpoint()) {
                 return false;
             }
-
-            // 2) The block's prevHash must match the previous block's hash
-            if (prev == null) {
-                if (b.getPrevHash() != null) {
+            int annaBalance = checkpoint == null ? 0 : checkpoint.getAnnaBalance();
+            AccountTable replayed = new AccountTable();
+            if (checkpoint != null) {
+                replayed = accountsAt(base - 1);
+                if (!replayed.digest().equals(checkpoint.getAccountsDigest())) {
+                    return false;
+                }
+            }
+            for (int height = base; height < getSize(); height++) {
+                Block b = blocks.get(height);
+                annaBalance += b.getAmount();
+                if (annaBalance != balances[height - base] || !isValidBlock(height, annaBalance)) {
                     return false;
                 }
-            } else {
-                if (!b.getPrevHash().equals(prev.block.getHash())) {
+                if (!b.applyTo(replayed)) {
                     return false;
                 }
+                validatedHeight = height + 1;
             }
+            return true;
+        } finally {
+            metrics.recordValidation(System.nanoTime() - start);
+        }
+    }
 
-            // 3) Check Anna's balance after the transaction
-            annaBalance += b.getAmount();
-            if (annaBalance < 0) {
-                return false;
-            }
+    /**
+     * Checks the whole chain on all cores and reports where it first breaks,
+     * so that operators can truncate the chain there. Like
+     * {@link #verifyFull()}, nothing from earlier checks is trusted.
+     *
+     * @return the height of the first invalid block, or -1 if the chain is valid
+     */
+    public int verifyParallel() {
+        return verifyParallel(ForkJoinPool.commonPool());
+    }
 
-            prev = current;
-            current = current.next;
+    /**
+     * Checks the whole chain on the given pool and reports where it first
+     * breaks, as {@link #verifyParallel()} does. If a pruned chain's
+     * checkpoint is not validly signed, no block held can be trusted, and
+     * the first of them is reported. Account balances other than Anna's
+     * depend on every block before, so they are not checked in parallel;
+     * the first block that overdrew one as it was appended is reported.
+     *
+     * @param pool the pool to verify on
+     * @return the height of the first invalid block, or -1 if the chain is valid
+     */
+    public int verifyParallel(ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int firstInvalid = isValidCheckpoint()
+            ? ChainVerifier.firstInvalidHeight(blocks, checkpoint, pool)
+            : base;
+        if (firstOverdraft >= 0 && (firstInvalid < 0 || firstOverdraft < firstInvalid)) {
+            firstInvalid = firstOverdraft;
         }
-        return true;
+        metrics.recordValidation(System.nanoTime() - start);
+        validatedHeight = firstInvalid < 0 ? getSize() : firstInvalid;
+        return firstInvalid;
+    }
+
+    /**
+     * Checks the signature of the checkpoint standing in for pruned blocks.
+     *
+     * @return true if nothing was pruned or the checkpoint is validly signed
+     */
+    private boolean isValidCheckpoint() {
+        return checkpoint == null || checkpoint.verify(pruneKey);
+    }
+
+    /**
+     * Checks a single block of the chain. The first block held by a pruned
+     * chain is checked against the checkpoint.
+     *
+     * @param height      the height of the block
+     * @param annaBalance Anna's balance after the block
+     * @return true if the block is valid; false otherwise
+     */
+    private boolean isValidBlock(int height, int annaBalance) {
+        Block b = blocks.get(height);
+        int balanceBefore = annaBalance - b.getAmount();
+        if (height == 0) {
+            return isValidSuccessor(0, null, 0, b, balanceBefore);
+        } else if (height == base) {
+            return isValidSuccessor(height, checkpoint.getHash(), checkpoint.getDifficulty(), b,
+                balanceBefore);
+        }
+        Block prev = blocks.get(height - 1);
+        return isValidSuccessor(height, prev.getHash(), prev.getDifficulty(), b, balanceBefore);
+    }
+
+    /**
+     * Checks a block against the block it follows.
+     *
+     * @param height         the height of the block
+     * @param prevHash       the hash of the previous block, or null for the genesis block
+     * @param prevDifficulty the difficulty of the previous block
+     * @param b              the block to check
+     * @param balanceBefore  Anna's balance before the block
+     * @return true if the block is valid; false otherwise
+     */
+    private boolean isValidSuccessor(int height, Hash prevHash, int prevDifficulty, Block b,
+            int balanceBefore) {
+        // 1) and 2) The block's hash, prevHash and difficulty
+        if (!isValidLink(height, prevHash, prevDifficulty, retargetInterval, b)) {
+            return false;
+        }
+
+        // 3) Check Anna's balance after each transaction
+        return balanceBefore + b.lowestRunningTotal() >= 0;
+    }
+
+    /**
+     * Checks a block's own hash and its link to the previous block: the hash
+     * must meet the block's difficulty and match its contents, the prevHash
+     * must be the previous block's hash, and the difficulty must follow the
+     * chain's retarget rule (see {@link #isValidRetarget}). Only the genesis
+     * block may set a retarget interval.
+     *
+     * @param height           the height of the block
+     * @param prevHash         the hash of the previous block, or null for the genesis block
+     * @param prevDifficulty   the difficulty of the previous block; ignored
+     *                         for the genesis block
+     * @param retargetInterval the retarget interval of the chain's genesis block
+     * @param b                the block to check
+     * @return true if the hash and link are valid; false otherwise
+     */
+    static boolean isValidLink(int height, Hash prevHash, int prevDifficulty,
+            int retargetInterval, Block b) {
+        int difficulty = b.getDifficulty();
+        if (difficulty < 0 || difficulty > Hash.MAX_DIFFICULTY
+                || !b.getHash().meetsDifficulty(difficulty) || !b.hasConsistentHash()) {
+            return false;
+        }
+        if (prevHash == null) {
+            return b.getPrevHash() == null;
+        }
+        return b.getRetargetInterval() == 0
+            && isValidRetarget(height, prevDifficulty, difficulty, retargetInterval)
+            && prevHash.equals(b.getPrevHash());
+    }
+
+    /**
+     * Checks a block's difficulty against the previous block's under a
+     * chain's retarget rule: it must be the same, except at heights that
+     * are a multiple of the retarget interval, where it may move by up to
+     * {@link #MAX_RETARGET_STEP} bits.
+     *
+     * @param height           the height of the block, after the genesis block
+     * @param prevDifficulty   the difficulty of the previous block
+     * @param difficulty       the difficulty of the block
+     * @param retargetInterval the retarget interval of the chain's genesis
+     *                         block, or 0 if the difficulty is fixed
+     * @return true if the difficulty is in range and follows the rule
+     */
+    static boolean isValidRetarget(int height, int prevDifficulty, int difficulty,
+            int retargetInterval) {
+        if (difficulty < 0 || difficulty > Hash.MAX_DIFFICULTY) {
+            return false;
+        }
+        if (difficulty == prevDifficulty) {
+            return true;
+        }
+        return retargetInterval > 0 && height % retargetInterval == 0
+            && Math.abs(difficulty - prevDifficulty) <= MAX_RETARGET_STEP;
     }
 
     /**
      * Prints the current balances of Alice (Anna) and Bob. Anna's balance is the
-     * sum of all block amounts in the chain, while Bob's balance is the negative
-     * of that sum (assuming they both started at 0).
+     * sum of all block amounts in the chain, and Bob's is his own account's
+     * balance, which is the negative of Anna's only while every transfer is
+     * between the two of them.
      */
     public void printBalances() {
-        int annaBalance = 0;
-        Node current = first;
-        while (current != null) {
-            annaBalance += current.block.getAmount();
-            current = current.next;
-        }
-        int bobBalance = -annaBalance;
-        System.out.println("Alice: " + annaBalance + ", Bob: " + bobBalance);
+        System.out.println("Alice: " + getAnnaBalance() + ", Bob: " + getBobBalance());
     }
 
     /**
      * Returns a string representation of the entire blockchain, from the
-     * genesis block to the last block, each block on its own line.
+     * genesis block (or the first block held, once pruned) to the last
+     * block, each block on its own line.
      *
      * @return a string describing the blockchain
      */
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        Node current = first;
-        while (current != null) {
-            sb.append(current.block.toString()).append("\n");
-            current = current.next;
+        for (int height = base; height < blocks.size(); height++) {
+            sb.append(blocks.get(height).toString()).append("\n");
         }
         return sb.toString();
     }
+
+    /**
+     * Writes the blocks in the given range of heights, each on its own line,
+     * without building the whole text in memory first.
+     *
+     * @param out  where to write the blocks
+     * @param from the height of the first block to write
+     * @param to   one past the height of the last block to write
+     * @throws IOException if the output cannot be written
+     * @throws IndexOutOfBoundsException if the range is not within the
+     *         chain, or reaches pruned blocks that were discarded
+     */
+    public void writeTo(Appendable out, int from, int to) throws IOException {
+        if (from < (spill == null ? base : 0) || to > getSize() || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range " + from + " to " + to);
+        }
+        for (int height = from; height < to; height++) {
+            Block b = height < base ? spill.get(height) : blocks.get(height);
+            out.append(b.toString()).append('\n');
+        }
+    }
 }
\ No newline at end of file
@@ -1,28 +1,89 @@
 package edu.grinnell.csc207.blockchain;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 /**
  * Driver for a simple blockchain.  
- * Usage: java edu.grinnell.csc207.blockchain.BlockChainDriver <initialAmount>
+ * Usage: java edu.grinnell.csc207.blockchain.BlockChainDriver
+ *            <initialAmount> [workers] [chainFile]
+ *
+ * The optional workers argument sets the number of threads used to mine;
+ * it defaults to one per available core. If a chain file is given, the
+ * chain is kept in it: an existing file is reopened (and the initial amount
+ * ignored), otherwise a new chain is created there. A new chain is mined at
+ * the difficulty given by the system property blockchain.difficulty, in
+ * leading zero bits (24 by default). If the system property blockchain.prune
+ * is set to N, a chain kept in memory is pruned to its last N to 2N blocks,
+ * with a checkpoint signed under a key made up for the run. If the system
+ * property blockchain.store is set to arena, a chain kept in memory holds
+ * its blocks off the heap (see ArenaBlockStore).
+ *
+ * Mining runs in the background: mine returns straight away, and the
+ * mined block is reported before a later prompt. If a block is appended or
+ * removed meanwhile, mining starts over on the new last block.
+ *
+ * If the system property blockchain.script names a file (or is "-" for
+ * standard input), the driver runs headless instead: it reads commands and
+ * their answers from the script, one per line, with no prompts and no chain
+ * shown between commands, and buffers its output. Blank lines and lines
+ * starting with # are skipped, mine waits for its block, and a run of
+ * transfer commands mines each block while the one before it is appended.
  *
  * Commands:
- *   mine    - discovers the nonce for a given transaction
+ *   mine    - starts discovering the nonce for a given transaction
+ *   status  - shows the progress of the mining job
+ *   cancel  - cancels the mining job
+ *   transfer - mines a block for a given transaction and appends it
  *   append  - appends a new block to the end of the chain
  *   remove  - removes the last block from the chain
+ *   submit  - queues a transaction to be mined in the next batch
+ *   batch   - mines every queued transaction into one block and appends it
  *   check   - checks that the block chain is valid
  *   report  - reports the balances of Alice and Bob
+ *   show    - shows the last N blocks of the chain
+ *   stats   - shows mining and validation metrics
  *   help    - prints this list of commands
  *   quit    - quits the program
  */
 public class BlockChainDriver {
+    /** The number of blocks shown before each prompt. */
+    private static final int PAGE_SIZE = 10;
+
+    /** The size of the output buffer when running a script. */
+    private static final int OUTPUT_BUFFER = 1 << 16;
+
+    /** The difficulty of newly created chains, in leading zero bits. */
+    private static final int DIFFICULTY =
+        Integer.getInteger("blockchain.difficulty", Hash.DEFAULT_DIFFICULTY);
+
+    /** The number of recent blocks an in-memory chain keeps, or 0 to keep all. */
+    private static final int PRUNE = Integer.getInteger("blockchain.prune", 0);
+
+    /** Whether a chain kept in memory holds its blocks off the heap. */
+    private static final boolean ARENA = "arena".equals(System.getProperty("blockchain.store"));
+
     /** Holds the last mined but not yet appended candidate block */
     private static Block pendingCandidate;
 
+    /** The mining job whose outcome has not been reported yet, or null */
+    private static MiningJob unreported;
+
+    /** Whether commands come from a user at a prompt rather than a script */
+    private static boolean interactive = true;
+
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("Usage: java BlockChainDriver <initialAmount>");
+            System.err.println(
+                "Usage: java BlockChainDriver <initialAmount> [workers] [chainFile]");
             return;
         }
 
@@ -38,18 +99,80 @@ public class BlockChainDriver {
             return;
         }
 
-        BlockChain bc = new BlockChain(initialAmount);
-        Scanner sc = new Scanner(System.in);
+        Scanner sc;
+        String script = System.getProperty("blockchain.script");
+        if (script == null) {
+            sc = new Scanner(System.in);
+        } else {
+            interactive = false;
+            try {
+                sc = script.equals("-") ? new Scanner(System.in) : new Scanner(Paths.get(script));
+            } catch (IOException e) {
+                System.err.println("Cannot open script: " + e.getMessage());
+                return;
+            }
+            // Scripts print far more than is worth flushing line by line
+            System.setOut(new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER), false));
+        }
+
+        ParallelMiner miner;
+        try {
+            miner = args.length < 2
+                ? new ParallelMiner()
+                : new ParallelMiner(Integer.parseInt(args[1]));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid number of workers. Must be a positive integer.");
+            return;
+        }
+
+        MappedBlockStore store = null;
+        BlockChain bc;
+        if (args.length < 3) {
+            BlockStore blocks = ARENA ? new ArenaBlockStore() : new ArrayBlockStore();
+            bc = new BlockChain(blocks, initialAmount, miner, Block.HEADER_V2, DIFFICULTY);
+            if (PRUNE > 0) {
+                byte[] key = new byte[32];
+                new SecureRandom().nextBytes(key);
+                bc.setPruning(PRUNE, key, null);
+            }
+        } else {
+            try {
+                store = new MappedBlockStore(Paths.get(args[2]));
+            } catch (IOException e) {
+                System.err.println("Cannot open chain file: " + e.getMessage());
+                return;
+            }
+            bc = store.size() == 0
+                ? new BlockChain(store, initialAmount, miner, Block.HEADER_V2, DIFFICULTY)
+                : new BlockChain(store, miner, Block.HEADER_V2);
+        }
+        MiningService service = new MiningService(bc, miner);
+        BlockPipeline pipeline = new BlockPipeline(bc);
         boolean done = false;
 
-        // Interactive loop
+        // Command loop
         while (!done) {
-            // 1) Print the current chain
-            System.out.println(bc.toString().trim());
+            // 1) Print the end of the current chain and any finished mining
+            if (interactive) {
+                drain(pipeline);
+                showLast(bc, PAGE_SIZE);
+            }
+            reportMined();
 
-            // 2) Prompt
-            System.out.print("Command? ");
+            // 2) Prompt; a script ends at the end of its input
+            prompt("Command? ");
+            if (!sc.hasNextLine()) {
+                break;
+            }
             String cmd = sc.nextLine().trim().toLowerCase();
+            if (!interactive && (cmd.isEmpty() || cmd.startsWith("#"))) {
+                continue;
+            }
+            // Only transfers may run while earlier blocks are being appended
+            if (!cmd.equals("transfer")) {
+                drain(pipeline);
+            }
 
             switch (cmd) {
                 case "help":
@@ -57,7 +180,19 @@ public class BlockChainDriver {
                     break;
 
                 case "mine":
-                    doMine(bc, sc);
+                    doMine(service, sc);
+                    break;
+
+                case "status":
+                    doStatus(service);
+                    break;
+
+                case "cancel":
+                    doCancel(service);
+                    break;
+
+                case "transfer":
+                    doTransfer(pipeline, sc);
                     break;
 
                 case "append":
@@ -68,6 +203,14 @@ public class BlockChainDriver {
                     doRemove(bc);
                     break;
 
+                case "submit":
+                    doSubmit(bc, sc);
+                    break;
+
+                case "batch":
+                    doBatch(bc);
+                    break;
+
                 case "check":
                     doCheck(bc);
                     break;
@@ -76,6 +219,14 @@ public class BlockChainDriver {
                     bc.printBalances();
                     break;
 
+                case "show":
+                    doShow(bc, sc);
+                    break;
+
+                case "stats":
+                    doStats(bc);
+                    break;
+
                 case "quit":
                     done = true;
                     break;
@@ -85,45 +236,136 @@ public class BlockChainDriver {
             }
         }
 
+        drain(pipeline);
+        pipeline.close();
         System.out.println("Exiting BlockChainDriver.");
+        System.out.flush();
+        service.close();
         sc.close();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close chain file: " + e.getMessage());
+            }
+        }
     }
 
     private static void printHelp() {
         System.out.println("Valid commands:");
-        System.out.println("  mine: discovers the nonce for a given transaction");
+        System.out.println("  mine: starts discovering the nonce for a given transaction");
+        System.out.println("  status: shows the progress of the mining job");
+        System.out.println("  cancel: cancels the mining job");
+        System.out.println("  transfer: mines a block for a given transaction and appends it");
         System.out.println("  append: appends a new block to the end of the chain");
         System.out.println("  remove: removes the last block from the chain");
+        System.out.println("  submit: queues a transaction to be mined in the next batch");
+        System.out.println("  batch: mines every queued transaction into one block");
         System.out.println("  check: checks that the block chain is valid");
         System.out.println("  report: reports the balances of Alice and Bob");
+        System.out.println("  show: shows the last N blocks of the chain");
+        System.out.println("  stats: shows mining and validation metrics");
         System.out.println("  help: prints this list of commands");
         System.out.println("  quit: quits the program");
     }
 
-    private static void doMine(BlockChain bc, Scanner sc) {
+    private static void doMine(MiningService service, Scanner sc) {
+        try {
+            prompt("Amount transferred? ");
+            int amount = Integer.parseInt(sc.nextLine().trim());
+            // Mine in the background; the candidate is NOT appended when done
+            unreported = service.mine(amount);
+            if (interactive) {
+                System.out.println("Mining started. Type 'status' to follow it.");
+            } else {
+                // Scripts wait for each block, so their output is repeatable
+                unreported.getResult().handle((block, e) -> null).join();
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid amount. Must be an integer.");
+        }
+    }
+
+    private static void prompt(String question) {
+        if (interactive) {
+            System.out.print(question);
+        }
+    }
+
+    private static void drain(BlockPipeline pipeline) {
         try {
-            System.out.print("Amount transferred? ");
+            pipeline.drain();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Failed to append block: " + e.getMessage());
+        }
+    }
+
+    private static void doTransfer(BlockPipeline pipeline, Scanner sc) {
+        try {
+            prompt("Amount transferred? ");
             int amount = Integer.parseInt(sc.nextLine().trim());
-            // Create but do NOT append: this is just mining the candidate
-            pendingCandidate = new Block(bc.getSize(), amount, bc.getHash());
-            System.out.println("amount = " 
-                + pendingCandidate.getAmount() 
-                + ", nonce = " 
-                + pendingCandidate.getNonce());
+            Block blk = pipeline.transfer(amount);
+            System.out.println("amount = " + blk.getAmount() + ", nonce = " + blk.getNonce());
         } catch (NumberFormatException e) {
             System.out.println("Invalid amount. Must be an integer.");
         }
     }
 
+    private static void reportMined() {
+        if (unreported == null) {
+            return;
+        }
+        switch (unreported.getState()) {
+            case DONE:
+                pendingCandidate = unreported.getResult().join();
+                System.out.println("Mined: amount = "
+                    + pendingCandidate.getAmount()
+                    + ", nonce = "
+                    + pendingCandidate.getNonce());
+                unreported = null;
+                break;
+
+            case FAILED:
+                System.out.println("Mining failed: "
+                    + unreported.getResult().handle((b, e) -> e.getMessage()).join());
+                unreported = null;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private static void doStatus(MiningService service) {
+        MiningJob job = service.getCurrent();
+        if (job == null) {
+            System.out.println("No mining job has been started.");
+            return;
+        }
+        System.out.printf("Mining amount %d: %s, %d attempts in %.1f s (%.0f hashes/s),"
+            + " restarted %d time(s)%n", job.getAmount(), job.getState(), job.getAttempts(),
+            job.getElapsed().toMillis() / 1000.0, job.getHashRate(), job.getRestarts());
+    }
+
+    private static void doCancel(MiningService service) {
+        MiningJob job = service.getCurrent();
+        if (job != null && job.cancel()) {
+            System.out.println("Cancelled mining after " + job.getAttempts() + " attempts.");
+        } else {
+            System.out.println("No mining job is running.");
+        }
+    }
+
     private static void doAppend(BlockChain bc, Scanner sc) {
         try {
-            System.out.print("Amount transferred? ");
+            prompt("Amount transferred? ");
             int amount = Integer.parseInt(sc.nextLine().trim());
-            System.out.print("Nonce? ");
+            prompt("Nonce? ");
             long nonce = Long.parseLong(sc.nextLine().trim());
 
             // Build the block with the user‐supplied nonce
-            Block blk = new Block(bc.getSize(), amount, bc.getHash(), nonce);
+            Block blk = new Block(bc.getSize(), amount, bc.getHash(), nonce,
+                bc.getHeaderVersion(), bc.getNextDifficulty());
             bc.append(blk);
             // Clear the pending candidate
             pendingCandidate = null;
@@ -143,8 +385,73 @@ public class BlockChainDriver {
         }
     }
 
+    private static void doSubmit(BlockChain bc, Scanner sc) {
+        try {
+            prompt("Amount transferred? ");
+            int amount = Integer.parseInt(sc.nextLine().trim());
+            bc.submit(amount);
+            System.out.println(bc.getPendingCount() + " transaction(s) pending.");
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid amount. Must be an integer.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Transaction rejected: " + e.getMessage());
+        }
+    }
+
+    private static void doBatch(BlockChain bc) {
+        try {
+            Block blk = bc.mine();
+            System.out.println("Mined " + blk.getTransactionCount()
+                + " transaction(s), nonce = " + blk.getNonce());
+        } catch (IllegalStateException e) {
+            System.out.println("Cannot mine a batch: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Failed to append block: " + e.getMessage());
+        }
+    }
+
+    private static void doShow(BlockChain bc, Scanner sc) {
+        try {
+            prompt("Number of blocks? ");
+            int count = Integer.parseInt(sc.nextLine().trim());
+            if (count < 0) {
+                System.out.println("Invalid number. Must be non-negative.");
+                return;
+            }
+            showLast(bc, count);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number. Must be an integer.");
+        }
+    }
+
+    private static void showLast(BlockChain bc, int count) {
+        int from = Math.max(bc.getFirstHeight(), bc.getSize() - count);
+        if (from > 0) {
+            System.out.println("(" + from + " earlier blocks not shown)");
+        }
+        try {
+            bc.writeTo(System.out, from, bc.getSize());
+        } catch (IOException e) {
+            System.out.println("Cannot show blocks: " + e.getMessage());
+        }
+    }
+
+    private static void doStats(BlockChain bc) {
+        for (Map.Entry<String, Number> metric : bc.exportMetrics().entrySet()) {
+            Number value = metric.getValue();
+            System.out.println(metric.getKey() + " " + (value instanceof Double
+                ? String.format("%.1f", value.doubleValue())
+                : value.toString()));
+        }
+    }
+
     private static void doCheck(BlockChain bc) {
         boolean valid = bc.isValidBlockChain();
         System.out.println("Blockchain is " + (valid ? "valid." : "NOT valid!"));
+        Checkpoint checkpoint = bc.getCheckpoint();
+        if (checkpoint != null) {
+            System.out.println("(checked from the checkpoint at height "
+                + checkpoint.getHeight() + ")");
+        }
     }
 }
\ No newline at end of file
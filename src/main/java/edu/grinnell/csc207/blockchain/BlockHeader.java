@@ -0,0 +1,313 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a block that its hash covers, without the transactions or
+ * transfers of a batch: enough to check the block's proof of work and its
+ * link to the block before it. Peers send headers ahead of whole blocks
+ * (see {@link ChainSync}), so a chain can be checked before its bodies are
+ * downloaded.
+ *
+ * <p>On the wire a header is {@link #SIZE} bytes: num (4), header version
+ * (2), difficulty (2), nonce (8), the number of transactions or transfers
+ * (4), the retarget interval a genesis block sets (4), a 32-byte
+ * commitment to the contents and the block's 32-byte hash, all
+ * big-endian. The count is not hashed; it only lets a peer plan how many
+ * bodies to ask for at once. The commitment is the amount, zero-padded,
+ * for {@link Block#HEADER_V1} and {@link Block#HEADER_V2} blocks, and the
+ * Merkle root of the transactions or transfers otherwise.
+ */
+final class BlockHeader {
+    /** The number of bytes a header takes on the wire. */
+    static final int SIZE = 3 * Integer.BYTES + 2 * Short.BYTES + Long.BYTES + 2 * Hash.LENGTH;
+
+    /** The block number. */
+    private final int num;
+    /** The header layout the block is hashed with. */
+    private final int version;
+    /** The number of leading zero bits the block's hash must have. */
+    private final int difficulty;
+    /** The nonce used to produce the block's hash. */
+    private final long nonce;
+    /** The number of transactions or transfers in the block. */
+    private final int count;
+    /** The retarget interval, for a genesis block; otherwise 0. */
+    private final int retargetInterval;
+    /** The amount, for a block hashed with the amount in its header. */
+    private final int amount;
+    /** The Merkle root of the contents, or null if the amount is hashed directly. */
+    private final Hash merkleRoot;
+    /** The hash the block claims. */
+    private final Hash hash;
+
+    /**
+     * Constructs a header from its fields.
+     *
+     * @param num        the block number
+     * @param version    the header layout
+     * @param difficulty the difficulty
+     * @param nonce      the nonce
+     * @param count      the number of transactions or transfers
+     * @param interval   the retarget interval, for a genesis block; otherwise 0
+     * @param amount     the amount, or 0 if the header holds a Merkle root
+     * @param merkleRoot the Merkle root, or null if the header holds an amount
+     * @param hash       the hash the block claims
+     */
+    private BlockHeader(int num, int version, int difficulty, long nonce, int count,
+            int interval, int amount, Hash merkleRoot, Hash hash) {
+        this.num = num;
+        this.version = version;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+        this.count = count;
+        this.retargetInterval = interval;
+        this.amount = amount;
+        this.merkleRoot = merkleRoot;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the header of a block.
+     *
+     * @param block the block
+     * @return its header
+     */
+    static BlockHeader of(Block block) {
+        Hash root = null;
+        if (block.getVersion() == Block.HEADER_V3) {
+            root = MerkleTree.root(block.getTransactions());
+        } else if (block.getVersion() == Block.HEADER_V4) {
+            root = MerkleTree.root(block.getTransfers());
+        }
+        return new BlockHeader(block.getNum(), block.getVersion(), block.getDifficulty(),
+            block.getNonce(), block.getTransactionCount(), block.getRetargetInterval(),
+            root == null ? block.getAmount() : 0, root, block.getHash());
+    }
+
+    /**
+     * Writes the header at the buffer's position, advancing it.
+     *
+     * @param buffer the buffer to write to
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(num).putShort((short) version).putShort((short) difficulty).putLong(nonce)
+            .putInt(count).putInt(retargetInterval);
+        if (merkleRoot == null) {
+            buffer.putInt(amount).put(new byte[Hash.LENGTH - Integer.BYTES]);
+        } else {
+            merkleRoot.writeTo(buffer);
+        }
+        hash.writeTo(buffer);
+    }
+
+    /**
+     * Reads a header at the buffer's position, advancing it.
+     *
+     * @param buffer the buffer to read from
+     * @return the header
+     * @throws IllegalArgumentException if the header version is unknown
+     */
+    static BlockHeader read(ByteBuffer buffer) {
+        int num = buffer.getInt();
+        int version = buffer.getShort();
+        int difficulty = buffer.getShort();
+        long nonce = buffer.getLong();
+        int count = buffer.getInt();
+        int interval = buffer.getInt();
+        Block.checkVersion(version);
+        int amount = 0;
+        Hash root = null;
+        if (version == Block.HEADER_V1 || version == Block.HEADER_V2) {
+            amount = buffer.getInt(buffer.position());
+        } else {
+            root = Hash.read(buffer, buffer.position());
+        }
+        buffer.position(buffer.position() + Hash.LENGTH);
+        Hash hash = Hash.read(buffer, buffer.position());
+        buffer.position(buffer.position() + Hash.LENGTH);
+        return new BlockHeader(num, version, difficulty, nonce, count, interval, amount, root,
+            hash);
+    }
+
+    /**
+     * Checks the header's proof of work and its link to the block before
+     * it, as {@link BlockChain#isValidLink} does for a whole block: the
+     * hash must meet the difficulty and be the hash of the header's fields,
+     * and the difficulty must follow the chain's retarget rule at the
+     * height given by the block number.
+     *
+     * @param prevHash         the hash of the previous block, or null for the genesis block
+     * @param prevDifficulty   the difficulty of the previous block
+     * @param retargetInterval the retarget interval of the chain's genesis block
+     * @return true if the header is valid; false otherwise
+     */
+    boolean isValidLink(Hash prevHash, int prevDifficulty, int retargetInterval) {
+        if (difficulty < 0 || difficulty > Hash.MAX_DIFFICULTY
+                || !hash.meetsDifficulty(difficulty)) {
+            return false;
+        }
+        if (prevHash != null && this.retargetInterval != 0) {
+            return false;
+        }
+        Hash computed = merkleRoot == null
+            ? Block.computeHash(version, num, difficulty, amount, nonce, prevHash,
+                this.retargetInterval)
+            : Block.computeBatchHash(num, difficulty, merkleRoot, nonce, prevHash,
+                this.retargetInterval);
+        if (!computed.equals(hash)) {
+            return false;
+        }
+        return prevHash == null
+            || BlockChain.isValidRetarget(num, prevDifficulty, difficulty, retargetInterval);
+    }
+
+    /**
+     * Returns the number of bytes the body of a block takes on the wire.
+     *
+     * @param version the block's header layout
+     * @param count   the number of transactions or transfers in the block
+     * @return the size of the body
+     */
+    static long bodySize(int version, int count) {
+        if (version == Block.HEADER_V3) {
+            return Integer.BYTES + (long) count * Integer.BYTES;
+        } else if (version == Block.HEADER_V4) {
+            return Integer.BYTES + (long) count * (2 * Integer.BYTES + Long.BYTES);
+        }
+        return Integer.BYTES;
+    }
+
+    /**
+     * Writes the contents of a block that its header only commits to: the
+     * number of entries (4), then each transaction amount (4) of a
+     * {@link Block#HEADER_V3} block or each transfer's sender (4), receiver
+     * (4) and amount (8) of a {@link Block#HEADER_V4} block. Other blocks
+     * have no entries; their header holds their amount.
+     *
+     * @param buffer the buffer to write to
+     * @param block  the block
+     */
+    static void writeBody(ByteBuffer buffer, Block block) {
+        if (block.getVersion() == Block.HEADER_V3) {
+            int[] transactions = block.getTransactions();
+            buffer.putInt(transactions.length);
+            for (int t : transactions) {
+                buffer.putInt(t);
+            }
+        } else if (block.getVersion() == Block.HEADER_V4) {
+            Transfer[] transfers = block.getTransfers();
+            buffer.putInt(transfers.length);
+            for (Transfer t : transfers) {
+                buffer.putInt(t.getFrom()).putInt(t.getTo()).putLong(t.getAmount());
+            }
+        } else {
+            buffer.putInt(0);
+        }
+    }
+
+    /**
+     * Reads the body written by {@link #writeBody} for this header's block
+     * and builds the block.
+     *
+     * @param buffer   the buffer to read from
+     * @param prevHash the hash of the previous block, or null for the genesis block
+     * @return the block
+     * @throws IllegalArgumentException if the body is malformed or does not
+     *         hash to this header's hash
+     * @throws java.nio.BufferUnderflowException if the body is cut short
+     */
+    Block readBody(ByteBuffer buffer, Hash prevHash) {
+        int entries = buffer.getInt();
+        if (entries < 0 || (merkleRoot == null && entries != 0)
+                || bodySize(version, entries) - Integer.BYTES > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad body for block " + num + ".");
+        }
+        Block block;
+        if (version == Block.HEADER_V3) {
+            int[] transactions = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                transactions[i] = buffer.getInt();
+            }
+            block = new Block(num, transactions, prevHash, nonce, difficulty, retargetInterval);
+        } else if (version == Block.HEADER_V4) {
+            Transfer[] transfers = new Transfer[entries];
+            for (int i = 0; i < entries; i++) {
+                transfers[i] = new Transfer(buffer.getInt(), buffer.getInt(), buffer.getLong());
+            }
+            block = new Block(num, transfers, prevHash, nonce, difficulty, retargetInterval);
+        } else {
+            block = new Block(num, amount, prevHash, nonce, version, difficulty,
+                retargetInterval);
+        }
+        if (!block.getHash().equals(hash)) {
+            throw new IllegalArgumentException("Block " + num + " does not match its header.");
+        }
+        return block;
+    }
+
+    /**
+     * Returns the block number.
+     *
+     * @return the block number
+     */
+    int getNum() {
+        return num;
+    }
+
+    /**
+     * Returns the header layout.
+     *
+     * @return the header version
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the difficulty.
+     *
+     * @return the number of leading zero bits
+     */
+    int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Returns the work the block's difficulty stands for, as
+     * {@link Block#getWork()} does.
+     *
+     * @return 2^difficulty
+     */
+    BigInteger getWork() {
+        return BigInteger.ONE.shiftLeft(difficulty);
+    }
+
+    /**
+     * Returns the retarget interval the block sets.
+     *
+     * @return the retarget interval, for a genesis block; otherwise 0
+     */
+    int getRetargetInterval() {
+        return retargetInterval;
+    }
+
+    /**
+     * Returns the number of transactions or transfers the block claims to hold.
+     *
+     * @return the count
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the hash the block claims.
+     *
+     * @return the hash
+     */
+    Hash getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,107 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Mines and appends a stream of transfers, mining each block while the one
+ * before it is still being appended. A block only needs its predecessor's
+ * hash, which is known as soon as the predecessor is mined, so the miner
+ * never waits for an append (and whatever the chain's store or log does on
+ * it) to finish.
+ *
+ * <p>Appends run in order on a thread of their own. While blocks are in
+ * flight the chain belongs to that thread, so call {@link #drain()} before
+ * touching the chain in any other way.
+ */
+final class BlockPipeline implements Closeable {
+    /** The chain blocks are appended to. */
+    private final BlockChain chain;
+    /** The thread appends run on, one at a time. */
+    private final ExecutorService appender;
+    /** Completes once every block mined so far is appended. */
+    private CompletableFuture<Void> appended = CompletableFuture.completedFuture(null);
+    /** Whether the fields below follow the chain; false once drained. */
+    private boolean primed;
+    /** The hash of the last block mined or on the chain. */
+    private Hash tipHash;
+    /** The number of the next block. */
+    private int nextNum;
+    /** The difficulty blocks are mined at. */
+    private int difficulty;
+
+    /**
+     * Constructs a pipeline appending to the given chain.
+     *
+     * @param chain the chain to extend
+     */
+    BlockPipeline(BlockChain chain) {
+        this.chain = chain;
+        this.appender = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "block-appender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Mines a block with the given amount on the last block mined, and
+     * queues it to be appended.
+     *
+     * @param amount the transaction amount for the new block
+     * @return the newly mined block, which may not be appended yet
+     */
+    Block transfer(int amount) {
+        if (!primed) {
+            tipHash = chain.getHash();
+            nextNum = chain.getSize();
+            difficulty = chain.getNextDifficulty();
+            primed = true;
+        }
+        Miner miner = chain.getMiner();
+        long start = System.nanoTime();
+        Block newBlock = miner.mine(chain.getHeaderVersion(), difficulty, nextNum, amount,
+            tipHash);
+        chain.getMetrics().recordMining(System.nanoTime() - start, newBlock.getNonce() + 1,
+            miner.getWorkers());
+        appended = appended.thenRunAsync(() -> chain.append(newBlock), appender);
+        tipHash = newBlock.getHash();
+        nextNum++;
+        return newBlock;
+    }
+
+    /**
+     * Waits until every block mined so far is appended, handing the chain
+     * back to the caller.
+     *
+     * @throws IllegalArgumentException if a block could not be appended;
+     *         blocks mined after it are dropped
+     */
+    void drain() {
+        primed = false;
+        try {
+            appended.join();
+        } catch (CompletionException e) {
+            appended = CompletableFuture.completedFuture(null);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the blocks in flight and stops the append thread.
+     */
+    @Override
+    public void close() {
+        try {
+            drain();
+        } finally {
+            appender.shutdown();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed-width binary record a block is stored as on disk:
+ * num (4 bytes), amount (4), nonce (8), header version (2), difficulty (2),
+ * the retarget interval a genesis block sets (4), the end of the block's
+ * body (8) and the block's 32-byte hash, all big-endian. The previous hash
+ * is not stored; it is the hash in the record before.
+ *
+ * <p>A block whose amount does not stand for all it holds, a batch of
+ * several transactions or a block of transfers, also has a body, laid out as
+ * {@link BlockHeader#writeBody} lays it out on the wire. Whoever holds the
+ * records keeps the bodies one after another in an area of their own, and
+ * each record holds where its block's body ends there: the body runs from
+ * the end in the record before to the end in its own, so a block without
+ * one repeats the end before it.
+ */
+final class BlockRecords {
+    /** The offset of the block number within a record. */
+    static final int NUM = 0;
+    /** The offset of the amount within a record. */
+    static final int AMOUNT = NUM + Integer.BYTES;
+    /** The offset of the nonce within a record. */
+    static final int NONCE = AMOUNT + Integer.BYTES;
+    /** The offset of the header version within a record. */
+    static final int VERSION = NONCE + Long.BYTES;
+    /** The offset of the difficulty within a record. */
+    static final int DIFFICULTY = VERSION + Short.BYTES;
+    /** The offset of the retarget interval within a record. */
+    static final int RETARGET_INTERVAL = DIFFICULTY + Short.BYTES;
+    /** The offset of the end of the block's body within a record. */
+    static final int BODY_END = RETARGET_INTERVAL + Integer.BYTES;
+    /** The offset of the hash within a record. */
+    static final int HASH = BODY_END + Long.BYTES;
+    /** The size in bytes of a record. */
+    static final int SIZE = HASH + Hash.LENGTH;
+
+    /**
+     * Not instantiable.
+     */
+    private BlockRecords() {
+    }
+
+    /**
+     * Writes a block's record at the buffer's position, advancing it.
+     *
+     * @param buffer  the buffer to write to
+     * @param block   the block to write
+     * @param bodyEnd where the block's body ends in the holder's body area
+     */
+    static void write(ByteBuffer buffer, Block block, long bodyEnd) {
+        buffer.putInt(block.getNum());
+        buffer.putInt(block.getAmount());
+        buffer.putLong(block.getNonce());
+        buffer.putShort((short) block.getVersion());
+        buffer.putShort((short) block.getDifficulty());
+        buffer.putInt(block.getRetargetInterval());
+        buffer.putLong(bodyEnd);
+        block.getHash().writeTo(buffer);
+    }
+
+    /**
+     * Returns the size of a block's body.
+     *
+     * @param block the block
+     * @return the number of bytes {@link #writeBody} writes, or 0 if the
+     *         block's amount is all it holds
+     */
+    static int bodySize(Block block) {
+        if (block.getTransactionCount() == 1
+                && (block.getVersion() != Block.HEADER_V4 || isAmountTransfer(block))) {
+            return 0;
+        }
+        return Math.toIntExact(
+            BlockHeader.bodySize(block.getVersion(), block.getTransactionCount()));
+    }
+
+    /**
+     * Writes a block's body at the buffer's position, advancing it. A block
+     * with no body writes nothing.
+     *
+     * @param buffer the buffer to write to
+     * @param block  the block
+     */
+    static void writeBody(ByteBuffer buffer, Block block) {
+        if (bodySize(block) > 0) {
+            BlockHeader.writeBody(buffer, block);
+        }
+    }
+
+    /**
+     * Checks whether a block's one transfer is the one its amount stands
+     * for, so that the amount is enough to hash the block again.
+     *
+     * @param block the block, holding one transfer
+     * @return true if the transfer is between Bob and Anna and matches the amount
+     */
+    private static boolean isAmountTransfer(Block block) {
+        Transfer t = block.getTransfers()[0];
+        Transfer expected = Transfer.ofAmount(block.getAmount());
+        return t.getFrom() == expected.getFrom() && t.getTo() == expected.getTo()
+            && t.getAmount() == expected.getAmount();
+    }
+
+    /**
+     * Reads the hash of the record at the given offset.
+     *
+     * @param buffer the buffer holding the record
+     * @param offset the offset of the record
+     * @return the record's hash
+     */
+    static Hash hashAt(ByteBuffer buffer, int offset) {
+        return Hash.read(buffer, offset + HASH);
+    }
+
+    /**
+     * Computes the hash code of the hash in the record at the given offset,
+     * matching {@link Hash#hashCode()}, without building a hash object.
+     *
+     * @param buffer the buffer holding the record
+     * @param offset the offset of the record
+     * @return the hash code of the record's hash
+     */
+    static int hashCodeAt(ByteBuffer buffer, int offset) {
+        return Hash.hashCodeAt(buffer, offset + HASH);
+    }
+
+    /**
+     * Reads where the body of the block in the record at the given offset ends.
+     *
+     * @param buffer the buffer holding the record
+     * @param offset the offset of the record
+     * @return the end of the block's body in the holder's body area
+     */
+    static long bodyEndAt(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + BODY_END);
+    }
+
+    /**
+     * Reads the block in the record at the given offset. The hash is taken
+     * from the record as stored, not recomputed.
+     *
+     * @param buffer   the buffer holding the record
+     * @param offset   the offset of the record
+     * @param prevHash the hash of the previous block, or null for the genesis block
+     * @param body     the block's body at its position, or null if it has none
+     * @return the block the record describes
+     * @throws IllegalArgumentException if the body is malformed
+     * @throws java.nio.BufferUnderflowException if the body is cut short
+     */
+    static Block read(ByteBuffer buffer, int offset, Hash prevHash, ByteBuffer body) {
+        int num = buffer.getInt(offset + NUM);
+        long nonce = buffer.getLong(offset + NONCE);
+        int version = buffer.getShort(offset + VERSION);
+        int difficulty = buffer.getShort(offset + DIFFICULTY);
+        int interval = buffer.getInt(offset + RETARGET_INTERVAL);
+        Hash hash = hashAt(buffer, offset);
+        if (body == null) {
+            return new Block(num, buffer.getInt(offset + AMOUNT), prevHash, nonce, version,
+                difficulty, interval, hash);
+        }
+        int count = body.getInt();
+        if ((version != Block.HEADER_V3 && version != Block.HEADER_V4) || count < 1
+                || BlockHeader.bodySize(version, count) - Integer.BYTES > body.remaining()) {
+            throw new IllegalArgumentException("Bad body for block " + num + ".");
+        }
+        if (version == Block.HEADER_V4) {
+            Transfer[] transfers = new Transfer[count];
+            for (int i = 0; i < count; i++) {
+                transfers[i] = new Transfer(body.getInt(), body.getInt(), body.getLong());
+            }
+            return new Block(num, transfers, prevHash, nonce, difficulty, interval, hash);
+        }
+        int[] transactions = new int[count];
+        for (int i = 0; i < count; i++) {
+            transactions[i] = body.getInt();
+        }
+        return new Block(num, transactions, prevHash, nonce, difficulty, interval, hash);
+    }
+}
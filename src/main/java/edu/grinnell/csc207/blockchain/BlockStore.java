@@ -0,0 +1,101 @@
+package edu.grinnell.csc207.blockchain;
+
+/**
+ * The storage behind a {@link BlockChain}: an indexed sequence of blocks
+ * that only grows or shrinks at its end. The store does no validation of
+ * its own; the chain checks blocks before handing them over.
+ */
+public interface BlockStore {
+
+    /**
+     * Returns the number of blocks in the store.
+     *
+     * @return the number of blocks
+     */
+    int size();
+
+    /**
+     * Returns the block at the given height.
+     *
+     * @param height the height of the block, from 0 (genesis) to size() - 1
+     * @return the block at that height
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    Block get(int height);
+
+    /**
+     * Returns the transaction amount of the block at the given height.
+     * Stores that can read it without building the whole block override this.
+     *
+     * @param height the height of the block, from 0 (genesis) to size() - 1
+     * @return the amount of the block at that height
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    default int amountAt(int height) {
+        return get(height).getAmount();
+    }
+
+    /**
+     * Returns the height of the block with the given hash.
+     *
+     * @param hash the hash to look for
+     * @return the height of the block with that hash, or -1 if there is none
+     */
+    int indexOf(Hash hash);
+
+    /**
+     * Adds a block to the end of the store.
+     *
+     * @param block the block to add
+     */
+    void append(Block block);
+
+    /**
+     * Removes the last block from the store.
+     *
+     * @throws java.util.NoSuchElementException if the store is empty
+     */
+    void removeLast();
+
+    /**
+     * Returns the height of the oldest block the store still holds. Blocks
+     * below it were dropped by {@link #pruneTo(int)}; their heights stay
+     * as they were.
+     *
+     * @return the height of the oldest block held, or 0 if nothing was pruned
+     */
+    default int firstHeight() {
+        return 0;
+    }
+
+    /**
+     * Drops every block below the given height, to bound the memory the
+     * store holds. Stores that cannot drop blocks leave this unsupported.
+     * Pruning to the current first height changes nothing.
+     *
+     * @param height the height of the oldest block to keep
+     * @throws IllegalArgumentException if height is below the first height or
+     *         past the last block
+     * @throws UnsupportedOperationException if the store cannot drop blocks
+     */
+    default void pruneTo(int height) {
+        throw new UnsupportedOperationException("This store cannot drop blocks.");
+    }
+
+    /**
+     * Removes blocks from the end of the store until it holds the given
+     * number. Stores that can drop many blocks at once override this.
+     *
+     * @param size the number of blocks to keep
+     * @throws IllegalArgumentException if size is below the first height or
+     *         more than the store holds
+     */
+    default void truncate(int size) {
+        if (size < firstHeight() || size > size()) {
+            throw new IllegalArgumentException("Cannot truncate the store to " + size + " blocks.");
+        }
+        while (size() > size) {
+            removeLast();
+        }
+    }
+}
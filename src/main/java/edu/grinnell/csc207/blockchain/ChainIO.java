@@ -0,0 +1,226 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming export and import of whole chains.
+ *
+ * <p>Every method works through a fixed-size buffer, so memory use does not
+ * depend on the length of the chain. The binary form starts with the same
+ * header as a {@link MappedBlockStore} file, followed by the fixed-width
+ * {@link BlockRecords} of the blocks, each followed directly by its block's
+ * body if it has one. A record's body end counts the bytes of the bodies
+ * in the stream so far.
+ */
+public final class ChainIO {
+    /** The number of records moved per buffer. */
+    private static final int BATCH = 1024;
+
+    /**
+     * Not instantiable.
+     */
+    private ChainIO() {
+    }
+
+    /**
+     * Writes every block of the chain to the stream as text, one block per
+     * line as {@link Block#toString()} formats it. The stream is flushed but
+     * not closed.
+     *
+     * @param chain the chain to export
+     * @param out   the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public static void exportText(BlockChain chain, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        chain.writeTo(writer, 0, chain.getSize());
+        writer.flush();
+    }
+
+    /**
+     * Writes every block of the chain to the channel in binary form. The
+     * channel is not closed.
+     *
+     * @param chain the chain to export
+     * @param out   the channel to write to
+     * @throws IOException if the channel cannot be written
+     */
+    public static void exportBinary(BlockChain chain, WritableByteChannel out)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH * BlockRecords.SIZE);
+        buffer.putInt(MappedBlockStore.MAGIC).putInt(MappedBlockStore.FORMAT);
+        long bodyEnd = 0;
+        for (int height = 0; height < chain.getSize(); height++) {
+            if (buffer.remaining() < BlockRecords.SIZE) {
+                drain(buffer, out);
+            }
+            Block block = chain.getBlock(height);
+            int bodySize = BlockRecords.bodySize(block);
+            bodyEnd += bodySize;
+            BlockRecords.write(buffer, block, bodyEnd);
+            if (bodySize > 0) {
+                ByteBuffer body = ByteBuffer.allocate(bodySize);
+                BlockRecords.writeBody(body, block);
+                body.flip();
+                while (body.hasRemaining()) {
+                    if (!buffer.hasRemaining()) {
+                        drain(buffer, out);
+                    }
+                    int length = Math.min(body.remaining(), buffer.remaining());
+                    buffer.put(body.slice(body.position(), length));
+                    body.position(body.position() + length);
+                }
+            }
+        }
+        drain(buffer, out);
+    }
+
+    /**
+     * Writes out everything in a buffer and clears it.
+     *
+     * @param buffer the buffer, in write mode
+     * @param out    the channel to write to
+     * @throws IOException if the channel cannot be written
+     */
+    private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads a chain in binary form into the given empty store, checking each
+     * block as it arrives: its hash must be the hash of its contents, and it
+     * must keep the chain valid as {@link BlockChain#isValidBlockChain()}
+     * defines. The channel is not closed.
+     *
+     * @param in    the channel to read from
+     * @param store the empty store to put the chain in
+     * @param miner the strategy the returned chain uses to mine new blocks
+     * @return the imported chain, which mines with its genesis block's header version
+     * @throws IOException if the channel cannot be read, is not a chain, or
+     *         holds an invalid block
+     */
+    public static BlockChain importBinary(ReadableByteChannel in, BlockStore store, Miner miner)
+        throws IOException {
+        // Start in read mode with nothing read yet
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH * BlockRecords.SIZE).flip();
+        if (!fill(buffer, in, MappedBlockStore.HEADER_SIZE)
+            || buffer.getInt() != MappedBlockStore.MAGIC
+            || buffer.getInt() != MappedBlockStore.FORMAT) {
+            throw new IOException("Not a block chain stream.");
+        }
+        if (!fill(buffer, in, BlockRecords.SIZE)) {
+            throw new IOException("The stream holds no genesis block.");
+        }
+        if (store.size() != 0) {
+            throw new IllegalArgumentException("The store already holds a chain.");
+        }
+        long[] bodyEnd = {0};
+        Block genesis = readVerified(buffer, in, bodyEnd, null, 0);
+        store.append(genesis);
+        BlockChain chain = new BlockChain(store, miner, genesis.getVersion());
+        while (fill(buffer, in, BlockRecords.SIZE)) {
+            int height = chain.getSize();
+            chain.append(readVerified(buffer, in, bodyEnd, chain.getHash(), height));
+            if (!chain.isValidBlockChain()) {
+                throw new IOException("Invalid block at height " + height + ".");
+            }
+        }
+        if (!chain.isValidBlockChain()) {
+            throw new IOException("Invalid genesis block.");
+        }
+        return chain;
+    }
+
+    /**
+     * Makes sure the buffer holds at least the given number of unread bytes,
+     * reading more from the channel if needed.
+     *
+     * @param buffer the buffer, in read mode
+     * @param in     the channel to read from
+     * @param needed the number of bytes wanted
+     * @return true if the bytes are available; false at a clean end of stream
+     * @throws IOException if the channel cannot be read or ends mid-record
+     */
+    private static boolean fill(ByteBuffer buffer, ReadableByteChannel in, int needed)
+        throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (in.read(buffer) < 0) {
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("The stream ends in the middle of a record.");
+                }
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Reads the next record and its body, if it has one, and rebuilds its
+     * block from its contents, checking that the recorded hash matches.
+     *
+     * @param buffer   the buffer holding the record at its position
+     * @param in       the channel to read the rest of the body from
+     * @param bodyEnd  the end of the bodies read so far, which is moved past this one
+     * @param prevHash the hash of the previous block, or null for the genesis block
+     * @param height   the height the block is expected at
+     * @return the block
+     * @throws IOException if the channel cannot be read, ends in the middle
+     *         of the body, or the record is not of a block with that hash
+     */
+    private static Block readVerified(ByteBuffer buffer, ReadableByteChannel in, long[] bodyEnd,
+        Hash prevHash, int height) throws IOException {
+        int offset = buffer.position();
+        long bodySize = BlockRecords.bodyEndAt(buffer, offset) - bodyEnd[0];
+        if (bodySize < 0 || bodySize > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt block at height " + height + ".");
+        }
+        ByteBuffer record = buffer.slice(offset, BlockRecords.SIZE);
+        buffer.position(offset + BlockRecords.SIZE);
+        ByteBuffer body = null;
+        if (bodySize > 0) {
+            // Reading the body refills the buffer, so keep a copy of the record
+            record = ByteBuffer.allocate(BlockRecords.SIZE).put(record).flip();
+            body = ByteBuffer.allocate((int) bodySize);
+            while (body.hasRemaining()) {
+                if (!fill(buffer, in, 1)) {
+                    throw new EOFException("The stream ends in the middle of a body.");
+                }
+                int length = Math.min(body.remaining(), buffer.remaining());
+                body.put(buffer.slice(buffer.position(), length));
+                buffer.position(buffer.position() + length);
+            }
+            body.flip();
+        }
+        bodyEnd[0] += bodySize;
+        Block stored;
+        try {
+            stored = BlockRecords.read(record, 0, prevHash, body);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt block at height " + height + ".", e);
+        }
+        if (!stored.hasConsistentHash() || (body != null && body.hasRemaining())) {
+            throw new IOException("Corrupt block at height " + height + ".");
+        }
+        return stored;
+    }
+}
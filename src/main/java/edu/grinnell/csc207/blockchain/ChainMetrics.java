@@ -0,0 +1,209 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the mining and chain operations of a
+ * {@link BlockChain}. Everything is recorded once per operation, never per
+ * nonce, so the search loop runs exactly as it would without metrics.
+ *
+ * <p>The counters are safe to update and read from any thread. Read them one
+ * by one through the getters, or all at once through
+ * {@link BlockChain#exportMetrics()}, which is the hook for scrapers.
+ */
+public final class ChainMetrics {
+    /** The number of blocks mined. */
+    private final LongAdder blocksMined = new LongAdder();
+    /** The number of nonces tried while mining them. */
+    private final LongAdder noncesTried = new LongAdder();
+    /** The time spent mining, summed over every worker. */
+    private final LongAdder workerNanos = new LongAdder();
+    /** The number of blocks appended. */
+    private final LongAdder appends = new LongAdder();
+    /** The number of blocks removed. */
+    private final LongAdder removals = new LongAdder();
+    /** The time taken to mine each block. */
+    private final LatencyHistogram mineLatency = new LatencyHistogram();
+    /** The time taken to append each block, not counting the log. */
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    /** The time taken to replace each suffix of the chain. */
+    private final LatencyHistogram reorgLatency = new LatencyHistogram();
+    /** The time taken by each validation of the chain. */
+    private final LatencyHistogram validationLatency = new LatencyHistogram();
+
+    /**
+     * Records a mined block.
+     *
+     * @param nanos   how long the search took
+     * @param nonces  the number of nonces tried
+     * @param workers the number of workers that searched
+     */
+    void recordMining(long nanos, long nonces, int workers) {
+        blocksMined.increment();
+        noncesTried.add(nonces);
+        workerNanos.add(nanos * workers);
+        mineLatency.record(nanos);
+    }
+
+    /**
+     * Records an appended block.
+     *
+     * @param nanos how long the append took
+     */
+    void recordAppend(long nanos) {
+        appends.increment();
+        appendLatency.record(nanos);
+    }
+
+    /**
+     * Records a removed block.
+     */
+    void recordRemoval() {
+        removals.increment();
+    }
+
+    /**
+     * Records a suffix of the chain replaced by a competing branch.
+     *
+     * @param nanos   how long the replacement took
+     * @param removed the number of blocks removed
+     * @param added   the number of blocks added
+     */
+    void recordReorg(long nanos, int removed, int added) {
+        removals.add(removed);
+        appends.add(added);
+        reorgLatency.record(nanos);
+    }
+
+    /**
+     * Records a validation of the chain.
+     *
+     * @param nanos how long the validation took
+     */
+    void recordValidation(long nanos) {
+        validationLatency.record(nanos);
+    }
+
+    /**
+     * Returns the number of blocks mined.
+     *
+     * @return the count
+     */
+    public long getBlocksMined() {
+        return blocksMined.sum();
+    }
+
+    /**
+     * Returns the number of nonces tried while mining. Searches run from
+     * nonce 0 up, so each one counts the winning nonce plus one; workers of
+     * a {@link ParallelMiner} may have tried a few more past it.
+     *
+     * @return the count
+     */
+    public long getNoncesTried() {
+        return noncesTried.sum();
+    }
+
+    /**
+     * Returns the number of blocks appended.
+     *
+     * @return the count
+     */
+    public long getAppends() {
+        return appends.sum();
+    }
+
+    /**
+     * Returns the number of blocks removed.
+     *
+     * @return the count
+     */
+    public long getRemovals() {
+        return removals.sum();
+    }
+
+    /**
+     * Returns the average number of hashes each worker computed per second
+     * while mining.
+     *
+     * @return the hash rate per worker, or 0 if nothing was mined
+     */
+    public double getHashRatePerWorker() {
+        long nanos = workerNanos.sum();
+        return nanos == 0 ? 0 : noncesTried.sum() * 1e9 / nanos;
+    }
+
+    /**
+     * Returns the distribution of the time taken to mine a block.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getMineLatency() {
+        return mineLatency;
+    }
+
+    /**
+     * Returns the distribution of the time taken to append a block.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getAppendLatency() {
+        return appendLatency;
+    }
+
+    /**
+     * Returns the distribution of the time taken to replace a suffix of
+     * the chain, including rollbacks.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getReorgLatency() {
+        return reorgLatency;
+    }
+
+    /**
+     * Returns the distribution of the time taken to validate the chain.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getValidationLatency() {
+        return validationLatency;
+    }
+
+    /**
+     * Returns every metric by name, in a stable order.
+     *
+     * @return the metrics; durations are in nanoseconds
+     */
+    Map<String, Number> export() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("mine.blocks", getBlocksMined());
+        values.put("mine.nonces", getNoncesTried());
+        values.put("mine.hashes_per_second_per_worker", getHashRatePerWorker());
+        export(values, "mine.latency", mineLatency);
+        values.put("append.blocks", getAppends());
+        values.put("remove.blocks", getRemovals());
+        export(values, "append.latency", appendLatency);
+        export(values, "reorg.latency", reorgLatency);
+        export(values, "validate.latency", validationLatency);
+        return values;
+    }
+
+    /**
+     * Adds the summary of a histogram to the exported metrics.
+     *
+     * @param values    the metrics to add to
+     * @param name      the name of the histogram
+     * @param histogram the histogram
+     */
+    private static void export(Map<String, Number> values, String name,
+            LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean_ns", histogram.getMean());
+        values.put(name + ".p50_ns", histogram.getPercentile(0.5));
+        values.put(name + ".p99_ns", histogram.getPercentile(0.99));
+        values.put(name + ".max_ns", histogram.getMax());
+    }
+}
@@ -0,0 +1,553 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Brings a chain up to date with the chain with the most work among its
+ * peers, each served by a {@link PeerServer}.
+ *
+ * <p>Every peer is asked for its tip and total work (see
+ * {@link BlockChain#getWork()}), and of the chains with more work than
+ * this one, the one with the most is tried first. A chain of fewer blocks
+ * mined at a higher difficulty can win over a longer one. Sync then goes
+ * headers first: the peer's
+ * {@link BlockHeader}s from the last block both chains share are
+ * downloaded, and each batch is checked for proof of work and linkage on
+ * the fork-join pool while the next ones are still arriving. Only once
+ * every header checks out are the block bodies downloaded, and they are
+ * added to the chain batch by batch as they arrive, each batch checked in
+ * full by {@link BlockChain#replaceSuffix}. Requests are pipelined, with
+ * up to {@link #WINDOW} in flight at once, so sync runs at the speed of
+ * hashing rather than of round trips. The work a peer claims is only a
+ * hint: once its headers check out, the work they add past the fork must
+ * exceed the work of this chain's blocks past it, or the peer is passed over.
+ *
+ * <p>When the peer's chain forks from this one, the whole branch is
+ * downloaded before the old blocks are replaced, so a branch that turns
+ * out invalid leaves the chain as it was. The chain is changed while
+ * holding its lock, like a {@link PeerServer} reads it.
+ */
+public final class ChainSync {
+    /** The most requests in flight to one peer. */
+    static final int WINDOW = 8;
+    /** The number of headers asked for per request. */
+    private static final int HEADER_BATCH = 2000;
+    /** The most bodies asked for per request. */
+    private static final int BODY_BATCH = 512;
+    /** The body bytes asked for per request, past which a batch is cut off. */
+    private static final long BODY_BYTES = 1 << 20;
+    /** How long to wait for a peer to answer, in milliseconds. */
+    private static final long TIMEOUT_MILLIS = 30_000;
+    /** How many times a sync from one peer starts over if this chain changes under it. */
+    private static final int SYNC_ATTEMPTS = 3;
+
+    /** The chain brought up to date. */
+    private final BlockChain chain;
+    /** The pool headers are checked on. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructs a sync for the given chain, checking headers on the
+     * common pool.
+     *
+     * @param chain the chain to bring up to date
+     */
+    public ChainSync(BlockChain chain) {
+        this(chain, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a sync for the given chain, checking headers on the given pool.
+     *
+     * @param chain the chain to bring up to date
+     * @param pool  the pool to check headers on
+     */
+    public ChainSync(BlockChain chain, ForkJoinPool pool) {
+        this.chain = chain;
+        this.pool = pool;
+    }
+
+    /**
+     * Switches the chain to the valid chain with the most work among the
+     * given peers, if one has more work than it. Peers that cannot be
+     * reached or send an invalid chain are passed over for the next.
+     *
+     * @param peers the addresses of the peers
+     * @return true if the chain was extended or replaced; false if no peer
+     *         has a chain with more work
+     * @throws IOException if some peer claims more work but none could be
+     *         synced from; the failures are attached as suppressed exceptions
+     */
+    public boolean sync(List<InetSocketAddress> peers) throws IOException {
+        PeerConnection[] connections = new PeerConnection[peers.size()];
+        int[] sizes = new int[peers.size()];
+        BigInteger[] works = new BigInteger[peers.size()];
+        IOException failure = null;
+        try {
+            for (int i = 0; i < connections.length; i++) {
+                try {
+                    connections[i] = PeerConnection.connect(peers.get(i), TIMEOUT_MILLIS);
+                    connections[i].send(PeerConnection.frame(PeerServer.TIP, 0));
+                } catch (IOException e) {
+                    failure = addFailure(failure, peers.get(i), e);
+                }
+            }
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    try {
+                        ByteBuffer tip = expect(connections[i], PeerServer.TIP);
+                        sizes[i] = tip.getInt();
+                        tip.position(tip.position() + Hash.LENGTH);
+                        works[i] = PeerServer.readWork(tip);
+                    } catch (IOException | BufferUnderflowException e) {
+                        failure = addFailure(failure, peers.get(i), e);
+                    }
+                }
+            }
+            // Try the chains with the most work first until one syncs
+            boolean[] tried = new boolean[connections.length];
+            for (int best = heaviest(connections, works, tried); best >= 0;
+                    best = heaviest(connections, works, tried)) {
+                tried[best] = true;
+                try {
+                    syncFrom(connections[best], sizes[best]);
+                    return true;
+                } catch (IOException e) {
+                    failure = addFailure(failure, peers.get(best), e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        } finally {
+            for (PeerConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a peer that could not be synced from.
+     *
+     * @param failure the failures so far, or null if there were none
+     * @param peer    the peer's address
+     * @param cause   what went wrong
+     * @return the failures, including this one
+     */
+    private static IOException addFailure(IOException failure, InetSocketAddress peer,
+            Exception cause) {
+        IOException result = failure == null
+            ? new IOException("Could not sync from any chain with more work.")
+            : failure;
+        result.addSuppressed(new IOException("Peer " + peer + ": " + cause.getMessage(), cause));
+        return result;
+    }
+
+    /**
+     * Finds the untried peer claiming the most work, more than this chain has.
+     *
+     * @param connections the connections to the peers, null where one failed
+     * @param works       the work each peer claims, null where it is unknown
+     * @param tried       which peers were already tried
+     * @return the index of the peer, or -1 if there is none
+     */
+    private int heaviest(PeerConnection[] connections, BigInteger[] works, boolean[] tried) {
+        BigInteger work;
+        synchronized (chain) {
+            work = chain.getWork();
+        }
+        int best = -1;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null && !tried[i] && works[i] != null
+                    && works[i].compareTo(work) > 0
+                    && (best < 0 || works[i].compareTo(works[best]) > 0)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Checks whether headers past the fork carry more work than this
+     * chain's blocks past it. The caller holds the chain's lock.
+     *
+     * @param fork    the height of the last shared block
+     * @param headers the peer's headers, from height fork + 1 on
+     * @return true if switching to the peer's chain gains work
+     */
+    private boolean outweighs(int fork, List<BlockHeader> headers) {
+        BigInteger theirs = BigInteger.ZERO;
+        for (BlockHeader header : headers) {
+            theirs = theirs.add(header.getWork());
+        }
+        BigInteger ours = BigInteger.ZERO;
+        for (int height = fork + 1; height < chain.getSize(); height++) {
+            ours = ours.add(chain.getBlock(height).getWork());
+        }
+        return theirs.compareTo(ours) > 0;
+    }
+
+    /**
+     * Syncs the chain from one peer. If blocks are added to or removed from
+     * this chain meanwhile, so that what the peer sent no longer fits it,
+     * the sync starts over from a new fork rather than blaming the peer.
+     *
+     * @param connection the connection to the peer
+     * @param peerSize   the size of the peer's chain
+     * @throws IOException if the peer fails, or sends an invalid chain or
+     *         one with no more work than this one, or this chain keeps
+     *         changing under the sync
+     */
+    private void syncFrom(PeerConnection connection, int peerSize) throws IOException {
+        try {
+            for (int attempt = 0; attempt < SYNC_ATTEMPTS; attempt++) {
+                int fork = findFork(connection, peerSize);
+                Block forkBlock;
+                synchronized (chain) {
+                    if (fork >= chain.getSize()) {
+                        continue;
+                    }
+                    forkBlock = chain.getBlock(fork);
+                }
+                List<BlockHeader> headers = fetchHeaders(connection, fork, forkBlock, peerSize);
+                synchronized (chain) {
+                    if (!outweighs(fork, headers)) {
+                        throw new IOException("The peer's chain has no more work than this one.");
+                    }
+                }
+                if (fetchBodies(connection, fork, forkBlock, headers)) {
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException
+                | BufferUnderflowException e) {
+            throw new IOException("The peer sent an invalid chain.", e);
+        }
+        throw new IOException("This chain kept changing while syncing from the peer.");
+    }
+
+    /**
+     * Checks that this chain ends with the given block, so blocks that
+     * follow it can be appended. The caller holds the chain's lock.
+     *
+     * @param height the height of the block
+     * @param hash   the hash of the block
+     * @return true if the block is this chain's last block
+     */
+    private boolean endsWith(int height, Hash hash) {
+        return height == chain.getSize() - 1 && chain.getHash().equals(hash);
+    }
+
+    /**
+     * Checks that this chain still holds the given block. The caller holds
+     * the chain's lock.
+     *
+     * @param height the height of the block
+     * @param hash   the hash of the block
+     * @return true if the chain holds the block at that height
+     */
+    private boolean holds(int height, Hash hash) {
+        return height >= chain.getFirstHeight() && height < chain.getSize()
+            && chain.getBlock(height).getHash().equals(hash);
+    }
+
+    /**
+     * Finds the last block this chain shares with the peer's. The search
+     * steps back from the tip in growing steps until the chains agree, then
+     * narrows down between the heights found, so it takes a number of
+     * round trips logarithmic in the length of the fork.
+     *
+     * @param connection the connection to the peer
+     * @param peerSize   the size of the peer's chain
+     * @return the height of the last shared block
+     * @throws IOException if the peer fails, or the chains share no block
+     *         this chain still holds
+     */
+    private int findFork(PeerConnection connection, int peerSize) throws IOException {
+        int first;
+        int top;
+        synchronized (chain) {
+            first = chain.getFirstHeight();
+            top = Math.min(chain.getSize(), peerSize) - 1;
+        }
+        int differ = top + 1;
+        int agree = top;
+        for (int step = 1; !isShared(connection, agree); step *= 2) {
+            if (agree == first) {
+                throw new IOException("The peer's chain shares no block with this one.");
+            }
+            differ = agree;
+            agree = Math.max(first, agree - step);
+        }
+        while (differ - agree > 1) {
+            int mid = (agree + differ) >>> 1;
+            if (isShared(connection, mid)) {
+                agree = mid;
+            } else {
+                differ = mid;
+            }
+        }
+        return agree;
+    }
+
+    /**
+     * Checks whether the peer holds the same block as this chain at a height.
+     *
+     * @param connection the connection to the peer
+     * @param height     the height
+     * @return true if the blocks have the same hash
+     * @throws IOException if the peer fails
+     */
+    private boolean isShared(PeerConnection connection, int height) throws IOException {
+        connection.send(request(PeerServer.HEADERS, height, 1));
+        ByteBuffer response = expect(connection, PeerServer.HEADERS);
+        if (response.getInt() != height || response.getInt() != 1) {
+            throw new IOException("The peer does not hold block " + height + ".");
+        }
+        Hash hash = BlockHeader.read(response).getHash();
+        synchronized (chain) {
+            return holds(height, hash);
+        }
+    }
+
+    /**
+     * Downloads the peer's headers after the fork, checking each batch on
+     * the pool while the next ones arrive. The peer's size is only a claim,
+     * so nothing is sized from it: each answer must hold exactly the
+     * headers asked for, and the list grows as they arrive.
+     *
+     * @param connection the connection to the peer
+     * @param fork       the height of the last shared block
+     * @param forkBlock  the last shared block
+     * @param peerSize   the size of the peer's chain
+     * @return the headers, from height fork + 1 on
+     * @throws IOException if the peer fails or a header is invalid
+     */
+    private List<BlockHeader> fetchHeaders(PeerConnection connection, int fork, Block forkBlock,
+            int peerSize) throws IOException {
+        int count = peerSize - fork - 1;
+        int perRequest = Math.min(HEADER_BATCH, PeerServer.MAX_HEADERS);
+        List<BlockHeader> headers = new ArrayList<>(Math.min(count, WINDOW * perRequest));
+        List<ForkJoinTask<Integer>> checks = new ArrayList<>();
+        Deque<Integer> inFlight = new ArrayDeque<>();
+        int requested = fork + 1;
+        while (headers.size() < count) {
+            while (inFlight.size() < WINDOW && requested < peerSize) {
+                int batch = Math.min(perRequest, peerSize - requested);
+                connection.send(request(PeerServer.HEADERS, requested, batch));
+                inFlight.add(batch);
+                requested += batch;
+            }
+            ByteBuffer response = expect(connection, PeerServer.HEADERS);
+            int expected = inFlight.poll();
+            int from = response.getInt();
+            int received = response.getInt();
+            if (from != fork + 1 + headers.size() || received != expected
+                    || response.remaining() != (long) received * BlockHeader.SIZE) {
+                throw new IOException("Unexpected headers from the peer.");
+            }
+            List<BlockHeader> batch = new ArrayList<>(received);
+            for (int i = 0; i < received; i++) {
+                batch.add(BlockHeader.read(response));
+            }
+            BlockHeader last = headers.isEmpty() ? null : headers.get(headers.size() - 1);
+            Hash prevHash = last == null ? forkBlock.getHash() : last.getHash();
+            int prevDifficulty = last == null ? forkBlock.getDifficulty() : last.getDifficulty();
+            checks.add(pool.submit(() -> firstInvalid(batch, from, prevHash, prevDifficulty,
+                chain.getRetargetInterval())));
+            headers.addAll(batch);
+        }
+        for (ForkJoinTask<Integer> check : checks) {
+            int invalid = check.join();
+            if (invalid >= 0) {
+                throw new IOException("The peer sent an invalid header at height " + invalid + ".");
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Checks a run of headers: each must have the right number, meet its
+     * difficulty, hash to its claimed hash and link to the header before it.
+     * Both chains share their genesis block, so they share its retarget rule.
+     *
+     * @param headers          the headers, in order
+     * @param from             the height of the first header
+     * @param prevHash         the hash of the block before the first header
+     * @param prevDifficulty   the difficulty of that block
+     * @param retargetInterval the retarget interval of the genesis block
+     * @return the height of the first invalid header, or -1 if all are valid
+     */
+    private static int firstInvalid(List<BlockHeader> headers, int from, Hash prevHash,
+            int prevDifficulty, int retargetInterval) {
+        Hash hash = prevHash;
+        int difficulty = prevDifficulty;
+        for (int i = 0; i < headers.size(); i++) {
+            BlockHeader header = headers.get(i);
+            if (header.getNum() != from + i
+                    || !header.isValidLink(hash, difficulty, retargetInterval)) {
+                return from + i;
+            }
+            hash = header.getHash();
+            difficulty = header.getDifficulty();
+        }
+        return -1;
+    }
+
+    /**
+     * Downloads the bodies of the checked headers and adds the blocks to
+     * the chain: batch by batch if the peer's chain extends this one, or
+     * all at once in place of the blocks after the fork. Before each change
+     * the chain is checked to still end with, or hold, the block the peer's
+     * blocks follow, so a block they are refused for is the peer's fault.
+     *
+     * @param connection the connection to the peer
+     * @param fork       the height of the last shared block
+     * @param forkBlock  the last shared block
+     * @param headers    the checked headers, from height fork + 1 on
+     * @return true if the blocks were added; false if this chain changed
+     *         meanwhile so that they no longer follow on from it
+     * @throws IOException if the peer fails, or this chain has gained as
+     *         much work as the branch meanwhile
+     * @throws IllegalArgumentException if a block is invalid
+     */
+    private boolean fetchBodies(PeerConnection connection, int fork, Block forkBlock,
+            List<BlockHeader> headers) throws IOException {
+        boolean extending;
+        synchronized (chain) {
+            extending = fork == chain.getSize() - 1;
+        }
+        List<Block> branch = new ArrayList<>();
+        Deque<Integer> inFlight = new ArrayDeque<>();
+        Hash prevHash = forkBlock.getHash();
+        int requested = 0;
+        int received = 0;
+        while (received < headers.size()) {
+            while (inFlight.size() < WINDOW && requested < headers.size()) {
+                int batch = bodyBatch(headers, requested);
+                connection.send(request(PeerServer.BODIES, fork + 1 + requested, batch));
+                inFlight.add(batch);
+                requested += batch;
+            }
+            ByteBuffer response = expect(connection, PeerServer.BODIES);
+            int expected = inFlight.poll();
+            if (response.getInt() != fork + 1 + received || response.getInt() != expected) {
+                throw new IOException("Unexpected bodies from the peer.");
+            }
+            Hash follows = prevHash;
+            List<Block> blocks = new ArrayList<>(expected);
+            for (int i = 0; i < expected; i++) {
+                Block block = headers.get(received + i).readBody(response, prevHash);
+                blocks.add(block);
+                prevHash = block.getHash();
+            }
+            if (response.hasRemaining()) {
+                throw new IOException("Unexpected bodies from the peer.");
+            }
+            if (extending) {
+                boolean moved;
+                synchronized (chain) {
+                    moved = !endsWith(fork + received, follows);
+                    if (!moved) {
+                        chain.replaceSuffix(chain.getSize(), blocks);
+                    }
+                }
+                if (moved) {
+                    // Take the answers still on their way, so the next try starts clean
+                    for (int left = inFlight.size(); left > 0; left--) {
+                        expect(connection, PeerServer.BODIES);
+                    }
+                    return false;
+                }
+            } else {
+                branch.addAll(blocks);
+            }
+            received += expected;
+        }
+        if (!extending) {
+            synchronized (chain) {
+                if (!holds(fork, forkBlock.getHash())) {
+                    return false;
+                }
+                // The chain may have grown while the bodies were downloaded
+                if (!outweighs(fork, headers)) {
+                    throw new IOException("The peer's chain has no more work than this one.");
+                }
+                chain.replaceSuffix(fork + 1, branch);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decides how many bodies to ask for at once, from the sizes the
+     * headers give.
+     *
+     * @param headers the headers
+     * @param from    the index of the first body to ask for
+     * @return the number of bodies, at least one
+     */
+    private static int bodyBatch(List<BlockHeader> headers, int from) {
+        int count = 1;
+        long bytes = bodySize(headers.get(from));
+        while (from + count < headers.size() && count < BODY_BATCH) {
+            bytes += bodySize(headers.get(from + count));
+            if (bytes > BODY_BYTES) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the size of a block's body on the wire, from its header.
+     *
+     * @param header the block's header
+     * @return the size in bytes
+     */
+    private static long bodySize(BlockHeader header) {
+        return BlockHeader.bodySize(header.getVersion(), header.getCount());
+    }
+
+    /**
+     * Builds a request for a run of headers or bodies.
+     *
+     * @param type  {@link PeerServer#HEADERS} or {@link PeerServer#BODIES}
+     * @param from  the first height
+     * @param count the number of blocks
+     * @return the request frame, in write mode
+     */
+    private static ByteBuffer request(byte type, int from, int count) {
+        return PeerConnection.frame(type, 2 * Integer.BYTES).putInt(from).putInt(count);
+    }
+
+    /**
+     * Waits for the next response, which must be of the given type.
+     *
+     * @param connection the connection to the peer
+     * @param type       the expected message type
+     * @return the response's payload
+     * @throws IOException if the peer fails or sends another type of message
+     */
+    private static ByteBuffer expect(PeerConnection connection, byte type) throws IOException {
+        ByteBuffer response = connection.receive();
+        if (response.get() != type) {
+            throw new IOException("Unexpected message from the peer.");
+        }
+        return response;
+    }
+}
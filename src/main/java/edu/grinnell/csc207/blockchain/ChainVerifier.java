@@ -0,0 +1,188 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies a whole chain in parallel and reports the first invalid height.
+ *
+ * <p>The chain is split into segments that are checked independently on a
+ * fork-join pool. Each segment recomputes every block's SHA-256 from its
+ * fields and nonce, checks it against the validity rule, and checks that
+ * each block's prevHash matches the block before it (reading across the
+ * segment boundary for the first block). The never-negative balance rule
+ * is checked as a parallel prefix sum: each segment also reports its total
+ * amount and its lowest running total (inside blocks of several
+ * transactions too), then a sequential pass over the
+ * segment totals finds the first segment that dips below zero, and only
+ * that segment is rescanned to find the exact height.
+ *
+ * <p>A pruned chain is verified from its {@link Checkpoint}: the first block
+ * still held must build on the checkpoint's hash and difficulty, under the
+ * retarget interval it records, and balances start from the checkpoint's.
+ */
+final class ChainVerifier {
+    /** The smallest number of blocks worth handing to a separate task. */
+    private static final int MIN_SEGMENT = 256;
+    /** The number of segments created per worker, to even out the load. */
+    private static final int SEGMENTS_PER_WORKER = 4;
+
+    /**
+     * Not instantiable.
+     */
+    private ChainVerifier() {
+    }
+
+    /**
+     * Verifies every block in the store.
+     *
+     * @param blocks the blocks of the chain; must not change during the call
+     * @param pool   the pool to verify on
+     * @return the height of the first invalid block, or -1 if all are valid
+     */
+    static int firstInvalidHeight(BlockStore blocks, ForkJoinPool pool) {
+        return firstInvalidHeight(blocks, null, pool);
+    }
+
+    /**
+     * Verifies every block the store still holds, building on the given
+     * checkpoint for the blocks it has pruned. The checkpoint's signature
+     * is not checked here.
+     *
+     * @param blocks the blocks of the chain; must not change during the call
+     * @param from   the checkpoint just below the first block held, or null
+     *               if the store holds the genesis block
+     * @param pool   the pool to verify on
+     * @return the height of the first invalid block, or -1 if all are valid
+     */
+    static int firstInvalidHeight(BlockStore blocks, Checkpoint from, ForkJoinPool pool) {
+        int start = blocks.firstHeight();
+        int length = blocks.size() - start;
+        int retargetInterval = from == null
+            ? blocks.get(0).getRetargetInterval()
+            : from.getRetargetInterval();
+        int count = Math.max(1,
+            Math.min(length / MIN_SEGMENT, pool.getParallelism() * SEGMENTS_PER_WORKER));
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            int lo = start + (int) ((long) length * i / count);
+            int hi = start + (int) ((long) length * (i + 1) / count);
+            segments[i] = new Segment(blocks, lo, hi, lo == start ? from : null,
+                retargetInterval);
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(segments);
+            }
+        });
+
+        int firstInvalid = -1;
+        for (Segment segment : segments) {
+            if (segment.firstInvalid >= 0) {
+                firstInvalid = segment.firstInvalid;
+                break;
+            }
+        }
+
+        long offset = from == null ? 0 : from.getAnnaBalance();
+        for (Segment segment : segments) {
+            if (firstInvalid >= 0 && segment.lo >= firstInvalid) {
+                break;
+            }
+            if (offset + segment.minPrefix < 0) {
+                int overdrawn = segment.firstNegative(offset);
+                return firstInvalid < 0 ? overdrawn : Math.min(firstInvalid, overdrawn);
+            }
+            offset += segment.sum;
+        }
+        return firstInvalid;
+    }
+
+    /**
+     * The check of one contiguous run of blocks.
+     */
+    private static class Segment extends RecursiveAction {
+        /** The version of the serialized form, which is never used. */
+        private static final long serialVersionUID = 1L;
+
+        /** The blocks of the chain. */
+        private final BlockStore blocks;
+        /** The first height in the segment. */
+        private final int lo;
+        /** One past the last height in the segment. */
+        private final int hi;
+        /** The checkpoint the segment builds on, or null to read the block before it. */
+        private final Checkpoint from;
+        /** The retarget interval of the chain's genesis block. */
+        private final int retargetInterval;
+        /** The first height whose hash or link is invalid, or -1. */
+        private int firstInvalid = -1;
+        /** The sum of the amounts in the segment. */
+        private long sum;
+        /** The lowest running total of amounts within the segment. */
+        private long minPrefix = Long.MAX_VALUE;
+
+        /**
+         * Constructs the check of the blocks in [lo, hi).
+         *
+         * @param blocks           the blocks of the chain
+         * @param lo               the first height in the segment
+         * @param hi               one past the last height in the segment
+         * @param from             the checkpoint the segment builds on, or null
+         *                         to read the block before it (if there is one)
+         * @param retargetInterval the retarget interval of the chain's genesis block
+         */
+        Segment(BlockStore blocks, int lo, int hi, Checkpoint from, int retargetInterval) {
+            this.blocks = blocks;
+            this.lo = lo;
+            this.hi = hi;
+            this.from = from;
+            this.retargetInterval = retargetInterval;
+        }
+
+        @Override
+        protected void compute() {
+            Hash prevHash = null;
+            int prevDifficulty = 0;
+            if (from != null) {
+                prevHash = from.getHash();
+                prevDifficulty = from.getDifficulty();
+            } else if (lo > 0) {
+                Block prev = blocks.get(lo - 1);
+                prevHash = prev.getHash();
+                prevDifficulty = prev.getDifficulty();
+            }
+            for (int height = lo; height < hi; height++) {
+                Block b = blocks.get(height);
+                if (firstInvalid < 0 && !BlockChain.isValidLink(height, prevHash, prevDifficulty,
+                        retargetInterval, b)) {
+                    firstInvalid = height;
+                }
+                minPrefix = Math.min(minPrefix, sum + b.lowestRunningTotal());
+                sum += b.getAmount();
+                prevHash = b.getHash();
+                prevDifficulty = b.getDifficulty();
+            }
+        }
+
+        /**
+         * Finds the first height in this segment at which Anna's balance is
+         * negative.
+         *
+         * @param offset Anna's balance before the segment
+         * @return the first overdrawn height, or -1 if there is none
+         */
+        int firstNegative(long offset) {
+            long balance = offset;
+            for (int height = lo; height < hi; height++) {
+                Block b = blocks.get(height);
+                if (balance + b.lowestRunningTotal() < 0) {
+                    return height;
+                }
+                balance += b.getAmount();
+            }
+            return -1;
+        }
+    }
+}
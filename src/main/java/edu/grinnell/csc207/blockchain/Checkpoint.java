@@ -0,0 +1,191 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A signed summary of a chain up to some height, standing in for the
+ * blocks a pruned {@link BlockChain} no longer holds. It records what the
+ * next block must build on (the last pruned block's hash and difficulty,
+ * and the retarget interval the genesis block set), Anna's balance at that
+ * point and a digest of every account's balance there (see
+ * {@link #getAccountsDigest()}). Once other accounts trade, Bob's balance
+ * is no longer the negative of Anna's, so the digest is what vouches for
+ * the rest of the ledger.
+ *
+ * <p>The summary is signed with HMAC-SHA256 under a key known to whoever
+ * pruned the chain, so a checkpoint that was altered, or made without the
+ * key, fails {@link #verify(byte[])}.
+ */
+public final class Checkpoint {
+    /** The MAC algorithm checkpoints are signed with. */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** The height of the last block summarized. */
+    private final int height;
+    /** The hash of the last block summarized. */
+    private final Hash hash;
+    /** The difficulty of the last block summarized. */
+    private final int difficulty;
+    /** The retarget interval of the chain's genesis block. */
+    private final int retargetInterval;
+    /** Anna's balance after the last block summarized. */
+    private final int annaBalance;
+    /** The digest of every account's balance after the last block summarized. */
+    private final Hash accountsDigest;
+    /** The HMAC of the fields above. */
+    private final byte[] signature;
+
+    /**
+     * Constructs a checkpoint from its fields and signature.
+     *
+     * @param height           the height of the last block summarized
+     * @param hash             the hash of that block
+     * @param difficulty       the difficulty of that block
+     * @param retargetInterval the retarget interval of the chain's genesis block
+     * @param annaBalance      Anna's balance after that block
+     * @param accountsDigest   the digest of every account's balance after that block
+     * @param signature        the HMAC of the fields
+     */
+    public Checkpoint(int height, Hash hash, int difficulty, int retargetInterval,
+            int annaBalance, Hash accountsDigest, byte[] signature) {
+        this.height = height;
+        this.hash = hash;
+        this.difficulty = difficulty;
+        this.retargetInterval = retargetInterval;
+        this.annaBalance = annaBalance;
+        this.accountsDigest = accountsDigest;
+        this.signature = signature.clone();
+    }
+
+    /**
+     * Signs a summary of a chain up to and including the given block.
+     *
+     * @param height           the height of the block
+     * @param block            the block
+     * @param annaBalance      Anna's balance after the block
+     * @param accountsDigest   the digest of every account's balance after the block
+     * @param retargetInterval the retarget interval of the chain's genesis block
+     * @param key              the signing key
+     * @return the signed checkpoint
+     * @throws IllegalArgumentException if the key is empty
+     */
+    static Checkpoint sign(int height, Block block, int annaBalance, Hash accountsDigest,
+            int retargetInterval, byte[] key) {
+        byte[] signature = mac(height, block.getHash(), block.getDifficulty(), retargetInterval,
+            annaBalance, accountsDigest, key);
+        return new Checkpoint(height, block.getHash(), block.getDifficulty(), retargetInterval,
+            annaBalance, accountsDigest, signature);
+    }
+
+    /**
+     * Computes the HMAC of a checkpoint's fields.
+     *
+     * @param height           the height of the last block summarized
+     * @param hash             the hash of that block
+     * @param difficulty       the difficulty of that block
+     * @param retargetInterval the retarget interval of the chain's genesis block
+     * @param annaBalance      Anna's balance after that block
+     * @param accountsDigest   the digest of every account's balance after that block
+     * @param key              the signing key
+     * @return the HMAC
+     * @throws IllegalArgumentException if the key is empty
+     */
+    private static byte[] mac(int height, Hash hash, int difficulty, int retargetInterval,
+            int annaBalance, Hash accountsDigest, byte[] key) {
+        ByteBuffer fields = ByteBuffer.allocate(4 * Integer.BYTES + 2 * Hash.LENGTH);
+        fields.putInt(height).putInt(difficulty).putInt(retargetInterval).putInt(annaBalance);
+        hash.writeTo(fields);
+        accountsDigest.writeTo(fields);
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac.doFinal(fields.array());
+        } catch (GeneralSecurityException e) {
+            // Every Java platform is required to support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks the checkpoint's signature.
+     *
+     * @param key the key the checkpoint should have been signed with
+     * @return true if the fields are exactly those signed with the key
+     * @throws IllegalArgumentException if the key is empty
+     */
+    public boolean verify(byte[] key) {
+        return MessageDigest.isEqual(signature,
+            mac(height, hash, difficulty, retargetInterval, annaBalance, accountsDigest, key));
+    }
+
+    /**
+     * Returns the height of the last block summarized.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the hash of the last block summarized, which the next block
+     * must name as its previous hash.
+     *
+     * @return the hash
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the difficulty of the last block summarized.
+     *
+     * @return the number of leading zero bits
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Returns the number of blocks between the heights at which the chain's
+     * difficulty may change, as its genesis block set.
+     *
+     * @return the retarget interval, or 0 if the difficulty is fixed
+     */
+    public int getRetargetInterval() {
+        return retargetInterval;
+    }
+
+    /**
+     * Returns Anna's balance after the last block summarized.
+     *
+     * @return Anna's balance
+     */
+    public int getAnnaBalance() {
+        return annaBalance;
+    }
+
+    /**
+     * Returns the digest of every account's balance after the last block
+     * summarized: the SHA-256 of each nonzero balance's account id (4
+     * bytes) and balance (8), big-endian, in order of account id.
+     *
+     * @return the digest
+     */
+    public Hash getAccountsDigest() {
+        return accountsDigest;
+    }
+
+    /**
+     * Returns the signature.
+     *
+     * @return a copy of the HMAC of the fields
+     */
+    public byte[] getSignature() {
+        return signature.clone();
+    }
+}
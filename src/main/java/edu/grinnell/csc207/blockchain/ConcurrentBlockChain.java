@@ -0,0 +1,435 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A blockchain that many threads can read and write at once.
+ *
+ * <p>The chain is published as a series of immutable {@link Snapshot}s.
+ * Readers take the current snapshot with a single volatile read and never
+ * block; everything they see through one snapshot is consistent, however
+ * the chain changes meanwhile. Writers build the next snapshot and install
+ * it with a compare-and-set, so they never block readers or each other. An
+ * append only succeeds while the block's previous hash is still the tip of
+ * the chain, so a block mined on a stale tip fails fast instead of being
+ * linked in the wrong place.
+ *
+ * <p>Blocks are kept in fixed-size chunks. A snapshot shares every chunk
+ * with the one before it, and an append writes in place into the tail
+ * chunk, past the end any older snapshot can see. Only after a removal,
+ * when the slot may still be visible to older snapshots, is the tail chunk
+ * copied first. Each snapshot also carries a persistent index from block
+ * hash to height (see {@link HashTrie}), which shares all but one path
+ * with the one before it.
+ */
+public class ConcurrentBlockChain {
+    /** The log base 2 of the number of blocks in a chunk. */
+    static final int CHUNK_SHIFT = 10;
+    /** The number of blocks in a chunk. */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /** The strategy used to mine new blocks. */
+    private final Miner miner;
+    /** The header layout used for newly mined blocks. */
+    private final int headerVersion;
+    /** The current state of the chain. */
+    private final AtomicReference<Snapshot> current;
+
+    /**
+     * Constructs a new blockchain with a genesis block, mined on all cores
+     * at {@link Hash#DEFAULT_DIFFICULTY}.
+     *
+     * @param initial the initial amount to set Anna's balance
+     */
+    public ConcurrentBlockChain(int initial) {
+        this(initial, new ParallelMiner(), Block.HEADER_V2, Hash.DEFAULT_DIFFICULTY);
+    }
+
+    /**
+     * Constructs a new blockchain with a genesis block mined at the given
+     * difficulty, mining it and every later block with the given miner and
+     * header layout.
+     *
+     * @param initial       the initial amount to set Anna's balance
+     * @param miner         the strategy used to mine blocks
+     * @param headerVersion the header layout for mined blocks
+     * @param difficulty    the number of leading zero bits block hashes must have
+     * @throws IllegalArgumentException if the header version or difficulty is out of range
+     */
+    public ConcurrentBlockChain(int initial, Miner miner, int headerVersion, int difficulty) {
+        Block.checkVersion(headerVersion);
+        Block.checkDifficulty(difficulty);
+        this.miner = miner;
+        this.headerVersion = headerVersion;
+        Block genesis = miner.mine(headerVersion, difficulty, 0, initial, null);
+        Snapshot empty = new Snapshot(new Block[1][], new int[1][], 0, 0, HashTrie.EMPTY, false);
+        this.current = new AtomicReference<>(empty.extend(genesis));
+    }
+
+    /**
+     * Returns the current state of the chain. The snapshot never changes,
+     * so several reads through it are consistent with each other.
+     *
+     * @return the current snapshot
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Mines a new block on the current tip and appends it. If another
+     * writer changes the tip first, the block is mined again on the new tip.
+     *
+     * @param amount the transaction amount for the new block
+     * @return the newly mined Block
+     */
+    public Block mine(int amount) {
+        while (true) {
+            Snapshot s = current.get();
+            Block tip = s.get(s.size() - 1);
+            Block newBlock = miner.mine(headerVersion, tip.getDifficulty(), s.size(), amount,
+                tip.getHash());
+            if (tryAppend(newBlock)) {
+                return newBlock;
+            }
+        }
+    }
+
+    /**
+     * Appends a block if its previous hash is the hash of the chain's tip.
+     *
+     * @param newBlock the Block to append
+     * @throws IllegalArgumentException if newBlock's prevHash does not match
+     *         the current last block's hash, or its difficulty breaks the
+     *         retarget rule of the genesis block
+     */
+    public void append(Block newBlock) {
+        if (!tryAppend(newBlock)) {
+            throw new IllegalArgumentException(
+                "Block's prevHash does not match the last block's hash!");
+        }
+    }
+
+    /**
+     * Appends a block if its previous hash is the hash of the chain's tip,
+     * retrying only while it still is.
+     *
+     * @param newBlock the Block to append
+     * @return true if the block was appended; false if it is stale
+     * @throws IllegalArgumentException if the block's difficulty breaks the
+     *         chain's retarget rule
+     */
+    private boolean tryAppend(Block newBlock) {
+        while (true) {
+            Snapshot s = current.get();
+            Block tip = s.get(s.size() - 1);
+            if (!tip.getHash().equals(newBlock.getPrevHash())) {
+                return false;
+            }
+            if (!BlockChain.isValidRetarget(s.size(), tip.getDifficulty(),
+                    newBlock.getDifficulty(), s.get(0).getRetargetInterval())) {
+                throw new IllegalArgumentException(
+                    "Block's difficulty breaks the chain's retarget rule!");
+            }
+            if (current.compareAndSet(s, s.extend(newBlock))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the last block from the chain. The original block cannot be removed.
+     *
+     * @return the removed block
+     * @throws NoSuchElementException if an attempt is made to remove the genesis block
+     */
+    public Block removeLast() {
+        while (true) {
+            Snapshot s = current.get();
+            if (s.size() <= 1) {
+                throw new NoSuchElementException(
+                    "Cannot remove the genesis block from the chain.");
+            }
+            if (current.compareAndSet(s, s.truncate())) {
+                return s.get(s.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blocks in the chain.
+     *
+     * @return the size of the chain
+     */
+    public int getSize() {
+        return current.get().size();
+    }
+
+    /**
+     * Returns the hash of the last block in the chain.
+     *
+     * @return the hash of the last block
+     */
+    public Hash getHash() {
+        return current.get().getHash();
+    }
+
+    /**
+     * Returns the block at the given height.
+     *
+     * @param height the height of the block, from 0 (genesis) to getSize() - 1
+     * @return the block at that height
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    public Block getBlock(int height) {
+        return current.get().get(height);
+    }
+
+    /**
+     * Returns Anna's current balance.
+     *
+     * @return Anna's balance after the last block
+     */
+    public int getAnnaBalance() {
+        Snapshot s = current.get();
+        return s.getAnnaBalance(s.size() - 1);
+    }
+
+    /**
+     * Returns Bob's current balance. Until transfers involve other accounts,
+     * it is the negative of Anna's.
+     *
+     * @return Bob's balance after the last block
+     * @throws ArithmeticException if the balance does not fit in an int
+     */
+    public int getBobBalance() {
+        return Math.toIntExact(current.get().getBobBalance());
+    }
+
+    /**
+     * Checks the current snapshot of the chain on all cores, as
+     * {@link BlockChain#verifyParallel()} does.
+     *
+     * @return true if the chain is valid; false otherwise
+     */
+    public boolean isValidBlockChain() {
+        return ChainVerifier.firstInvalidHeight(current.get(), ForkJoinPool.commonPool()) < 0;
+    }
+
+    /**
+     * Returns a string representation of the entire blockchain, each block
+     * on its own line.
+     *
+     * @return a string describing the blockchain
+     */
+    @Override
+    public String toString() {
+        Snapshot s = current.get();
+        StringBuilder sb = new StringBuilder();
+        for (int height = 0; height < s.size(); height++) {
+            sb.append(s.get(height).toString()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An immutable view of the chain at one point in time. It is a
+     * read-only {@link BlockStore}, so it can be verified or exported like
+     * any other store.
+     */
+    public static final class Snapshot implements BlockStore {
+        /** The chunks of blocks, indexed by height / CHUNK_SIZE. */
+        private final Block[][] blocks;
+        /** The chunks of Anna's balance after each block, indexed alike. */
+        private final int[][] balances;
+        /** The number of blocks in this snapshot. */
+        private final int size;
+        /** Bob's balance after the last block. */
+        private final long bobBalance;
+        /** The index from block hash to height, of this snapshot's blocks only. */
+        private final HashTrie index;
+        /**
+         * Set once a writer has claimed the slot just past this snapshot's
+         * end to extend it in place. Starts set when that slot may be
+         * visible to an older snapshot.
+         */
+        private final AtomicBoolean extended;
+
+        /**
+         * Constructs a snapshot over the given chunks.
+         *
+         * @param blocks   the chunks of blocks
+         * @param balances the chunks of balances
+         * @param size       the number of blocks
+         * @param bobBalance Bob's balance after the last block
+         * @param index      the index from block hash to height
+         * @param extended   whether the slot past the end is already taken
+         */
+        private Snapshot(Block[][] blocks, int[][] balances, int size, long bobBalance,
+                HashTrie index, boolean extended) {
+            this.blocks = blocks;
+            this.balances = balances;
+            this.size = size;
+            this.bobBalance = bobBalance;
+            this.index = index;
+            this.extended = new AtomicBoolean(extended);
+        }
+
+        /**
+         * Works out how much a block changes Bob's balance.
+         *
+         * @param block the block
+         * @return the net amount paid to Bob
+         */
+        private static long bobDelta(Block block) {
+            long delta = 0;
+            for (Transfer t : block.getTransfers()) {
+                delta += t.delta(Transfer.BOB);
+            }
+            return delta;
+        }
+
+        /**
+         * Builds the snapshot with the given block appended. The tail chunk
+         * is written in place if this is the first extension of this
+         * snapshot, and copied otherwise.
+         *
+         * @param block the block to append
+         * @return the extended snapshot
+         */
+        private Snapshot extend(Block block) {
+            int chunk = size >>> CHUNK_SHIFT;
+            int slot = size & (CHUNK_SIZE - 1);
+            int balance = (size == 0 ? 0 : getAnnaBalance(size - 1)) + block.getAmount();
+            Block[][] newBlocks;
+            int[][] newBalances;
+            if (extended.compareAndSet(false, true)) {
+                newBlocks = blocks;
+                newBalances = balances;
+                if (chunk == blocks.length) {
+                    newBlocks = Arrays.copyOf(blocks, 2 * blocks.length);
+                    newBalances = Arrays.copyOf(balances, 2 * balances.length);
+                }
+            } else {
+                // Chunks past the tail may be shared with older snapshots
+                newBlocks = Arrays.copyOf(blocks, chunk + 1);
+                newBalances = Arrays.copyOf(balances, chunk + 1);
+                if (newBlocks[chunk] != null) {
+                    newBlocks[chunk] = newBlocks[chunk].clone();
+                    newBalances[chunk] = newBalances[chunk].clone();
+                }
+            }
+            if (newBlocks[chunk] == null) {
+                newBlocks[chunk] = new Block[CHUNK_SIZE];
+                newBalances[chunk] = new int[CHUNK_SIZE];
+            }
+            newBlocks[chunk][slot] = block;
+            newBalances[chunk][slot] = balance;
+            return new Snapshot(newBlocks, newBalances, size + 1, bobBalance + bobDelta(block),
+                index.with(block.getHash().hashCode(), size), false);
+        }
+
+        /**
+         * Builds the snapshot with the last block removed. The removed
+         * block's slot stays visible to this snapshot, so it is never
+         * written in place.
+         *
+         * @return the truncated snapshot
+         */
+        private Snapshot truncate() {
+            Block last = get(size - 1);
+            return new Snapshot(blocks, balances, size - 1, bobBalance - bobDelta(last),
+                index.without(last.getHash().hashCode(), size - 1), true);
+        }
+
+        /**
+         * Checks that a height is within this snapshot.
+         *
+         * @param height the height
+         * @throws IndexOutOfBoundsException if there is no block at that height
+         */
+        private void checkHeight(int height) {
+            if (height < 0 || height >= size) {
+                throw new IndexOutOfBoundsException("No block at height " + height);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Block get(int height) {
+            checkHeight(height);
+            return blocks[height >>> CHUNK_SHIFT][height & (CHUNK_SIZE - 1)];
+        }
+
+        /**
+         * Returns the hash of the last block in this snapshot.
+         *
+         * @return the hash of the last block
+         */
+        public Hash getHash() {
+            return get(size - 1).getHash();
+        }
+
+        /**
+         * Returns Anna's balance after the block at the given height.
+         *
+         * @param height the height of the block
+         * @return Anna's balance once that block's transaction is applied
+         * @throws IndexOutOfBoundsException if there is no block at that height
+         */
+        public int getAnnaBalance(int height) {
+            checkHeight(height);
+            return balances[height >>> CHUNK_SHIFT][height & (CHUNK_SIZE - 1)];
+        }
+
+        /**
+         * Returns Bob's balance after the last block in this snapshot.
+         *
+         * @return Bob's balance
+         */
+        public long getBobBalance() {
+            return bobBalance;
+        }
+
+        /**
+         * Finds a block by hash through the snapshot's own index, in time
+         * that does not grow with the length of the chain.
+         *
+         * @param hash the hash to look for
+         * @return the height of the block with that hash, or -1 if there is none
+         */
+        @Override
+        public int indexOf(Hash hash) {
+            return index.find(hash.hashCode(), height -> get(height).getHash().equals(hash));
+        }
+
+        /**
+         * Snapshots cannot be changed.
+         *
+         * @param block ignored
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void append(Block block) {
+            throw new UnsupportedOperationException("Snapshots are read-only.");
+        }
+
+        /**
+         * Snapshots cannot be changed.
+         *
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void removeLast() {
+            throw new UnsupportedOperationException("Snapshots are read-only.");
+        }
+    }
+}
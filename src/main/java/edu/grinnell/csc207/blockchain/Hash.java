@@ -1,33 +1,173 @@
 package edu.grinnell.csc207.blockchain;
-import java.util.Arrays;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * A wrapper class over a hash value (a byte array).
+ * An immutable 32-byte hash value, such as a SHA-256 digest.
+ *
+ * <p>The bytes are held as four big-endian longs rather than an array, so a
+ * hash is one small object, compares a word at a time and never needs to
+ * be copied to stay immutable. Use {@link #writeTo(ByteBuffer)} to get the
+ * bytes back out.
  */
 public class Hash {
-    /** The internal byte array storing the hash value. */
-    private final byte[] data;
+    /** The length in bytes of every hash. */
+    public static final int LENGTH = 32;
+    /**
+     * The difficulty, in leading zero bits, that {@link #isValid()} checks:
+     * the original rule of three zero bytes.
+     */
+    public static final int DEFAULT_DIFFICULTY = 24;
+    /** The largest difficulty a 256-bit hash can meet. */
+    public static final int MAX_DIFFICULTY = LENGTH * Byte.SIZE;
+    /** Reads big-endian longs out of a byte array. */
+    private static final VarHandle LONG_BE =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    /** The hexadecimal digits, indexed by value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Bytes 0 to 7 of the hash. */
+    private final long w0;
+    /** Bytes 8 to 15 of the hash. */
+    private final long w1;
+    /** Bytes 16 to 23 of the hash. */
+    private final long w2;
+    /** Bytes 24 to 31 of the hash. */
+    private final long w3;
+    /** The hash code, computed once. */
+    private final int hashCode;
 
     /**
-     * Constructs a new hash object by copying the provided byte array.
+     * Constructs a new hash object from the provided bytes. The array is
+     * not kept, so later changes to it do not affect the hash.
      *
      * @param data the byte array representing the hash
      * @throws NullPointerException if data is null
+     * @throws IllegalArgumentException if data is not {@link #LENGTH} bytes long
      */
     public Hash(byte[] data) {
+        this(word(checkLength(data), 0), word(data, 1), word(data, 2), word(data, 3));
+    }
+
+    /**
+     * Constructs a new hash object from its four big-endian words.
+     *
+     * @param w0 bytes 0 to 7
+     * @param w1 bytes 8 to 15
+     * @param w2 bytes 16 to 23
+     * @param w3 bytes 24 to 31
+     */
+    Hash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.hashCode = hashCode(w0, w1, w2, w3);
+    }
+
+    /**
+     * Reads a hash stored at the given offset of a buffer, as written by
+     * {@link #writeTo(ByteBuffer)}, without moving the buffer's position.
+     *
+     * @param buffer the buffer holding the hash
+     * @param offset the offset of the hash's first byte
+     * @return the hash
+     */
+    static Hash read(ByteBuffer buffer, int offset) {
+        return new Hash(wordAt(buffer, offset, 0), wordAt(buffer, offset, 1),
+            wordAt(buffer, offset, 2), wordAt(buffer, offset, 3));
+    }
+
+    /**
+     * Computes the hash code of a hash stored at the given offset of a
+     * buffer, matching {@link #hashCode()}, without building a hash object.
+     *
+     * @param buffer the buffer holding the hash
+     * @param offset the offset of the hash's first byte
+     * @return the hash code of the stored hash
+     */
+    static int hashCodeAt(ByteBuffer buffer, int offset) {
+        return hashCode(wordAt(buffer, offset, 0), wordAt(buffer, offset, 1),
+            wordAt(buffer, offset, 2), wordAt(buffer, offset, 3));
+    }
+
+    /**
+     * Checks that an array holds exactly the bytes of one hash.
+     *
+     * @param data the bytes of the hash
+     * @return data
+     * @throws NullPointerException if data is null
+     * @throws IllegalArgumentException if data is not {@link #LENGTH} bytes long
+     */
+    private static byte[] checkLength(byte[] data) {
         if (data == null) {
             throw new NullPointerException("Hash data cannot be null");
         }
-        this.data = Arrays.copyOf(data, data.length);
+        if (data.length != LENGTH) {
+            throw new IllegalArgumentException("Hash data must be " + LENGTH + " bytes long");
+        }
+        return data;
+    }
+
+    /**
+     * Reads a big-endian word of a hash out of a byte array.
+     *
+     * @param data  the bytes of the hash
+     * @param index which word to read, from 0 to 3
+     * @return the word
+     */
+    private static long word(byte[] data, int index) {
+        return (long) LONG_BE.get(data, index * Long.BYTES);
+    }
+
+    /**
+     * Reads a big-endian word of a hash out of a buffer, whatever the
+     * buffer's byte order.
+     *
+     * @param buffer the buffer holding the hash
+     * @param offset the offset of the hash's first byte
+     * @param index  which word to read, from 0 to 3
+     * @return the word
+     */
+    private static long wordAt(ByteBuffer buffer, int offset, int index) {
+        long word = buffer.getLong(offset + index * Long.BYTES);
+        return buffer.order() == ByteOrder.BIG_ENDIAN ? word : Long.reverseBytes(word);
     }
 
     /**
-     * Returns a copy of the underlying byte array.
+     * Combines the four words of a hash into a hash code.
      *
-     * @return a new byte array containing the hash data
+     * @param w0 bytes 0 to 7
+     * @param w1 bytes 8 to 15
+     * @param w2 bytes 16 to 23
+     * @param w3 bytes 24 to 31
+     * @return the hash code
      */
-    public byte[] getData() {
-        return Arrays.copyOf(data, data.length);
+    private static int hashCode(long w0, long w1, long w2, long w3) {
+        int code = Long.hashCode(w0);
+        code = 31 * code + Long.hashCode(w1);
+        code = 31 * code + Long.hashCode(w2);
+        return 31 * code + Long.hashCode(w3);
+    }
+
+    /**
+     * Writes the {@link #LENGTH} bytes of this hash at the buffer's
+     * position, advancing it. The bytes are written in order, whatever the
+     * buffer's byte order.
+     *
+     * @param buffer the buffer to write to
+     * @return the buffer
+     * @throws java.nio.BufferOverflowException if fewer than {@link #LENGTH}
+     *         bytes remain in the buffer
+     */
+    public ByteBuffer writeTo(ByteBuffer buffer) {
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            return buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+        }
+        return buffer.putLong(Long.reverseBytes(w0)).putLong(Long.reverseBytes(w1))
+            .putLong(Long.reverseBytes(w2)).putLong(Long.reverseBytes(w3));
     }
 
     /**
@@ -38,16 +178,63 @@ public class Hash {
      *         false otherwise
      */
     public boolean isValid() {
-        return data.length >= 3
-            && data[0] == 0
-            && data[1] == 0
-            && data[2] == 0;
+        return meetsDifficulty(DEFAULT_DIFFICULTY);
+    }
+
+    /**
+     * Determines if this hash starts with at least the given number of zero bits.
+     *
+     * @param difficulty the required number of leading zero bits
+     * @return true if the hash meets the difficulty; false otherwise
+     */
+    public boolean meetsDifficulty(int difficulty) {
+        return leadingZeroBits() >= difficulty;
+    }
+
+    /**
+     * Counts the leading zero bits of this hash a word at a time.
+     *
+     * @return the number of leading zero bits
+     */
+    private int leadingZeroBits() {
+        if (w0 != 0) {
+            return Long.numberOfLeadingZeros(w0);
+        } else if (w1 != 0) {
+            return Long.SIZE + Long.numberOfLeadingZeros(w1);
+        } else if (w2 != 0) {
+            return 2 * Long.SIZE + Long.numberOfLeadingZeros(w2);
+        }
+        return 3 * Long.SIZE + Long.numberOfLeadingZeros(w3);
+    }
+
+    /**
+     * Counts the leading zero bits of a raw digest a 64-bit word at a time.
+     *
+     * @param digest the raw digest bytes
+     * @return the number of leading zero bits
+     */
+    static int leadingZeroBits(byte[] digest) {
+        int bits = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= digest.length; i += Long.BYTES) {
+            long word = (long) LONG_BE.get(digest, i);
+            if (word != 0) {
+                return bits + Long.numberOfLeadingZeros(word);
+            }
+            bits += Long.SIZE;
+        }
+        for (; i < digest.length; i++) {
+            if (digest[i] != 0) {
+                return bits + Integer.numberOfLeadingZeros(digest[i] & 0xff) - 24;
+            }
+            bits += Byte.SIZE;
+        }
+        return bits;
     }
 
     /**
      * Compares this hash to another object for equality.
-     * Two hash objects are equal if their underlying byte arrays
-     * match exactly.
+     * Two hash objects are equal if their bytes match exactly.
      *
      * @param other the object to compare to
      * @return true if both objects represent the same hash;
@@ -60,7 +247,19 @@ public class Hash {
         }
         if (!(other instanceof Hash)) return false;
         Hash o = (Hash) other;
-        return Arrays.equals(this.data, o.data);
+        return hashCode == o.hashCode
+            && w3 == o.w3 && w2 == o.w2 && w1 == o.w1 && w0 == o.w0;
+    }
+
+    /**
+     * Returns a hash code consistent with {@link #equals(Object)}, so hashes
+     * can be used as keys in hash tables. It is computed once, on construction.
+     *
+     * @return a hash code for this hash
+     */
+    @Override
+    public int hashCode() {
+        return hashCode;
     }
 
     /**
@@ -70,10 +269,25 @@ public class Hash {
      */
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : data) {
-            sb.append(String.format("%02x", b));
+        char[] hex = new char[2 * LENGTH];
+        appendHex(hex, 0, w0);
+        appendHex(hex, 16, w1);
+        appendHex(hex, 32, w2);
+        appendHex(hex, 48, w3);
+        return new String(hex);
+    }
+
+    /**
+     * Writes the 16 hexadecimal digits of a word into a character array.
+     *
+     * @param hex    the characters to write into
+     * @param offset where to write the first digit
+     * @param word   the word to format
+     */
+    private static void appendHex(char[] hex, int offset, long word) {
+        for (int i = 15; i >= 0; i--) {
+            hex[offset + i] = HEX_DIGITS[(int) word & 0xf];
+            word >>>= 4;
         }
-        return sb.toString();
     }
 }
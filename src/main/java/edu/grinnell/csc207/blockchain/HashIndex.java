@@ -0,0 +1,119 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.function.IntPredicate;
+
+/**
+ * An open-addressing table from block hash codes to heights, used by the
+ * block stores to find a block by its hash in O(1).
+ *
+ * <p>Slots hold plain ints (the height plus one, and the hash code), so an
+ * entry costs no objects. Collisions are resolved by linear probing, and
+ * removal shifts later entries back so probe runs stay intact. The table
+ * never looks at the blocks themselves; callers confirm a candidate height
+ * through the predicate passed to {@link #find}.
+ */
+final class HashIndex {
+    /** The initial number of slots. */
+    private static final int INITIAL_CAPACITY = 32;
+
+    /** Each slot holds height + 1 of a block, or 0 if empty. */
+    private int[] heights = new int[INITIAL_CAPACITY];
+    /** The hash code of the block in each occupied slot. */
+    private int[] codes = new int[INITIAL_CAPACITY];
+    /** The number of occupied slots. */
+    private int count;
+
+    /**
+     * Adds a block to the index.
+     *
+     * @param height the height of the block
+     * @param code   the hash code of the block's hash
+     */
+    void add(int height, int code) {
+        if (2 * (count + 1) > heights.length) {
+            resize(2 * heights.length);
+        }
+        insert(height, code);
+        count++;
+    }
+
+    /**
+     * Finds the height of a block whose hash has the given hash code.
+     *
+     * @param code    the hash code of the hash to look for
+     * @param isMatch confirms whether the block at a candidate height is the one wanted
+     * @return the matching height, or -1 if there is none
+     */
+    int find(int code, IntPredicate isMatch) {
+        int mask = heights.length - 1;
+        for (int slot = code & mask; heights[slot] != 0; slot = (slot + 1) & mask) {
+            if (codes[slot] == code && isMatch.test(heights[slot] - 1)) {
+                return heights[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a block from the index.
+     *
+     * @param height the height of the block
+     * @param code   the hash code of the block's hash
+     */
+    void remove(int height, int code) {
+        int mask = heights.length - 1;
+        int slot = code & mask;
+        while (heights[slot] != height + 1) {
+            if (heights[slot] == 0) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int next = (slot + 1) & mask;
+        while (heights[next] != 0) {
+            int home = codes[next] & mask;
+            // Move the entry back if its home slot is not between the hole and it
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                heights[slot] = heights[next];
+                codes[slot] = codes[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        heights[slot] = 0;
+        count--;
+    }
+
+    /**
+     * Puts an entry into the first free slot of its probe run.
+     *
+     * @param height the height of the block
+     * @param code   the hash code of the block's hash
+     */
+    private void insert(int height, int code) {
+        int mask = heights.length - 1;
+        int slot = code & mask;
+        while (heights[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        heights[slot] = height + 1;
+        codes[slot] = code;
+    }
+
+    /**
+     * Rebuilds the table with the given number of slots.
+     *
+     * @param capacity the new number of slots, a power of two
+     */
+    private void resize(int capacity) {
+        int[] oldHeights = heights;
+        int[] oldCodes = codes;
+        heights = new int[capacity];
+        codes = new int[capacity];
+        for (int slot = 0; slot < oldHeights.length; slot++) {
+            if (oldHeights[slot] != 0) {
+                insert(oldHeights[slot] - 1, oldCodes[slot]);
+            }
+        }
+    }
+}
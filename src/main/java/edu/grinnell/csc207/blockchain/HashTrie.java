@@ -0,0 +1,241 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A persistent map from block hash codes to heights, used by
+ * {@link ConcurrentBlockChain.Snapshot} to find a block by its hash without
+ * walking the chain.
+ *
+ * <p>Unlike {@link HashIndex}, a trie is never changed: {@link #with} and
+ * {@link #without} return a new trie that shares all but one path with the
+ * old one, so each snapshot can keep its own index and older snapshots
+ * still see theirs. The trie branches on five bits of the hash code at a
+ * time, and each node holds only the branches in use, marked in a bitmap,
+ * so a path is at most seven nodes long and an update copies a few small
+ * arrays. As with {@link HashIndex}, callers confirm a candidate height
+ * through the predicate passed to {@link #find}.
+ */
+final class HashTrie {
+    /** The trie with no entries. */
+    static final HashTrie EMPTY = new HashTrie(null);
+    /** The number of bits of the hash code a node branches on. */
+    private static final int BITS = 5;
+
+    /** The root: a {@link Node}, a {@link Leaf}, or null if the trie is empty. */
+    private final Object root;
+
+    /**
+     * Constructs a trie with the given root.
+     *
+     * @param root the root
+     */
+    private HashTrie(Object root) {
+        this.root = root;
+    }
+
+    /**
+     * An inner node, holding a child for each set bit of its bitmap.
+     */
+    private static final class Node {
+        /** The branches in use. */
+        final int bitmap;
+        /** The children of the branches in use, in order. */
+        final Object[] children;
+
+        /**
+         * Constructs a node.
+         *
+         * @param bitmap   the branches in use
+         * @param children the children of those branches
+         */
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    /**
+     * A leaf, holding the heights of every block whose hash has its code.
+     */
+    private static final class Leaf {
+        /** The hash code. */
+        final int code;
+        /** The heights, oldest first. */
+        final int[] heights;
+
+        /**
+         * Constructs a leaf.
+         *
+         * @param code    the hash code
+         * @param heights the heights
+         */
+        Leaf(int code, int[] heights) {
+            this.code = code;
+            this.heights = heights;
+        }
+    }
+
+    /**
+     * Returns the bit of a node's bitmap that a hash code branches to.
+     *
+     * @param code  the hash code
+     * @param shift how far down the trie the node is, in bits of the code
+     * @return the bit
+     */
+    private static int bit(int code, int shift) {
+        return 1 << ((code >>> shift) & ((1 << BITS) - 1));
+    }
+
+    /**
+     * Returns the trie with a block added.
+     *
+     * @param code   the hash code of the block's hash
+     * @param height the height of the block
+     * @return the new trie
+     */
+    HashTrie with(int code, int height) {
+        return new HashTrie(insert(root, 0, code, height));
+    }
+
+    /**
+     * Returns the trie with a block removed.
+     *
+     * @param code   the hash code of the block's hash
+     * @param height the height of the block
+     * @return the new trie, or this one if the block is not in it
+     */
+    HashTrie without(int code, int height) {
+        Object newRoot = delete(root, 0, code, height);
+        return newRoot == root ? this : new HashTrie(newRoot);
+    }
+
+    /**
+     * Finds the height of a block whose hash has the given hash code,
+     * trying the newest candidates first.
+     *
+     * @param code    the hash code of the hash to look for
+     * @param isMatch confirms whether the block at a candidate height is the one wanted
+     * @return the matching height, or -1 if there is none
+     */
+    int find(int code, IntPredicate isMatch) {
+        Object node = root;
+        for (int shift = 0; node instanceof Node; shift += BITS) {
+            Node n = (Node) node;
+            int bit = bit(code, shift);
+            if ((n.bitmap & bit) == 0) {
+                return -1;
+            }
+            node = n.children[Integer.bitCount(n.bitmap & (bit - 1))];
+        }
+        if (node == null || ((Leaf) node).code != code) {
+            return -1;
+        }
+        int[] heights = ((Leaf) node).heights;
+        for (int i = heights.length - 1; i >= 0; i--) {
+            if (isMatch.test(heights[i])) {
+                return heights[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a block below the given node, copying the path to it.
+     *
+     * @param node   the node, or null
+     * @param shift  how far down the trie the node is, in bits of the code
+     * @param code   the hash code of the block's hash
+     * @param height the height of the block
+     * @return the node with the block added
+     */
+    private static Object insert(Object node, int shift, int code, int height) {
+        if (node == null) {
+            return new Leaf(code, new int[] {height});
+        }
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (leaf.code == code) {
+                int[] heights = Arrays.copyOf(leaf.heights, leaf.heights.length + 1);
+                heights[leaf.heights.length] = height;
+                return new Leaf(code, heights);
+            }
+            // Two codes meet here, so the leaf moves down a level
+            node = new Node(bit(leaf.code, shift), new Object[] {leaf});
+        }
+        Node n = (Node) node;
+        int bit = bit(code, shift);
+        int index = Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            Object[] children = new Object[n.children.length + 1];
+            System.arraycopy(n.children, 0, children, 0, index);
+            children[index] = new Leaf(code, new int[] {height});
+            System.arraycopy(n.children, index, children, index + 1, n.children.length - index);
+            return new Node(n.bitmap | bit, children);
+        }
+        Object[] children = n.children.clone();
+        children[index] = insert(children[index], shift + BITS, code, height);
+        return new Node(n.bitmap, children);
+    }
+
+    /**
+     * Removes a block below the given node, copying the path to it.
+     *
+     * @param node   the node, or null
+     * @param shift  how far down the trie the node is, in bits of the code
+     * @param code   the hash code of the block's hash
+     * @param height the height of the block
+     * @return the node with the block removed, null if nothing is left,
+     *         or the node itself if the block is not below it
+     */
+    private static Object delete(Object node, int shift, int code, int height) {
+        if (node == null) {
+            return null;
+        }
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int[] heights = leaf.heights;
+            int i = heights.length - 1;
+            while (i >= 0 && (leaf.code != code || heights[i] != height)) {
+                i--;
+            }
+            if (i < 0) {
+                return leaf;
+            }
+            if (heights.length == 1) {
+                return null;
+            }
+            int[] rest = new int[heights.length - 1];
+            System.arraycopy(heights, 0, rest, 0, i);
+            System.arraycopy(heights, i + 1, rest, i, rest.length - i);
+            return new Leaf(code, rest);
+        }
+        Node n = (Node) node;
+        int bit = bit(code, shift);
+        if ((n.bitmap & bit) == 0) {
+            return n;
+        }
+        int index = Integer.bitCount(n.bitmap & (bit - 1));
+        Object child = delete(n.children[index], shift + BITS, code, height);
+        if (child == n.children[index]) {
+            return n;
+        }
+        if (child != null) {
+            Object[] children = n.children.clone();
+            children[index] = child;
+            return new Node(n.bitmap, children);
+        }
+        if (n.children.length == 1) {
+            return null;
+        }
+        Object[] children = new Object[n.children.length - 1];
+        System.arraycopy(n.children, 0, children, 0, index);
+        System.arraycopy(n.children, index + 1, children, index, children.length - index);
+        if (children.length == 1 && children[0] instanceof Leaf) {
+            // A lone leaf needs no node above it
+            return children[0];
+        }
+        return new Node(n.bitmap & ~bit, children);
+    }
+}
@@ -0,0 +1,131 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, with a fixed number of buckets
+ * and no allocation when recording, so it can be updated from any thread on
+ * every operation.
+ *
+ * <p>Buckets are log-linear, as in an HDR histogram: each power of two is
+ * split into {@link #SUB_BUCKETS} equal buckets, so every value from 1 ns to
+ * centuries is counted with a relative error below 1 / {@link #SUB_BUCKETS}.
+ * Percentiles report the upper bound of the bucket they fall in.
+ */
+public final class LatencyHistogram {
+    /** The log base 2 of the number of buckets per power of two. */
+    private static final int SUB_BUCKET_BITS = 3;
+    /** The number of buckets each power of two is split into. */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** The total number of buckets, enough for any non-negative long. */
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /** The number of values recorded in each bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /** The number of values recorded. */
+    private final LongAdder count = new LongAdder();
+    /** The sum of the values recorded. */
+    private final LongAdder sum = new LongAdder();
+    /** The largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the bucket a value falls in.
+     *
+     * @param value the non-negative value
+     * @return the index of its bucket
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the bucket's upper bound
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a duration. Negative durations, which a clock adjustment
+     * could produce, are recorded as 0.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     *
+     * @return the maximum in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the durations recorded.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the duration that the given fraction of recorded durations
+     * are at or below, to within the histogram's precision.
+     *
+     * @param fraction the fraction, from 0 to 1 (0.99 for the 99th percentile)
+     * @return the percentile in nanoseconds, or 0 if nothing was recorded
+     * @throws IllegalArgumentException if the fraction is not between 0 and 1
+     */
+    public long getPercentile(double fraction) {
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Fraction must be between 0 and 1.");
+        }
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return 0;
+    }
+}
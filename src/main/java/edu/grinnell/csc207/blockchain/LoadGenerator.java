@@ -0,0 +1,468 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link BlockChain} with a synthetic stream of operations, for
+ * soak testing: mined blocks of transfers between a fixed set of accounts,
+ * deliberately invalid blocks, removals of the last block and reorgs to a
+ * longer competing branch, in proportions set on the generator.
+ *
+ * <p>Every choice comes from one {@link Random} seeded at construction, so
+ * a run over a chain mined at difficulty 0 with a {@link SequentialMiner}
+ * is reproduced exactly by its seed. Every {@link #setCheckInterval N}
+ * operations, and at the end, the chain's invariants are checked: money is
+ * neither made nor lost, no account but Bob's is overdrawn, Anna's balance
+ * agrees with her account, the tip is indexed as an ancestor and the chain
+ * is valid. Invalid operations must be rejected and leave the chain as it
+ * was. A broken invariant ends the run with an {@link IllegalStateException}
+ * that names the seed and the operation.
+ *
+ * <p>With a target rate set, operations are started on a fixed schedule
+ * and their latency is measured from when they were due, so a stall shows
+ * up in the latency of every operation it delayed.
+ */
+public final class LoadGenerator {
+    /** The default number of accounts transfers move money between. */
+    private static final int DEFAULT_ACCOUNTS = 64;
+    /** The largest amount a single transfer carries, so balances fit in an int. */
+    private static final long MAX_AMOUNT = 1 << 20;
+
+    /** The seed the run's choices come from. */
+    private final long seed;
+    /** The source of every choice. */
+    private final Random random;
+    /** The number of accounts, with ids from 0 up. */
+    private int accounts = DEFAULT_ACCOUNTS;
+    /** The most transfers mined into one block. */
+    private int maxBatch = 8;
+    /** The typical transfer amount. */
+    private int amountScale = 100;
+    /** The shape of the Pareto distribution of amounts, or 0 for uniform amounts. */
+    private double paretoShape;
+    /** The share of operations that are invalid and must be rejected. */
+    private double invalidShare;
+    /** The share of operations that remove the last block. */
+    private double removeShare;
+    /** The share of operations that switch to a competing branch. */
+    private double reorgShare;
+    /** The most blocks a reorg replaces. */
+    private int maxReorgDepth = 4;
+    /** The number of operations started per second, or 0 to run flat out. */
+    private int targetRate;
+    /** The number of operations between invariant checks. */
+    private int checkInterval = 100;
+
+    /**
+     * Constructs a generator whose choices all follow from the given seed.
+     *
+     * @param seed the seed
+     */
+    public LoadGenerator(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns the seed this generator was constructed with.
+     *
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the accounts transfers move money between and how many go in a block.
+     *
+     * @param accounts the number of accounts, with ids from 0 up
+     * @param maxBatch the most transfers in one block
+     * @throws IllegalArgumentException if there are fewer than 2 accounts or
+     *         maxBatch is not positive
+     */
+    public void setAccounts(int accounts, int maxBatch) {
+        if (accounts < 2 || maxBatch < 1) {
+            throw new IllegalArgumentException("Need 2 accounts and 1 transfer per block.");
+        }
+        this.accounts = accounts;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Sets the distribution of transfer amounts: uniform from 1 to the
+     * scale, or, with a positive shape, Pareto distributed from 1 up with
+     * most amounts near the scale and a tail that grows heavier as the
+     * shape shrinks. Amounts are capped at 2^20 either way.
+     *
+     * @param scale the typical amount
+     * @param shape the Pareto shape, or 0 for uniform amounts
+     * @throws IllegalArgumentException if the scale is not positive or the shape is negative
+     */
+    public void setAmounts(int scale, double shape) {
+        if (scale < 1 || !(shape >= 0)) {
+            throw new IllegalArgumentException("Bad amount distribution.");
+        }
+        this.amountScale = scale;
+        this.paretoShape = shape;
+    }
+
+    /**
+     * Sets how often each kind of operation other than a valid block occurs.
+     *
+     * @param invalid the share of operations that are invalid
+     * @param remove  the share that remove the last block
+     * @param reorg   the share that switch to a competing branch
+     * @throws IllegalArgumentException if a share is negative or they add up past 1
+     */
+    public void setRates(double invalid, double remove, double reorg) {
+        if (!(invalid >= 0 && remove >= 0 && reorg >= 0 && invalid + remove + reorg <= 1)) {
+            throw new IllegalArgumentException(
+                "Shares must be non-negative and add up to 1 at most.");
+        }
+        this.invalidShare = invalid;
+        this.removeShare = remove;
+        this.reorgShare = reorg;
+    }
+
+    /**
+     * Sets the number of operations to start per second.
+     *
+     * @param opsPerSecond the target rate, or 0 to run flat out
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public void setTargetRate(int opsPerSecond) {
+        if (opsPerSecond < 0) {
+            throw new IllegalArgumentException("Target rate must not be negative.");
+        }
+        this.targetRate = opsPerSecond;
+    }
+
+    /**
+     * Sets the number of operations between invariant checks.
+     *
+     * @param interval the number of operations
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public void setCheckInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Check interval must be positive.");
+        }
+        this.checkInterval = interval;
+    }
+
+    /**
+     * Runs operations against a chain for the given time.
+     *
+     * @param chain    the chain to drive
+     * @param duration how long to run
+     * @return the report, as described in {@link #run(BlockChain, int)}
+     * @throws IllegalStateException if an invariant breaks
+     */
+    public Map<String, Number> run(BlockChain chain, Duration duration) {
+        return run(chain, System.nanoTime() + duration.toNanos(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the given number of operations against a chain. The report adds
+     * to the chain's {@link BlockChain#exportMetrics() metrics} the number
+     * of operations ("soak.ops") and of those rejected ("soak.rejected"),
+     * the rate sustained ("soak.ops_per_sec"), the operations' latency
+     * percentiles in nanoseconds ("soak.latency.p50", ".p99", ".p999" and
+     * ".max"), the growth in heap used ("soak.heap.growth", in bytes) and
+     * the time spent collecting garbage ("soak.gc.time", in milliseconds).
+     *
+     * @param chain the chain to drive
+     * @param ops   the number of operations
+     * @return the report
+     * @throws IllegalStateException if an invariant breaks
+     */
+    public Map<String, Number> run(BlockChain chain, int ops) {
+        return run(chain, Long.MAX_VALUE, ops);
+    }
+
+    /**
+     * Runs operations until the deadline passes or enough have run.
+     *
+     * @param chain    the chain to drive
+     * @param deadline the time to stop, by {@link System#nanoTime()}
+     * @param ops      the most operations to run
+     * @return the report
+     */
+    private Map<String, Number> run(BlockChain chain, long deadline, long ops) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long gcBefore = gcMillis();
+        LatencyHistogram latency = new LatencyHistogram();
+        long period = targetRate == 0 ? 0 : 1_000_000_000L / targetRate;
+        long start = System.nanoTime();
+        long done = 0;
+        long rejected = 0;
+        while (done < ops && System.nanoTime() < deadline) {
+            long due = start + done * period;
+            if (period > 0) {
+                LockSupport.parkNanos(due - System.nanoTime());
+            } else {
+                due = System.nanoTime();
+            }
+            if (!step(chain, done)) {
+                rejected++;
+            }
+            latency.record(System.nanoTime() - due);
+            done++;
+            if (done % checkInterval == 0) {
+                check(chain, done);
+            }
+        }
+        check(chain, done);
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, Number> report = chain.exportMetrics();
+        report.put("soak.ops", done);
+        report.put("soak.rejected", rejected);
+        report.put("soak.ops_per_sec", done * 1e9 / Math.max(elapsed, 1));
+        report.put("soak.latency.p50", latency.getPercentile(0.5));
+        report.put("soak.latency.p99", latency.getPercentile(0.99));
+        report.put("soak.latency.p999", latency.getPercentile(0.999));
+        report.put("soak.latency.max", latency.getMax());
+        report.put("soak.heap.growth", memory.getHeapMemoryUsage().getUsed() - heapBefore);
+        report.put("soak.gc.time", gcMillis() - gcBefore);
+        return report;
+    }
+
+    /**
+     * Returns the time every garbage collector has spent so far.
+     *
+     * @return the total collection time in milliseconds
+     */
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    /**
+     * Runs one operation, picked at random by the configured shares.
+     *
+     * @param chain the chain
+     * @param op    the number of the operation, for reporting
+     * @return true if the operation was applied, false if it was rejected
+     */
+    private boolean step(BlockChain chain, long op) {
+        double pick = random.nextDouble();
+        boolean removable = chain.getSize() - 1 >= firstRemovable(chain);
+        if (pick < invalidShare) {
+            rejectInvalid(chain, op);
+            return false;
+        }
+        pick -= invalidShare;
+        if (pick < removeShare && removable) {
+            chain.removeLast();
+            return true;
+        }
+        pick -= removeShare;
+        if (pick < reorgShare && removable) {
+            reorg(chain);
+            return true;
+        }
+        chain.mine(transfers(chain));
+        return true;
+    }
+
+    /**
+     * Returns the lowest height a block can be removed or replaced from.
+     *
+     * @param chain the chain
+     * @return the height
+     */
+    private static int firstRemovable(BlockChain chain) {
+        return chain.getFirstHeight() + 1;
+    }
+
+    /**
+     * Draws a batch of transfers that every sender can afford.
+     *
+     * @param chain the chain whose balances the senders draw on
+     * @return the transfers
+     */
+    private List<Transfer> transfers(BlockChain chain) {
+        long[] pending = new long[accounts];
+        int count = 1 + random.nextInt(maxBatch);
+        List<Transfer> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int from = random.nextInt(accounts);
+            long available = chain.getBalance(from) + pending[from];
+            long amount = amount();
+            if (from != Transfer.BOB && available < amount) {
+                from = Transfer.BOB;
+            }
+            int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+            pending[from] -= amount;
+            pending[to] += amount;
+            batch.add(new Transfer(from, to, amount));
+        }
+        return batch;
+    }
+
+    /**
+     * Draws a transfer amount from the configured distribution.
+     *
+     * @return the amount, from 1 to 2^20
+     */
+    private long amount() {
+        if (paretoShape == 0) {
+            return 1 + random.nextInt(amountScale);
+        }
+        double tail = Math.pow(1 - random.nextDouble(), -1 / paretoShape);
+        return (long) Math.min(Math.ceil(amountScale * (tail - 1)) + 1, MAX_AMOUNT);
+    }
+
+    /**
+     * Offers the chain an invalid operation, checking that it is rejected
+     * and changes nothing: either a block that would overdraw an account,
+     * or a block that links to no block of the chain.
+     *
+     * @param chain the chain
+     * @param op    the number of the operation, for reporting
+     */
+    private void rejectInvalid(BlockChain chain, long op) {
+        int size = chain.getSize();
+        Hash tip = chain.getHash();
+        int victim = 1 + random.nextInt(accounts - 1);
+        try {
+            if (random.nextBoolean()) {
+                long balance = Math.max(chain.getBalance(victim), 0);
+                chain.mine(List.of(new Transfer(victim, Transfer.BOB, balance + 1)));
+            } else {
+                Transfer[] pay = {new Transfer(Transfer.BOB, victim, amount())};
+                chain.append(chain.getMiner().mine(chain.getBlock(size - 1).getDifficulty(),
+                    size, pay, new Hash(new byte[Hash.LENGTH])));
+            }
+        } catch (IllegalArgumentException e) {
+            if (chain.getSize() != size || !chain.getHash().equals(tip)) {
+                throw broken(op, "a rejected block changed the chain");
+            }
+            return;
+        }
+        throw broken(op, "an invalid block was accepted");
+    }
+
+    /**
+     * Replaces the last few blocks with a longer branch of freshly mined
+     * blocks, each paying accounts out of Bob's.
+     *
+     * @param chain the chain
+     */
+    private void reorg(BlockChain chain) {
+        int depth = 1 + random.nextInt(
+            Math.min(maxReorgDepth, chain.getSize() - firstRemovable(chain)));
+        int height = chain.getSize() - depth;
+        Block prev = chain.getBlock(height - 1);
+        List<Block> branch = new ArrayList<>(depth + 1);
+        for (int i = 0; i <= depth; i++) {
+            Transfer[] pay = {new Transfer(Transfer.BOB, 1 + random.nextInt(accounts - 1),
+                amount())};
+            prev = chain.getMiner().mine(prev.getDifficulty(), height + i, pay, prev.getHash());
+            branch.add(prev);
+        }
+        chain.replaceSuffix(height, branch);
+    }
+
+    /**
+     * Checks the chain's invariants.
+     *
+     * @param chain the chain
+     * @param op    the number of operations run, for reporting
+     * @throws IllegalStateException if an invariant is broken
+     */
+    private void check(BlockChain chain, long op) {
+        long total = 0;
+        for (int id = 0; id < accounts; id++) {
+            long balance = chain.getBalance(id);
+            if (id != Transfer.BOB && balance < 0) {
+                throw broken(op, "account " + id + " is overdrawn");
+            }
+            total += balance;
+        }
+        if (total != 0) {
+            throw broken(op, "the balances add up to " + total);
+        }
+        if (chain.getAnnaBalance() != chain.getBalance(Transfer.ANNA)) {
+            throw broken(op, "Anna's balance disagrees with her account");
+        }
+        if (!chain.isAncestor(chain.getHash(), chain.getSize() - 1)) {
+            throw broken(op, "the tip is missing from the ancestor index");
+        }
+        if (!chain.isValidBlockChain()) {
+            throw broken(op, "the chain is invalid");
+        }
+    }
+
+    /**
+     * Describes a broken invariant so that the run can be reproduced.
+     *
+     * @param op      the number of the operation it broke at
+     * @param problem what went wrong
+     * @return the exception to throw
+     */
+    private IllegalStateException broken(long op, String problem) {
+        return new IllegalStateException(
+            "Invariant broken after " + op + " operations (seed " + seed + "): " + problem);
+    }
+
+    /**
+     * Soaks a new chain, mined at difficulty 0 unless the system property
+     * blockchain.difficulty says otherwise, and prints the report.
+     * Usage: java edu.grinnell.csc207.blockchain.LoadGenerator
+     *            seconds [seed] [opsPerSecond] [invalid remove reorg]
+     *
+     * <p>The seed defaults to one made up for the run and printed first;
+     * the rate defaults to flat out, and the shares to 0.05 invalid, 0.05
+     * removals and 0.02 reorgs. A broken invariant is printed with the seed
+     * and exits with status 1.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java LoadGenerator seconds [seed] [opsPerSecond]"
+                + " [invalid remove reorg]");
+            return;
+        }
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        LoadGenerator load = new LoadGenerator(seed);
+        if (args.length > 2) {
+            load.setTargetRate(Integer.parseInt(args[2]));
+        }
+        double[] shares = {0.05, 0.05, 0.02};
+        for (int i = 0; i < shares.length && i + 3 < args.length; i++) {
+            shares[i] = Double.parseDouble(args[i + 3]);
+        }
+        load.setRates(shares[0], shares[1], shares[2]);
+        System.out.println("seed " + seed);
+        BlockChain chain = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2,
+            Integer.getInteger("blockchain.difficulty", 0));
+        try {
+            Map<String, Number> report =
+                load.run(chain, Duration.ofSeconds(Long.parseLong(args[0])));
+            String[] names = report.keySet().toArray(new String[0]);
+            Arrays.sort(names);
+            for (String name : names) {
+                System.out.println(name + " " + report.get(name));
+            }
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
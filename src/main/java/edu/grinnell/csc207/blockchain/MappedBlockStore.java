@@ -0,0 +1,394 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A block store kept in an append-only file of fixed-width records (see
+ * {@link BlockRecords}), read through a memory-mapped view of the file.
+ *
+ * <p>Opening a file reads only its header and last record, so startup does
+ * not depend on the length of the chain, and no block objects exist until
+ * they are asked for: each {@link #get(int)} builds a fresh block from its
+ * record. Records are appended with positional writes, and
+ * {@link #removeLast()} truncates the file, so the file always holds
+ * exactly the blocks in the store. A partial record left at the end of the
+ * file by a crash is dropped when the file is opened. The hash index behind
+ * {@link #indexOf(Hash)} is only built on the first lookup.
+ *
+ * <p>The bodies of blocks that have them, such as batches of several
+ * transactions or blocks of transfers, go one after another in a second
+ * file beside the chain file, named as {@link #bodyPath(Path)} says. A body is written before
+ * its record, so a crash can leave a body without a record, which is
+ * dropped on opening, but never a record without its body.
+ *
+ * <p>The file is mapped in regions of {@link #REGION_RECORDS} records,
+ * each mapped the first time one of its records is read, so the file is
+ * not held to the 2 GiB one mapping can cover. The records appended since
+ * opening to the region the chain is growing into are also copied to a
+ * heap buffer, which grows by doubling up to a region, and read from
+ * there; a region is so mapped at most once while it fills and once when
+ * it is full, rather than again on every read after an append.
+ */
+public class MappedBlockStore implements BlockStore, Closeable {
+    /** The first bytes of every chain file ("BLKC"). */
+    static final int MAGIC = 0x424c4b43;
+    /** The version of the file format. */
+    static final int FORMAT = 4;
+    /** The size of the file header: the magic number and the format version. */
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    /** The base-2 logarithm of the number of records in a region. */
+    private static final int REGION_SHIFT = 16;
+    /** The number of records in a region of the mapping. */
+    static final int REGION_RECORDS = 1 << REGION_SHIFT;
+    /** The initial length of the region array. */
+    private static final int INITIAL_REGIONS = 4;
+    /** The number of records the tail buffer first has room for. */
+    private static final int INITIAL_TAIL = 64;
+
+    /** The channel to the chain file. */
+    private final FileChannel channel;
+    /** The channel to the file of block bodies. */
+    private final FileChannel bodies;
+    /** The length of the bodies of every block in the store. */
+    private long bodyEnd;
+    /** Read-only views of the file, by height / REGION_RECORDS; null until first read. */
+    private MappedByteBuffer[] regions = new MappedByteBuffer[INITIAL_REGIONS];
+    /** The records from tailStart on, at their offsets within their region. */
+    private ByteBuffer tail = ByteBuffer.allocate(INITIAL_TAIL * BlockRecords.SIZE);
+    /** The height of the first record in the tail buffer; every record above it is too. */
+    private int tailStart;
+    /** The number of blocks in the store. */
+    private int size;
+    /** The last block, if it is known without reading it back; otherwise null. */
+    private Block tip;
+    /** The index from block hash to height, or null until the first lookup. */
+    private HashIndex index;
+    /** The buffer records are written from. */
+    private final ByteBuffer record = ByteBuffer.allocate(BlockRecords.SIZE);
+
+    /**
+     * Opens the chain file at the given path, creating an empty one if it
+     * does not exist.
+     *
+     * @param path the path of the chain file
+     * @throws IOException if the file cannot be opened or is not a chain file
+     */
+    public MappedBlockStore(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.bodies = FileChannel.open(bodyPath(path), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        try {
+            long length = channel.size();
+            if (length == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT).flip();
+                writeFully(channel, header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (channel.read(header, 0) < HEADER_SIZE
+                    || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != FORMAT) {
+                    throw new IOException(path + " is not a block chain file.");
+                }
+                long records = (length - HEADER_SIZE) / BlockRecords.SIZE;
+                if (records > Integer.MAX_VALUE) {
+                    throw new IOException(path + " holds too many blocks.");
+                }
+                size = (int) records;
+                // Drop a record torn by a crash mid-append, and any whose body did not reach disk
+                while (size > 0 && readBodyEnd(size - 1) > bodies.size()) {
+                    size--;
+                }
+                channel.truncate(offset(size));
+                bodyEnd = size == 0 ? 0 : readBodyEnd(size - 1);
+                bodies.truncate(bodyEnd);
+            }
+            tailStart = size;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            bodies.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the path of the file that holds the block bodies for the
+     * chain file at the given path: the chain file's name with ".body" added.
+     *
+     * @param path the path of the chain file
+     * @return the path of its bodies
+     */
+    public static Path bodyPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".body");
+    }
+
+    /**
+     * Reads the end of a block's body from the chain file, without the mapping.
+     *
+     * @param height the height of the block
+     * @return where its body ends in the bodies file
+     * @throws IOException if the record cannot be read
+     */
+    private long readBodyEnd(int height) throws IOException {
+        ByteBuffer end = ByteBuffer.allocate(Long.BYTES);
+        readFully(channel, end, offset(height) + BlockRecords.BODY_END);
+        return end.getLong(0);
+    }
+
+    /**
+     * Returns the file offset of the record at the given height.
+     *
+     * @param height the height of the record
+     * @return the offset of the record
+     */
+    private static long offset(long height) {
+        return HEADER_SIZE + height * BlockRecords.SIZE;
+    }
+
+    /**
+     * Returns the offset of the record at the given height within its region.
+     *
+     * @param height the height of the record
+     * @return the offset of the record
+     */
+    private static int within(int height) {
+        return (height & (REGION_RECORDS - 1)) * BlockRecords.SIZE;
+    }
+
+    /**
+     * Returns a buffer holding the record at the given height at
+     * {@link #within(int)}: the tail buffer, if the record is in it, or
+     * else the mapping of the record's region, which is mapped up to the
+     * end of the file if it is not mapped yet or its mapping ends before
+     * the record.
+     *
+     * @param height the height of the record
+     * @return the buffer holding the record
+     * @throws IndexOutOfBoundsException if there is no block at that height
+     */
+    private ByteBuffer region(int height) {
+        if (height < 0 || height >= size) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+        if (height >= tailStart) {
+            return tail;
+        }
+        int r = height >>> REGION_SHIFT;
+        if (r >= regions.length) {
+            regions = Arrays.copyOf(regions, Math.max(2 * regions.length, r + 1));
+        }
+        if (regions[r] == null || within(height) >= regions[r].capacity()) {
+            int first = r << REGION_SHIFT;
+            int records = Math.min(size - first, REGION_RECORDS);
+            try {
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, offset(first),
+                    (long) records * BlockRecords.SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return regions[r];
+    }
+
+    /**
+     * Writes all of a buffer at the given file position.
+     *
+     * @param file     the file to write to
+     * @param buffer   the bytes to write
+     * @param position the file position to write at
+     * @throws IOException if the write fails
+     */
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+
+    /**
+     * Fills a buffer from the given file position.
+     *
+     * @param file     the file to read from
+     * @param buffer   the buffer to fill
+     * @param position the file position to read at
+     * @throws IOException if the read fails or the file ends first
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("The file ends before the data read from it.");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Block get(int height) {
+        if (height == size - 1 && tip != null) {
+            return tip;
+        }
+        ByteBuffer map = region(height);
+        Hash prevHash = null;
+        long start = 0;
+        if (height > 0) {
+            ByteBuffer prev = region(height - 1);
+            prevHash = BlockRecords.hashAt(prev, within(height - 1));
+            start = BlockRecords.bodyEndAt(prev, within(height - 1));
+        }
+        long end = BlockRecords.bodyEndAt(map, within(height));
+        ByteBuffer body = null;
+        if (end > start) {
+            body = ByteBuffer.allocate(Math.toIntExact(end - start));
+            try {
+                readFully(bodies, body, start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            body.flip();
+        }
+        return BlockRecords.read(map, within(height), prevHash, body);
+    }
+
+    @Override
+    public int amountAt(int height) {
+        return region(height).getInt(within(height) + BlockRecords.AMOUNT);
+    }
+
+    @Override
+    public int indexOf(Hash hash) {
+        if (index == null) {
+            HashIndex built = new HashIndex();
+            for (int height = 0; height < size; height++) {
+                built.add(height, BlockRecords.hashCodeAt(region(height), within(height)));
+            }
+            index = built;
+        }
+        // Candidates are checked against their records, without reading bodies
+        return index.find(hash.hashCode(),
+            height -> BlockRecords.hashAt(region(height), within(height)).equals(hash));
+    }
+
+    @Override
+    public void append(Block block) {
+        int bodySize = BlockRecords.bodySize(block);
+        record.clear();
+        BlockRecords.write(record, block, bodyEnd + bodySize);
+        record.flip();
+        try {
+            if (bodySize > 0) {
+                ByteBuffer body = ByteBuffer.allocate(bodySize);
+                BlockRecords.writeBody(body, block);
+                writeFully(bodies, body.flip(), bodyEnd);
+            }
+            writeFully(channel, record, offset(size));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bodyEnd += bodySize;
+        int end = within(size) + BlockRecords.SIZE;
+        if (end > tail.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                Math.min(Math.max(2 * tail.capacity(), end), REGION_RECORDS * BlockRecords.SIZE));
+            tail = grown.put(0, tail, 0, tail.capacity());
+        }
+        tail.put(within(size), record, 0, BlockRecords.SIZE);
+        if (index != null) {
+            index.add(size, block.getHash().hashCode());
+        }
+        size++;
+        if (within(size) == 0) {
+            // The region is full, so it is read through one mapping from here on
+            tailStart = size;
+        }
+        tip = block;
+    }
+
+    @Override
+    public void removeLast() {
+        if (size == 0) {
+            throw new NoSuchElementException("The store is empty.");
+        }
+        truncate(size - 1);
+    }
+
+    /**
+     * Removes blocks from the end of the store with a single truncation of
+     * the chain file and of the bodies file, rather than one per block.
+     *
+     * @param newSize the number of blocks to keep
+     * @throws IllegalArgumentException if newSize is negative or more than the store holds
+     */
+    @Override
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IllegalArgumentException(
+                "Cannot truncate the store to " + newSize + " blocks.");
+        }
+        if (index != null) {
+            for (int height = newSize; height < size; height++) {
+                index.remove(height, BlockRecords.hashCodeAt(region(height), within(height)));
+            }
+        }
+        long newBodyEnd = newSize == 0
+            ? 0 : BlockRecords.bodyEndAt(region(newSize - 1), within(newSize - 1));
+        try {
+            channel.truncate(offset(newSize));
+            bodies.truncate(newBodyEnd);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = newSize;
+        bodyEnd = newBodyEnd;
+        // A mapping must never be read past the end of the file
+        Arrays.fill(regions, Math.min(size >>> REGION_SHIFT, regions.length), regions.length,
+            null);
+        tailStart = Math.min(tailStart, size);
+        tip = null;
+    }
+
+    /**
+     * Forces every appended record and body out to the storage device.
+     *
+     * @throws IOException if the files cannot be synced
+     */
+    public void force() throws IOException {
+        bodies.force(false);
+        channel.force(false);
+    }
+
+    /**
+     * Closes the chain file and the bodies file.
+     *
+     * @throws IOException if the files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            bodies.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
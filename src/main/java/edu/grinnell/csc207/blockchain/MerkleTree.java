@@ -0,0 +1,100 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Computes the Merkle root that commits a block header to its batch of
+ * transactions or transfers.
+ *
+ * <p>Each leaf is the SHA-256 of a 0 byte followed by the transaction's
+ * 4-byte big-endian amount, or of a 2 byte followed by the transfer's
+ * 4-byte sender, 4-byte receiver and 8-byte amount. Each inner node is the SHA-256 of a 1 byte
+ * followed by its two children. The distinct prefixes keep a leaf from ever
+ * being passed off as an inner node. When a level has an odd number of
+ * nodes, the last one is carried up unchanged rather than paired with
+ * itself, so two different batches never share a root.
+ */
+final class MerkleTree {
+    /** The prefix hashed before a leaf. */
+    private static final byte LEAF = 0;
+    /** The prefix hashed before a pair of children. */
+    private static final byte NODE = 1;
+    /** The prefix hashed before a transfer leaf. */
+    private static final byte TRANSFER = 2;
+
+    /**
+     * Not instantiable.
+     */
+    private MerkleTree() {
+    }
+
+    /**
+     * Computes the Merkle root of a batch of transactions.
+     *
+     * @param transactions the amounts of the transactions, in order
+     * @return the root hash
+     * @throws IllegalArgumentException if there are no transactions
+     */
+    static Hash root(int[] transactions) {
+        if (transactions.length == 0) {
+            throw new IllegalArgumentException("A batch needs at least one transaction.");
+        }
+        MessageDigest md = NonceHasher.sha256();
+        ByteBuffer level = ByteBuffer.allocate(transactions.length * Hash.LENGTH);
+        byte[] leaf = new byte[1 + Integer.BYTES];
+        leaf[0] = LEAF;
+        for (int amount : transactions) {
+            ByteBuffer.wrap(leaf, 1, Integer.BYTES).putInt(amount);
+            level.put(md.digest(leaf));
+        }
+        return reduce(level, transactions.length, md);
+    }
+
+    /**
+     * Computes the Merkle root of a block of transfers.
+     *
+     * @param transfers the transfers, in order
+     * @return the root hash
+     * @throws IllegalArgumentException if there are no transfers
+     */
+    static Hash root(Transfer[] transfers) {
+        if (transfers.length == 0) {
+            throw new IllegalArgumentException("A block needs at least one transfer.");
+        }
+        MessageDigest md = NonceHasher.sha256();
+        ByteBuffer level = ByteBuffer.allocate(transfers.length * Hash.LENGTH);
+        byte[] leaf = new byte[1 + 2 * Integer.BYTES + Long.BYTES];
+        leaf[0] = TRANSFER;
+        for (Transfer t : transfers) {
+            ByteBuffer.wrap(leaf, 1, leaf.length - 1)
+                .putInt(t.getFrom()).putInt(t.getTo()).putLong(t.getAmount());
+            level.put(md.digest(leaf));
+        }
+        return reduce(level, transfers.length, md);
+    }
+
+    /**
+     * Hashes a level of leaves up to the root.
+     *
+     * @param level the leaf hashes, back to back
+     * @param count the number of leaves
+     * @param md    the digest to hash with
+     * @return the root hash
+     */
+    private static Hash reduce(ByteBuffer level, int count, MessageDigest md) {
+        // Each level is computed in place over the one below it
+        byte[] pair = new byte[1 + 2 * Hash.LENGTH];
+        pair[0] = NODE;
+        for (int n = count; n > 1; n = (n + 1) / 2) {
+            for (int i = 0; i < n / 2; i++) {
+                level.get(2 * i * Hash.LENGTH, pair, 1, 2 * Hash.LENGTH);
+                level.put(i * Hash.LENGTH, md.digest(pair));
+            }
+            if (n % 2 == 1) {
+                level.put(n / 2 * Hash.LENGTH, level, (n - 1) * Hash.LENGTH, Hash.LENGTH);
+            }
+        }
+        return Hash.read(level, 0);
+    }
+}
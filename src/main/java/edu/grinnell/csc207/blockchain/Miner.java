@@ -0,0 +1,139 @@
+package edu.grinnell.csc207.blockchain;
+
+/**
+ * A strategy for searching the nonce space of a block. Implementations
+ * decide how the work is scheduled (one thread, a pool of workers, ...),
+ * but every implementation must return a nonce whose hash meets the
+ * requested difficulty.
+ */
+public interface Miner {
+
+    /**
+     * Searches for a nonce that, written into the given header bytes, makes
+     * them hash to a value with at least the given number of leading zero
+     * bits. The other ways to search are built on this one.
+     *
+     * @param header      the header bytes, as {@link Block} lays them out
+     * @param nonceOffset where the 8 nonce bytes sit within the header
+     * @param difficulty  the number of leading zero bits the hash must have
+     * @return a nonce whose hash meets the difficulty
+     */
+    long findNonce(byte[] header, int nonceOffset, int difficulty);
+
+    /**
+     * Searches for a nonce that makes the block with the given contents
+     * hash to a value with at least the given number of leading zero bits.
+     *
+     * @param version    the header layout
+     * @param difficulty the number of leading zero bits the hash must have
+     * @param num        the block number
+     * @param amount     the transaction amount
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     * @return a nonce whose hash meets the difficulty
+     */
+    default long findNonce(int version, int difficulty, int num, int amount, Hash prevHash) {
+        return findNonce(Block.header(version, num, difficulty, amount, 0, prevHash, 0),
+            Block.nonceOffset(version, prevHash), difficulty);
+    }
+
+    /**
+     * Searches for a nonce that makes a {@link Block#HEADER_V3} or
+     * {@link Block#HEADER_V4} block committing to the given Merkle root hash
+     * to a value with at least the given number of leading zero bits.
+     *
+     * @param difficulty the number of leading zero bits the hash must have
+     * @param num        the block number
+     * @param merkleRoot the Merkle root of the block's transactions or transfers
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     * @return a nonce whose hash meets the difficulty
+     */
+    default long findNonce(int difficulty, int num, Hash merkleRoot, Hash prevHash) {
+        return findNonce(Block.batchHeader(num, difficulty, merkleRoot, 0, prevHash, 0),
+            Block.nonceOffset(Block.HEADER_V3, prevHash), difficulty);
+    }
+
+    /**
+     * Searches for a nonce that makes a {@link Block#HEADER_V3} block of the
+     * given transactions hash to a value with at least the given number of
+     * leading zero bits.
+     *
+     * @param difficulty   the number of leading zero bits the hash must have
+     * @param num          the block number
+     * @param transactions the transaction amounts, in order
+     * @param prevHash     the hash of the previous block (null for the genesis block)
+     * @return a nonce whose hash meets the difficulty
+     */
+    default long findNonce(int difficulty, int num, int[] transactions, Hash prevHash) {
+        return findNonce(difficulty, num, MerkleTree.root(transactions), prevHash);
+    }
+
+    /**
+     * Mines a complete block with the given contents.
+     *
+     * @param version    the header layout
+     * @param difficulty the number of leading zero bits the hash must have
+     * @param num        the block number
+     * @param amount     the transaction amount
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     * @return the mined block
+     */
+    default Block mine(int version, int difficulty, int num, int amount, Hash prevHash) {
+        long nonce = findNonce(version, difficulty, num, amount, prevHash);
+        return new Block(num, amount, prevHash, nonce, version, difficulty);
+    }
+
+    /**
+     * Mines the genesis block of a chain, committing to how often the
+     * chain may change its difficulty.
+     *
+     * @param version          the header layout
+     * @param difficulty       the number of leading zero bits the hash must have
+     * @param amount           the transaction amount
+     * @param retargetInterval the number of blocks between difficulty
+     *                         changes, or 0 to keep the difficulty fixed
+     * @return the mined block
+     */
+    default Block mineGenesis(int version, int difficulty, int amount, int retargetInterval) {
+        long nonce = findNonce(Block.header(version, 0, difficulty, amount, 0, null,
+            retargetInterval), Block.nonceOffset(version, null), difficulty);
+        return new Block(0, amount, null, nonce, version, difficulty, retargetInterval);
+    }
+
+    /**
+     * Mines a complete block carrying the given batch of transactions.
+     *
+     * @param difficulty   the number of leading zero bits the hash must have
+     * @param num          the block number
+     * @param transactions the transaction amounts, in order
+     * @param prevHash     the hash of the previous block (null for the genesis block)
+     * @return the mined block
+     */
+    default Block mine(int difficulty, int num, int[] transactions, Hash prevHash) {
+        long nonce = findNonce(difficulty, num, transactions, prevHash);
+        return new Block(num, transactions, prevHash, nonce, difficulty);
+    }
+
+    /**
+     * Mines a complete {@link Block#HEADER_V4} block carrying the given transfers.
+     *
+     * @param difficulty the number of leading zero bits the hash must have
+     * @param num        the block number
+     * @param transfers  the transfers, in order
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     * @return the mined block
+     */
+    default Block mine(int difficulty, int num, Transfer[] transfers, Hash prevHash) {
+        long nonce = findNonce(difficulty, num, MerkleTree.root(transfers), prevHash);
+        return new Block(num, transfers, prevHash, nonce, difficulty);
+    }
+
+    /**
+     * Returns the number of workers that search at once, so that hash rates
+     * can be reported per worker.
+     *
+     * @return the number of workers
+     */
+    default int getWorkers() {
+        return 1;
+    }
+}
@@ -0,0 +1,185 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A handle on a block being mined in the background by a
+ * {@link MiningService}. It reports progress while the search runs and
+ * completes with the mined block, which is not appended to the chain.
+ *
+ * <p>If the chain's tip changes while the job runs, the service restarts
+ * it on the new tip; the handle stays the same and keeps counting attempts
+ * across restarts.
+ */
+public final class MiningJob {
+    /** The stages of a job's life. */
+    public enum State {
+        /** The search is still running. */
+        RUNNING,
+        /** A block was mined. */
+        DONE,
+        /** The job was cancelled. */
+        CANCELLED,
+        /** The search failed with an exception. */
+        FAILED
+    }
+
+    /** The transaction amount of the block being mined. */
+    private final int amount;
+    /** The {@link System#nanoTime()} at which the job started. */
+    private final long startNanos = System.nanoTime();
+    /** Completes with the mined block. */
+    private final CompletableFuture<Block> result = new CompletableFuture<>();
+    /** The number of nonces tried so far. */
+    private final LongAdder attempts = new LongAdder();
+    /** The number of the current search; bumped on every restart. */
+    private volatile int generation;
+
+    /**
+     * Constructs a running job.
+     *
+     * @param amount the transaction amount of the block being mined
+     */
+    MiningJob(int amount) {
+        this.amount = amount;
+    }
+
+    /**
+     * Starts a new search for this job, stopping the previous one.
+     *
+     * @return the progress of the new search
+     */
+    synchronized Attempt restart() {
+        generation++;
+        return new Attempt(generation);
+    }
+
+    /**
+     * Completes the job with a mined block, unless the search that mined it
+     * has since been replaced by a restart.
+     *
+     * @param attempt the search that mined the block
+     * @param block   the mined block
+     * @return true if the job is now done with the block
+     */
+    synchronized boolean complete(Attempt attempt, Block block) {
+        return attempt.generation == generation && result.complete(block);
+    }
+
+    /**
+     * Fails the job.
+     *
+     * @param failure why the search failed
+     */
+    void fail(Throwable failure) {
+        result.completeExceptionally(failure);
+    }
+
+    /**
+     * Cancels the job. The search stops within one chunk of nonces per worker.
+     *
+     * @return true if the job was running and is now cancelled
+     */
+    public boolean cancel() {
+        return result.cancel(false);
+    }
+
+    /**
+     * Returns the future that completes with the mined block.
+     *
+     * @return the result of the job
+     */
+    public CompletableFuture<Block> getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the stage the job is in.
+     *
+     * @return the job's state
+     */
+    public State getState() {
+        if (!result.isDone()) {
+            return State.RUNNING;
+        } else if (result.isCancelled()) {
+            return State.CANCELLED;
+        }
+        return result.isCompletedExceptionally() ? State.FAILED : State.DONE;
+    }
+
+    /**
+     * Returns the transaction amount of the block being mined.
+     *
+     * @return the amount
+     */
+    public int getAmount() {
+        return amount;
+    }
+
+    /**
+     * Returns the number of nonces tried so far, across restarts.
+     *
+     * @return the number of attempts
+     */
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    /**
+     * Returns the number of times the job was restarted on a new tip.
+     *
+     * @return the number of restarts
+     */
+    public int getRestarts() {
+        return generation - 1;
+    }
+
+    /**
+     * Returns how long the job has been running.
+     *
+     * @return the time since the job started
+     */
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the average number of nonces tried per second since the job started.
+     *
+     * @return the hash rate, in hashes per second
+     */
+    public double getHashRate() {
+        long nanos = System.nanoTime() - startNanos;
+        return nanos == 0 ? 0 : getAttempts() * 1e9 / nanos;
+    }
+
+    /**
+     * One search for the job's block, on the tip the chain had when it
+     * started. It stops once the job is done or restarted.
+     */
+    final class Attempt implements ParallelMiner.Progress {
+        /** The generation of the job this search belongs to. */
+        private final int generation;
+
+        /**
+         * Constructs the progress of a search.
+         *
+         * @param generation the generation of the job this search belongs to
+         */
+        private Attempt(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean isStopped() {
+            return result.isDone() || MiningJob.this.generation != generation;
+        }
+
+        @Override
+        public void attempted(long count) {
+            attempts.add(count);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Mines blocks for a chain in the background, one job at a time, so the
+ * caller gets a {@link MiningJob} handle straight away and can follow its
+ * progress or cancel it.
+ *
+ * <p>The service listens for changes to the chain's tip. When a block is
+ * appended or removed while a job runs, the search on the stale tip is
+ * stopped and started again on the new one. Mined blocks are not appended;
+ * that is left to the caller.
+ */
+public class MiningService implements Closeable {
+    /** The chain blocks are mined for. */
+    private final BlockChain chain;
+    /** The miner that runs each search. */
+    private final ParallelMiner miner;
+    /** The thread searches are started from; each search blocks it until done. */
+    private final ExecutorService executor;
+    /** Restarts the current job when the chain's tip changes. */
+    private final Runnable tipListener = this::tipChanged;
+    /** The most recently started job, or null if none has been started. */
+    private volatile MiningJob current;
+
+    /**
+     * Constructs a service mining for the given chain.
+     *
+     * @param chain the chain to mine blocks for
+     * @param miner the miner that runs each search
+     */
+    public MiningService(BlockChain chain, ParallelMiner miner) {
+        this.chain = chain;
+        this.miner = miner;
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "mining-service");
+            thread.setDaemon(true);
+            return thread;
+        });
+        chain.addTipListener(tipListener);
+    }
+
+    /**
+     * Starts mining a block with the given amount on the chain's current
+     * tip, cancelling any job still running.
+     *
+     * @param amount the transaction amount for the new block
+     * @return the handle of the new job
+     */
+    public synchronized MiningJob mine(int amount) {
+        if (current != null) {
+            current.cancel();
+        }
+        current = new MiningJob(amount);
+        start(current);
+        return current;
+    }
+
+    /**
+     * Returns the most recently started job, which may have finished.
+     *
+     * @return the current job, or null if none has been started
+     */
+    public MiningJob getCurrent() {
+        return current;
+    }
+
+    /**
+     * Restarts the current job on the chain's new tip, if it is still running.
+     */
+    private synchronized void tipChanged() {
+        if (current != null && current.getState() == MiningJob.State.RUNNING) {
+            start(current);
+        }
+    }
+
+    /**
+     * Starts a search for a job on the chain's current tip, stopping any
+     * earlier search for it. The tip is read here, on the thread that
+     * changed it, so the search never sees the chain mid-change.
+     *
+     * @param job the job to search for
+     */
+    private void start(MiningJob job) {
+        int version = chain.getHeaderVersion();
+        int difficulty = chain.getNextDifficulty();
+        int num = chain.getSize();
+        Hash prevHash = chain.getHash();
+        MiningJob.Attempt attempt = job.restart();
+        executor.execute(() -> {
+            try {
+                long nonce = miner.findNonce(version, difficulty, num, job.getAmount(), prevHash,
+                    attempt);
+                if (nonce >= 0 && job.complete(attempt, new Block(num, job.getAmount(),
+                        prevHash, nonce, version, difficulty))) {
+                    chain.getMetrics().recordMining(job.getElapsed().toNanos(),
+                        job.getAttempts(), miner.getWorkers());
+                }
+            } catch (RuntimeException e) {
+                job.fail(e);
+            }
+        });
+    }
+
+    /**
+     * Cancels the current job and stops the service. Jobs cannot be
+     * started once it is closed.
+     */
+    @Override
+    public synchronized void close() {
+        chain.removeTipListener(tipListener);
+        if (current != null) {
+            current.cancel();
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,195 @@
+package edu.grinnell.csc207.blockchain;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A reusable hasher for trying many nonces against the same block contents.
+ *
+ * <p>The header bytes are laid out once, so each attempt only overwrites the
+ * 8 nonce bytes. Trying a nonce allocates nothing; a {@link Hash} is only
+ * built when asked for. A hasher is not thread-safe, so each mining thread
+ * uses its own.
+ *
+ * <p>Attempts run either on the JDK's SHA-256 or on {@link Sha256Midstate},
+ * which skips the work that does not depend on the nonce. When the CPU has
+ * SHA instructions the JDK uses them and is the faster of the two, so the
+ * midstate hasher is only the default without them. The system property
+ * {@code blockchain.midstate} overrides the choice.
+ */
+final class NonceHasher {
+    /** The length in bytes of a SHA-256 digest. */
+    static final int DIGEST_LENGTH = Hash.LENGTH;
+    /** Writes a big-endian long into a byte array. */
+    private static final VarHandle LONG_BE =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    /** Whether attempts use the midstate hasher instead of the JDK's SHA-256. */
+    static final boolean USE_MIDSTATE = Boolean.parseBoolean(
+        System.getProperty("blockchain.midstate", String.valueOf(!hasShaInstructions())));
+    /** One SHA-256 instance per thread, shared by every hasher on it. */
+    private static final ThreadLocal<MessageDigest> SHA_256 =
+        ThreadLocal.withInitial(NonceHasher::newSha256);
+
+    /** The digest used for every attempt, or null when using the midstate. */
+    private final MessageDigest md;
+    /** The midstate hasher used for every attempt, or null when using md. */
+    private final Sha256Midstate midstate;
+    /** The header bytes; only the nonce bytes change between attempts. */
+    private final byte[] header;
+    /** The offset of the nonce within the header. */
+    private final int nonceOffset;
+    /** The number of leading zero bits a hash must have to be valid. */
+    private final int difficulty;
+    /** The digest of the most recent attempt, when using md. */
+    private final byte[] digest = new byte[DIGEST_LENGTH];
+    /** The hash state of the most recent attempt, when using the midstate. */
+    private int[] state;
+
+    /**
+     * Constructs a hasher for the given block contents.
+     *
+     * @param version    the header layout
+     * @param difficulty the number of leading zero bits a hash must have
+     * @param num        the block number
+     * @param amount     the transaction amount
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     */
+    NonceHasher(int version, int difficulty, int num, int amount, Hash prevHash) {
+        this(version, difficulty, num, amount, prevHash, USE_MIDSTATE);
+    }
+
+    /**
+     * Constructs a hasher for the given block contents.
+     *
+     * @param version     the header layout
+     * @param difficulty  the number of leading zero bits a hash must have
+     * @param num         the block number
+     * @param amount      the transaction amount
+     * @param prevHash    the hash of the previous block (null for the genesis block)
+     * @param useMidstate whether to hash with the midstate hasher
+     */
+    NonceHasher(int version, int difficulty, int num, int amount, Hash prevHash,
+            boolean useMidstate) {
+        this(Block.header(version, num, difficulty, amount, 0, prevHash, 0),
+            Block.nonceOffset(version, prevHash), difficulty, useMidstate);
+    }
+
+    /**
+     * Constructs a hasher for already laid-out header bytes.
+     *
+     * @param header      the header bytes; they are copied, not kept
+     * @param nonceOffset the offset of the nonce within the header
+     * @param difficulty  the number of leading zero bits a hash must have
+     */
+    NonceHasher(byte[] header, int nonceOffset, int difficulty) {
+        this(header, nonceOffset, difficulty, USE_MIDSTATE);
+    }
+
+    /**
+     * Constructs a hasher for already laid-out header bytes.
+     *
+     * @param header      the header bytes; they are copied, not kept
+     * @param nonceOffset the offset of the nonce within the header
+     * @param difficulty  the number of leading zero bits a hash must have
+     * @param useMidstate whether to hash with the midstate hasher
+     */
+    NonceHasher(byte[] header, int nonceOffset, int difficulty, boolean useMidstate) {
+        this.difficulty = difficulty;
+        this.header = header.clone();
+        this.nonceOffset = nonceOffset;
+        this.md = useMidstate ? null : sha256();
+        this.midstate = useMidstate ? new Sha256Midstate(this.header, nonceOffset) : null;
+    }
+
+    /**
+     * Checks whether the JVM reports that the CPU has SHA instructions,
+     * which the JDK's SHA-256 then runs on.
+     *
+     * @return true if SHA instructions are in use; false if not or unknown
+     */
+    private static boolean hasShaInstructions() {
+        try {
+            return Boolean.parseBoolean(ManagementFactory
+                .getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                .getVMOption("UseSHA").getValue());
+        } catch (RuntimeException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns this thread's SHA-256 instance.
+     *
+     * @return a SHA-256 message digest owned by the calling thread
+     */
+    static MessageDigest sha256() {
+        return SHA_256.get();
+    }
+
+    /**
+     * Creates a new SHA-256 message digest.
+     *
+     * @return a new SHA-256 message digest
+     * @throws RuntimeException if the SHA-256 algorithm is not available
+     */
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Hashes the header with the given nonce and checks the result.
+     *
+     * @param nonce the nonce to try
+     * @return true if the resulting hash is valid; false otherwise
+     */
+    boolean tryNonce(long nonce) {
+        if (midstate != null) {
+            state = midstate.hash(nonce);
+            return leadingZeroBits(state) >= difficulty;
+        }
+        LONG_BE.set(header, nonceOffset, nonce);
+        md.update(header);
+        try {
+            md.digest(digest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException("SHA-256 digest failed", e);
+        }
+        return Hash.leadingZeroBits(digest) >= difficulty;
+    }
+
+    /**
+     * Counts the leading zero bits of a hash state, a 32-bit word at a time.
+     *
+     * @param state the eight state words of a SHA-256 digest
+     * @return the number of leading zero bits
+     */
+    private static int leadingZeroBits(int[] state) {
+        int bits = 0;
+        for (int word : state) {
+            if (word != 0) {
+                return bits + Integer.numberOfLeadingZeros(word);
+            }
+            bits += Integer.SIZE;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the hash produced by the most recent call to tryNonce.
+     *
+     * @return the hash of the last nonce tried
+     */
+    Hash lastHash() {
+        return new Hash(midstate != null ? Sha256Midstate.toBytes(state) : digest);
+    }
+}
@@ -0,0 +1,226 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A miner that splits the nonce space into disjoint chunks and searches
+ * them on a pool of worker threads.
+ *
+ * <p>Workers claim chunks in increasing order. Once a valid nonce is found,
+ * workers stop within a slice of {@code SLICE_SIZE} nonces of reaching one
+ * at or past it, but chunks below it are still searched to completion. The
+ * result is therefore always the smallest valid nonce, exactly what
+ * {@link SequentialMiner} would return.
+ */
+public class ParallelMiner implements Miner {
+    /** The number of consecutive nonces a worker claims at a time. */
+    static final long CHUNK_SIZE = 1L << 16;
+    /** The number of nonces a worker tries before checking for a smaller find. */
+    private static final long SLICE_SIZE = 1L << 10;
+    /** The progress of a search nobody follows or stops. */
+    static final Progress UNTRACKED = new Progress() {
+        @Override
+        public boolean isStopped() {
+            return false;
+        }
+
+        @Override
+        public void attempted(long count) {
+        }
+    };
+
+    /** The pool the workers run on. */
+    private final ForkJoinPool pool;
+    /** The number of workers started per search. */
+    private final int workers;
+
+    /**
+     * Constructs a miner that runs on the common fork-join pool.
+     */
+    public ParallelMiner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a miner with its own pool of the given number of workers.
+     *
+     * @param workers the number of worker threads
+     * @throws IllegalArgumentException if workers is not positive
+     */
+    public ParallelMiner(int workers) {
+        this(newPool(workers));
+    }
+
+    /**
+     * Constructs a miner that runs on the given pool, using one worker per
+     * unit of the pool's parallelism.
+     *
+     * @param pool the pool to run workers on
+     */
+    public ParallelMiner(ForkJoinPool pool) {
+        this.pool = pool;
+        this.workers = pool.getParallelism();
+    }
+
+    /**
+     * Creates a pool for the given number of workers.
+     *
+     * @param workers the number of worker threads
+     * @return a new fork-join pool
+     * @throws IllegalArgumentException if workers is not positive
+     */
+    private static ForkJoinPool newPool(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Number of workers must be positive.");
+        }
+        return new ForkJoinPool(workers);
+    }
+
+    /**
+     * Gets the number of workers started per search.
+     *
+     * @return the number of workers
+     */
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Searches for the smallest valid nonce using all workers.
+     *
+     * @param header      the header bytes
+     * @param nonceOffset where the nonce sits within the header
+     * @param difficulty  the number of leading zero bits the hash must have
+     * @return the smallest nonce whose hash meets the difficulty
+     */
+    @Override
+    public long findNonce(byte[] header, int nonceOffset, int difficulty) {
+        return search(header, nonceOffset, difficulty, UNTRACKED);
+    }
+
+    /**
+     * Searches for the smallest valid nonce using all workers, reporting
+     * progress and stopping early when asked to.
+     *
+     * @param version    the header layout
+     * @param difficulty the number of leading zero bits the hash must have
+     * @param num        the block number
+     * @param amount     the transaction amount
+     * @param prevHash   the hash of the previous block (null for the genesis block)
+     * @param progress   where to report attempts and check for a stop
+     * @return the smallest nonce whose hash meets the difficulty, or -1 if
+     *         the search was stopped first
+     */
+    long findNonce(int version, int difficulty, int num, int amount, Hash prevHash,
+            Progress progress) {
+        return search(Block.header(version, num, difficulty, amount, 0, prevHash, 0),
+            Block.nonceOffset(version, prevHash), difficulty, progress);
+    }
+
+    /**
+     * Runs one search over the given header on every worker.
+     *
+     * @param header      the header bytes
+     * @param nonceOffset the offset of the nonce within the header
+     * @param difficulty  the number of leading zero bits the hash must have
+     * @param progress    where to report attempts and check for a stop
+     * @return the smallest valid nonce, or -1 if the search was stopped first
+     */
+    private long search(byte[] header, int nonceOffset, int difficulty, Progress progress) {
+        Search search = new Search(header, nonceOffset, difficulty, progress);
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[workers];
+        for (int i = 0; i < workers; i++) {
+            tasks[i] = pool.submit(search::work);
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return progress.isStopped() ? -1 : search.best.get();
+    }
+
+    /**
+     * Lets a caller follow a search and stop it. Workers check in between
+     * chunks, so a stop takes effect within one chunk per worker.
+     */
+    interface Progress {
+        /**
+         * Checks whether the search should stop.
+         *
+         * @return true to stop the search
+         */
+        boolean isStopped();
+
+        /**
+         * Reports that a worker has tried more nonces.
+         *
+         * @param count the number of nonces tried
+         */
+        void attempted(long count);
+    }
+
+    /**
+     * The state shared by all workers of a single search.
+     */
+    private static class Search {
+        /** The header bytes, which each worker copies. */
+        private final byte[] header;
+        /** The offset of the nonce within the header. */
+        private final int nonceOffset;
+        /** The number of leading zero bits the hash must have. */
+        private final int difficulty;
+        /** Where to report attempts and check for a stop. */
+        private final Progress progress;
+        /** The first nonce of the next unclaimed chunk. */
+        private final AtomicLong nextChunk = new AtomicLong();
+        /** The smallest valid nonce found so far, or Long.MAX_VALUE. */
+        private final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+
+        /**
+         * Constructs the shared state for a search.
+         *
+         * @param header      the header bytes
+         * @param nonceOffset the offset of the nonce within the header
+         * @param difficulty  the number of leading zero bits the hash must have
+         * @param progress    where to report attempts and check for a stop
+         */
+        Search(byte[] header, int nonceOffset, int difficulty, Progress progress) {
+            this.header = header;
+            this.nonceOffset = nonceOffset;
+            this.difficulty = difficulty;
+            this.progress = progress;
+        }
+
+        /**
+         * Claims and searches chunks until a valid nonce below every
+         * unclaimed chunk has been found.
+         */
+        void work() {
+            NonceHasher hasher = new NonceHasher(header, nonceOffset, difficulty);
+            while (!progress.isStopped()) {
+                long start = nextChunk.getAndAdd(CHUNK_SIZE);
+                if (start < 0 || start >= best.get()) {
+                    return;
+                }
+                long end = start + CHUNK_SIZE;
+                long nonce = start;
+                // The shared best is read once a slice, so the inner loop only hashes
+                long limit = Math.min(end, best.get());
+                while (nonce < limit) {
+                    long sliceEnd = Math.min(limit, nonce + SLICE_SIZE);
+                    for (; nonce < sliceEnd; nonce++) {
+                        if (hasher.tryNonce(nonce)) {
+                            progress.attempted(nonce - start + 1);
+                            best.accumulateAndGet(nonce, Math::min);
+                            return;
+                        }
+                    }
+                    limit = Math.min(end, best.get());
+                }
+                progress.attempted(nonce - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * One end of a non-blocking connection between peers, moving whole frames.
+ * A frame is a 4-byte big-endian length followed by that many bytes: a
+ * message type and its payload.
+ *
+ * <p>Reads and writes never block. A {@link PeerServer} drives its
+ * connections from its selector; a connection opened with
+ * {@link #connect} has a selector of its own and waits on it in
+ * {@link #receive()}, writing queued frames while it waits, so that many
+ * requests can be in flight at once.
+ */
+final class PeerConnection implements Closeable {
+    /** The longest frame accepted. */
+    static final int MAX_FRAME = 1 << 26;
+    /** The size of a new connection's read buffer. */
+    private static final int INITIAL_BUFFER = 1 << 16;
+
+    /** The connection to the peer. */
+    private final SocketChannel channel;
+    /** The selector a client connection waits on, or null for a server's connection. */
+    private final Selector selector;
+    /** The bytes read but not yet taken as frames, in write mode. */
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+    /** The frames waiting to be written, the first possibly in part. */
+    private final Deque<ByteBuffer> out = new ArrayDeque<>();
+    /** How long {@link #receive()} waits for data before giving up, in milliseconds. */
+    private final long timeoutMillis;
+
+    /**
+     * Wraps a non-blocking channel.
+     *
+     * @param channel       the connection to the peer
+     * @param selector      the selector to wait on, or null if the caller selects
+     * @param timeoutMillis how long to wait for data in {@link #receive()}
+     */
+    PeerConnection(SocketChannel channel, Selector selector, long timeoutMillis) {
+        this.channel = channel;
+        this.selector = selector;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Opens a connection to a peer.
+     *
+     * @param address       the peer's address
+     * @param timeoutMillis how long to wait for data before giving up
+     * @return the connection
+     * @throws IOException if the peer cannot be reached
+     */
+    static PeerConnection connect(InetSocketAddress address, long timeoutMillis)
+        throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            return new PeerConnection(channel, selector, timeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Allocates a frame with room for the given payload after its type.
+     *
+     * @param type    the message type
+     * @param payload the number of payload bytes
+     * @return the frame, in write mode, positioned after the type
+     */
+    static ByteBuffer frame(byte type, int payload) {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + 1 + payload);
+        return frame.putInt(1 + payload).put(type);
+    }
+
+    /**
+     * Reads whatever the channel has.
+     *
+     * @return false if the peer closed the connection
+     * @throws IOException if the channel cannot be read
+     */
+    boolean fill() throws IOException {
+        if (!in.hasRemaining()) {
+            in = grow(in, 2 * in.capacity());
+        }
+        return channel.read(in) >= 0;
+    }
+
+    /**
+     * Takes the next whole frame out of the bytes read so far.
+     *
+     * @return the frame's type and payload, in read mode, or null if no
+     *         whole frame has been read yet
+     * @throws IOException if the peer sent a frame of a bad length
+     */
+    ByteBuffer nextFrame() throws IOException {
+        if (in.position() < Integer.BYTES) {
+            return null;
+        }
+        int length = in.getInt(0);
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length " + length + ".");
+        }
+        if (in.position() < Integer.BYTES + length) {
+            if (in.capacity() < Integer.BYTES + length) {
+                in = grow(in, Integer.BYTES + length);
+            }
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(0, in, Integer.BYTES, length);
+        in.flip().position(Integer.BYTES + length);
+        in.compact();
+        return frame;
+    }
+
+    /**
+     * Copies a buffer into a larger one.
+     *
+     * @param buffer   the buffer, in write mode
+     * @param capacity the new capacity
+     * @return the new buffer, in write mode
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        return ByteBuffer.allocate(capacity).put(buffer.flip());
+    }
+
+    /**
+     * Queues a frame and writes as much as the channel takes.
+     *
+     * @param frame the frame, in write mode
+     * @throws IOException if the channel cannot be written
+     */
+    void send(ByteBuffer frame) throws IOException {
+        out.add(frame.flip());
+        flush();
+    }
+
+    /**
+     * Writes queued frames until the channel takes no more.
+     *
+     * @return true if every queued frame is written
+     * @throws IOException if the channel cannot be written
+     */
+    boolean flush() throws IOException {
+        while (!out.isEmpty()) {
+            ByteBuffer frame = out.peek();
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            out.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether frames are waiting to be written.
+     *
+     * @return true if some queued frame is not fully written
+     */
+    boolean hasPending() {
+        return !out.isEmpty();
+    }
+
+    /**
+     * Waits for the next frame on a connection opened with {@link #connect},
+     * writing queued frames meanwhile.
+     *
+     * @return the frame's type and payload, in read mode
+     * @throws IOException if the peer closes the connection, sends a bad
+     *         frame or sends nothing for too long
+     */
+    ByteBuffer receive() throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        ByteBuffer frame = nextFrame();
+        while (frame == null) {
+            key.interestOps(hasPending()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+            if (selector.select(timeoutMillis) == 0) {
+                throw new SocketTimeoutException("The peer did not answer in time.");
+            }
+            selector.selectedKeys().clear();
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable() && !fill()) {
+                throw new EOFException("The peer closed the connection.");
+            }
+            frame = nextFrame();
+        }
+        return frame;
+    }
+
+    /**
+     * Closes the connection and its selector, if it has one.
+     *
+     * @throws IOException if the channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+}
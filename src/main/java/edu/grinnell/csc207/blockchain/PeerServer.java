@@ -0,0 +1,272 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves a chain to peers syncing with {@link ChainSync}. One thread runs
+ * a selector over every connection, so a slow peer never holds up another.
+ *
+ * <p>Peers send requests as frames (see {@link PeerConnection}) and get one
+ * response per request, in order, so they may send many before reading any:
+ * <ul>
+ *   <li>{@link #TIP}: the chain's size (4), the hash of its last block (32)
+ *       and its total work ({@link #WORK_BYTES}, unsigned).</li>
+ *   <li>{@link #HEADERS} with a first height (4) and a count (4): the first
+ *       height, the count and that many {@link BlockHeader}s.</li>
+ *   <li>{@link #BODIES} with a first height and a count: the first height,
+ *       the count and the body of each block (see
+ *       {@link BlockHeader#writeBody}).</li>
+ * </ul>
+ * Counts past the last block are cut short. A peer that sends anything
+ * else, or asks for blocks the chain does not hold, is disconnected.
+ *
+ * <p>The chain is read while holding its lock, so it can keep growing while
+ * it is served, as long as whatever changes it holds the lock too.
+ */
+public class PeerServer implements Closeable {
+    /** The message type asking for the chain's tip. */
+    static final byte TIP = 1;
+    /** The message type asking for block headers. */
+    static final byte HEADERS = 2;
+    /** The message type asking for block bodies. */
+    static final byte BODIES = 3;
+    /** The most headers sent in one response. */
+    static final int MAX_HEADERS = 4096;
+    /**
+     * The bytes a chain's total work takes on the wire: enough for 2^31
+     * blocks at the highest difficulty.
+     */
+    static final int WORK_BYTES = 40;
+
+    /** The chain served. */
+    private final BlockChain chain;
+    /** The channel peers connect to. */
+    private final ServerSocketChannel server;
+    /** The selector over the server channel and every connection. */
+    private final Selector selector;
+    /** The thread running the selector. */
+    private final Thread thread;
+    /** Whether {@link #close()} was called. */
+    private volatile boolean closed;
+
+    /**
+     * Starts serving the chain on the given address.
+     *
+     * @param chain   the chain to serve
+     * @param address the address to listen on; port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     */
+    public PeerServer(BlockChain chain, InetSocketAddress address) throws IOException {
+        this.chain = chain;
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            this.selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "peer-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the address the server listens on.
+     *
+     * @return the bound address, with the port actually picked
+     * @throws IOException if the server is closed
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Runs the selector until the server is closed.
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        serve(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // The selector itself failed; nothing more can be served
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                drop(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Accepts a waiting peer, if there is one.
+     *
+     * @throws IOException if the server channel fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ,
+                new PeerConnection(channel, null, 0));
+        }
+    }
+
+    /**
+     * Reads the requests a peer has sent and writes what it can of the
+     * responses. While responses are waiting to be written, no more
+     * requests are read from the peer.
+     *
+     * @param key the peer's key
+     */
+    private void serve(SelectionKey key) {
+        PeerConnection connection = (PeerConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                if (!connection.fill()) {
+                    drop(key);
+                    return;
+                }
+                for (ByteBuffer request = connection.nextFrame(); request != null;
+                        request = connection.nextFrame()) {
+                    connection.send(respond(request));
+                }
+            }
+            if (key.isWritable()) {
+                connection.flush();
+            }
+            key.interestOps(
+                connection.hasPending() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException e) {
+            drop(key);
+        }
+    }
+
+    /**
+     * Builds the response to a request.
+     *
+     * @param request the request's type and payload
+     * @return the response frame, in write mode
+     * @throws IllegalArgumentException if the request is malformed
+     * @throws IndexOutOfBoundsException if it asks for blocks the chain does not hold
+     */
+    private ByteBuffer respond(ByteBuffer request) {
+        byte type = request.get();
+        synchronized (chain) {
+            if (type == TIP) {
+                ByteBuffer response = PeerConnection.frame(TIP,
+                    Integer.BYTES + Hash.LENGTH + WORK_BYTES);
+                response.putInt(chain.getSize());
+                chain.getHash().writeTo(response);
+                writeWork(response, chain.getWork());
+                return response;
+            }
+            int from = request.getInt();
+            int count = request.getInt();
+            if (from < 0 || from > chain.getSize() || count < 0 || request.hasRemaining()) {
+                throw new IllegalArgumentException("Bad request.");
+            }
+            count = Math.min(count, chain.getSize() - from);
+            if (type == HEADERS) {
+                count = Math.min(count, MAX_HEADERS);
+                ByteBuffer response = PeerConnection.frame(HEADERS,
+                    2 * Integer.BYTES + count * BlockHeader.SIZE);
+                response.putInt(from).putInt(count);
+                for (int height = from; height < from + count; height++) {
+                    BlockHeader.of(chain.getBlock(height)).writeTo(response);
+                }
+                return response;
+            } else if (type == BODIES) {
+                long size = 2 * Integer.BYTES;
+                for (int height = from; height < from + count; height++) {
+                    Block block = chain.getBlock(height);
+                    size += BlockHeader.bodySize(block.getVersion(), block.getTransactionCount());
+                }
+                if (size >= PeerConnection.MAX_FRAME) {
+                    throw new IllegalArgumentException("Too many bodies asked for at once.");
+                }
+                ByteBuffer response = PeerConnection.frame(BODIES, (int) size);
+                response.putInt(from).putInt(count);
+                for (int height = from; height < from + count; height++) {
+                    BlockHeader.writeBody(response, chain.getBlock(height));
+                }
+                return response;
+            }
+            throw new IllegalArgumentException("Unknown request type " + type + ".");
+        }
+    }
+
+    /**
+     * Writes a chain's total work in {@link #WORK_BYTES} big-endian bytes.
+     *
+     * @param buffer the buffer to write to
+     * @param work   the work, which fits in that many bytes
+     */
+    static void writeWork(ByteBuffer buffer, BigInteger work) {
+        byte[] bytes = work.toByteArray();
+        buffer.put(new byte[WORK_BYTES - bytes.length]).put(bytes);
+    }
+
+    /**
+     * Reads a chain's total work written by {@link #writeWork}.
+     *
+     * @param buffer the buffer to read from
+     * @return the work
+     */
+    static BigInteger readWork(ByteBuffer buffer) {
+        byte[] bytes = new byte[WORK_BYTES];
+        buffer.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Disconnects a peer.
+     *
+     * @param key the peer's key
+     */
+    private static void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // The peer is gone either way
+        }
+    }
+
+    /**
+     * Stops serving and disconnects every peer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
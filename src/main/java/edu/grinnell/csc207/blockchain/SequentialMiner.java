@@ -0,0 +1,35 @@
+package edu.grinnell.csc207.blockchain;
+
+/**
+ * A miner that tries nonces one at a time on the calling thread,
+ * starting from 0. It always finds the smallest valid nonce.
+ */
+public class SequentialMiner implements Miner {
+
+    /**
+     * Searches nonces 0, 1, 2, ... until one yields a valid hash.
+     *
+     * @param header      the header bytes
+     * @param nonceOffset where the nonce sits within the header
+     * @param difficulty  the number of leading zero bits the hash must have
+     * @return the smallest nonce whose hash meets the difficulty
+     */
+    @Override
+    public long findNonce(byte[] header, int nonceOffset, int difficulty) {
+        return search(new NonceHasher(header, nonceOffset, difficulty));
+    }
+
+    /**
+     * Tries nonces from 0 up until one is valid.
+     *
+     * @param hasher the hasher for the block
+     * @return the smallest valid nonce
+     */
+    private static long search(NonceHasher hasher) {
+        long nonce = 0;
+        while (!hasher.tryNonce(nonce)) {
+            nonce++;
+        }
+        return nonce;
+    }
+}
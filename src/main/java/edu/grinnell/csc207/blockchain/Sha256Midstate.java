@@ -0,0 +1,232 @@
+package edu.grinnell.csc207.blockchain;
+
+/**
+ * A SHA-256 implementation specialized for hashing one message many times
+ * with only an 8-byte nonce changing between attempts.
+ *
+ * <p>Every 64-byte compression block that lies entirely before the nonce is
+ * compressed once, when the hasher is constructed, into a cached midstate.
+ * The rounds of the nonce's own block that only consume words before the
+ * nonce are cached as well. Each attempt then runs just the remaining
+ * rounds of the nonce block, plus any padding blocks after it. Moving the
+ * nonce towards the end of the message (see {@link Block#HEADER_V2})
+ * therefore directly reduces the work per attempt.
+ *
+ * <p>A hasher is not thread-safe.
+ */
+final class Sha256Midstate {
+    /** The SHA-256 round constants. */
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+        0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+        0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+        0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+        0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+        0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+        0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+        0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+        0xc67178f2,
+    };
+    /** The SHA-256 initial hash value. */
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+        0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+    };
+    /** The number of 32-bit words in a compression block. */
+    private static final int BLOCK_WORDS = 16;
+    /** The number of bytes in a compression block. */
+    private static final int BLOCK_BYTES = 64;
+
+    /** The padded message as big-endian words, one row per compression block. */
+    private final int[][] blocks;
+    /** The index of the compression block holding the nonce. */
+    private final int nonceBlock;
+    /** The index of the nonce's high word within its compression block. */
+    private final int nonceWord;
+    /** The hash state after compressing every block before the nonce block. */
+    private final int[] midstate = new int[8];
+    /** The working variables a..h after the rounds that precede the nonce. */
+    private final int[] rounds = new int[8];
+    /** The message schedule, reused across attempts. */
+    private final int[] w = new int[64];
+    /** The hash state of the most recent attempt. */
+    private final int[] state = new int[8];
+
+    /**
+     * Constructs a hasher for the given message, caching everything that
+     * does not depend on the 8 bytes at nonceOffset.
+     *
+     * @param message     the message; the nonce bytes may hold any value
+     * @param nonceOffset the offset of the nonce, a multiple of 4 that does
+     *                    not let the nonce straddle two compression blocks
+     * @throws IllegalArgumentException if nonceOffset is not usable
+     */
+    Sha256Midstate(byte[] message, int nonceOffset) {
+        if (nonceOffset % Integer.BYTES != 0
+            || nonceOffset + Long.BYTES > message.length
+            || nonceOffset % BLOCK_BYTES > BLOCK_BYTES - Long.BYTES) {
+            throw new IllegalArgumentException("Unsupported nonce offset: " + nonceOffset);
+        }
+        this.blocks = pad(message);
+        this.nonceBlock = nonceOffset / BLOCK_BYTES;
+        this.nonceWord = (nonceOffset % BLOCK_BYTES) / Integer.BYTES;
+
+        System.arraycopy(IV, 0, midstate, 0, 8);
+        for (int i = 0; i < nonceBlock; i++) {
+            compress(midstate, blocks[i]);
+        }
+        System.arraycopy(midstate, 0, rounds, 0, 8);
+        int[] words = blocks[nonceBlock];
+        for (int t = 0; t < nonceWord; t++) {
+            round(rounds, t, words[t]);
+        }
+    }
+
+    /**
+     * Pads a message as SHA-256 requires and splits it into big-endian words.
+     *
+     * @param message the message to pad
+     * @return the padded message, one row of 16 words per compression block
+     */
+    private static int[][] pad(byte[] message) {
+        int count = (message.length + 1 + Long.BYTES + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        byte[] padded = new byte[count * BLOCK_BYTES];
+        System.arraycopy(message, 0, padded, 0, message.length);
+        padded[message.length] = (byte) 0x80;
+        long bits = (long) message.length * Byte.SIZE;
+        for (int i = 0; i < Long.BYTES; i++) {
+            padded[padded.length - 1 - i] = (byte) (bits >>> (Byte.SIZE * i));
+        }
+        int[][] words = new int[count][BLOCK_WORDS];
+        for (int i = 0; i < padded.length; i += Integer.BYTES) {
+            words[i / BLOCK_BYTES][(i % BLOCK_BYTES) / Integer.BYTES] =
+                ((padded[i] & 0xff) << 24) | ((padded[i + 1] & 0xff) << 16)
+                | ((padded[i + 2] & 0xff) << 8) | (padded[i + 3] & 0xff);
+        }
+        return words;
+    }
+
+    /**
+     * Hashes the message with the given nonce.
+     *
+     * @param nonce the nonce to place at the nonce offset
+     * @return the resulting hash state as eight big-endian words
+     */
+    int[] hash(long nonce) {
+        int[] words = blocks[nonceBlock];
+        words[nonceWord] = (int) (nonce >>> 32);
+        words[nonceWord + 1] = (int) nonce;
+
+        schedule(words);
+        int a = rounds[0];
+        int b = rounds[1];
+        int c = rounds[2];
+        int d = rounds[3];
+        int e = rounds[4];
+        int f = rounds[5];
+        int g = rounds[6];
+        int h = rounds[7];
+        for (int t = nonceWord; t < 64; t++) {
+            int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] = midstate[0] + a;
+        state[1] = midstate[1] + b;
+        state[2] = midstate[2] + c;
+        state[3] = midstate[3] + d;
+        state[4] = midstate[4] + e;
+        state[5] = midstate[5] + f;
+        state[6] = midstate[6] + g;
+        state[7] = midstate[7] + h;
+
+        for (int i = nonceBlock + 1; i < blocks.length; i++) {
+            compress(state, blocks[i]);
+        }
+        return state;
+    }
+
+    /**
+     * Writes a hash state out as the 32-byte digest it represents.
+     *
+     * @param state the hash state
+     * @return the digest bytes
+     */
+    static byte[] toBytes(int[] state) {
+        byte[] digest = new byte[state.length * Integer.BYTES];
+        for (int i = 0; i < state.length; i++) {
+            digest[4 * i] = (byte) (state[i] >>> 24);
+            digest[4 * i + 1] = (byte) (state[i] >>> 16);
+            digest[4 * i + 2] = (byte) (state[i] >>> 8);
+            digest[4 * i + 3] = (byte) state[i];
+        }
+        return digest;
+    }
+
+    /**
+     * Expands a compression block into the full 64-word message schedule.
+     *
+     * @param words the 16 words of the compression block
+     */
+    private void schedule(int[] words) {
+        System.arraycopy(words, 0, w, 0, BLOCK_WORDS);
+        for (int t = BLOCK_WORDS; t < 64; t++) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18)
+                ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19)
+                ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+    }
+
+    /**
+     * Runs a full compression of one block into the given hash state.
+     *
+     * @param h     the hash state, updated in place
+     * @param words the 16 words of the compression block
+     */
+    private void compress(int[] h, int[] words) {
+        schedule(words);
+        int[] v = h.clone();
+        for (int t = 0; t < 64; t++) {
+            round(v, t, w[t]);
+        }
+        for (int i = 0; i < 8; i++) {
+            h[i] += v[i];
+        }
+    }
+
+    /**
+     * Runs a single compression round on the working variables.
+     *
+     * @param v    the working variables a..h, updated in place
+     * @param t    the round number
+     * @param word the message schedule word for this round
+     */
+    private static void round(int[] v, int t, int word) {
+        int e = v[4];
+        int a = v[0];
+        int t1 = v[7] + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+            ^ Integer.rotateRight(e, 25)) + ((e & v[5]) ^ (~e & v[6])) + K[t] + word;
+        int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+            ^ Integer.rotateRight(a, 22)) + ((a & v[1]) ^ (a & v[2]) ^ (v[1] & v[2]));
+        v[7] = v[6];
+        v[6] = v[5];
+        v[5] = v[4];
+        v[4] = v[3] + t1;
+        v[3] = v[2];
+        v[2] = v[1];
+        v[1] = v[0];
+        v[0] = t1 + t2;
+    }
+}
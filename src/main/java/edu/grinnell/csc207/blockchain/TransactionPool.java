@@ -0,0 +1,93 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.util.Arrays;
+
+/**
+ * The transactions waiting to be mined into a block, in the order they were
+ * submitted. The pool is safe to use from several threads, so transfers can
+ * be submitted while a block is being mined.
+ */
+final class TransactionPool {
+    /** The pending amounts; the first count entries are in use. */
+    private int[] pending = new int[16];
+    /** The number of pending transactions. */
+    private int count;
+    /** The total of the pending amounts. */
+    private long total;
+
+    /**
+     * Adds a transaction to the pool, unless it would overdraw Anna once
+     * every pending transaction before it is applied.
+     *
+     * @param amount      the transaction amount
+     * @param annaBalance Anna's balance on the chain, before any pending transaction
+     * @throws IllegalArgumentException if the transaction would overdraw Anna
+     */
+    synchronized void submit(int amount, int annaBalance) {
+        if (annaBalance + total + amount < 0) {
+            throw new IllegalArgumentException("Transaction would overdraw Anna's balance.");
+        }
+        if (count == pending.length) {
+            pending = Arrays.copyOf(pending, 2 * pending.length);
+        }
+        pending[count++] = amount;
+        total += amount;
+    }
+
+    /**
+     * Drops every transaction that would now overdraw Anna once the ones
+     * kept before it are applied, as after the chain loses blocks that paid
+     * her. The rest keep their order.
+     *
+     * @param annaBalance Anna's balance on the chain, before any pending transaction
+     * @return the number of transactions dropped
+     */
+    synchronized int dropOverdrafts(int annaBalance) {
+        long running = annaBalance;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (running + pending[i] >= 0) {
+                running += pending[i];
+                pending[kept++] = pending[i];
+            }
+        }
+        int dropped = count - kept;
+        count = kept;
+        total = running - annaBalance;
+        return dropped;
+    }
+
+    /**
+     * Returns up to the given number of transactions from the front of the
+     * pool, leaving them in it. They stay counted against Anna's balance
+     * until they are removed once their block is on the chain.
+     *
+     * @param max the most transactions to return
+     * @return the amounts, in the order they were submitted
+     */
+    synchronized int[] peek(int max) {
+        return Arrays.copyOf(pending, Math.min(max, count));
+    }
+
+    /**
+     * Removes the given number of transactions from the front of the pool.
+     *
+     * @param n the number of transactions to remove
+     */
+    synchronized void remove(int n) {
+        for (int i = 0; i < n; i++) {
+            total -= pending[i];
+        }
+        System.arraycopy(pending, n, pending, 0, count - n);
+        count -= n;
+    }
+
+    /**
+     * Returns the number of pending transactions.
+     *
+     * @return the number of transactions in the pool
+     */
+    synchronized int size() {
+        return count;
+    }
+}
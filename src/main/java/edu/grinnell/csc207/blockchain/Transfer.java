@@ -0,0 +1,122 @@
+package edu.grinnell.csc207.blockchain;
+
+/**
+ * A payment of some amount from one account to another, as carried by a
+ * {@link Block#HEADER_V4} block.
+ *
+ * <p>Accounts are numbered from 0. The two parties of the original ledger
+ * keep their places: Bob is account {@link #BOB} and Anna is account
+ * {@link #ANNA}, and a block holding just an amount is a transfer between
+ * them (Bob to Anna for a positive amount, Anna to Bob for a negative one).
+ * Money enters the ledger from Bob, so his is the only account that may go
+ * negative.
+ */
+public final class Transfer {
+    /** Bob's account, the only one allowed a negative balance. */
+    public static final int BOB = 0;
+    /** Anna's account. */
+    public static final int ANNA = 1;
+
+    /** The account paying. */
+    private final int from;
+    /** The account paid. */
+    private final int to;
+    /** The amount paid. */
+    private final long amount;
+
+    /**
+     * Constructs a transfer.
+     *
+     * @param from   the account paying
+     * @param to     the account paid
+     * @param amount the amount paid
+     * @throws IllegalArgumentException if an account is negative or the amount is negative
+     */
+    public Transfer(int from, int to, long amount) {
+        if (from < 0 || to < 0) {
+            throw new IllegalArgumentException("Account ids must not be negative.");
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("Transfer amount must not be negative.");
+        }
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    /**
+     * Returns the transfer between Bob and Anna that a block amount stands for.
+     *
+     * @param amount the amount, positive for Bob->Anna and negative for Anna->Bob
+     * @return the transfer
+     */
+    static Transfer ofAmount(int amount) {
+        return amount >= 0
+            ? new Transfer(BOB, ANNA, amount)
+            : new Transfer(ANNA, BOB, -(long) amount);
+    }
+
+    /**
+     * Returns how much this transfer changes Anna's balance.
+     *
+     * @return the amount paid to Anna, negated if Anna pays, or 0 if she is not involved
+     */
+    long annaDelta() {
+        return delta(ANNA);
+    }
+
+    /**
+     * Returns how much this transfer changes an account's balance.
+     *
+     * @param account the account id
+     * @return the amount paid to the account, negated if it pays, or 0 if
+     *         it is not involved
+     */
+    long delta(int account) {
+        if (from == to) {
+            return 0;
+        } else if (to == account) {
+            return amount;
+        } else if (from == account) {
+            return -amount;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the account paying.
+     *
+     * @return the sender's account id
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * Returns the account paid.
+     *
+     * @return the receiver's account id
+     */
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the amount paid.
+     *
+     * @return the amount
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    /**
+     * Returns a string representation of this transfer.
+     *
+     * @return a string such as "3 -> 7: 25"
+     */
+    @Override
+    public String toString() {
+        return from + " -> " + to + ": " + amount;
+    }
+}
@@ -0,0 +1,576 @@
+package edu.grinnell.csc207.blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the appends and removals made to a chain, which
+ * makes them durable without paying for an fsync per block.
+ *
+ * <p>Records from any number of callers are queued, and a background thread
+ * writes them out in group commits: one write and one fsync per batch. A
+ * batch is committed once it holds {@code maxBatch} records or its oldest
+ * record has waited {@code maxDelay}, whichever comes first. Each caller
+ * gets a future that completes once its record is on disk. If a commit
+ * fails, the log cuts the file back to where that batch began and fails
+ * for good: every waiting future completes exceptionally and no more
+ * records are taken, since the chain has already moved past what the
+ * log holds.
+ *
+ * <p>A record is a type byte, a block record (see {@link BlockRecords},
+ * zeroed for removals), the block's body if it has one and a CRC-32 of
+ * all of these. Each record stands alone, so the body end in its block
+ * record is the length of its body. A reorg is logged as one record that
+ * holds the number of blocks removed and the append records of its branch
+ * under a single CRC-32, so a crash never leaves half of it in the log. On
+ * startup {@link #replay(BlockChain)} applies every intact record to a
+ * fresh chain and truncates the log at the first torn or corrupt one.
+ */
+public class WriteAheadLog implements Closeable {
+    /** The type of a record that appends a block. */
+    static final byte APPEND = 1;
+    /** The type of a record that removes the last block. */
+    static final byte REMOVE = 2;
+    /** The type of a record that replaces the last blocks with a branch. */
+    static final byte REORG = 3;
+    /** The size in bytes of a reorg record's type, removal count and length. */
+    private static final int REORG_PREFIX = 1 + 2 * Integer.BYTES;
+    /** The size in bytes of a log record without a body. */
+    static final int RECORD_SIZE = 1 + BlockRecords.SIZE + Integer.BYTES;
+
+    /** The channel to the log file. */
+    private final FileChannel channel;
+    /** The number of records that triggers a commit. */
+    private final int maxBatch;
+    /** How long a record may wait before its batch is committed, in nanoseconds. */
+    private final long maxDelayNanos;
+    /** Guards the pending batch, the closed flag and the failure. */
+    private final Object lock = new Object();
+    /** The encoded records waiting to be committed. */
+    private ByteBuffer pending;
+    /** The futures of the records waiting to be committed, in order. */
+    private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    /** When the oldest pending record was queued, from System.nanoTime(). */
+    private long oldestPendingAt;
+    /** Whether close() has been called. */
+    private boolean closed;
+    /** Why a commit failed, or null if none has. */
+    private IOException failure;
+    /** Whether any record has been queued, which rules out replaying. */
+    private boolean written;
+    /** The file offset the next batch is written at. */
+    private long end;
+    /** The thread that commits batches. */
+    private final Thread committer;
+
+    /**
+     * Opens the log at the given path, creating it if it does not exist.
+     * Call {@link #replay(BlockChain)} before queueing any records.
+     *
+     * @param path     the path of the log file
+     * @param maxBatch the number of records that triggers a commit
+     * @param maxDelay how long a record may wait before its batch is committed
+     * @throws IOException if the file cannot be opened
+     * @throws IllegalArgumentException if maxBatch is not positive
+     */
+    public WriteAheadLog(Path path, int maxBatch, Duration maxDelay) throws IOException {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.pending = ByteBuffer.allocate(maxBatch * RECORD_SIZE);
+        this.end = channel.size();
+        this.committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Applies every intact record in the log to the given chain, which
+     * should hold only the genesis block the log was started from. The log
+     * is truncated at the first torn or corrupt record, which a crash in
+     * the middle of a commit can leave behind.
+     *
+     * @param chain the chain to apply the records to
+     * @return the number of records applied
+     * @throws IOException if the log cannot be read or truncated
+     * @throws IllegalStateException if records were already queued on this log
+     * @throws IllegalArgumentException if a record does not fit the chain
+     */
+    public int replay(BlockChain chain) throws IOException {
+        synchronized (lock) {
+            if (written) {
+                throw new IllegalStateException("Replay must come before logging.");
+            }
+        }
+        long length = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 256);
+        // The buffer holds the loaded bytes of the log from file position base on
+        long base = 0;
+        int loaded = load(buffer, base);
+        long position = 0;
+        int applied = 0;
+        while (true) {
+            int offset = (int) (position - base);
+            if (loaded - offset < RECORD_SIZE) {
+                base = position;
+                offset = 0;
+                loaded = load(buffer, base);
+                if (loaded == 0) {
+                    break;
+                }
+                // Any shorter load holds the rest of the log, which recordSize checks
+            }
+            int size = recordSize(buffer, offset, length - position);
+            if (size < 0) {
+                break;
+            }
+            if (loaded - offset < size) {
+                if (size > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(size);
+                }
+                base = position;
+                offset = 0;
+                loaded = load(buffer, base);
+            }
+            if (!isIntact(buffer, offset, size)) {
+                break;
+            }
+            byte type = buffer.get(offset);
+            if (type == APPEND) {
+                chain.append(readAppend(buffer, offset, size, chain.getHash()));
+            } else if (type == REMOVE) {
+                chain.removeLast();
+            } else if (!replayReorg(chain, buffer, offset, size)) {
+                break;
+            }
+            applied++;
+            position += size;
+        }
+        channel.truncate(position);
+        end = position;
+        return applied;
+    }
+
+    /**
+     * Reads the block of the append record at the given offset.
+     *
+     * @param buffer   the buffer holding the record
+     * @param offset   the offset of the record
+     * @param size     the size of the record
+     * @param prevHash the hash of the block it follows
+     * @return the block
+     */
+    private static Block readAppend(ByteBuffer buffer, int offset, int size, Hash prevHash) {
+        ByteBuffer body = size == RECORD_SIZE ? null
+            : buffer.slice(offset + 1 + BlockRecords.SIZE, size - RECORD_SIZE);
+        return BlockRecords.read(buffer, offset + 1, prevHash, body);
+    }
+
+    /**
+     * Applies the intact reorg record at the given offset to the chain in
+     * one {@link BlockChain#replaceSuffix} call, so the chain either takes
+     * the whole reorg or none of it.
+     *
+     * @param chain  the chain to apply the record to
+     * @param buffer the buffer holding the record
+     * @param offset the offset of the record
+     * @param size   the size of the record
+     * @return true if the record was applied; false if its branch is malformed
+     * @throws IllegalArgumentException if the record does not fit the chain
+     */
+    private static boolean replayReorg(BlockChain chain, ByteBuffer buffer, int offset,
+            int size) {
+        int removed = buffer.getInt(offset + 1);
+        int height = chain.getSize() - removed;
+        if (removed < 0 || height < 1) {
+            throw new IllegalArgumentException("The reorg does not fit the chain.");
+        }
+        Hash prevHash = chain.getBlock(height - 1).getHash();
+        List<Block> branch = new ArrayList<>();
+        int end = offset + size - Integer.BYTES;
+        for (int at = offset + REORG_PREFIX; at < end; ) {
+            int appendSize = recordSize(buffer, at, end - at);
+            if (appendSize < 0 || buffer.get(at) != APPEND || !isIntact(buffer, at, appendSize)) {
+                return false;
+            }
+            Block b = readAppend(buffer, at, appendSize, prevHash);
+            branch.add(b);
+            prevHash = b.getHash();
+            at += appendSize;
+        }
+        chain.replaceSuffix(height, branch);
+        return true;
+    }
+
+    /**
+     * Reads as much of the log as fits in the buffer, from the given position.
+     *
+     * @param buffer   the buffer to read into, from its start
+     * @param position the file position to read from
+     * @return the number of bytes read
+     * @throws IOException if the log cannot be read
+     */
+    private int load(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        int read;
+        while (buffer.hasRemaining() && (read = channel.read(buffer, position)) >= 0) {
+            position += read;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Works out the size of the record at the given offset from its type
+     * and, for an append, the length of its body or, for a reorg, the
+     * length of its branch.
+     *
+     * @param buffer    the buffer holding at least the record's fixed part
+     * @param offset    the offset of the record
+     * @param remaining the number of bytes in the log from the record on
+     * @return the size of the record, or -1 if its type is unknown or it
+     *         runs past the end of the log
+     */
+    private static int recordSize(ByteBuffer buffer, int offset, long remaining) {
+        byte type = buffer.get(offset);
+        if (type == REORG) {
+            if (remaining < REORG_PREFIX) {
+                return -1;
+            }
+            long branchSize = buffer.getInt(offset + 1 + Integer.BYTES);
+            long size = REORG_PREFIX + branchSize + Integer.BYTES;
+            if (branchSize < 0 || size > remaining || size > Integer.MAX_VALUE) {
+                return -1;
+            }
+            return (int) size;
+        } else if ((type != APPEND && type != REMOVE) || remaining < RECORD_SIZE) {
+            return -1;
+        } else if (type == REMOVE) {
+            return RECORD_SIZE;
+        }
+        long bodySize = BlockRecords.bodyEndAt(buffer, offset + 1);
+        if (bodySize < 0 || RECORD_SIZE + bodySize > remaining) {
+            return -1;
+        }
+        return (int) (RECORD_SIZE + bodySize);
+    }
+
+    /**
+     * Checks the checksum of the record at the given offset.
+     *
+     * @param buffer the buffer holding the record
+     * @param offset the offset of the record
+     * @param size   the size of the record
+     * @return true if the record is intact; false otherwise
+     */
+    private static boolean isIntact(ByteBuffer buffer, int offset, int size) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, size - Integer.BYTES));
+        return (int) crc.getValue() == buffer.getInt(offset + size - Integer.BYTES);
+    }
+
+    /**
+     * Queues a record that appends the given block.
+     *
+     * @param block the appended block
+     * @return a future that completes once the record is durable
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    public CompletableFuture<Void> logAppend(Block block) {
+        return enqueue(encodeAppend(block));
+    }
+
+    /**
+     * Queues a record that removes the last block.
+     *
+     * @return a future that completes once the record is durable
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    public CompletableFuture<Void> logRemove() {
+        return enqueue(encodeRemove());
+    }
+
+    /**
+     * Queues a record that replaces the last blocks with a branch, which
+     * replays all at once or not at all.
+     *
+     * @param removed the number of blocks removed from the end of the chain
+     * @param branch  the blocks appended in their place, in order
+     * @return a future that completes once the record is durable
+     * @throws IllegalStateException if the log is closed or a commit failed
+     * @throws IllegalArgumentException if the branch is too large for a record
+     */
+    public CompletableFuture<Void> logReorg(int removed, List<Block> branch) {
+        return enqueue(encodeReorg(removed, branch));
+    }
+
+    /**
+     * Encodes the record that appends the given block, to be queued later
+     * with {@link #enqueue}. A chain encodes its records before it changes,
+     * so a block the log cannot take is turned away while the chain is
+     * still as it was.
+     *
+     * @param block the appended block
+     * @return the record
+     * @throws IllegalStateException if the log is closed or a commit failed
+     * @throws IllegalArgumentException if the block is too large for a record
+     */
+    ByteBuffer encodeAppend(Block block) {
+        checkOpen();
+        int bodySize;
+        try {
+            bodySize = BlockRecords.bodySize(block);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The block is too large to log.", e);
+        }
+        if (bodySize > Integer.MAX_VALUE - RECORD_SIZE) {
+            throw new IllegalArgumentException("The block is too large to log.");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE + bodySize);
+        record.put(APPEND);
+        BlockRecords.write(record, block, bodySize);
+        BlockRecords.writeBody(record, block);
+        return seal(record);
+    }
+
+    /**
+     * Encodes the record that removes the last block, to be queued later
+     * with {@link #enqueue}.
+     *
+     * @return the record
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    ByteBuffer encodeRemove() {
+        checkOpen();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(REMOVE).put(new byte[BlockRecords.SIZE]);
+        return seal(record);
+    }
+
+    /**
+     * Encodes the record that replaces the last blocks with a branch, to be
+     * queued later with {@link #enqueue}. The branch's blocks are held as
+     * append records inside it.
+     *
+     * @param removed the number of blocks removed from the end of the chain
+     * @param branch  the blocks appended in their place, in order
+     * @return the record
+     * @throws IllegalStateException if the log is closed or a commit failed
+     * @throws IllegalArgumentException if the branch is too large for a record
+     */
+    ByteBuffer encodeReorg(int removed, List<Block> branch) {
+        checkOpen();
+        List<ByteBuffer> appends = new ArrayList<>(branch.size());
+        int branchSize = 0;
+        try {
+            for (Block b : branch) {
+                ByteBuffer append = encodeAppend(b);
+                appends.add(append);
+                branchSize = Math.addExact(branchSize, append.remaining());
+            }
+            Math.addExact(branchSize, REORG_PREFIX + Integer.BYTES);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The branch is too large to log.", e);
+        }
+        ByteBuffer record = ByteBuffer.allocate(REORG_PREFIX + branchSize + Integer.BYTES);
+        record.put(REORG).putInt(removed).putInt(branchSize);
+        for (ByteBuffer append : appends) {
+            record.put(append);
+        }
+        return seal(record);
+    }
+
+    /**
+     * Ends a record with the CRC-32 of everything before it.
+     *
+     * @param record the record, written up to its checksum
+     * @return the finished record, ready to be read
+     */
+    private static ByteBuffer seal(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.slice(0, record.position()));
+        return record.putInt((int) crc.getValue()).flip();
+    }
+
+    /**
+     * Checks that the log still takes records.
+     *
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    void checkOpen() {
+        synchronized (lock) {
+            checkOpenLocked();
+        }
+    }
+
+    /**
+     * Checks that the log still takes records, with the lock held.
+     *
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    private void checkOpenLocked() {
+        if (failure != null) {
+            throw new IllegalStateException("The log failed to commit.", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The log is closed.");
+        }
+    }
+
+    /**
+     * Adds an encoded record to the pending batch. The record is copied in
+     * whole, so the batch only ever holds complete records.
+     *
+     * @param record a record from {@link #encodeAppend}, {@link #encodeRemove}
+     *               or {@link #encodeReorg}
+     * @return a future that completes once the record is durable
+     * @throws IllegalStateException if the log is closed or a commit failed
+     */
+    CompletableFuture<Void> enqueue(ByteBuffer record) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (lock) {
+            checkOpenLocked();
+            if (pending.remaining() < record.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(2 * pending.capacity(), pending.position() + record.remaining()));
+                larger.put(pending.flip());
+                pending = larger;
+            }
+            pending.put(record);
+
+            if (waiters.isEmpty()) {
+                oldestPendingAt = System.nanoTime();
+            }
+            waiters.add(future);
+            written = true;
+            if (waiters.size() == 1 || waiters.size() >= maxBatch) {
+                lock.notifyAll();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Commits batches until the log is closed and nothing is pending, or
+     * until a commit fails.
+     */
+    private void commitLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(pending.capacity());
+        while (true) {
+            ByteBuffer batch;
+            List<CompletableFuture<Void>> done;
+            synchronized (lock) {
+                try {
+                    while (!closed && !isBatchReady()) {
+                        if (waiters.isEmpty()) {
+                            lock.wait();
+                        } else {
+                            long waited = System.nanoTime() - oldestPendingAt;
+                            TimeUnit.NANOSECONDS.timedWait(lock, maxDelayNanos - waited);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (waiters.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = pending.flip();
+                pending = spare.capacity() >= batch.capacity() ? spare.clear()
+                    : ByteBuffer.allocate(batch.capacity());
+                done = waiters;
+                waiters = new ArrayList<>();
+            }
+            long start = end;
+            try {
+                while (batch.hasRemaining()) {
+                    end += channel.write(batch, end);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                fail(e, start, done);
+                return;
+            }
+            for (CompletableFuture<Void> future : done) {
+                future.complete(null);
+            }
+            spare = batch;
+        }
+    }
+
+    /**
+     * Fails the log for good after a commit went wrong: later records are
+     * turned away, the file is cut back to where the failed batch began so
+     * no part of it is replayed, and every waiting future fails.
+     *
+     * @param e     why the commit failed
+     * @param start the file offset the failed batch was written at
+     * @param done  the futures of the failed batch
+     */
+    private void fail(IOException e, long start, List<CompletableFuture<Void>> done) {
+        List<CompletableFuture<Void>> stranded;
+        synchronized (lock) {
+            failure = e;
+            stranded = waiters;
+            waiters = new ArrayList<>();
+            pending.clear();
+        }
+        try {
+            channel.truncate(start);
+            end = start;
+        } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+        }
+        for (CompletableFuture<Void> future : done) {
+            future.completeExceptionally(e);
+        }
+        for (CompletableFuture<Void> future : stranded) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Checks whether the pending batch should be committed now.
+     *
+     * @return true if the batch is full or its oldest record has waited long enough
+     */
+    private boolean isBatchReady() {
+        return waiters.size() >= maxBatch
+            || (!waiters.isEmpty() && System.nanoTime() - oldestPendingAt >= maxDelayNanos);
+    }
+
+    /**
+     * Commits every pending record and closes the log.
+     *
+     * @throws IOException if the log file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
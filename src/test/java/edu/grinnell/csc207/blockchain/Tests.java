@@ -1,11 +1,42 @@
 package edu.grinnell.csc207.blockchain;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
@@ -46,4 +77,1366 @@ public class Tests {
         assertThrows(NoSuchElementException.class, () -> bc.removeLast(),
             "Removing the genesis block should throw a NoSuchElementException.");
     }
+
+    @Test
+    @DisplayName("Test Parallel Miner Matches Sequential Miner")
+    public void testParallelMinerMatchesSequential() {
+        Hash prevHash = new BlockChain(300, new SequentialMiner()).getHash();
+        long expected = new SequentialMiner()
+            .findNonce(Block.HEADER_V2, Hash.DEFAULT_DIFFICULTY, 1, -100, prevHash);
+        Block mined = new ParallelMiner(4)
+            .mine(Block.HEADER_V2, Hash.DEFAULT_DIFFICULTY, 1, -100, prevHash);
+        assertEquals(expected, mined.getNonce(), "Parallel miner should find the smallest nonce.");
+        assertTrue(mined.getHash().isValid(), "Mined block hash should be valid.");
+    }
+
+    @Test
+    @DisplayName("Test Nonce Hasher Matches Block Hash")
+    public void testNonceHasherMatchesBlockHash() {
+        Hash prevHash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 7, null, 0);
+        for (int version : new int[] {Block.HEADER_V1, Block.HEADER_V2}) {
+            for (boolean useMidstate : new boolean[] {false, true}) {
+                NonceHasher hasher = new NonceHasher(version, Hash.DEFAULT_DIFFICULTY, 1, -100,
+                    prevHash, useMidstate);
+                for (long nonce = 0; nonce < 100; nonce++) {
+                    Hash expected = Block.computeHash(version, 1, Hash.DEFAULT_DIFFICULTY, -100,
+                        nonce, prevHash, 0);
+                    assertEquals(expected.isValid(), hasher.tryNonce(nonce),
+                        "Validity should match.");
+                    assertEquals(expected, hasher.lastHash(),
+                        "Reused buffers should hash the same bytes.");
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test Midstate Hasher Matches SHA-256")
+    public void testMidstateMatchesSha256() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        Random random = new Random(207);
+        for (int length = 8; length < 160; length++) {
+            for (int offset = 0; offset + Long.BYTES <= length; offset += Integer.BYTES) {
+                if (offset % 64 > 56) {
+                    continue;
+                }
+                byte[] message = new byte[length];
+                random.nextBytes(message);
+                Sha256Midstate hasher = new Sha256Midstate(message.clone(), offset);
+                long nonce = random.nextLong();
+                ByteBuffer.wrap(message).putLong(offset, nonce);
+                assertArrayEquals(md.digest(message), Sha256Midstate.toBytes(hasher.hash(nonce)),
+                    "Midstate digest should match for length " + length + ", offset " + offset);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test Chains Mined By The Original Code Still Verify")
+    public void testOriginalChainVerifies() {
+        // Mined by the first version of this class, before header versions and difficulties
+        Block genesis = new Block(0, 300, null, 9324351L);
+        assertEquals("000000201f6c32c24b52b8a5b7d664af23e7db950af8867dbe800eb5c40c30a7",
+            genesis.getHash().toString(), "The genesis block should hash as it always did.");
+        assertTrue(genesis.getHash().isValid(), "The original genesis block should be valid.");
+        Block first = new Block(1, -100, genesis.getHash(), 63737717L);
+        assertEquals("000000b5beafce3a305618f59e91f2ee1459a753b7bb7664f782105bd52a0740",
+            first.getHash().toString(), "The first block should hash as it always did.");
+        ArrayBlockStore store = new ArrayBlockStore();
+        store.append(genesis);
+        store.append(first);
+        BlockChain bc = new BlockChain(store, new SequentialMiner(), Block.HEADER_V1);
+        assertTrue(bc.isValidBlockChain(), "The original chain should still verify.");
+        assertEquals(200, bc.getAnnaBalance(), "Its balances should be rebuilt.");
+    }
+
+    @Test
+    @DisplayName("Test Header Versions Hash Differently")
+    public void testHeaderVersions() {
+        Hash prevHash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 7, null, 0);
+        Block v1 = new Block(1, -100, prevHash, 42);
+        Block v2 = new Block(1, -100, prevHash, 42, Block.HEADER_V2);
+        assertEquals(Block.HEADER_V1, v1.getVersion(), "Legacy constructor should use version 1.");
+        assertNotEquals(v1.getHash(), v2.getHash(), "Layouts should hash different bytes.");
+        assertEquals(v2.getHash(), new Block(1, -100, prevHash, 42, Block.HEADER_V2).getHash(),
+            "Rebuilding a block from its nonce should reproduce its hash.");
+        assertThrows(IllegalArgumentException.class, () -> new Block(1, -100, prevHash, 42, 5),
+            "Unknown header versions should be rejected.");
+    }
+
+    @Test
+    @DisplayName("Test Array Block Store Indexing")
+    public void testArrayBlockStore() {
+        ArrayBlockStore store = new ArrayBlockStore();
+        Hash prevHash = null;
+        for (int i = 0; i < 1000; i++) {
+            Block b = new Block(i, i, prevHash, 0);
+            store.append(b);
+            prevHash = b.getHash();
+        }
+        assertEquals(1000, store.size(), "Store should hold every appended block.");
+        for (int i = 0; i < 1000; i++) {
+            Block b = store.get(i);
+            assertEquals(i, b.getNum(), "Blocks should be fetched by height.");
+            assertEquals(i, store.indexOf(b.getHash()), "Blocks should be found by hash.");
+        }
+        Hash removed = store.get(999).getHash();
+        for (int i = 0; i < 500; i++) {
+            store.removeLast();
+        }
+        assertEquals(500, store.size(), "Store should shrink on removal.");
+        assertEquals(-1, store.indexOf(removed), "Removed blocks should not be found.");
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, store.indexOf(store.get(i).getHash()), "Remaining blocks stay indexed.");
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(500));
+    }
+
+    @Test
+    @DisplayName("Test Arena Block Store")
+    public void testArenaBlockStore() {
+        ArenaBlockStore store = new ArenaBlockStore();
+        BlockChain bc = new BlockChain(store, 1000, new SequentialMiner(), Block.HEADER_V2, 0);
+        int length = 2 * ArenaBlockStore.CHUNK_RECORDS + 100;
+        for (int i = 1; i < length; i++) {
+            bc.append(new Block(i, i % 2 == 0 ? 1 : -1, bc.getHash(), 0, Block.HEADER_V2, 0));
+        }
+        assertEquals(length, store.size(), "Store should hold every appended block.");
+        assertEquals(3L * ArenaBlockStore.CHUNK_RECORDS * BlockRecords.SIZE, store.bytes(),
+            "Blocks should be packed into whole chunks.");
+        assertTrue(bc.isValidBlockChain(), "Blocks read back from the arena should verify.");
+        int edge = ArenaBlockStore.CHUNK_RECORDS;
+        Block b = store.get(edge);
+        assertEquals(edge, b.getNum(), "Blocks should be fetched by height.");
+        assertEquals(store.get(edge - 1).getHash(), b.getPrevHash(), "Links cross chunks.");
+        assertEquals(b.getAmount(), store.amountAt(edge), "Amounts should be read in place.");
+        assertEquals(edge, store.indexOf(b.getHash()), "Blocks should be found by hash.");
+        assertEquals(999, bc.getAnnaBalance(), "Balances should follow the blocks.");
+
+        bc.rollbackTo(edge);
+        assertEquals(edge, store.indexOf(store.get(edge).getHash()),
+            "The new last block should still be found.");
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(edge + 1));
+        bc.append(new Block(edge + 1, 5, bc.getHash(), 0, Block.HEADER_V2, 0));
+        assertEquals(5, store.get(edge + 1).getAmount(), "Truncated records are reused.");
+
+        store.pruneTo(edge + 1);
+        assertEquals(2L * ArenaBlockStore.CHUNK_RECORDS * BlockRecords.SIZE, store.bytes(),
+            "Chunks of dropped blocks should be released.");
+        assertEquals(b.getHash(), store.get(edge + 1).getPrevHash(),
+            "The first block held should keep its link.");
+        assertEquals(-1, store.indexOf(b.getHash()), "Pruned blocks should not be found.");
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(edge));
+        bc.append(new Block(edge + 2, new int[] {1, 2}, bc.getHash(), 0, 0));
+        bc.append(new Block(edge + 3, 4, bc.getHash(), 0, Block.HEADER_V2, 0));
+        assertArrayEquals(new int[] {1, 2}, store.get(edge + 2).getTransactions(),
+            "Batches should be read back with their bodies.");
+        assertTrue(store.get(edge + 2).hasConsistentHash(), "Bodies should hash as mined.");
+        assertEquals(1012, bc.getAnnaBalance(), "Balances should follow the batch.");
+        bc.removeLast();
+        bc.removeLast();
+        bc.append(new Block(edge + 2, new int[] {3, 4, 5}, bc.getHash(), 0, 0));
+        assertArrayEquals(new int[] {3, 4, 5}, store.get(edge + 2).getTransactions(),
+            "Truncated bodies are reused.");
+    }
+
+    @Test
+    @DisplayName("Test Incremental Validation And Balances")
+    public void testIncrementalValidation() {
+        BlockChain bc = new BlockChain(300);
+        assertTrue(bc.isValidBlockChain(), "Genesis chain should be valid.");
+        bc.append(new Block(1, -400, bc.getHash(), 0));
+        assertEquals(-100, bc.getAnnaBalance(), "Balance should be updated on append.");
+        assertEquals(100, bc.getBobBalance(), "Bob's balance mirrors Anna's.");
+        assertFalse(bc.isValidBlockChain(), "Overdrawn, unmined block should be invalid.");
+        assertFalse(bc.verifyFull(), "Full verification should agree.");
+        bc.removeLast();
+        assertEquals(300, bc.getAnnaBalance(), "Balance should roll back on removal.");
+        assertTrue(bc.isValidBlockChain(), "Chain should be valid again after removal.");
+        assertTrue(bc.verifyFull(), "Full verification should agree.");
+    }
+
+    @Test
+    @DisplayName("Test Parallel Verification Reports First Invalid Height")
+    public void testParallelVerification() {
+        BlockChain bc = new BlockChain(300);
+        bc.mine(-400);
+        assertEquals(1, bc.verifyParallel(), "Overdrawn block should be reported.");
+        bc.removeLast();
+        bc.mine(-100);
+        assertEquals(-1, bc.verifyParallel(new ForkJoinPool(4)), "Mined chain should be valid.");
+        bc.append(new Block(2, 0, bc.getHash(), 0));
+        assertEquals(2, bc.verifyParallel(), "Unmined block should be reported.");
+    }
+
+    @Test
+    @DisplayName("Test Mapped Block Store Persists The Chain")
+    public void testMappedBlockStore() throws IOException {
+        Path file = Files.createTempFile("chain", ".bin");
+        Files.delete(file);
+        try {
+            Hash tip;
+            try (MappedBlockStore store = new MappedBlockStore(file)) {
+                BlockChain bc = new BlockChain(store, 300, new ParallelMiner(), Block.HEADER_V2);
+                bc.mine(-100);
+                bc.append(new Block(2, 50, bc.getHash(), 0));
+                bc.removeLast();
+                bc.submit(-10);
+                bc.submit(-20);
+                assertEquals(2, bc.mine().getTransactionCount(), "The batch should be mined.");
+                tip = bc.getHash();
+            }
+            assertEquals(MappedBlockStore.HEADER_SIZE + 3 * BlockRecords.SIZE, Files.size(file),
+                "Removing a block should truncate the file.");
+            Path bodies = MappedBlockStore.bodyPath(file);
+            assertEquals(BlockHeader.bodySize(Block.HEADER_V3, 2), Files.size(bodies),
+                "Only the batch should have a body.");
+            // A body whose record never reached the disk
+            Files.write(bodies, new byte[] {9}, StandardOpenOption.APPEND);
+            try (MappedBlockStore store = new MappedBlockStore(file)) {
+                BlockChain bc = new BlockChain(store, new ParallelMiner(), Block.HEADER_V2);
+                assertEquals(3, bc.getSize(), "Reopened chain should have every block.");
+                assertEquals(tip, bc.getHash(), "Reopened chain should have the same tip.");
+                assertEquals(1, bc.indexOf(bc.getBlock(1).getHash()),
+                    "Blocks should be found by hash.");
+                assertArrayEquals(new int[] {-10, -20}, bc.getBlock(2).getTransactions(),
+                    "The batch should be read back whole.");
+                assertEquals(170, bc.getAnnaBalance(), "Balances should be rebuilt.");
+                assertTrue(bc.isValidBlockChain(), "Reopened chain should be valid.");
+            }
+            assertEquals(BlockHeader.bodySize(Block.HEADER_V3, 2), Files.size(bodies),
+                "An orphaned body should be dropped on opening.");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(MappedBlockStore.bodyPath(file));
+        }
+    }
+
+    @Test
+    @DisplayName("Test Mapped Block Store Maps The File In Regions")
+    public void testMappedBlockStoreRegions() throws IOException {
+        Path file = Files.createTempFile("chain", ".bin");
+        Files.delete(file);
+        int count = 2 * MappedBlockStore.REGION_RECORDS + 10;
+        try {
+            Hash[] hashes = new Hash[count];
+            try (MappedBlockStore store = new MappedBlockStore(file)) {
+                Hash prevHash = null;
+                for (int num = 0; num < count; num++) {
+                    Block b = new Block(num, num % 7, prevHash, num);
+                    store.append(b);
+                    hashes[num] = b.getHash();
+                    prevHash = b.getHash();
+                    // Reads of the newest records follow the appends, as mining does
+                    assertEquals(num % 7, store.amountAt(num), "Fresh records should be read.");
+                }
+                int boundary = MappedBlockStore.REGION_RECORDS;
+                assertEquals(hashes[boundary - 1], store.get(boundary).getPrevHash(),
+                    "A block should link to the last record of the region before.");
+                assertEquals(boundary, store.indexOf(hashes[boundary]),
+                    "Blocks past the first region should be found by hash.");
+                store.truncate(boundary + 3);
+                Block b = new Block(boundary + 3, 1, hashes[boundary + 2], 0);
+                store.append(b);
+                hashes[boundary + 3] = b.getHash();
+                assertEquals(1, store.amountAt(boundary + 3), "A record rewritten after a "
+                    + "truncation should be read afresh.");
+            }
+            try (MappedBlockStore store = new MappedBlockStore(file)) {
+                int last = MappedBlockStore.REGION_RECORDS + 3;
+                assertEquals(last + 1, store.size(), "Reopened store should have every block.");
+                assertEquals(hashes[last], store.get(last).getHash(),
+                    "Reopened store should read the last block back.");
+                assertEquals(hashes[5], store.get(6).getPrevHash(),
+                    "Reopened store should read the first region back.");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(MappedBlockStore.bodyPath(file));
+        }
+    }
+
+    @Test
+    @DisplayName("Test Write-Ahead Log Replays Durable Changes")
+    public void testWriteAheadLog() throws Exception {
+        Path file = Files.createTempFile("chain", ".wal");
+        try {
+            BlockChain bc = new BlockChain(300);
+            Hash tip;
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                assertEquals(0, log.replay(bc), "A new log should be empty.");
+                bc.setLog(log);
+                bc.append(new Block(1, -10, bc.getHash(), 0));
+                bc.append(new Block(2, -20, bc.getHash(), 0));
+                bc.removeLastDurably();
+                tip = bc.getHash();
+                bc.appendDurably(new Block(2, -30, bc.getHash(), 0)).get();
+                bc.appendDurably(new Block(3, new int[] {-5, 15}, bc.getHash(), 0,
+                    Hash.DEFAULT_DIFFICULTY)).get();
+                bc.appendDurably(new Block(4, new Transfer[] {new Transfer(Transfer.ANNA, 9, 5)},
+                    bc.getHash(), 0, Hash.DEFAULT_DIFFICULTY)).get();
+            }
+            Files.write(file, new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+            BlockChain replayed = new BlockChain(300);
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                assertEquals(6, log.replay(replayed), "Every intact record should be applied.");
+            }
+            assertEquals(5, replayed.getSize(), "Replayed chain should match the logged one.");
+            assertEquals(bc.getHash(), replayed.getHash(), "Replayed tip should match.");
+            assertEquals(tip, replayed.getBlock(1).getHash(), "Removals should be replayed.");
+            assertArrayEquals(new int[] {-5, 15}, replayed.getBlock(3).getTransactions(),
+                "Batches should be replayed with their bodies.");
+            assertEquals(5L, replayed.getBalance(9), "Transfers should be replayed.");
+            assertEquals(6L * WriteAheadLog.RECORD_SIZE + BlockHeader.bodySize(Block.HEADER_V3, 2)
+                + BlockHeader.bodySize(Block.HEADER_V4, 1), Files.size(file),
+                "The torn tail should be truncated.");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Test Write-Ahead Log Keeps Records Whole")
+    public void testWriteAheadLogBatches() throws Exception {
+        Path file = Files.createTempFile("chain", ".wal");
+        try {
+            BlockChain bc = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+            ArrayBlockStore store = new ArrayBlockStore();
+            store.append(bc.getBlock(0));
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                log.replay(bc);
+                bc.setLog(log);
+                bc.mine(1);
+                bc.submit(1);
+                bc.submit(2);
+                bc.mine();
+                bc.mine(3);
+                bc.mine(4);
+            }
+            int balance = bc.getAnnaBalance();
+            assertThrows(IllegalStateException.class, () -> bc.mine(5),
+                "A closed log should turn blocks away.");
+            assertThrows(IllegalStateException.class, () -> bc.removeLast(),
+                "A closed log should turn removals away.");
+            assertEquals(5, bc.getSize(), "Turned away changes should leave the chain alone.");
+            assertEquals(balance, bc.getAnnaBalance(), "Turned away changes leave balances alone.");
+
+            BlockChain replayed = new BlockChain(store, new SequentialMiner(), Block.HEADER_V2);
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                assertEquals(4, log.replay(replayed), "Records after a batch should be applied.");
+            }
+            assertEquals(5, replayed.getSize(), "Replayed chain should match the logged one.");
+            assertEquals(bc.getHash(), replayed.getHash(), "Replayed tip should match.");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Test Write-Ahead Log Replays A Reorg Whole Or Not At All")
+    public void testWriteAheadLogReorg() throws Exception {
+        Path file = Files.createTempFile("chain", ".wal");
+        try {
+            BlockChain bc = new BlockChain(300);
+            Hash oldTip;
+            long appended;
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                log.replay(bc);
+                bc.setLog(log);
+                bc.appendDurably(new Block(1, -10, bc.getHash(), 0)).get();
+                bc.appendDurably(new Block(2, -20, bc.getHash(), 0)).get();
+                oldTip = bc.getHash();
+                appended = Files.size(file);
+                Block b2 = new Block(2, 5, bc.getBlock(1).getHash());
+                Block b3 = new Block(3, 6, b2.getHash());
+                bc.replaceSuffix(2, List.of(b2, b3)).get();
+                bc.rollbackTo(2).get();
+            }
+
+            BlockChain replayed = new BlockChain(300);
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                assertEquals(4, log.replay(replayed), "A reorg should be one record.");
+            }
+            assertEquals(3, replayed.getSize(), "Replayed chain should match the logged one.");
+            assertEquals(bc.getHash(), replayed.getHash(), "Replayed tip should match.");
+            assertEquals(295, replayed.getAnnaBalance(), "Replayed balances should match.");
+
+            // Drop the rollback record and tear the reorg's checksum: replay
+            // must then leave out the whole reorg, not just its tail
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(Files.size(file) - (1 + 3 * Integer.BYTES) - Integer.BYTES);
+            }
+            BlockChain torn = new BlockChain(300);
+            try (WriteAheadLog log = new WriteAheadLog(file, 8, Duration.ofMillis(5))) {
+                assertEquals(2, log.replay(torn), "A torn reorg should not be applied.");
+            }
+            assertEquals(oldTip, torn.getHash(), "The chain should be as it was before the reorg.");
+            assertEquals(270, torn.getAnnaBalance(), "Balances should be as before the reorg.");
+            assertEquals(appended, Files.size(file), "The torn reorg should be truncated.");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Test Streaming Export And Import")
+    public void testStreamingExportImport() throws IOException {
+        BlockChain bc = new BlockChain(300);
+        bc.mine(-100);
+        bc.submit(-10);
+        bc.submit(-20);
+        bc.mine();
+        bc.mine(5);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ChainIO.exportText(bc, text);
+        assertEquals(bc.toString(), text.toString(StandardCharsets.UTF_8),
+            "Text export should match toString.");
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ChainIO.exportBinary(bc, Channels.newChannel(binary));
+        byte[] bytes = binary.toByteArray();
+        BlockChain copy = ChainIO.importBinary(
+            Channels.newChannel(new ByteArrayInputStream(bytes)), new ArrayBlockStore(),
+            new ParallelMiner());
+        assertEquals(bc.toString(), copy.toString(), "Imported chain should match.");
+        assertArrayEquals(new int[] {-10, -20}, copy.getBlock(2).getTransactions(),
+            "Batches should be imported with their bodies.");
+        assertEquals(175, copy.getAnnaBalance(), "Imported balances should match.");
+
+        bytes[bytes.length - 1] ^= 1;
+        assertThrows(IOException.class, () -> ChainIO.importBinary(
+            Channels.newChannel(new ByteArrayInputStream(bytes)), new ArrayBlockStore(),
+            new ParallelMiner()), "Corrupt blocks should be rejected.");
+        assertThrows(IOException.class, () -> ChainIO.importBinary(
+            Channels.newChannel(new ByteArrayInputStream(bytes, 0, bytes.length - 1)),
+            new ArrayBlockStore(), new ParallelMiner()), "Torn streams should be rejected.");
+    }
+
+    @Test
+    @DisplayName("Test Leading Zero Bits")
+    public void testLeadingZeroBits() {
+        byte[] digest = new byte[NonceHasher.DIGEST_LENGTH];
+        assertEquals(256, Hash.leadingZeroBits(digest), "An all-zero hash has 256 zero bits.");
+        digest[9] = 0x01;
+        assertEquals(79, Hash.leadingZeroBits(digest), "Zero words should be skipped.");
+        digest[2] = 0x10;
+        Hash hash = new Hash(digest);
+        assertTrue(hash.meetsDifficulty(19), "Hash should meet 19 bits.");
+        assertFalse(hash.meetsDifficulty(20), "Hash should not meet 20 bits.");
+        assertFalse(hash.isValid(), "Hash should not meet the default difficulty.");
+    }
+
+    @Test
+    @DisplayName("Test Configurable Difficulty And Retargeting")
+    public void testDifficulty() {
+        BlockChain bc = new BlockChain(new ArrayBlockStore(), 300, new SequentialMiner(),
+            Block.HEADER_V2, 8, 2);
+        Block genesis = bc.getBlock(0);
+        assertEquals(8, genesis.getDifficulty(), "Genesis should carry the target.");
+        assertEquals(2, genesis.getRetargetInterval(), "Genesis should carry the interval.");
+        bc.setRetarget(Duration.ofHours(1));
+        Block mined = bc.mine(-100);
+        assertTrue(mined.getHash().meetsDifficulty(8), "Mined hash should meet the target.");
+        assertEquals(9, bc.getNextDifficulty(), "Fast blocks should raise the difficulty.");
+        bc.mine(-100);
+        assertEquals(9, bc.getBlock(2).getDifficulty(), "Mining should use the new target.");
+        assertTrue(bc.isValidBlockChain(), "Retargeted chain should be valid.");
+
+        bc.setRetarget(Duration.ofNanos(1));
+        bc.mine(0);
+        assertEquals(8, bc.getNextDifficulty(), "Slow blocks should lower the difficulty.");
+        assertThrows(IllegalArgumentException.class,
+            () -> bc.append(new Block(4, 0, bc.getHash(), 0, Block.HEADER_V2, 7)),
+            "Difficulty may only change one bit at a time.");
+        bc.mine(0);
+        assertThrows(IllegalArgumentException.class,
+            () -> bc.append(new Block(5, 0, bc.getHash(), 0, Block.HEADER_V2, 7)),
+            "Difficulty may only change at a multiple of the interval.");
+
+        // The original layouts hash what they always did; the newer ones commit to both
+        Block last = bc.getBlock(4);
+        assertEquals(last.getHash(),
+            new Block(4, 0, last.getPrevHash(), last.getNonce(), Block.HEADER_V2, 7).getHash(),
+            "The original layouts should not hash the difficulty.");
+        assertEquals(genesis.getHash(),
+            new Block(0, 300, null, genesis.getNonce(), Block.HEADER_V2, 8, 0).getHash(),
+            "The original layouts should not hash the retarget interval.");
+        for (int version : new int[] {Block.HEADER_V3, Block.HEADER_V4}) {
+            assertNotEquals(new Block(4, 0, last.getPrevHash(), 0, version, 8).getHash(),
+                new Block(4, 0, last.getPrevHash(), 0, version, 7).getHash(),
+                "The difficulty should be hashed.");
+            assertNotEquals(new Block(0, 300, null, 0, version, 8, 2).getHash(),
+                new Block(0, 300, null, 0, version, 8, 0).getHash(),
+                "The retarget interval should be hashed.");
+        }
+        assertThrows(IllegalArgumentException.class,
+            () -> new Block(5, 0, bc.getHash(), 0, Block.HEADER_V2, 8, 2),
+            "Only a genesis block sets a retarget interval.");
+
+        long nonce = 0;
+        while (Block.computeHash(Block.HEADER_V2, 5, 8, 0, nonce, bc.getHash(), 0)
+                .meetsDifficulty(8)) {
+            nonce++;
+        }
+        bc.append(new Block(5, 0, bc.getHash(), nonce, Block.HEADER_V2, 8));
+        assertEquals(5, bc.verifyParallel(), "A hash below its difficulty is invalid.");
+
+        BlockChain fixed = new BlockChain(300, new SequentialMiner(), Block.HEADER_V2, 8);
+        assertThrows(IllegalStateException.class, () -> fixed.setRetarget(Duration.ofHours(1)),
+            "A chain whose genesis fixes the difficulty cannot retarget.");
+        assertThrows(IllegalArgumentException.class,
+            () -> fixed.append(new Block(1, 0, fixed.getHash(), 0, Block.HEADER_V2, 9)),
+            "A fixed difficulty should never change.");
+    }
+
+    @Test
+    @DisplayName("Test Parallel Verification Of A Long Chain")
+    public void testLongChainVerification() {
+        BlockChain bc = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 4);
+        for (int i = 1; i < 2000; i++) {
+            bc.mine(i == 1500 ? -1100 : 0);
+        }
+        assertEquals(1500, bc.verifyParallel(new ForkJoinPool(4)),
+            "The overdrawn block should be reported.");
+        assertFalse(bc.verifyFull(), "Full verification should agree.");
+        while (bc.getSize() > 1500) {
+            bc.removeLast();
+        }
+        assertEquals(-1, bc.verifyParallel(), "Truncated chain should be valid.");
+        assertTrue(bc.isValidBlockChain(), "Incremental validation should agree.");
+    }
+
+    @Test
+    @DisplayName("Test Compact Hash Representation")
+    public void testHashRepresentation() {
+        byte[] data = new byte[Hash.LENGTH];
+        new Random(42).nextBytes(data);
+        Hash hash = new Hash(data);
+        data[0]++;
+        StringBuilder hex = new StringBuilder();
+        for (byte b : new Hash(data).writeTo(ByteBuffer.allocate(Hash.LENGTH)).array()) {
+            hex.append(String.format("%02x", b));
+        }
+        assertEquals(hex.toString(), new Hash(data).toString(), "Hex should match each byte.");
+        assertNotEquals(hash, new Hash(data), "Hash should not share the caller's array.");
+        data[0]--;
+        assertEquals(hash, new Hash(data), "Equal bytes should give equal hashes.");
+        assertArrayEquals(data, hash.writeTo(ByteBuffer.allocate(Hash.LENGTH)).array(),
+            "Written bytes should round-trip.");
+        ByteBuffer little = hash.writeTo(ByteBuffer.allocate(Hash.LENGTH)
+            .order(ByteOrder.LITTLE_ENDIAN));
+        assertArrayEquals(data, little.array(), "Byte order should not change the bytes.");
+        assertEquals(hash, Hash.read(little, 0), "Read should invert write.");
+        assertEquals(hash.hashCode(), Hash.hashCodeAt(little, 0), "Hash codes should agree.");
+
+        Map<Hash, Integer> heights = new HashMap<>();
+        heights.put(hash, 7);
+        assertEquals(7, (int) heights.get(new Hash(data)), "Hashes should work as map keys.");
+        assertThrows(IllegalArgumentException.class, () -> new Hash(new byte[16]),
+            "Hashes must be 32 bytes long.");
+    }
+
+    @Test
+    @DisplayName("Test Block Cache Lookups")
+    public void testBlockCache() throws IOException {
+        Path file = Files.createTempFile("chain", ".blk");
+        try (MappedBlockStore store = new MappedBlockStore(file)) {
+            BlockChain bc = new BlockChain(store, 300, new SequentialMiner(), Block.HEADER_V2, 4);
+            for (int i = 1; i < 5; i++) {
+                bc.mine(-10);
+            }
+            BlockCache cache = new BlockCache(2);
+            bc.setBlockCache(cache);
+            Hash second = bc.getBlock(1).getHash();
+            assertEquals(1, cache.getMisses(), "First lookup should miss.");
+            assertEquals(second, bc.getBlock(1).getHash(), "Cached block should match.");
+            assertEquals(1, cache.getHits(), "Second lookup should hit.");
+            assertEquals(1, bc.getBlock(second).getNum(), "Lookup by hash should hit too.");
+            assertEquals(2, cache.getHits(), "Hash lookups should share the cache.");
+
+            bc.getBlock(2);
+            bc.getBlock(3);
+            assertEquals(2, cache.size(), "Cache should stay within its capacity.");
+            assertEquals(1, bc.indexOf(second), "Evicted blocks are still found in the store.");
+            assertEquals(4, cache.getMisses(), "Evicted blocks should miss.");
+
+            Hash last = bc.getBlock(4).getHash();
+            bc.removeLast();
+            assertNull(bc.getBlock(last), "Removed blocks should not be returned.");
+            Block replacement = bc.mine(-20);
+            assertEquals(replacement.getHash(), bc.getBlock(4).getHash(),
+                "The new block at a reused height should be returned.");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(MappedBlockStore.bodyPath(file));
+        }
+    }
+
+    @Test
+    @DisplayName("Test Concurrent Chain Snapshots And Writers")
+    public void testConcurrentBlockChain() throws Exception {
+        ConcurrentBlockChain bc =
+            new ConcurrentBlockChain(3000, new SequentialMiner(), Block.HEADER_V2, 0);
+        for (int i = 1; i < 3000; i++) {
+            bc.mine(-1);
+        }
+        ConcurrentBlockChain.Snapshot before = bc.snapshot();
+        Block removed = bc.removeLast();
+        bc.mine(-2);
+        assertEquals(removed, before.get(2999), "Old snapshots should not change.");
+        assertEquals(1, before.getAnnaBalance(2999), "Old balances should not change.");
+        assertEquals(0, bc.getAnnaBalance(), "New balance should reflect the new block.");
+        assertEquals(2999, before.indexOf(removed.getHash()), "Old snapshots keep their index.");
+        assertEquals(-1, bc.snapshot().indexOf(removed.getHash()),
+            "Removed blocks should leave the index.");
+        assertEquals(2999, bc.snapshot().indexOf(bc.getHash()), "New blocks should be indexed.");
+        assertEquals(1500, bc.snapshot().indexOf(before.get(1500).getHash()),
+            "Blocks deep in the chain should be found.");
+        Block stale = new Block(3000, 0, removed.getHash(), 0, Block.HEADER_V2, 0);
+        assertThrows(IllegalArgumentException.class, () -> bc.append(stale),
+            "Blocks mined on a stale tip should be rejected.");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        bc.mine(1);
+                        if (i % 5 == 0) {
+                            bc.removeLast();
+                        }
+                    }
+                }));
+            }
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    ConcurrentBlockChain.Snapshot s = bc.snapshot();
+                    int last = s.size() - 1;
+                    assertEquals(s.get(last - 1).getHash(), s.get(last).getPrevHash(),
+                        "Snapshots should be linked.");
+                    assertEquals(s.getAnnaBalance(last - 1) + s.get(last).getAmount(),
+                        s.getAnnaBalance(last), "Snapshot balances should be consistent.");
+                }
+            }));
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(3000 + 3 * 400, bc.getSize(), "Every write should take effect once.");
+        assertEquals(1200, bc.getAnnaBalance(), "Balances should add up.");
+        assertTrue(bc.isValidBlockChain(), "Chain should stay valid under concurrent writers.");
+        assertEquals(-1200, bc.getBobBalance(), "Bob should mirror Anna between the two.");
+        bc.append(new Block(bc.getSize(), new Transfer[] {new Transfer(Transfer.BOB, 5, 70)},
+            bc.getHash(), 0, 0));
+        assertEquals(-1270, bc.getBobBalance(), "Bob should pay other accounts too.");
+        assertEquals(1200, bc.getAnnaBalance(), "Anna should not be involved.");
+        bc.removeLast();
+        assertEquals(-1200, bc.getBobBalance(), "Removing should give Bob's payment back.");
+    }
+
+    @Test
+    @DisplayName("Test Persistent Hash Index")
+    public void testHashTrie() {
+        HashTrie trie = HashTrie.EMPTY;
+        // Codes sharing their low bits, and one code shared by two heights
+        int[] codes = {0, 32, 1 << 30, -1, 0};
+        for (int height = 0; height < codes.length; height++) {
+            trie = trie.with(codes[height], height);
+        }
+        HashTrie full = trie;
+        for (int height = 0; height < codes.length; height++) {
+            int wanted = height;
+            assertEquals(height, full.find(codes[height], h -> h == wanted),
+                "Every height should be found under its code.");
+        }
+        assertEquals(4, full.find(0, h -> true), "The newest candidate comes first.");
+        assertEquals(-1, full.find(64, h -> true), "Absent codes should not be found.");
+        HashTrie smaller = full.without(0, 4).without(1 << 30, 2);
+        assertEquals(0, smaller.find(0, h -> true), "Removing a height keeps the other.");
+        assertEquals(-1, smaller.find(1 << 30, h -> true), "Removed codes should be gone.");
+        assertEquals(2, full.find(1 << 30, h -> true), "Older tries should not change.");
+        assertEquals(smaller, smaller.without(7, 9), "Removing nothing keeps the trie.");
+        for (int height = 0; height < codes.length; height++) {
+            trie = trie.without(codes[height], height);
+        }
+        assertEquals(-1, trie.find(32, h -> true), "An emptied trie should find nothing.");
+    }
+
+    @Test
+    @DisplayName("Test Merkle Root Of A Batch")
+    public void testMerkleRoot() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[][] leaves = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            md.update((byte) 0);
+            leaves[i] = md.digest(ByteBuffer.allocate(4).putInt(10 * (i + 1)).array());
+        }
+        md.update((byte) 1);
+        md.update(leaves[0]);
+        byte[] left = md.digest(leaves[1]);
+        md.update((byte) 1);
+        md.update(left);
+        Hash expected = new Hash(md.digest(leaves[2]));
+        assertEquals(expected, MerkleTree.root(new int[] {10, 20, 30}),
+            "The odd leaf should be carried up unchanged.");
+        assertNotEquals(expected, MerkleTree.root(new int[] {20, 10, 30}),
+            "The root should commit to the order.");
+        assertNotEquals(expected, MerkleTree.root(new int[] {10, 20, 30, 30}),
+            "Repeating the last leaf should change the root.");
+
+        int[] batch = {5, -3, 7};
+        Hash prevHash = Block.computeHash(Block.HEADER_V1, 0, 0, 300, 7, null, 0);
+        byte[] header = Block.batchHeader(1, 0, MerkleTree.root(batch), 0, prevHash, 0);
+        for (boolean useMidstate : new boolean[] {false, true}) {
+            NonceHasher hasher = new NonceHasher(header,
+                Block.nonceOffset(Block.HEADER_V3, prevHash), 0, useMidstate);
+            for (long nonce = 0; nonce < 10; nonce++) {
+                hasher.tryNonce(nonce);
+                assertEquals(new Block(1, batch, prevHash, nonce, 0).getHash(),
+                    hasher.lastHash(), "Batch headers should hash alike.");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test Batched Transaction Mining")
+    public void testBatchedTransactions() {
+        BlockChain bc = new BlockChain(100, new ParallelMiner(), Block.HEADER_V2, 8);
+        for (int i = 0; i < 300; i++) {
+            bc.submit(i % 2 == 0 ? -100 : 100);
+        }
+        assertThrows(IllegalArgumentException.class, () -> bc.submit(-101),
+            "Pending transfers should count against the balance.");
+        Block batch = bc.mine();
+        assertEquals(Block.HEADER_V3, batch.getVersion(), "Batches use the batch header.");
+        assertEquals(300, batch.getTransactionCount(), "Every pending transfer should be mined.");
+        assertEquals(0, bc.getPendingCount(), "The pool should be drained.");
+        assertTrue(batch.getHash().meetsDifficulty(8), "Batch hash should meet the target.");
+        assertEquals(100, bc.getAnnaBalance(), "Balance should reflect the batch total.");
+        assertTrue(bc.isValidBlockChain(), "Chain with a batch should be valid.");
+        assertThrows(IllegalStateException.class, () -> bc.mine(),
+            "There is nothing left to mine.");
+
+        Block overdraw = new SequentialMiner().mine(8, 2, new int[] {-150, 100}, bc.getHash());
+        bc.append(overdraw);
+        assertEquals(50, bc.getAnnaBalance(), "The batch nets out to a valid balance.");
+        assertFalse(bc.isValidBlockChain(), "An overdraft inside a batch should be invalid.");
+        assertEquals(2, bc.verifyParallel(), "Parallel verification should agree.");
+
+        // Losing a block that paid Anna leaves a pooled transfer unfunded
+        BlockChain shrunk = new BlockChain(100, new ParallelMiner(), Block.HEADER_V2, 8);
+        shrunk.mine(50);
+        shrunk.submit(-140);
+        shrunk.submit(-5);
+        shrunk.removeLast();
+        Block kept = shrunk.mine();
+        assertArrayEquals(new int[] {-5}, kept.getTransactions(),
+            "Transfers that no longer fit should be dropped before mining.");
+        assertEquals(0, shrunk.getPendingCount(), "The pool should not be stuck.");
+        assertEquals(95, shrunk.getAnnaBalance(), "Only the funded transfer should apply.");
+        assertTrue(shrunk.isValidBlockChain(), "The mined batch should be valid.");
+    }
+
+    @Test
+    @DisplayName("Test Background Mining Jobs")
+    public void testMiningService() throws Exception {
+        // An unmined block far beyond reach, adopted without being checked
+        ArrayBlockStore store = new ArrayBlockStore();
+        store.append(new Block(0, 100, null, 0, Block.HEADER_V2, 0));
+        store.append(new Block(1, 0, store.get(0).getHash(), 0, Block.HEADER_V2, 40));
+        BlockChain bc = new BlockChain(store, new ParallelMiner(), Block.HEADER_V2);
+        try (MiningService service = new MiningService(bc, new ParallelMiner(2))) {
+            MiningJob stuck = service.mine(5);
+            assertEquals(MiningJob.State.RUNNING, stuck.getState(), "Mining should not block.");
+            while (stuck.getAttempts() == 0) {
+                Thread.sleep(1);
+            }
+            assertTrue(stuck.getHashRate() > 0, "The hash rate should be live.");
+            assertTrue(stuck.cancel(), "A running job can be cancelled.");
+            assertEquals(MiningJob.State.CANCELLED, stuck.getState(), "Job should be cancelled.");
+
+            MiningJob job = service.mine(-5);
+            assertEquals(job, service.getCurrent(), "The new job should be current.");
+            bc.append(new Block(2, 0, bc.getHash(), 0, Block.HEADER_V2, 40));
+            assertEquals(1, job.getRestarts(), "An append should restart the job.");
+            assertEquals(MiningJob.State.RUNNING, job.getState(), "The job should still run.");
+            bc.removeLast();
+            bc.removeLast();
+            Block mined = job.getResult().get();
+            assertEquals(3, job.getRestarts(), "Every tip change should restart the job.");
+            assertEquals(bc.getHash(), mined.getPrevHash(), "Block should be on the new tip.");
+            assertEquals(-5, mined.getAmount(), "Block should carry the job's amount.");
+            assertEquals(MiningJob.State.DONE, job.getState(), "Job should be done.");
+            assertEquals(1, bc.getSize(), "Mined blocks are not appended.");
+            bc.append(mined);
+            assertTrue(bc.isValidBlockChain(), "The mined block should extend the chain.");
+            assertEquals(MiningJob.State.DONE, job.getState(), "Finished jobs stay done.");
+        }
+    }
+
+    @Test
+    @DisplayName("Test Latency Histogram Percentiles")
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5), "An empty histogram reports 0.");
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.getCount(), "Every value should be counted.");
+        assertEquals(1_000_000, histogram.getMax(), "The maximum should be exact.");
+        assertEquals(500_500, histogram.getMean(), 1e-9, "The mean should be exact.");
+        long p50 = histogram.getPercentile(0.5);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p50 >= 500_000 && p50 < 500_000 * 9 / 8, "p50 within one bucket: " + p50);
+        assertTrue(p99 >= 990_000 && p99 < 990_000 * 9 / 8, "p99 within one bucket: " + p99);
+        assertEquals(1_000_000, histogram.getPercentile(1), "p100 is the maximum.");
+        for (long value : new long[] {0, 7, 8, 15, 16, 1L << 40, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value, "Bound above " + value);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < value,
+                "Bound below " + value);
+        }
+        assertThrows(IllegalArgumentException.class, () -> histogram.getPercentile(1.5),
+            "Fractions past 1 should be rejected.");
+    }
+
+    @Test
+    @DisplayName("Test Chain Metrics Export")
+    public void testChainMetrics() {
+        BlockChain bc = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 8);
+        Block first = bc.mine(-10);
+        Block second = bc.mine(20);
+        bc.removeLast();
+        assertTrue(bc.isValidBlockChain(), "Chain should be valid.");
+        ChainMetrics metrics = bc.getMetrics();
+        assertEquals(2, metrics.getBlocksMined(), "The genesis block is mined before metrics.");
+        assertEquals(first.getNonce() + second.getNonce() + 2, metrics.getNoncesTried(),
+            "Sequential searches try every nonce up to the winner.");
+        assertEquals(2, metrics.getAppends(), "Both mined blocks were appended.");
+        assertEquals(1, metrics.getRemovals(), "One block was removed.");
+        assertTrue(metrics.getHashRatePerWorker() > 0, "The hash rate should be positive.");
+
+        Map<String, Number> exported = bc.exportMetrics();
+        assertEquals(2L, exported.get("mine.blocks"), "Export should include counters.");
+        assertEquals(2, exported.get("chain.size"), "Export should include the chain size.");
+        assertEquals(1L, exported.get("validate.latency.count"), "One validation was timed.");
+        assertTrue(exported.get("mine.latency.p99_ns").longValue()
+            >= exported.get("mine.latency.p50_ns").longValue(), "p99 is at least p50.");
+    }
+
+    @Test
+    @DisplayName("Test Replacing A Suffix With A Competing Branch")
+    public void testReplaceSuffix() throws IOException {
+        Miner miner = new SequentialMiner();
+        BlockChain bc = new BlockChain(100, miner, Block.HEADER_V2, 8);
+        bc.setBlockCache(new BlockCache(16));
+        for (int i = 1; i <= 5; i++) {
+            bc.mine(-10);
+        }
+        assertTrue(bc.isValidBlockChain(), "Main chain should be valid.");
+        Hash replaced = bc.getBlock(4).getHash();
+        assertEquals(4, bc.indexOf(replaced), "The block should be cached.");
+
+        // A longer branch forking after height 2
+        List<Block> branch = new ArrayList<>();
+        Hash prevHash = bc.getBlock(2).getHash();
+        for (int num = 3; num <= 7; num++) {
+            Block b = miner.mine(Block.HEADER_V2, 8, num, 5, prevHash);
+            branch.add(b);
+            prevHash = b.getHash();
+        }
+        List<Block> overdraw = new ArrayList<>(branch.subList(0, 1));
+        overdraw.add(miner.mine(Block.HEADER_V2, 8, 4, -200, branch.get(0).getHash()));
+        assertThrows(IllegalArgumentException.class, () -> bc.replaceSuffix(3, overdraw),
+            "A branch that overdraws Anna should be rejected.");
+        assertEquals(6, bc.getSize(), "A rejected branch should leave the chain alone.");
+        assertThrows(IllegalArgumentException.class, () -> bc.replaceSuffix(4, branch),
+            "A branch must link to the block it forks from.");
+        assertThrows(IndexOutOfBoundsException.class, () -> bc.replaceSuffix(0, branch),
+            "The genesis block cannot be replaced.");
+
+        bc.replaceSuffix(3, branch);
+        assertEquals(8, bc.getSize(), "The branch should replace the suffix.");
+        assertEquals(prevHash, bc.getHash(), "The branch tip should be the chain tip.");
+        assertEquals(105, bc.getAnnaBalance(), "Balances should follow the branch.");
+        assertEquals(-1, bc.indexOf(replaced), "Replaced blocks should leave the cache.");
+        assertTrue(bc.isValidBlockChain(), "Chain should be valid after the swap.");
+        assertTrue(bc.verifyFull(), "A full check should agree.");
+        assertEquals(3, bc.getMetrics().getRemovals(), "Three blocks were swapped out.");
+
+        bc.rollbackTo(1);
+        assertEquals(2, bc.getSize(), "Rollback should keep blocks up to the height.");
+        assertEquals(90, bc.getAnnaBalance(), "Balances should be rolled back.");
+        assertTrue(bc.isValidBlockChain(), "Chain should be valid after the rollback.");
+
+        // A store that refuses the branch's last block leaves the chain as it was
+        Block refused = branch.get(branch.size() - 1);
+        ArrayBlockStore picky = new ArrayBlockStore() {
+            @Override
+            public void append(Block block) {
+                if (block == refused) {
+                    throw new IllegalArgumentException("The store cannot hold this block.");
+                }
+                super.append(block);
+            }
+        };
+        BlockChain swapped = new BlockChain(picky, 100, miner, Block.HEADER_V2, 8);
+        for (int i = 1; i <= 5; i++) {
+            swapped.mine(-10);
+        }
+        Hash tip = swapped.getHash();
+        Hash root = swapped.getAncestorRoot();
+        BigInteger work = swapped.getWork();
+        assertThrows(IllegalArgumentException.class, () -> swapped.replaceSuffix(3, branch),
+            "A block the store refuses should fail the swap.");
+        assertEquals(6, swapped.getSize(), "A failed swap should keep the old blocks.");
+        assertEquals(tip, swapped.getHash(), "A failed swap should keep the old tip.");
+        assertEquals(root, swapped.getAncestorRoot(), "A failed swap should keep the index.");
+        assertEquals(work, swapped.getWork(), "A failed swap should keep the work.");
+        assertEquals(50, swapped.getAnnaBalance(), "A failed swap should keep the balances.");
+        assertTrue(swapped.verifyFull(), "The chain should still check out in full.");
+
+        Path file = Files.createTempFile("chain", ".bin");
+        Files.delete(file);
+        try {
+            try (MappedBlockStore store = new MappedBlockStore(file)) {
+                BlockChain mapped = new BlockChain(store, 100, miner, Block.HEADER_V2, 8);
+                for (int i = 1; i <= 4; i++) {
+                    mapped.mine(-10);
+                }
+                Hash gone = mapped.getHash();
+                assertEquals(4, mapped.indexOf(gone), "The tip should be indexed.");
+                mapped.rollbackTo(1);
+                assertEquals(-1, mapped.indexOf(gone), "Rolled back blocks leave the index.");
+            }
+            assertEquals(MappedBlockStore.HEADER_SIZE + 2 * BlockRecords.SIZE, Files.size(file),
+                "A rollback should truncate the file once.");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(MappedBlockStore.bodyPath(file));
+        }
+    }
+
+    @Test
+    @DisplayName("Test Pipelined Mining And Appending")
+    public void testBlockPipeline() {
+        BlockChain bc = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 8);
+        Block last = null;
+        try (BlockPipeline pipeline = new BlockPipeline(bc)) {
+            for (int i = 0; i < 50; i++) {
+                last = pipeline.transfer(i % 2 == 0 ? -10 : 10);
+                assertEquals(i + 1, last.getNum(), "Blocks should be numbered in order.");
+            }
+            pipeline.drain();
+            assertEquals(51, bc.getSize(), "Every transfer should be appended.");
+            assertEquals(last.getHash(), bc.getHash(), "The last transfer should be the tip.");
+
+            // Once drained, the pipeline picks up changes made to the chain
+            bc.removeLast();
+            Block again = pipeline.transfer(10);
+            pipeline.drain();
+            assertEquals(last.getNum(), again.getNum(), "The pipeline should follow the tip.");
+        }
+        assertEquals(100, bc.getAnnaBalance(), "Transfers should net out.");
+        assertTrue(bc.isValidBlockChain(), "The pipelined chain should be valid.");
+        assertEquals(51, bc.getMetrics().getBlocksMined(), "Pipelined blocks are counted.");
+    }
+
+    @Test
+    @DisplayName("Test Pruning To A Signed Checkpoint")
+    public void testPruning() {
+        byte[] key = "checkpoint key".getBytes(StandardCharsets.UTF_8);
+        BlockChain bc = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 4);
+        bc.setPruning(10, key, null);
+        for (int i = 0; i < 100; i++) {
+            bc.mine(-5);
+        }
+        assertEquals(101, bc.getSize(), "Heights should not change when pruning.");
+        int held = bc.getSize() - bc.getFirstHeight();
+        assertTrue(held >= 10 && held < 20, "Between N and 2N blocks should be held: " + held);
+        assertEquals(500, bc.getAnnaBalance(), "Balances should survive pruning.");
+        assertTrue(bc.isValidBlockChain(), "A pruned chain should verify.");
+        assertTrue(bc.verifyFull(), "A pruned chain should verify in full.");
+        assertEquals(-1, bc.verifyParallel(), "A pruned chain should verify in parallel.");
+        assertThrows(IndexOutOfBoundsException.class, () -> bc.getBlock(0),
+            "Discarded blocks are gone.");
+
+        Checkpoint checkpoint = bc.getCheckpoint();
+        assertEquals(bc.getFirstHeight() - 1, checkpoint.getHeight(), "Checkpoint height.");
+        assertEquals(bc.getBlock(bc.getFirstHeight()).getPrevHash(), checkpoint.getHash(),
+            "The first block held should build on the checkpoint.");
+        assertEquals(1000 - 5 * checkpoint.getHeight(), checkpoint.getAnnaBalance(),
+            "The checkpoint should record the balance at the prune point.");
+        assertTrue(checkpoint.verify(key), "The checkpoint should be signed.");
+        assertFalse(checkpoint.verify("other key".getBytes(StandardCharsets.UTF_8)),
+            "Another key should not verify the checkpoint.");
+        Checkpoint forged = new Checkpoint(checkpoint.getHeight(), checkpoint.getHash(),
+            checkpoint.getDifficulty(), checkpoint.getRetargetInterval(),
+            checkpoint.getAnnaBalance() + 1000, checkpoint.getAccountsDigest(),
+            checkpoint.getSignature());
+        assertFalse(forged.verify(key), "An altered checkpoint should not verify.");
+        Checkpoint redigested = new Checkpoint(checkpoint.getHeight(), checkpoint.getHash(),
+            checkpoint.getDifficulty(), checkpoint.getRetargetInterval(),
+            checkpoint.getAnnaBalance(), new Hash(new byte[Hash.LENGTH]),
+            checkpoint.getSignature());
+        assertFalse(redigested.verify(key), "The account digest should be signed.");
+        assertThrows(IllegalArgumentException.class, () -> bc.setPruning(10, new byte[1], null),
+            "The key cannot change once pruned.");
+
+        while (bc.getSize() > bc.getFirstHeight() + 1) {
+            bc.removeLast();
+        }
+        assertThrows(NoSuchElementException.class, () -> bc.removeLast(),
+            "The last block held cannot be removed.");
+
+        // Spilled blocks can still be looked up
+        ArrayBlockStore spill = new ArrayBlockStore();
+        BlockChain spilled = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+        Block genesis = spilled.getBlock(0);
+        spilled.setPruning(5, key, spill);
+        for (int i = 0; i < 30; i++) {
+            spilled.mine(1);
+        }
+        assertEquals(spilled.getFirstHeight(), spill.size(), "Pruned blocks should spill.");
+        assertEquals(genesis, spilled.getBlock(0), "Spilled blocks can be read by height.");
+        assertEquals(0, spilled.indexOf(genesis.getHash()), "Spilled blocks can be found.");
+        assertTrue(spilled.isValidBlockChain(), "A spilled chain should verify.");
+
+        // Other accounts are vouched for by the checkpoint's digest
+        BlockChain ledger = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 4);
+        ledger.setPruning(3, key, null);
+        for (int i = 0; i < 10; i++) {
+            ledger.mine(List.of(new Transfer(Transfer.BOB, 5, 10)));
+        }
+        int height = ledger.getCheckpoint().getHeight();
+        AccountTable expected = new AccountTable();
+        expected.add(Transfer.ANNA, 1000);
+        expected.add(Transfer.BOB, -1000 - 10L * height);
+        expected.add(5, 10L * height);
+        assertEquals(expected.digest(), ledger.getCheckpoint().getAccountsDigest(),
+            "The checkpoint should digest every account at its height.");
+        assertTrue(ledger.verifyFull(), "The held blocks should lead from the digest.");
+
+        // Pruning never passes an invalid block
+        BlockChain broken = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+        broken.setPruning(2, key, null);
+        long nonce = 0;
+        while (Block.computeHash(Block.HEADER_V2, 1, 4, 0, nonce, broken.getHash(), 0)
+                .meetsDifficulty(4)) {
+            nonce++;
+        }
+        broken.append(new Block(1, 0, broken.getHash(), nonce, Block.HEADER_V2, 4));
+        for (int i = 0; i < 10; i++) {
+            broken.mine(1);
+        }
+        assertTrue(broken.getFirstHeight() <= 1, "The invalid block should stay held.");
+        assertFalse(broken.isValidBlockChain(), "The invalid block should be found.");
+
+        // Blocks validated before pruning are still kept
+        BlockChain late = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+        for (int i = 0; i < 19; i++) {
+            late.mine(1);
+        }
+        assertTrue(late.isValidBlockChain(), "The chain should be valid before pruning.");
+        late.setPruning(5, key, null);
+        assertEquals(15, late.getFirstHeight(), "Pruning should keep the last N blocks.");
+        assertEquals(119, late.getAnnaBalance(), "The tip should still be held.");
+        for (int i = 0; i < 20; i++) {
+            late.mine(1);
+            assertTrue(late.isValidBlockChain(), "Validating between appends should be fine.");
+            held = late.getSize() - late.getFirstHeight();
+            assertTrue(held >= 5 && held < 10, "Between N and 2N blocks should be held: " + held);
+        }
+    }
+
+    @Test
+    @DisplayName("Test Multi-Account Ledger")
+    public void testAccounts() throws IOException {
+        BlockChain bc = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 4);
+        assertEquals(1000L, bc.getBalance(Transfer.ANNA), "The genesis block should pay Anna.");
+        assertEquals(-1000L, bc.getBalance(Transfer.BOB), "Money should enter from Bob.");
+        Block block = bc.mine(List.of(new Transfer(Transfer.ANNA, 7, 600),
+            new Transfer(7, 3_000_000, 250),
+            new Transfer(Transfer.BOB, 3_000_000, 5_000_000_000L)));
+        assertEquals(Block.HEADER_V4, block.getVersion(), "Transfers use the transfer header.");
+        assertEquals(-600, block.getAmount(), "The amount should be Anna's net change.");
+        assertEquals(400, bc.getAnnaBalance(), "Anna's balance should follow her transfers.");
+        assertEquals(350L, bc.getBalance(7), "Account 7 should keep what it did not pass on.");
+        assertEquals(5_000_000_250L, bc.getBalance(3_000_000), "Amounts should be longs.");
+        assertEquals(0L, bc.getBalance(42), "An account never paid should hold nothing.");
+        assertTrue(bc.isValidBlockChain(), "Chain with transfers should be valid.");
+        assertThrows(IllegalArgumentException.class,
+            () -> bc.mine(List.of(new Transfer(7, 8, 351))), "Overdrafts should not be mined.");
+        assertEquals(350L, bc.getBalance(7), "A rejected block should leave balances alone.");
+
+        Block overdraw = new SequentialMiner().mine(4, 2, new Transfer[] {new Transfer(7, 8, 400)},
+            bc.getHash());
+        bc.append(overdraw);
+        assertEquals(-50L, bc.getBalance(7), "Appending should apply the transfers.");
+        assertFalse(bc.isValidBlockChain(), "An overdrawn account should be invalid.");
+        assertEquals(2, bc.verifyParallel(), "Parallel verification should agree.");
+        assertFalse(bc.verifyFull(), "A full replay should agree.");
+        bc.removeLast();
+        assertEquals(350L, bc.getBalance(7), "Removing should revert the transfers.");
+        assertEquals(0L, bc.getBalance(8), "Removing should revert the receiver too.");
+        assertTrue(bc.isValidBlockChain(), "The overdraft should be gone.");
+        assertThrows(IllegalArgumentException.class, () -> bc.replaceSuffix(2, List.of(overdraw)),
+            "A branch that overdraws should be rejected.");
+        assertEquals(350L, bc.getBalance(7), "A rejected branch should leave balances alone.");
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ChainIO.exportBinary(bc, Channels.newChannel(binary));
+        BlockChain copy = ChainIO.importBinary(
+            Channels.newChannel(new ByteArrayInputStream(binary.toByteArray())),
+            new ArenaBlockStore(), new SequentialMiner());
+        assertEquals(block.getHash(), copy.getBlock(1).getHash(),
+            "Blocks of transfers should be exported and stored whole.");
+        assertEquals(350L, copy.getBalance(7), "Imported transfers should be applied.");
+
+        Transfer[] payroll = new Transfer[200_000];
+        for (int i = 0; i < payroll.length; i++) {
+            payroll[i] = new Transfer(Transfer.BOB, 1_000_000 + i, i);
+        }
+        bc.append(bc.getMiner().mine(4, 2, payroll, bc.getHash()));
+        assertEquals(123_456L, bc.getBalance(1_123_456), "Every account should be paid.");
+        assertTrue(bc.verifyFull(), "The replayed balances should match.");
+        bc.rollbackTo(0);
+        assertEquals(1000L, bc.getBalance(Transfer.ANNA), "Rolling back should revert Anna.");
+        assertEquals(0L, bc.getBalance(1_123_456), "Rolling back should revert every account.");
+        assertEquals(-1000, bc.getBobBalance(), "Bob should be back to the negative of Anna.");
+    }
+
+    @Test
+    @DisplayName("Test Peer Sync Over Loopback")
+    public void testPeerSync() throws IOException {
+        BlockChain a = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+        for (int i = 0; i < 5000; i++) {
+            a.mine(i % 2 == 0 ? 1 : -1);
+        }
+        a.mine(List.of(new Transfer(Transfer.ANNA, 7, 60), new Transfer(7, 8, 25)));
+        a.submit(-10);
+        a.submit(20);
+        a.mine();
+        BlockChain b = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        try (PeerServer server = new PeerServer(a, loopback)) {
+            List<InetSocketAddress> peers = List.of(server.getAddress());
+            assertTrue(new ChainSync(b).sync(peers), "A lagging node should sync.");
+            assertEquals(a.getSize(), b.getSize(), "Every block should be fetched.");
+            assertEquals(a.getHash(), b.getHash(), "The tips should match.");
+            assertEquals(25L, b.getBalance(8), "Transfers should come across.");
+            assertTrue(b.verifyFull(), "The synced chain should be valid.");
+            assertFalse(new ChainSync(b).sync(peers), "An up-to-date node has nothing to do.");
+
+            // A block mined here mid-sync moves the tip; the sync starts over
+            // from the new fork instead of blaming the peer
+            BlockChain f = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+            boolean[] minedLocally = {false};
+            f.addTipListener(() -> {
+                if (!minedLocally[0]) {
+                    minedLocally[0] = true;
+                    f.mine(5);
+                }
+            });
+            assertTrue(new ChainSync(f).sync(peers), "A moving local tip should not fail a sync.");
+            assertTrue(minedLocally[0], "A block should have been mined mid-sync.");
+            assertEquals(a.getHash(), f.getHash(), "The local block should be replaced.");
+            assertTrue(f.verifyFull(), "The synced chain should be valid.");
+
+            // b forks off with blocks of its own, then a grows longer
+            b.mine(3);
+            b.mine(4);
+            for (int i = 0; i < 3; i++) {
+                a.mine(-1);
+            }
+            assertTrue(new ChainSync(b).sync(peers), "A longer fork should win.");
+            assertEquals(a.getHash(), b.getHash(), "The fork should be replaced.");
+            assertEquals(a.getAnnaBalance(), b.getAnnaBalance(), "Balances should follow.");
+
+            // A longer chain with an invalid block loses to a shorter valid one
+            BlockChain c = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+            c.append(new SequentialMiner().mine(Block.HEADER_V2, 4, 1, -1000, c.getHash()));
+            for (int i = 0; i < a.getSize(); i++) {
+                c.mine(2000);
+            }
+            BlockChain d = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+            try (PeerServer invalid = new PeerServer(c, loopback)) {
+                List<InetSocketAddress> both = List.of(invalid.getAddress(), server.getAddress());
+                assertTrue(new ChainSync(d).sync(both), "The valid chain should be picked.");
+                assertEquals(a.getHash(), d.getHash(), "The invalid chain should be passed over.");
+                BlockChain e = new BlockChain(100, new SequentialMiner(), Block.HEADER_V2, 4);
+                assertThrows(IOException.class,
+                    () -> new ChainSync(e).sync(List.of(invalid.getAddress())),
+                    "An invalid chain alone should fail the sync.");
+                assertEquals(1, e.getSize(), "A failed sync should leave the chain as it was.");
+            }
+        }
+
+        // A shorter chain mined at higher difficulties outweighs a longer one
+        BlockChain heavy = new BlockChain(new ArrayBlockStore(), 100, new SequentialMiner(),
+            Block.HEADER_V2, 4, 1);
+        ArrayBlockStore lightBlocks = new ArrayBlockStore();
+        ArrayBlockStore nodeBlocks = new ArrayBlockStore();
+        lightBlocks.append(heavy.getBlock(0));
+        nodeBlocks.append(heavy.getBlock(0));
+        BlockChain light = new BlockChain(lightBlocks, new SequentialMiner(), Block.HEADER_V2);
+        BlockChain node = new BlockChain(nodeBlocks, new SequentialMiner(), Block.HEADER_V2);
+        for (int difficulty = 5; difficulty <= 7; difficulty++) {
+            heavy.append(new SequentialMiner().mine(Block.HEADER_V3, difficulty,
+                heavy.getSize(), 1, heavy.getHash()));
+        }
+        for (int i = 0; i < 6; i++) {
+            light.mine(1);
+        }
+        assertTrue(heavy.getWork().compareTo(light.getWork()) > 0, "Work should add up.");
+        try (PeerServer heavyServer = new PeerServer(heavy, loopback);
+                PeerServer lightServer = new PeerServer(light, loopback)) {
+            assertTrue(new ChainSync(node).sync(List.of(lightServer.getAddress())),
+                "The light chain has more work than the genesis block alone.");
+            assertTrue(new ChainSync(node).sync(
+                List.of(lightServer.getAddress(), heavyServer.getAddress())),
+                "The heavier chain should win.");
+            assertEquals(heavy.getHash(), node.getHash(), "The longer chain should be replaced.");
+            assertEquals(heavy.getWork(), node.getWork(), "The work should follow the chain.");
+            assertFalse(new ChainSync(node).sync(List.of(lightServer.getAddress())),
+                "A longer chain with less work should not win.");
+        }
+    }
+
+    @Test
+    @DisplayName("Test Ancestor Index And Proofs")
+    public void testAncestorProofs() {
+        BlockChain bc = new BlockChain(300, new SequentialMiner(), Block.HEADER_V2, 4);
+        List<Hash> hashes = new ArrayList<>(List.of(bc.getHash()));
+        List<Hash> roots = new ArrayList<>(List.of(bc.getAncestorRoot()));
+        for (int i = 1; i < 45; i++) {
+            hashes.add(bc.mine(1).getHash());
+            roots.add(bc.getAncestorRoot());
+        }
+        assertTrue(bc.isAncestor(hashes.get(0), 0), "The genesis block is an ancestor.");
+        assertTrue(bc.isAncestor(hashes.get(44), 44), "The tip counts as its own ancestor.");
+        assertFalse(bc.isAncestor(hashes.get(3), 4), "A hash at the wrong height is not.");
+        assertFalse(bc.isAncestor(hashes.get(3), 45), "Heights past the tip are not.");
+        Hash root = bc.getAncestorRoot();
+        for (int height = 0; height < 45; height++) {
+            AncestorProof proof = bc.proveAncestor(height);
+            assertEquals(hashes.get(height), proof.getBlockHash(), "Proofs name their block.");
+            assertTrue(proof.verify(root), "Proof for height " + height + " should verify.");
+            AncestorProof copy = AncestorProof.fromBytes(proof.toBytes());
+            assertTrue(copy.verify(root), "A proof should survive being sent as bytes.");
+        }
+        assertTrue(bc.proveAncestor(7).toBytes().length <= 8 + (1 + 2 * 6) * Hash.LENGTH,
+            "Proofs should take a logarithmic number of hashes.");
+        assertFalse(bc.proveAncestor(7).verify(roots.get(40)), "Other roots should not match.");
+        byte[] tampered = bc.proveAncestor(7).toBytes();
+        tampered[20] ^= 1;
+        assertFalse(AncestorProof.fromBytes(tampered).verify(root), "Tampering should show.");
+        assertThrows(IllegalArgumentException.class,
+            () -> AncestorProof.fromBytes(new byte[9]), "Malformed proofs should be rejected.");
+
+        bc.removeLast();
+        assertEquals(roots.get(43), bc.getAncestorRoot(), "Removing should restore the root.");
+        bc.rollbackTo(20);
+        assertEquals(roots.get(20), bc.getAncestorRoot(), "Rolling back should too.");
+        assertFalse(bc.isAncestor(hashes.get(21), 21), "Removed blocks are not ancestors.");
+        bc.append(new SequentialMiner().mine(Block.HEADER_V2, 4, 21, 1, bc.getHash()));
+        assertEquals(roots.get(21), bc.getAncestorRoot(), "The same block gives the same root.");
+
+        ArrayBlockStore spill = new ArrayBlockStore();
+        bc.setPruning(5, new byte[] {1}, spill);
+        bc.mine(1);
+        assertTrue(bc.isAncestor(hashes.get(2), 2), "Spilled blocks are still ancestors.");
+        assertFalse(bc.isAncestor(hashes.get(3), 2), "Spilled blocks are checked by hash.");
+        assertThrows(IndexOutOfBoundsException.class, () -> bc.proveAncestor(2),
+            "Pruned blocks can no longer be proved.");
+        int held = bc.getSize() - 3;
+        assertTrue(bc.proveAncestor(held).verify(bc.getAncestorRoot()),
+            "Held blocks can still be proved.");
+        bc.removeLast();
+        bc.mine(1);
+        assertTrue(bc.proveAncestor(bc.getSize() - 1).verify(bc.getAncestorRoot()),
+            "Blocks appended after pruning can be proved.");
+    }
+
+    @Test
+    @DisplayName("Test Ancestor Index Over A Million Blocks")
+    public void testAncestorIndexScale() {
+        int count = (1 << 20) + 12345;
+        assertEquals(2L * Integer.MAX_VALUE - 31, AncestorIndex.nodeCount(Integer.MAX_VALUE),
+            "Node positions should not overflow for the longest chains.");
+        AncestorIndex index = new AncestorIndex();
+        byte[] bytes = new byte[Hash.LENGTH];
+        for (int height = 0; height < count; height++) {
+            ByteBuffer.wrap(bytes).putInt(height);
+            index.append(new Hash(bytes));
+        }
+        Hash root = index.root();
+        long before = index.bytes();
+        int kept = count - 1000;
+        index.pruneTo(kept);
+        assertEquals(root, index.root(), "Pruning should keep the root.");
+        assertTrue(index.bytes() < before / 8, "Pruning should release the old chunks.");
+        for (int height = kept; height < count; height += 97) {
+            assertTrue(index.prove(height).verify(root), "Held blocks should still be proved.");
+        }
+        ByteBuffer.wrap(bytes).putInt(kept - 1);
+        assertFalse(index.contains(kept - 1, new Hash(bytes)), "Pruned leaves should be gone.");
+        assertThrows(IndexOutOfBoundsException.class, () -> index.prove(kept - 1),
+            "Pruned blocks cannot be proved.");
+
+        // Appends and truncations past the pruned blocks still read their peaks
+        AncestorIndex full = new AncestorIndex();
+        for (int height = 0; height < count + 5000; height++) {
+            ByteBuffer.wrap(bytes).putInt(height);
+            full.append(new Hash(bytes));
+            if (height >= count) {
+                index.append(new Hash(bytes));
+            }
+        }
+        assertEquals(full.root(), index.root(), "A pruned index should grow like a full one.");
+        index.truncate(kept + 1);
+        full.truncate(kept + 1);
+        assertEquals(full.root(), index.root(), "A pruned index should shrink like one too.");
+        assertTrue(index.prove(kept).verify(full.root()),
+            "The first held block should be proved.");
+        assertThrows(IllegalArgumentException.class, () -> index.truncate(kept - 1),
+            "A pruned index cannot be truncated below its first block.");
+    }
+
+    @Test
+    @DisplayName("Test Load Generator")
+    public void testLoadGenerator() {
+        Hash[] tips = new Hash[2];
+        for (int run = 0; run < 2; run++) {
+            BlockChain bc = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 0);
+            LoadGenerator load = new LoadGenerator(207);
+            load.setAmounts(100, 1.5);
+            load.setRates(0.2, 0.1, 0.1);
+            load.setCheckInterval(25);
+            Map<String, Number> report = load.run(bc, 500);
+            assertEquals(500L, report.get("soak.ops"), "Every operation should run.");
+            assertTrue(report.get("soak.rejected").longValue() > 50, "Some should be invalid.");
+            assertTrue(report.get("soak.latency.p99").longValue() > 0, "Latency is reported.");
+            assertTrue(bc.getMetrics().getRemovals() > 0, "Some blocks should be removed.");
+            tips[run] = bc.getHash();
+        }
+        assertEquals(tips[0], tips[1], "The same seed should build the same chain.");
+        assertThrows(IllegalArgumentException.class,
+            () -> new LoadGenerator(1).setRates(0.5, 0.5, 0.5), "Shares cannot pass 1.");
+    }
+
+    @Property(tries = 20)
+    public void chainInvariantsHoldUnderLoad(@ForAll long seed) {
+        BlockChain bc = new BlockChain(1000, new SequentialMiner(), Block.HEADER_V2, 0);
+        LoadGenerator load = new LoadGenerator(seed);
+        load.setRates(0.1, 0.1, 0.1);
+        load.setCheckInterval(10);
+        // A broken invariant throws, naming the seed
+        assertEquals(200L, load.run(bc, 200).get("soak.ops"), "Every operation should run.");
+    }
 }